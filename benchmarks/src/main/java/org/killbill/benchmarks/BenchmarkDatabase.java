@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.benchmarks;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.commons.embeddeddb.EmbeddedDB;
+import org.killbill.commons.embeddeddb.h2.H2EmbeddedDB;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.killbill.commons.jdbi.transaction.NotificationTransactionHandler;
+import org.killbill.queue.InTransaction;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.config.SimplePropertyConfigSource;
+import org.skife.jdbi.v2.DBI;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+
+//
+// Embedded H2 database with the queue tables, set up the same way as in the queue tests (see TestSetup)
+//
+public class BenchmarkDatabase {
+
+    public static final String INSTANCE_NAME = "benchmark";
+
+    private final EmbeddedDB embeddedDB;
+    private final DatabaseTransactionNotificationApi databaseTransactionNotificationApi;
+    private final DBI dbi;
+
+    public BenchmarkDatabase() throws IOException, SQLException {
+        this.embeddedDB = new H2EmbeddedDB("killbillq_" + UUID.randomUUID().toString().replace('-', '_'), "killbillq", "killbillq");
+        embeddedDB.initialize();
+        embeddedDB.start();
+        embeddedDB.executeScript(Resources.toString(Resources.getResource("org/killbill/queue/ddl.sql"), Charsets.UTF_8));
+        embeddedDB.refreshTableNames();
+
+        this.databaseTransactionNotificationApi = new DatabaseTransactionNotificationApi();
+        this.dbi = new DBI(embeddedDB.getDataSource());
+        InTransaction.setupDBI(dbi);
+        dbi.setTransactionHandler(new NotificationTransactionHandler(databaseTransactionNotificationApi));
+    }
+
+    // Default bus configuration, with the specified overrides (keys relative to org.killbill.persistent.bus.benchmark.)
+    public static PersistentBusConfig createBusConfig(final Map<String, String> overrides) {
+        final Properties properties = new Properties();
+        for (final Map.Entry<String, String> entry : overrides.entrySet()) {
+            properties.setProperty("org.killbill.persistent.bus." + INSTANCE_NAME + "." + entry.getKey(), entry.getValue());
+        }
+        return new ConfigurationObjectFactory(new SimplePropertyConfigSource(properties)).buildWithReplacements(PersistentBusConfig.class,
+                                                                                                                 ImmutableMap.<String, String>of("instanceName", INSTANCE_NAME));
+    }
+
+    public DBI getDBI() {
+        return dbi;
+    }
+
+    public DatabaseTransactionNotificationApi getDatabaseTransactionNotificationApi() {
+        return databaseTransactionNotificationApi;
+    }
+
+    public void cleanupAllTables() throws IOException {
+        embeddedDB.cleanupAllTables();
+    }
+
+    public void stop() throws IOException {
+        embeddedDB.stop();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.benchmarks;
+
+import java.util.UUID;
+
+import org.killbill.bus.api.BusEvent;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Strings;
+
+public class BenchmarkEvent implements BusEvent {
+
+    private final String payload;
+    private final Long searchKey1;
+    private final Long searchKey2;
+    private final UUID userToken;
+
+    @JsonCreator
+    public BenchmarkEvent(@JsonProperty("payload") final String payload,
+                          @JsonProperty("searchKey1") final Long searchKey1,
+                          @JsonProperty("searchKey2") final Long searchKey2,
+                          @JsonProperty("userToken") final UUID userToken) {
+        this.payload = payload;
+        this.searchKey1 = searchKey1;
+        this.searchKey2 = searchKey2;
+        this.userToken = userToken;
+    }
+
+    // Event whose JSON representation is roughly payloadSize characters long
+    public static BenchmarkEvent create(final long searchKey1, final int payloadSize) {
+        return new BenchmarkEvent(Strings.padEnd("payload-" + searchKey1, payloadSize, '-'), searchKey1, 1L, UUID.randomUUID());
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    @Override
+    public Long getSearchKey1() {
+        return searchKey1;
+    }
+
+    @Override
+    public Long getSearchKey2() {
+        return searchKey2;
+    }
+
+    @Override
+    public UUID getUserToken() {
+        return userToken;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.benchmarks;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.CreatorName;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.PersistentBusSqlDao;
+import org.killbill.clock.Clock;
+import org.killbill.clock.DefaultClock;
+import org.killbill.queue.DBBackedQueueWithInflightQueue;
+import org.killbill.queue.QueueObjectMapper;
+import org.killbill.queue.api.PersistentQueueConfig.QueueEventFormat;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.killbill.queue.codec.QueueEventCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+
+//
+// Database side of the STICKY_EVENTS mode, against embedded H2: DBBackedQueueWithInflightQueue#getReadyEntries (fetching
+// the entries whose recordIds are in the inflight queue) and DBBackedQueue#moveEntriesToHistory. Each invocation
+// works on a batch of entries, which are inserted (and for moveEntriesToHistory fetched) outside of the measurement.
+//
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class DBBackedQueueBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<BusEventModelDao> getReadyEntries(final ReadyEntriesState state) {
+        state.readyEntries = state.queue.getReadyEntries().getEntries();
+        return state.readyEntries;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void moveEntriesToHistory(final HistoryState state) {
+        state.queue.moveEntriesToHistory(state.processedEntries);
+    }
+
+    public abstract static class QueueState {
+
+        protected final Clock clock = new DefaultClock();
+        protected final QueueEventCodec eventCodec = QueueObjectMapper.getCodec(QueueEventFormat.JSON);
+
+        protected BenchmarkDatabase database;
+        protected DBBackedQueueWithInflightQueue<BusEventModelDao> queue;
+
+        @Setup(Level.Trial)
+        public void setupQueue() throws IOException, SQLException {
+            database = new BenchmarkDatabase();
+            final PersistentBusConfig config = BenchmarkDatabase.createBusConfig(ImmutableMap.<String, String>of("queue.mode", "STICKY_EVENTS",
+                                                                                                                 "inflight.max", String.valueOf(BATCH_SIZE)));
+            queue = new DBBackedQueueWithInflightQueue<BusEventModelDao>(clock, database.getDBI(), PersistentBusSqlDao.class, config,
+                                                                         "benchmark-" + getClass().getSimpleName(), new MetricRegistry(),
+                                                                         database.getDatabaseTransactionNotificationApi());
+            queue.initialize();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDownQueue() throws IOException {
+            queue.close();
+            database.stop();
+        }
+
+        // Once committed, the recordIds are in the inflight queue
+        protected void insertBatch() throws IOException {
+            final List<BusEventModelDao> entries = new ArrayList<BusEventModelDao>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                final BenchmarkEvent event = BenchmarkEvent.create(i, 200);
+                entries.add(new BusEventModelDao(CreatorName.get(), clock.getUTCNow(), BenchmarkEvent.class.getName(), eventCodec.encode(event),
+                                                 event.getUserToken(), event.getSearchKey1(), event.getSearchKey2()));
+            }
+            queue.insertEntries(entries);
+        }
+
+        protected List<BusEventModelDao> toProcessed(final List<BusEventModelDao> readyEntries) {
+            final DateTime now = clock.getUTCNow();
+            final List<BusEventModelDao> processedEntries = new ArrayList<BusEventModelDao>(readyEntries.size());
+            for (final BusEventModelDao entry : readyEntries) {
+                processedEntries.add(new BusEventModelDao(entry, CreatorName.get(), now, PersistentQueueEntryLifecycleState.PROCESSED));
+            }
+            return processedEntries;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ReadyEntriesState extends QueueState {
+
+        List<BusEventModelDao> readyEntries;
+
+        @Setup(Level.Invocation)
+        public void setupInvocation() throws IOException {
+            insertBatch();
+        }
+
+        // Keep the table size constant
+        @TearDown(Level.Invocation)
+        public void tearDownInvocation() {
+            queue.moveEntriesToHistory(toProcessed(readyEntries));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class HistoryState extends QueueState {
+
+        List<BusEventModelDao> processedEntries;
+
+        @Setup(Level.Invocation)
+        public void setupInvocation() throws IOException {
+            insertBatch();
+            processedEntries = toProcessed(queue.getReadyEntries().getEntries());
+        }
+    }
+}
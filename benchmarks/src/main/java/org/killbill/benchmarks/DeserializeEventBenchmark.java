@@ -0,0 +1,79 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.bus.api.BusEvent;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.queue.QueueObjectMapper;
+import org.killbill.queue.api.PersistentQueueConfig.QueueEventFormat;
+import org.killbill.queue.codec.QueueEventCodec;
+import org.killbill.queue.dispatching.CallableCallbackBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// CallableCallbackBase#deserializeEvent, run by the dispatch threads for each entry
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DeserializeEventBenchmark {
+
+    @Param({"JSON", "SMILE"})
+    public String eventFormat;
+
+    // 0 disables compression
+    @Param({"0", "512"})
+    public int compressionThreshold;
+
+    @Param({"200", "2000"})
+    public int payloadSize;
+
+    private QueueEventCodec eventCodec;
+    private BusEventModelDao entry;
+
+    @Setup
+    public void setup() throws IOException {
+        eventCodec = QueueObjectMapper.newCodec(QueueObjectMapper.get(), QueueEventFormat.valueOf(eventFormat), compressionThreshold);
+
+        final BenchmarkEvent event = BenchmarkEvent.create(1L, payloadSize);
+        entry = new BusEventModelDao("benchmark", new DateTime(), BenchmarkEvent.class.getName(), eventCodec.encode(event),
+                                     event.getUserToken(), event.getSearchKey1(), event.getSearchKey2());
+    }
+
+    @Benchmark
+    public BusEvent deserializeEvent() {
+        return CallableCallbackBase.deserializeEvent(entry, eventCodec);
+    }
+}
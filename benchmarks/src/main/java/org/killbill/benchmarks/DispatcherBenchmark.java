@@ -0,0 +1,163 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.bus.api.BusEvent;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.clock.Clock;
+import org.killbill.clock.DefaultClock;
+import org.killbill.queue.QueueObjectMapper;
+import org.killbill.queue.api.PersistentQueueConfig.QueueEventFormat;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.killbill.queue.codec.QueueEventCodec;
+import org.killbill.queue.dispatching.BlockingRejectionExecutionHandler;
+import org.killbill.queue.dispatching.CallableCallback;
+import org.killbill.queue.dispatching.CallableCallbackBase;
+import org.killbill.queue.dispatching.Dispatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableMap;
+
+//
+// Dispatcher#dispatch to CallableQueueHandler#call (deserialization and handler invocation), without a database: each invocation
+// dispatches a batch of entries and waits until all of them have been handled.
+//
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class DispatcherBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int NB_ACCOUNTS = 100;
+
+    @Param({"4", "16"})
+    public int nbThreads;
+
+    // 0 disables ordered dispatching
+    @Param({"0", "32"})
+    public int nbDispatchLanes;
+
+    private Dispatcher<BusEvent, BusEventModelDao> dispatcher;
+    private BenchmarkCallableCallback callback;
+    private BusEventModelDao[] entries;
+
+    @Setup
+    public void setup() throws IOException {
+        final PersistentBusConfig config = BenchmarkDatabase.createBusConfig(ImmutableMap.<String, String>of("nbThreads", String.valueOf(nbThreads),
+                                                                                                             "dispatch.lanes", String.valueOf(nbDispatchLanes)));
+        final Clock clock = new DefaultClock();
+        final QueueEventCodec eventCodec = QueueObjectMapper.getCodec(QueueEventFormat.JSON);
+
+        entries = new BusEventModelDao[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            final BenchmarkEvent event = BenchmarkEvent.create(i % NB_ACCOUNTS, 200);
+            entries[i] = new BusEventModelDao("benchmark", clock.getUTCNow(), BenchmarkEvent.class.getName(), eventCodec.encode(event),
+                                              event.getUserToken(), event.getSearchKey1(), event.getSearchKey2());
+        }
+
+        callback = new BenchmarkCallableCallback(eventCodec);
+        // No parent lifecycle: entries are not moved to history
+        dispatcher = new Dispatcher<BusEvent, BusEventModelDao>(nbThreads, config, 10, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+                                                                Executors.defaultThreadFactory(), new BlockingRejectionExecutionHandler(),
+                                                                clock, callback, null);
+        dispatcher.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void dispatch() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(BATCH_SIZE);
+        callback.setLatch(latch);
+        for (final BusEventModelDao entry : entries) {
+            dispatcher.dispatch(entry);
+        }
+        latch.await();
+    }
+
+    private static final class BenchmarkCallableCallback implements CallableCallback<BusEvent, BusEventModelDao> {
+
+        private final QueueEventCodec eventCodec;
+
+        private volatile CountDownLatch latch;
+
+        private BenchmarkCallableCallback(final QueueEventCodec eventCodec) {
+            this.eventCodec = eventCodec;
+        }
+
+        void setLatch(final CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public BusEvent deserialize(final BusEventModelDao modelDao) {
+            return CallableCallbackBase.deserializeEvent(modelDao, eventCodec);
+        }
+
+        @Override
+        public void dispatch(final BusEvent event, final BusEventModelDao modelDao) {
+            latch.countDown();
+        }
+
+        @Override
+        public BusEventModelDao buildEntry(final BusEventModelDao modelDao, final DateTime now, final PersistentQueueEntryLifecycleState newState, final long newErrorCount) {
+            return null;
+        }
+
+        @Override
+        public void moveCompletedOrFailedEvents(final Iterable<BusEventModelDao> entries) {
+        }
+
+        @Override
+        public void updateRetriedEvents(final BusEventModelDao updatedEntry) {
+        }
+
+        @Override
+        public void moveCompletedOrFailedAndUpdateRetriedEvents(final Iterable<BusEventModelDao> completedOrFailed, final Iterable<BusEventModelDao> retried) {
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.EventBusException;
+import com.google.common.eventbus.EventBusThatThrowsException;
+import com.google.common.eventbus.Subscribe;
+
+// EventBusThatThrowsException#postWithException, i.e. the delivery of a deserialized bus event to the subscribed handlers
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EventBusBenchmark {
+
+    @Param({"1", "10"})
+    public int nbSubscribers;
+
+    // Handlers for other event types, which shouldn't add to the dispatch cost
+    @Param({"0", "100"})
+    public int nbOtherSubscribers;
+
+    private EventBusThatThrowsException eventBus;
+    private BenchmarkEvent event;
+
+    @Setup
+    public void setup() {
+        eventBus = new EventBusThatThrowsException("benchmark");
+        for (int i = 0; i < nbSubscribers; i++) {
+            eventBus.register(new BenchmarkSubscriber());
+        }
+        for (int i = 0; i < nbOtherSubscribers; i++) {
+            eventBus.register(new OtherSubscriber());
+        }
+        event = new BenchmarkEvent("payload", 1L, 1L, UUID.randomUUID());
+    }
+
+    @Benchmark
+    public void postWithException(final Blackhole blackhole) throws EventBusException {
+        eventBus.postWithException(event);
+        blackhole.consume(event);
+    }
+
+    public static class BenchmarkSubscriber {
+
+        private long nbEvents;
+
+        @AllowConcurrentEvents
+        @Subscribe
+        public void handleEvent(final BenchmarkEvent event) {
+            nbEvents++;
+        }
+    }
+
+    public static class OtherSubscriber {
+
+        @AllowConcurrentEvents
+        @Subscribe
+        public void handleEvent(final UUID event) {
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.commons.locker.GlobalLock;
+import org.killbill.commons.locker.GlobalLocker;
+import org.killbill.commons.locker.LockFailedException;
+import org.killbill.commons.locker.ReentrantLock;
+import org.killbill.commons.locker.memory.MemoryGlobalLocker;
+import org.killbill.commons.request.Request;
+import org.killbill.commons.request.RequestData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+//
+// Lock / reentrant lock / release cycles on the in-memory locker (MemoryGlobalLocker and its ReentrantLock table), from 1 to 64
+// threads. Each thread is its own request and works on its own locks (a lock held by another request would park the waiter
+// until the holder releases it and signals, which isn't what is measured here): what is measured is the contention on the
+// shared lock tables.
+//
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class GlobalLockerBenchmark {
+
+    private static final String SERVICE = "ACCOUNT_LOCK";
+
+    // Distinct locks per thread (e.g. accounts handled by the same request thread)
+    @Param({"1", "100"})
+    public int nbLocksPerThread;
+
+    private GlobalLocker locker;
+
+    @Setup
+    public void setup() {
+        locker = new MemoryGlobalLocker();
+    }
+
+    @State(Scope.Thread)
+    public static class RequestState {
+
+        private static final AtomicInteger nbRequests = new AtomicInteger();
+
+        private String requestId;
+        private int nextLock;
+
+        @Setup
+        public void setup() {
+            requestId = "request-" + nbRequests.incrementAndGet();
+            Request.setPerThreadRequestData(new RequestData(requestId));
+        }
+
+        @TearDown
+        public void tearDown() {
+            Request.resetPerThreadRequestData();
+        }
+
+        String nextLockKey(final int nbLocksPerThread) {
+            nextLock = (nextLock + 1) % nbLocksPerThread;
+            return requestId + "-" + nextLock;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void lock1Thread(final RequestState requestState) throws LockFailedException {
+        lockAndRelease(requestState);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void lock4Threads(final RequestState requestState) throws LockFailedException {
+        lockAndRelease(requestState);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void lock16Threads(final RequestState requestState) throws LockFailedException {
+        lockAndRelease(requestState);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void lock64Threads(final RequestState requestState) throws LockFailedException {
+        lockAndRelease(requestState);
+    }
+
+    // ReentrantLock alone, i.e. the table consulted by all lockers (MySQL and PostgreSQL included) before going to the database
+    @Benchmark
+    @Threads(64)
+    public void reentrantLockTable64Threads(final ReentrantLockState lockTableState, final RequestState requestState) {
+        final String lockName = requestState.nextLockKey(nbLocksPerThread);
+        lockTableState.lockTable.tryAcquireLockForExistingOwner(lockName);
+        lockTableState.lockTable.createLock(lockName, null);
+        lockTableState.lockTable.tryAcquireLockForExistingOwner(lockName);
+        lockTableState.lockTable.releaseLock(lockName);
+        lockTableState.lockTable.releaseLock(lockName);
+    }
+
+    @State(Scope.Benchmark)
+    public static class ReentrantLockState {
+
+        private final ReentrantLock lockTable = new ReentrantLock();
+    }
+
+    private void lockAndRelease(final RequestState requestState) throws LockFailedException {
+        final String lockKey = requestState.nextLockKey(nbLocksPerThread);
+        final GlobalLock lock = locker.lockWithNumberOfTries(SERVICE, lockKey, 1);
+        // Re-entrant acquisition, e.g. nested API calls within the same request
+        final GlobalLock reentrantLock = locker.lockWithNumberOfTries(SERVICE, lockKey, 1);
+        reentrantLock.release();
+        lock.release();
+    }
+}
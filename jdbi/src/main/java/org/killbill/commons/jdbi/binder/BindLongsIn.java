@@ -0,0 +1,124 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.binder;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.skife.jdbi.v2.SQLStatement;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.sqlobject.Binder;
+import org.skife.jdbi.v2.sqlobject.BinderFactory;
+import org.skife.jdbi.v2.sqlobject.BindingAnnotation;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizer;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizerFactory;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizingAnnotation;
+import org.skife.jdbi.v2.tweak.Argument;
+
+//
+// Like @BindIn, for a long[]: the ids are bound as primitives, without boxing each of them into a Long
+// (JDBI still needs one Argument per placeholder).
+//
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.PARAMETER})
+@SqlStatementCustomizingAnnotation(BindLongsIn.CustomizerFactory.class)
+@BindingAnnotation(BindLongsIn.BindingFactory.class)
+public @interface BindLongsIn {
+
+    String value();
+
+    public static final class CustomizerFactory implements SqlStatementCustomizerFactory {
+
+        @Override
+        public SqlStatementCustomizer createForMethod(final Annotation annotation, final Class sqlObjectType, final Method method) {
+            throw new UnsupportedOperationException("Not supported on method!");
+        }
+
+        @Override
+        public SqlStatementCustomizer createForType(final Annotation annotation, final Class sqlObjectType) {
+            throw new UnsupportedOperationException("Not supported on type");
+        }
+
+        @Override
+        public SqlStatementCustomizer createForParameter(final Annotation annotation, final Class sqlObjectType, final Method method, final Object arg) {
+            final long[] values = (long[]) arg;
+            final String key = ((BindLongsIn) annotation).value();
+
+            final StringBuilder names = new StringBuilder();
+            for (int idx = 0; idx < values.length; idx++) {
+                if (idx > 0) {
+                    names.append(",");
+                }
+                names.append(":__").append(key).append("_").append(idx);
+            }
+            final String ns = names.toString();
+
+            return new SqlStatementCustomizer() {
+                @Override
+                public void apply(final SQLStatement q) throws SQLException {
+                    q.define(key, ns);
+                }
+            };
+        }
+    }
+
+    public static class BindingFactory implements BinderFactory {
+
+        @Override
+        public Binder build(final Annotation annotation) {
+            final String key = ((BindLongsIn) annotation).value();
+
+            return new Binder() {
+                @Override
+                public void bind(final SQLStatement q, final Annotation bind, final Object arg) {
+                    final long[] values = (long[]) arg;
+                    for (int idx = 0; idx < values.length; idx++) {
+                        q.bind("__" + key + "_" + idx, new PrimitiveLongArgument(values[idx]));
+                    }
+                }
+            };
+        }
+    }
+
+    static final class PrimitiveLongArgument implements Argument {
+
+        private final long value;
+
+        PrimitiveLongArgument(final long value) {
+            this.value = value;
+        }
+
+        @Override
+        public void apply(final int position, final PreparedStatement statement, final StatementContext ctx) throws SQLException {
+            statement.setLong(position, value);
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+}
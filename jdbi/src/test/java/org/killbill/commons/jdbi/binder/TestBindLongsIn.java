@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.jdbi.binder;
+
+import java.util.List;
+
+import org.killbill.commons.jdbi.JDBITestBase;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestBindLongsIn extends JDBITestBase {
+
+    @BeforeMethod(groups = "slow")
+    public void cleanupDb() throws Exception {
+        cleanupDb("drop table if exists something;\n" +
+                  "create table something (id bigint primary key, name varchar(100))");
+    }
+
+    @Test(groups = "slow")
+    public void testBindLongs() throws Exception {
+        final SomethingSqlDao somethingSqlDao = dbi.onDemand(SomethingSqlDao.class);
+        somethingSqlDao.create(1L, "pierre");
+        somethingSqlDao.create(2L, "stephane");
+        somethingSqlDao.create(3000000000L, "kill bill");
+
+        Assert.assertEquals(somethingSqlDao.getNames(new long[]{3000000000L, 1L}), ImmutableList.<String>of("pierre", "kill bill"));
+        Assert.assertEquals(somethingSqlDao.getNames(new long[]{2L}), ImmutableList.<String>of("stephane"));
+        Assert.assertEquals(somethingSqlDao.getNames(new long[]{4L}), ImmutableList.<String>of());
+    }
+
+    @UseStringTemplate3StatementLocator
+    private interface SomethingSqlDao {
+
+        @SqlUpdate("insert into something (id, name) values (:id, :name)")
+        public void create(@Bind("id") final long id,
+                           @Bind("name") final String name);
+
+        @SqlQuery("select name from something where id in (<ids>) order by id")
+        public List<String> getNames(@BindLongsIn("ids") final long[] ids);
+    }
+}
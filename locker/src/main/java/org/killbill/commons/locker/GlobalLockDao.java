@@ -21,6 +21,7 @@ package org.killbill.commons.locker;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public interface GlobalLockDao {
@@ -30,4 +31,9 @@ public interface GlobalLockDao {
     boolean releaseLock(final Connection connection, final String lockName) throws SQLException;
 
     boolean isLockFree(final Connection connection, final String lockName) throws SQLException;
+
+    // Multiple locks held by the same session: one round trip, one result per lock name (without waiting for locks which aren't free)
+    boolean[] tryLocks(final Connection connection, final List<String> lockNames) throws SQLException;
+
+    boolean[] releaseLocks(final Connection connection, final List<String> lockNames) throws SQLException;
 }
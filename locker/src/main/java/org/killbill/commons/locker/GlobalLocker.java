@@ -19,9 +19,39 @@
 
 package org.killbill.commons.locker;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
 public interface GlobalLocker {
 
     GlobalLock lockWithNumberOfTries(String service, String lockKey, int retry) throws LockFailedException;
 
+    // All or nothing: the locks are taken in a canonical order (no deadlock between callers sharing keys), and released together.
+    // By default, they are taken one at a time (implementations may take them in fewer round trips)
+    default GlobalLock lockAllWithNumberOfTries(final String service, final Collection<String> lockKeys, final int retry) throws LockFailedException {
+        final List<GlobalLock> locks = new ArrayList<GlobalLock>(lockKeys.size());
+        try {
+            for (final String lockKey : new TreeSet<String>(lockKeys)) {
+                locks.add(lockWithNumberOfTries(service, lockKey, retry));
+            }
+        } catch (final LockFailedException e) {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).release();
+            }
+            throw e;
+        }
+
+        return new GlobalLock() {
+            @Override
+            public void release() {
+                for (int i = locks.size() - 1; i >= 0; i--) {
+                    locks.get(i).release();
+                }
+            }
+        };
+    }
+
     boolean isFree(String service, String lockKey);
 }
@@ -19,6 +19,12 @@
 
 package org.killbill.commons.locker;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
 import org.killbill.commons.locker.ReentrantLock.TryAcquireLockState;
@@ -38,12 +44,15 @@ public abstract class GlobalLockerBase implements GlobalLocker {
     protected final TimeUnit timeUnit;
     protected final ReentrantLock lockTable;
 
+    private final LockWaiters lockWaiters;
+
     private final Profiling<GlobalLock, LockFailedException> prof;
 
     public GlobalLockerBase(final long timeout, final TimeUnit timeUnit) {
         this.timeout = timeout;
         this.timeUnit = timeUnit;
         this.lockTable = new ReentrantLock();
+        this.lockWaiters = new LockWaiters();
         this.prof = new Profiling<GlobalLock, LockFailedException>();
     }
 
@@ -54,13 +63,14 @@ public abstract class GlobalLockerBase implements GlobalLocker {
             public GlobalLock execute() throws LockFailedException {
                 final String lockName = getLockName(service, lockKey);
                 int tries_left = retry;
+                // Each try already waits up to the timeout (see lock below), no need to sleep in between
                 while (tries_left-- > 0) {
                     final GlobalLock lock = lock(lockName);
                     if (lock != null) {
                         return lock;
                     }
-                    if (tries_left > 0) {
-                        sleep();
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
                     }
                 }
 
@@ -70,36 +80,195 @@ public abstract class GlobalLockerBase implements GlobalLocker {
         });
     }
 
+    @Override
+    public GlobalLock lockAllWithNumberOfTries(final String service, final Collection<String> lockKeys, final int retry) throws LockFailedException {
+        return prof.executeWithProfiling(ProfilingFeatureType.GLOCK, "lockAll", new WithProfilingCallback<GlobalLock, LockFailedException>() {
+            @Override
+            public GlobalLock execute() throws LockFailedException {
+                // Same order on all nodes
+                final SortedSet<String> sortedLockNames = new TreeSet<String>();
+                for (final String lockKey : lockKeys) {
+                    sortedLockNames.add(getLockName(service, lockKey));
+                }
+                final List<String> lockNames = new ArrayList<String>(sortedLockNames);
+
+                int tries_left = retry;
+                while (tries_left-- > 0) {
+                    final GlobalLock lock = lockAll(lockNames);
+                    if (lock != null) {
+                        return lock;
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                }
+
+                logger.warn(String.format("Failed to acquire locks %s for service %s after %s retries", lockKeys, service, retry));
+                throw new LockFailedException();
+            }
+        });
+    }
+
+    //
+    // If none of the locks is held by another request of this node, the ones not already held by this request are taken in one go
+    // (see doLockAll). Otherwise, or if some are held by other nodes, they are taken one at a time in order, waiting for each like lock does.
+    //
+    private GlobalLock lockAll(final List<String> lockNames) {
+        final List<GlobalLock> locks = new ArrayList<GlobalLock>(lockNames.size());
+        final List<String> freeLockNames = new ArrayList<String>(lockNames.size());
+        boolean isHeldNotOwner = false;
+        for (final String lockName : lockNames) {
+            final TryAcquireLockState lockState = lockTable.tryAcquireLockForExistingOwner(lockName);
+            if (lockState.getLockState() == ReentrantLock.ReentrantLockState.HELD_OWNER) {
+                locks.add(lockState.getOriginalLock());
+            } else if (lockState.getLockState() == ReentrantLock.ReentrantLockState.HELD_NOT_OWNER) {
+                isHeldNotOwner = true;
+                break;
+            } else {
+                freeLockNames.add(lockName);
+            }
+        }
+
+        if (!isHeldNotOwner) {
+            final List<GlobalLock> newLocks = freeLockNames.isEmpty() ? Collections.<GlobalLock>emptyList() : doLockAll(freeLockNames);
+            if (newLocks != null) {
+                locks.addAll(newLocks);
+                return new CompositeGlobalLock(locks);
+            }
+        }
+        releaseAll(locks);
+
+        locks.clear();
+        for (final String lockName : lockNames) {
+            final GlobalLock lock = lock(lockName);
+            if (lock == null) {
+                releaseAll(locks);
+                return null;
+            }
+            locks.add(lock);
+        }
+        return new CompositeGlobalLock(locks);
+    }
+
+    //
+    // If the lock is held by another request of this node, we wait (up to the timeout) for it to be released and try again right away.
+    // Otherwise, the wait is left to doLock when it supports it (see isDoLockWaiting), e.g. for locks held by other nodes.
+    //
     protected GlobalLock lock(final String lockName) {
+        final LockAttempt attempt = tryLock(lockName);
+        if (!shouldWait(attempt)) {
+            return attempt.lock;
+        }
+
+        // Register as a waiter and try again, as the lock may have been released before we registered. Several waiters may be
+        // woken up by the same release: the ones which lose the race keep waiting, up to the timeout
+        final LockWaiters.Waiter waiter = lockWaiters.register(lockName);
+        try {
+            final long deadlineNanos = System.nanoTime() + timeUnit.toNanos(timeout);
+            while (true) {
+                final long version = waiter.getVersion();
+                final LockAttempt nextAttempt = tryLock(lockName);
+                if (!shouldWait(nextAttempt)) {
+                    return nextAttempt.lock;
+                }
+
+                final long remainingNanos = deadlineNanos - System.nanoTime();
+                if (remainingNanos <= 0 || !waiter.awaitRelease(version, remainingNanos, TimeUnit.NANOSECONDS)) {
+                    return null;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("lock got interrupted", e);
+        } finally {
+            lockWaiters.unregister(lockName);
+        }
+        return null;
+    }
+
+    private boolean shouldWait(final LockAttempt attempt) {
+        return attempt.lock == null && !(attempt.isDoLockFailed && isDoLockWaiting());
+    }
+
+    private LockAttempt tryLock(final String lockName) {
         final TryAcquireLockState lockState = lockTable.tryAcquireLockForExistingOwner(lockName);
         if (lockState.getLockState() == ReentrantLock.ReentrantLockState.HELD_OWNER) {
-            return lockState.getOriginalLock();
+            return new LockAttempt(lockState.getOriginalLock(), false);
         }
-
         if (lockState.getLockState() == ReentrantLock.ReentrantLockState.HELD_NOT_OWNER) {
-            // In that case, we need to respect the provided timeout value
-            try {
-                Thread.sleep(TimeUnit.MILLISECONDS.convert(timeout, timeUnit));
-            } catch (final InterruptedException e) {
-                Thread.currentThread().interrupt();
-                logger.warn("lock got interrupted", e);
-            }
-            return null;
+            return new LockAttempt(null, false);
         }
+        final GlobalLock lock = doLock(lockName);
+        return new LockAttempt(lock, lock == null);
+    }
 
-        return doLock(lockName);
+    // To be called once the lock is free, to wake up the local waiters
+    protected void signalRelease(final String lockName) {
+        lockWaiters.signalRelease(lockName);
+    }
+
+    // Whether doLock itself waits (up to the timeout) for a lock which isn't free, e.g. server-side
+    protected boolean isDoLockWaiting() {
+        return false;
     }
 
     protected abstract GlobalLock doLock(final String lockName);
 
+    // Locks not held by this node, all or nothing (null if any of them isn't free). One doLock per lock by default,
+    // to be overridden when they can be taken in fewer round trips
+    protected List<GlobalLock> doLockAll(final List<String> lockNames) {
+        final List<GlobalLock> locks = new ArrayList<GlobalLock>(lockNames.size());
+        for (final String lockName : lockNames) {
+            final GlobalLock lock = doLock(lockName);
+            if (lock == null) {
+                releaseAll(locks);
+                return null;
+            }
+            locks.add(lock);
+        }
+        return locks;
+    }
+
     protected abstract String getLockName(final String service, final String lockKey);
 
-    private void sleep() {
-        try {
-            Thread.sleep(TimeUnit.MILLISECONDS.convert(timeout, timeUnit));
-        } catch (final InterruptedException e) {
-            Thread.currentThread().interrupt();
-            logger.warn("GlobalLockerBase got interrupted", e);
+    // A lost lock doesn't prevent the other ones from being released
+    private static void releaseAll(final List<GlobalLock> locks) {
+        LockLostException lockLostException = null;
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            try {
+                locks.get(i).release();
+            } catch (final LockLostException e) {
+                lockLostException = e;
+            }
+        }
+        if (lockLostException != null) {
+            throw lockLostException;
+        }
+    }
+
+    private static final class CompositeGlobalLock implements GlobalLock {
+
+        private final List<GlobalLock> locks;
+
+        private CompositeGlobalLock(final List<GlobalLock> locks) {
+            this.locks = new ArrayList<GlobalLock>(locks);
+        }
+
+        @Override
+        public void release() {
+            releaseAll(locks);
+        }
+    }
+
+    private static final class LockAttempt {
+
+        private final GlobalLock lock;
+        // Not held by another request of this node, but doLock failed
+        private final boolean isDoLockFailed;
+
+        private LockAttempt(final GlobalLock lock, final boolean isDoLockFailed) {
+            this.lock = lock;
+            this.isDoLockFailed = isDoLockFailed;
         }
     }
 }
@@ -21,6 +21,13 @@ package org.killbill.commons.locker;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
@@ -35,16 +42,55 @@ public abstract class GlobalLockerBaseWithDao extends GlobalLockerBase {
     protected final GlobalLockDao globalLockDao;
 
     private final DataSource dataSource;
+    // Null if each lock holds its own connection
+    private final LockSessionPool lockSessionPool;
+    // Locks held through the lock sessions
+    private final ConcurrentMap<String, SessionGlobalLock> sessionLocks;
 
     public GlobalLockerBaseWithDao(final DataSource dataSource, final GlobalLockDao globalLockDao, final long timeout, final TimeUnit timeUnit) {
+        this(dataSource, globalLockDao, timeout, timeUnit, 0);
+    }
+
+    //
+    // If nbLockSessions > 0, locks are multiplexed over that many dedicated sessions (connections taken from the DataSource once and
+    // kept until close), instead of holding a connection per lock: the number of held locks is no longer bound by the pool size.
+    // The database doesn't wait server-side for locks held by other nodes in that case (it would block the shared session),
+    // they are retried after the timeout instead.
+    //
+    public GlobalLockerBaseWithDao(final DataSource dataSource, final GlobalLockDao globalLockDao, final long timeout, final TimeUnit timeUnit, final int nbLockSessions) {
         super(timeout, timeUnit);
         this.dataSource = dataSource;
         this.globalLockDao = globalLockDao;
+        this.lockSessionPool = nbLockSessions > 0 ? new LockSessionPool(dataSource, globalLockDao, nbLockSessions, new LockSessionPool.LostLocksCallback() {
+            @Override
+            public void onLocksLost(final List<String> lockNames) {
+                for (final String lockName : lockNames) {
+                    final SessionGlobalLock lock = sessionLocks.get(lockName);
+                    if (lock != null && lock.markLost()) {
+                        sessionLocks.remove(lockName, lock);
+                        lockTable.removeLock(lockName, lock);
+                        // The lock is free again (as far as the database is concerned)
+                        signalRelease(lockName);
+                    }
+                }
+            }
+        }) : null;
+        this.sessionLocks = new ConcurrentHashMap<String, SessionGlobalLock>();
+    }
+
+    // Releases the lock sessions (and therefore all the locks they hold)
+    public void close() {
+        if (lockSessionPool != null) {
+            lockSessionPool.close();
+        }
     }
 
     @Override
     public boolean isFree(final String service, final String lockKey) {
         final String lockName = getLockName(service, lockKey);
+        if (sessionLocks.containsKey(lockName)) {
+            return false;
+        }
 
         Connection connection = null;
         try {
@@ -66,6 +112,10 @@ public abstract class GlobalLockerBaseWithDao extends GlobalLockerBase {
 
     @Override
     protected GlobalLock doLock(final String lockName) {
+        if (lockSessionPool != null) {
+            return doLockOnSession(lockName);
+        }
+
         Connection connection = null;
         boolean obtained = false;
         try {
@@ -75,7 +125,12 @@ public abstract class GlobalLockerBaseWithDao extends GlobalLockerBase {
                 final GlobalLock lock = getGlobalLock(connection, lockName, new ResetReentrantLockCallback() {
                     @Override
                     public boolean reset(final String lockName) {
-                        return lockTable.releaseLock(lockName);
+                        final boolean free = lockTable.releaseLock(lockName);
+                        if (free) {
+                            // Local waiters will then wait server-side for the release of the database lock, which immediately follows
+                            signalRelease(lockName);
+                        }
+                        return free;
                     }
                 });
                 lockTable.createLock(lockName, lock);
@@ -95,5 +150,237 @@ public abstract class GlobalLockerBaseWithDao extends GlobalLockerBase {
         return null;
     }
 
+    // All the locks in one round trip (per session involved), without waiting for the ones which aren't free
+    @Override
+    protected List<GlobalLock> doLockAll(final List<String> lockNames) {
+        if (lockSessionPool != null) {
+            return doLockAllOnSessions(lockNames);
+        }
+
+        Connection connection = null;
+        boolean obtained = false;
+        try {
+            connection = dataSource.getConnection();
+            final boolean[] results = globalLockDao.tryLocks(connection, lockNames);
+            final List<String> obtainedLockNames = new ArrayList<String>(lockNames.size());
+            for (int i = 0; i < results.length; i++) {
+                if (results[i]) {
+                    obtainedLockNames.add(lockNames.get(i));
+                }
+            }
+            if (obtainedLockNames.size() < lockNames.size()) {
+                // The connection may go back to a pool
+                if (!obtainedLockNames.isEmpty()) {
+                    globalLockDao.releaseLocks(connection, obtainedLockNames);
+                }
+                return null;
+            }
+
+            obtained = true;
+            final SharedConnection sharedConnection = new SharedConnection(connection, lockNames.size());
+            final List<GlobalLock> locks = new ArrayList<GlobalLock>(lockNames.size());
+            for (final String lockName : lockNames) {
+                final GlobalLock lock = new GlobalLock() {
+                    @Override
+                    public void release() {
+                        if (lockTable.releaseLock(lockName)) {
+                            sharedConnection.releaseLock(lockName);
+                            signalRelease(lockName);
+                        }
+                    }
+                };
+                lockTable.createLock(lockName, lock);
+                locks.add(lock);
+            }
+            return locks;
+        } catch (final SQLException e) {
+            logger.warn("Unable to obtain locks for {}", lockNames, e);
+        } finally {
+            if (!obtained && connection != null) {
+                try {
+                    connection.close();
+                } catch (final SQLException e) {
+                    logger.warn("Unable to close connection", e);
+                }
+            }
+        }
+        return null;
+    }
+
+    private List<GlobalLock> doLockAllOnSessions(final List<String> lockNames) {
+        final List<SessionGlobalLock> locks = new ArrayList<SessionGlobalLock>(lockNames.size());
+        final Map<LockSessionPool.LockSession, List<String>> lockNamesBySession = new LinkedHashMap<LockSessionPool.LockSession, List<String>>();
+        for (final String lockName : lockNames) {
+            final SessionGlobalLock lock = new SessionGlobalLock(lockName);
+            if (sessionLocks.putIfAbsent(lockName, lock) != null) {
+                for (int i = 0; i < locks.size(); i++) {
+                    sessionLocks.remove(lockNames.get(i), locks.get(i));
+                    signalRelease(lockNames.get(i));
+                }
+                return null;
+            }
+            locks.add(lock);
+
+            final LockSessionPool.LockSession session = lockSessionPool.getSession(lockName);
+            if (lockNamesBySession.get(session) == null) {
+                lockNamesBySession.put(session, new ArrayList<String>());
+            }
+            lockNamesBySession.get(session).add(lockName);
+        }
+
+        final List<String> obtainedLockNames = new ArrayList<String>(lockNames.size());
+        for (final Map.Entry<LockSessionPool.LockSession, List<String>> entry : lockNamesBySession.entrySet()) {
+            final boolean[] results = entry.getKey().tryLocks(entry.getValue());
+            for (int i = 0; i < results.length; i++) {
+                if (results[i]) {
+                    obtainedLockNames.add(entry.getValue().get(i));
+                }
+            }
+        }
+
+        if (obtainedLockNames.size() < lockNames.size()) {
+            for (final String lockName : obtainedLockNames) {
+                if (!lockSessionPool.getSession(lockName).releaseLock(lockName)) {
+                    logger.warn("Unable to release lock for {}", lockName);
+                }
+            }
+            for (int i = 0; i < locks.size(); i++) {
+                sessionLocks.remove(lockNames.get(i), locks.get(i));
+                // Local requests may have been waiting for them in the meantime
+                signalRelease(lockNames.get(i));
+            }
+            return null;
+        }
+
+        for (int i = 0; i < locks.size(); i++) {
+            lockTable.createLock(lockNames.get(i), locks.get(i));
+        }
+        boolean isLost = false;
+        for (final SessionGlobalLock lock : locks) {
+            isLost |= lock.isLost();
+        }
+        if (isLost) {
+            // Some of them were lost before they were in the lock table
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                try {
+                    locks.get(i).release();
+                } catch (final LockLostException e) {
+                    lockTable.removeLock(lockNames.get(i), locks.get(i));
+                }
+            }
+            return null;
+        }
+        return new ArrayList<GlobalLock>(locks);
+    }
+
+    private GlobalLock doLockOnSession(final String lockName) {
+        final SessionGlobalLock lock = new SessionGlobalLock(lockName);
+
+        // Advisory locks are re-entrant per session: we need to make sure first that nobody holds it locally
+        if (sessionLocks.putIfAbsent(lockName, lock) != null) {
+            return null;
+        }
+        if (!lockSessionPool.getSession(lockName).tryLock(lockName)) {
+            sessionLocks.remove(lockName, lock);
+            return null;
+        }
+
+        lockTable.createLock(lockName, lock);
+        // Lost before it was in the lock table
+        if (lock.isLost()) {
+            lockTable.removeLock(lockName, lock);
+            return null;
+        }
+        return lock;
+    }
+
+    // The database waits for us (up to the timeout), and hands the lock over as soon as it is released
+    @Override
+    protected boolean isDoLockWaiting() {
+        return lockSessionPool == null;
+    }
+
     protected abstract GlobalLock getGlobalLock(final Connection connection, final String lockName, final ResetReentrantLockCallback resetCb);
+
+    // Lock held through a lock session. If the session fails, the lock is lost: it is removed from the lock table right away
+    // (other requests can take it again) and releasing it throws LockLostException
+    private final class SessionGlobalLock implements GlobalLock {
+
+        private final String lockName;
+        private final LockSessionPool.LockSession session;
+
+        // Guarded by this
+        private boolean isLost;
+        private boolean isReleased;
+
+        private SessionGlobalLock(final String lockName) {
+            this.lockName = lockName;
+            this.session = lockSessionPool.getSession(lockName);
+        }
+
+        @Override
+        public void release() {
+            synchronized (this) {
+                if (isLost) {
+                    throw new LockLostException(lockName);
+                }
+                isReleased = lockTable.releaseLock(lockName);
+                if (!isReleased) {
+                    return;
+                }
+            }
+
+            if (!session.releaseLock(lockName)) {
+                logger.warn("Unable to release lock for {}", lockName);
+            }
+            sessionLocks.remove(lockName, this);
+            signalRelease(lockName);
+        }
+
+        private synchronized boolean isLost() {
+            return isLost;
+        }
+
+        // Returns false if the lock was released in the meantime
+        private synchronized boolean markLost() {
+            if (isReleased) {
+                return false;
+            }
+            isLost = true;
+            return true;
+        }
+    }
+
+    // Connection holding the locks taken together by doLockAll, closed once all of them are released
+    private final class SharedConnection {
+
+        private final Connection connection;
+
+        // Guarded by this
+        private int nbHeldLocks;
+
+        private SharedConnection(final Connection connection, final int nbHeldLocks) {
+            this.connection = connection;
+            this.nbHeldLocks = nbHeldLocks;
+        }
+
+        private synchronized void releaseLock(final String lockName) {
+            try {
+                final boolean[] results = globalLockDao.releaseLocks(connection, Collections.singletonList(lockName));
+                if (!results[0]) {
+                    logger.warn("Unable to release lock for {}", lockName);
+                }
+            } catch (final SQLException e) {
+                logger.warn("Unable to release lock for {}", lockName, e);
+            } finally {
+                if (--nbHeldLocks == 0) {
+                    try {
+                        connection.close();
+                    } catch (final SQLException e) {
+                        logger.warn("Unable to close connection", e);
+                    }
+                }
+            }
+        }
+    }
 }
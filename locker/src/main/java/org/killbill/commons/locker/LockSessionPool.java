@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.locker;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//
+// Small set of long-lived database sessions, each holding many advisory locks (locks are session-scoped, so a lock is always
+// taken and released on the session its name hashes to). A session can only run one statement at a time: operations are
+// queued and the thread owning the session runs all the pending ones (its own and the other threads') in one round trip.
+//
+// Since advisory locks are re-entrant per session, callers are responsible for not asking for a lock already held locally.
+//
+// If a session fails, the locks it held are lost with it (the database releases them when the connection goes away): they are
+// reported to the LostLocksCallback, and the session is re-opened on its next operation.
+//
+class LockSessionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(LockSessionPool.class);
+
+    // Max number of lock names per statement
+    private static final int MAX_BATCH_SIZE = 64;
+
+    interface LostLocksCallback {
+
+        void onLocksLost(final List<String> lockNames);
+    }
+
+    private final DataSource dataSource;
+    private final GlobalLockDao globalLockDao;
+    private final LostLocksCallback lostLocksCallback;
+    private final LockSession[] sessions;
+
+    LockSessionPool(final DataSource dataSource, final GlobalLockDao globalLockDao, final int nbSessions, final LostLocksCallback lostLocksCallback) {
+        this.dataSource = dataSource;
+        this.globalLockDao = globalLockDao;
+        this.lostLocksCallback = lostLocksCallback;
+        this.sessions = new LockSession[nbSessions];
+        for (int i = 0; i < nbSessions; i++) {
+            sessions[i] = new LockSession(i);
+        }
+    }
+
+    LockSession getSession(final String lockName) {
+        return sessions[Math.abs(lockName.hashCode() % sessions.length)];
+    }
+
+    void close() {
+        for (final LockSession session : sessions) {
+            session.close();
+        }
+    }
+
+    class LockSession {
+
+        private final int sessionId;
+        private final Queue<LockOperation> pendingOperations = new ConcurrentLinkedQueue<LockOperation>();
+
+        // Guarded by this, opened lazily
+        private Connection connection;
+        // Guarded by this, locks held by the current connection
+        private final Set<String> heldLockNames = new HashSet<String>();
+
+        private LockSession(final int sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        boolean tryLock(final String lockName) {
+            return execute(new LockOperation(lockName, true));
+        }
+
+        boolean releaseLock(final String lockName) {
+            return execute(new LockOperation(lockName, false));
+        }
+
+        // Queued together, so that they are run in the same round trip (up to the batch size)
+        boolean[] tryLocks(final List<String> lockNames) {
+            final List<LockOperation> operations = new ArrayList<LockOperation>(lockNames.size());
+            for (final String lockName : lockNames) {
+                operations.add(new LockOperation(lockName, true));
+            }
+            execute(operations);
+
+            final boolean[] results = new boolean[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = operations.get(i).result;
+            }
+            return results;
+        }
+
+        private boolean execute(final LockOperation operation) {
+            execute(Collections.singletonList(operation));
+            return operation.result;
+        }
+
+        private void execute(final List<LockOperation> operations) {
+            pendingOperations.addAll(operations);
+            synchronized (this) {
+                // Our operations may already have been run by the previous owner of the session
+                for (final LockOperation operation : operations) {
+                    while (!operation.isDone) {
+                        executePendingOperations();
+                    }
+                }
+            }
+        }
+
+        private void executePendingOperations() {
+            final List<LockOperation> releases = new ArrayList<LockOperation>();
+            final List<LockOperation> locks = new ArrayList<LockOperation>();
+            LockOperation operation;
+            while (releases.size() + locks.size() < MAX_BATCH_SIZE && (operation = pendingOperations.poll()) != null) {
+                if (operation.isLock) {
+                    locks.add(operation);
+                } else {
+                    releases.add(operation);
+                }
+            }
+
+            // Releases first, so that a lock released and re-acquired in the same batch is free
+            executeBatch(releases);
+            executeBatch(locks);
+        }
+
+        private void executeBatch(final List<LockOperation> operations) {
+            if (operations.isEmpty()) {
+                return;
+            }
+
+            final List<String> lockNames = new ArrayList<String>(operations.size());
+            for (final LockOperation operation : operations) {
+                lockNames.add(operation.lockName);
+            }
+
+            if (!operations.get(0).isLock) {
+                // Whatever happens next, these ones aren't held anymore
+                heldLockNames.removeAll(lockNames);
+            }
+
+            boolean[] results = null;
+            List<String> lostLockNames = null;
+            try {
+                if (connection == null) {
+                    connection = dataSource.getConnection();
+                }
+                results = operations.get(0).isLock ? globalLockDao.tryLocks(connection, lockNames) : globalLockDao.releaseLocks(connection, lockNames);
+            } catch (final SQLException e) {
+                logger.warn("Lock session {} failed, closing it", sessionId, e);
+                lostLockNames = new ArrayList<String>(heldLockNames);
+                close();
+            }
+
+            for (int i = 0; i < operations.size(); i++) {
+                final LockOperation operation = operations.get(i);
+                operation.result = results != null && results[i];
+                if (operation.isLock && operation.result) {
+                    heldLockNames.add(operation.lockName);
+                }
+                operation.isDone = true;
+            }
+
+            // The locks held by the session are lost with it
+            if (lostLockNames != null && !lostLockNames.isEmpty()) {
+                logger.error("Lock session {} lost locks {}", sessionId, lostLockNames);
+                lostLocksCallback.onLocksLost(lostLockNames);
+            }
+        }
+
+        private synchronized void close() {
+            if (connection == null) {
+                return;
+            }
+            try {
+                connection.close();
+            } catch (final SQLException e) {
+                logger.warn("Unable to close connection", e);
+            } finally {
+                connection = null;
+                heldLockNames.clear();
+            }
+        }
+    }
+
+    // Fields are only accessed under the session monitor
+    private static final class LockOperation {
+
+        private final String lockName;
+        private final boolean isLock;
+
+        private boolean isDone;
+        private boolean result;
+
+        private LockOperation(final String lockName, final boolean isLock) {
+            this.lockName = lockName;
+            this.isLock = isLock;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.locker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+//
+// Threads of this node waiting for a lock held by another request of this node. Waiters are parked on a per-lock monitor,
+// which is notified as soon as the lock is released, instead of sleeping for the whole timeout.
+//
+// A waiter has to register (and read the current version) *before* trying to acquire the lock: a release happening between
+// the failed attempt and the wait bumps the version, so that wake-up isn't lost.
+//
+class LockWaiters {
+
+    private final ConcurrentMap<String, Waiter> waiters = new ConcurrentHashMap<String, Waiter>();
+
+    Waiter register(final String lockName) {
+        return waiters.compute(lockName, new BiFunction<String, Waiter, Waiter>() {
+            @Override
+            public Waiter apply(final String key, final Waiter existingWaiter) {
+                final Waiter waiter = existingWaiter != null ? existingWaiter : new Waiter();
+                waiter.nbWaiters++;
+                return waiter;
+            }
+        });
+    }
+
+    void unregister(final String lockName) {
+        waiters.computeIfPresent(lockName, new BiFunction<String, Waiter, Waiter>() {
+            @Override
+            public Waiter apply(final String key, final Waiter waiter) {
+                return --waiter.nbWaiters == 0 ? null : waiter;
+            }
+        });
+    }
+
+    void signalRelease(final String lockName) {
+        final Waiter waiter = waiters.get(lockName);
+        if (waiter != null) {
+            waiter.signalRelease();
+        }
+    }
+
+    static class Waiter {
+
+        // Only accessed from the compute functions
+        private int nbWaiters;
+        private long version;
+
+        synchronized long getVersion() {
+            return version;
+        }
+
+        // Returns true if the lock was released since the version was read, false on timeout
+        synchronized boolean awaitRelease(final long fromVersion, final long timeout, final TimeUnit timeUnit) throws InterruptedException {
+            long remainingNanos = timeUnit.toNanos(timeout);
+            final long deadline = System.nanoTime() + remainingNanos;
+            while (version == fromVersion) {
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+                remainingNanos = deadline - System.nanoTime();
+            }
+            return true;
+        }
+
+        private synchronized void signalRelease() {
+            version++;
+            notifyAll();
+        }
+    }
+}
@@ -19,18 +19,23 @@
 
 package org.killbill.commons.locker;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
 import org.killbill.commons.request.Request;
 import org.killbill.commons.request.RequestData;
 
-import java.util.HashMap;
-import java.util.Map;
-
+//
+// Lock holders are only read and updated inside ConcurrentHashMap compute functions, so requests for different locks
+// don't contend with each other (the map only locks the bin of the lock being updated).
+//
 public class ReentrantLock {
 
-    private final Map<String, LockHolder> lockTable;
+    private final ConcurrentMap<String, LockHolder> lockTable;
 
     public ReentrantLock() {
-        this.lockTable = new HashMap<String, LockHolder>();
+        this.lockTable = new ConcurrentHashMap<String, LockHolder>();
     }
 
     public enum ReentrantLockState {
@@ -62,6 +67,9 @@ public class ReentrantLock {
         }
     }
 
+    private static final TryAcquireLockState FREE_STATE = new TryAcquireLockState(ReentrantLockState.FREE);
+    private static final TryAcquireLockState HELD_NOT_OWNER_STATE = new TryAcquireLockState(ReentrantLockState.HELD_NOT_OWNER);
+
     /**
      * Atomically increment the refCount lock if we are already the owner of that lock.
      *
@@ -69,22 +77,28 @@ public class ReentrantLock {
      * @return the ReentrantLockState: lock is FREE, or we already hold it (and incremented the refCount) or it held by somebody else
      */
     public TryAcquireLockState tryAcquireLockForExistingOwner(final String lockName) {
+        // Fast path, without locking anything: most locks are only taken once per request
+        if (lockTable.get(lockName) == null) {
+            return FREE_STATE;
+        }
 
-        synchronized (lockTable) {
-            final LockHolder lockHolder = lockTable.get(lockName);
-            if (lockHolder == null) {
-                return new TryAcquireLockState(ReentrantLockState.FREE);
-            }
-
-            final String maybeNullRequestId = getRequestId();
-            if (maybeNullRequestId == null || !lockHolder.getRequestId().equals(maybeNullRequestId)) {
-                return new TryAcquireLockState(ReentrantLockState.HELD_NOT_OWNER);
-            } else {
-                // Increment value before we return while we hold the lockTable lock.
-                lockHolder.increment();
-                return new TryAcquireLockState(ReentrantLockState.HELD_OWNER, lockHolder.getOriginalLock());
+        final String maybeNullRequestId = getRequestId();
+        final TryAcquireLockState[] result = new TryAcquireLockState[1];
+        lockTable.computeIfPresent(lockName, new BiFunction<String, LockHolder, LockHolder>() {
+            @Override
+            public LockHolder apply(final String key, final LockHolder lockHolder) {
+                if (maybeNullRequestId == null || !lockHolder.getRequestId().equals(maybeNullRequestId)) {
+                    result[0] = HELD_NOT_OWNER_STATE;
+                } else {
+                    // Increment value before we return, atomically with the lookup
+                    lockHolder.increment();
+                    result[0] = new TryAcquireLockState(ReentrantLockState.HELD_OWNER, lockHolder.getOriginalLock());
+                }
+                return lockHolder;
             }
-        }
+        });
+        // Released in the meantime
+        return result[0] == null ? FREE_STATE : result[0];
     }
 
 
@@ -100,15 +114,11 @@ public class ReentrantLock {
             return;
         }
 
-        synchronized (lockTable) {
-            LockHolder lockHolder = lockTable.get(lockName);
-            if (lockHolder != null) {
-                throw new IllegalStateException(String.format("ReentrantLock createLock %s : lock already current request = %s, owner request = %s", lockName, requestId, lockHolder.getRequestId()));
-            }
-
-            lockHolder = new LockHolder(requestId, originalLock);
-            lockTable.put(lockName, lockHolder);
-            lockHolder.increment();
+        final LockHolder lockHolder = new LockHolder(requestId, originalLock);
+        lockHolder.increment();
+        final LockHolder existingLockHolder = lockTable.putIfAbsent(lockName, lockHolder);
+        if (existingLockHolder != null) {
+            throw new IllegalStateException(String.format("ReentrantLock createLock %s : lock already current request = %s, owner request = %s", lockName, requestId, existingLockHolder.getRequestId()));
         }
     }
 
@@ -129,21 +139,41 @@ public class ReentrantLock {
             return true;
         }
 
-        synchronized (lockTable) {
-            final LockHolder lockHolder = lockTable.get(lockName);
-            if (lockHolder == null) {
-                throw new IllegalStateException(String.format("ReentrantLock releaseLock %s : cannot find lock in the table, current request = %s", lockName, requestId));
+        final boolean[] found = new boolean[1];
+        final boolean[] free = new boolean[1];
+        lockTable.computeIfPresent(lockName, new BiFunction<String, LockHolder, LockHolder>() {
+            @Override
+            public LockHolder apply(final String key, final LockHolder lockHolder) {
+                if (!lockHolder.getRequestId().equals(requestId)) {
+                    // The mapping is left untouched
+                    throw new IllegalStateException(String.format("ReentrantLock releaseLock %s : current request = %s, owner request = %s", lockName, requestId, lockHolder.getRequestId()));
+                }
+                found[0] = true;
+                free[0] = lockHolder.decrement();
+                // Returning null removes the entry
+                return free[0] ? null : lockHolder;
             }
+        });
+        if (!found[0]) {
+            throw new IllegalStateException(String.format("ReentrantLock releaseLock %s : cannot find lock in the table, current request = %s", lockName, requestId));
+        }
+        return free[0];
+    }
 
-            if (!lockHolder.getRequestId().equals(requestId)) {
-                throw new IllegalStateException(String.format("ReentrantLock releaseLock %s : current request = %s, owner request = %s", lockName, requestId, lockHolder.getRequestId()));
-            }
-            final boolean free = lockHolder.decrement();
-            if (free) {
-                lockTable.remove(lockName);
+
+    /**
+     * Remove a lock which was lost (e.g. its database session went away), whatever its refCount.
+     *
+     * @param lockName
+     * @param originalLock the lost lock (a newer holder of the same name is left untouched)
+     */
+    public void removeLock(final String lockName, final GlobalLock originalLock) {
+        lockTable.computeIfPresent(lockName, new BiFunction<String, LockHolder, LockHolder>() {
+            @Override
+            public LockHolder apply(final String key, final LockHolder lockHolder) {
+                return lockHolder.getOriginalLock() == originalLock ? null : lockHolder;
             }
-            return free;
-        }
+        });
     }
 
 
@@ -157,6 +187,7 @@ public class ReentrantLock {
         private final String requestId;
         private final GlobalLock originalLock;
 
+        // Only accessed from the compute functions (or before the holder is published)
         private int refCount;
 
 
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.commons.locker.lease;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+// Plain SQL, to work on any database (H2, MySQL, PostgreSQL, ...). Lease expirations are epoch milliseconds.
+public class LeaseGlobalLockDao {
+
+    // Integrity constraint violation (e.g. duplicate key)
+    private static final String INTEGRITY_CONSTRAINT_VIOLATION_CLASS = "23";
+
+    private final String tableName;
+
+    public LeaseGlobalLockDao(final String tableName) {
+        this.tableName = tableName;
+    }
+
+    // Returns the new fencing token if the lock was obtained, null otherwise. Rows are never deleted, so that tokens keep increasing.
+    public Long tryLock(final Connection connection, final String lockName, final String ownerId, final long now, final long leaseExpiration) throws SQLException {
+        final String takeOverSql = String.format("update %s set owner_id = ?, fencing_token = fencing_token + 1, lease_expiration = ? " +
+                                                 "where lock_name = ? and (owner_id is null or lease_expiration < ?)", tableName);
+        try (final PreparedStatement statement = connection.prepareStatement(takeOverSql)) {
+            statement.setString(1, ownerId);
+            statement.setLong(2, leaseExpiration);
+            statement.setString(3, lockName);
+            statement.setLong(4, now);
+            if (statement.executeUpdate() == 1) {
+                return getFencingToken(connection, lockName, ownerId);
+            }
+        }
+
+        // First time this lock is used
+        final String insertSql = String.format("insert into %s (lock_name, owner_id, fencing_token, lease_expiration) values (?, ?, 1, ?)", tableName);
+        try (final PreparedStatement statement = connection.prepareStatement(insertSql)) {
+            statement.setString(1, lockName);
+            statement.setString(2, ownerId);
+            statement.setLong(3, leaseExpiration);
+            statement.executeUpdate();
+            return 1L;
+        } catch (final SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().startsWith(INTEGRITY_CONSTRAINT_VIOLATION_CLASS)) {
+                // Held by somebody else
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    public boolean releaseLock(final Connection connection, final String lockName, final String ownerId, final long fencingToken) throws SQLException {
+        final String sql = String.format("update %s set owner_id = null where lock_name = ? and owner_id = ? and fencing_token = ?", tableName);
+        try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, lockName);
+            statement.setString(2, ownerId);
+            statement.setLong(3, fencingToken);
+            return statement.executeUpdate() == 1;
+        }
+    }
+
+    public boolean isLockFree(final Connection connection, final String lockName, final long now) throws SQLException {
+        final String sql = String.format("select 1 from %s where lock_name = ? and owner_id is not null and lease_expiration >= ?", tableName);
+        try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, lockName);
+            statement.setLong(2, now);
+            try (final ResultSet rs = statement.executeQuery()) {
+                return !rs.next();
+            }
+        }
+    }
+
+    // Renews the leases of all the locks held by the owner, in one statement
+    public int renewLeases(final Connection connection, final String ownerId, final long now, final long leaseExpiration) throws SQLException {
+        final String sql = String.format("update %s set lease_expiration = ? where owner_id = ? and lease_expiration >= ?", tableName);
+        try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setLong(1, leaseExpiration);
+            statement.setString(2, ownerId);
+            statement.setLong(3, now);
+            return statement.executeUpdate();
+        }
+    }
+
+    // Locks whose leases are still valid (an expired lease is lost, even if nobody took the lock over yet)
+    public Set<String> getLockNames(final Connection connection, final String ownerId, final long now) throws SQLException {
+        final String sql = String.format("select lock_name from %s where owner_id = ? and lease_expiration >= ?", tableName);
+        final Set<String> lockNames = new HashSet<String>();
+        try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, ownerId);
+            statement.setLong(2, now);
+            try (final ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    lockNames.add(rs.getString(1));
+                }
+            }
+        }
+        return lockNames;
+    }
+
+    private Long getFencingToken(final Connection connection, final String lockName, final String ownerId) throws SQLException {
+        final String sql = String.format("select fencing_token from %s where lock_name = ? and owner_id = ?", tableName);
+        try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, lockName);
+            statement.setString(2, ownerId);
+            try (final ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : null;
+            }
+        }
+    }
+}
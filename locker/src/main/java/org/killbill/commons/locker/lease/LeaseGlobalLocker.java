@@ -0,0 +1,255 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.commons.locker.lease;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.locker.FencedGlobalLock;
+import org.killbill.commons.locker.GlobalLock;
+import org.killbill.commons.locker.GlobalLocker;
+import org.killbill.commons.locker.GlobalLockerBase;
+import org.killbill.commons.locker.LockLostException;
+
+//
+// Table-backed locker, for databases without advisory locks (e.g. H2): a lock is a row in the global_locks table
+// (see ddl.sql) owned by a node until it is released or its lease expires. Connections are only borrowed for the duration
+// of each statement, and the leases of all the locks held by this node are renewed in one statement by a heartbeat thread.
+//
+// Lease expirations are computed from the clock of each node: clocks need to be synchronized well within the lease time.
+//
+public class LeaseGlobalLocker extends GlobalLockerBase implements GlobalLocker {
+
+    protected static final long DEFAULT_LEASE_TIME_MILLIS = 30000L;
+    protected static final String DEFAULT_TABLE_NAME = "global_locks";
+
+    private final DataSource dataSource;
+    private final LeaseGlobalLockDao lockDao;
+    private final long leaseTimeMillis;
+    private final String ownerId;
+    // Locks held by this node, whose leases are renewed by the heartbeat
+    private final ConcurrentMap<String, LeaseGlobalLock> heldLocks = new ConcurrentHashMap<String, LeaseGlobalLock>();
+    private final ScheduledExecutorService heartbeatExecutor;
+
+    public LeaseGlobalLocker(final DataSource dataSource) {
+        this(dataSource, DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_LEASE_TIME_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public LeaseGlobalLocker(final DataSource dataSource, final long timeout, final TimeUnit timeUnit, final long leaseTime, final TimeUnit leaseTimeUnit) {
+        this(dataSource, DEFAULT_TABLE_NAME, timeout, timeUnit, leaseTime, leaseTimeUnit);
+    }
+
+    public LeaseGlobalLocker(final DataSource dataSource, final String tableName, final long timeout, final TimeUnit timeUnit, final long leaseTime, final TimeUnit leaseTimeUnit) {
+        super(timeout, timeUnit);
+        this.dataSource = dataSource;
+        this.lockDao = new LeaseGlobalLockDao(tableName);
+        this.leaseTimeMillis = leaseTimeUnit.toMillis(leaseTime);
+        this.ownerId = UUID.randomUUID().toString();
+
+        // Renew well before expiration, so that a slow or failed heartbeat doesn't lose the locks right away
+        final long heartbeatMillis = Math.max(1L, leaseTimeMillis / 3);
+        this.heartbeatExecutor = Executors.newSingleThreadScheduledExecutor("GlobalLocks-heartbeat");
+        this.heartbeatExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                renewLeases();
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Stops the heartbeat: the locks still held will be available to other nodes once their leases expire
+    public void close() {
+        heartbeatExecutor.shutdownNow();
+    }
+
+    @Override
+    public boolean isFree(final String service, final String lockKey) {
+        final String lockName = getLockName(service, lockKey);
+        if (heldLocks.containsKey(lockName)) {
+            return false;
+        }
+
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            return lockDao.isLockFree(connection, lockName, System.currentTimeMillis());
+        } catch (final SQLException e) {
+            logger.warn("Unable to check if lock is free", e);
+            return false;
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    @Override
+    protected GlobalLock doLock(final String lockName) {
+        // The row is owned by this node: no need to go to the database
+        if (heldLocks.containsKey(lockName)) {
+            return null;
+        }
+
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            final long now = System.currentTimeMillis();
+            final Long fencingToken = lockDao.tryLock(connection, lockName, ownerId, now, now + leaseTimeMillis);
+            if (fencingToken == null) {
+                return null;
+            }
+
+            final LeaseGlobalLock lock = new LeaseGlobalLock(lockName, fencingToken);
+            heldLocks.put(lockName, lock);
+            lockTable.createLock(lockName, lock);
+            // Lost before it was in the lock table
+            if (lock.isLost()) {
+                lockTable.removeLock(lockName, lock);
+                return null;
+            }
+            return lock;
+        } catch (final SQLException e) {
+            logger.warn("Unable to obtain lock for {}", lockName, e);
+            return null;
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    @Override
+    protected String getLockName(final String service, final String lockKey) {
+        return service + "-" + lockKey;
+    }
+
+    private void renewLeases() {
+        if (heldLocks.isEmpty()) {
+            return;
+        }
+
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            final long now = System.currentTimeMillis();
+            final int nbRenewed = lockDao.renewLeases(connection, ownerId, now, now + leaseTimeMillis);
+            if (nbRenewed >= heldLocks.size()) {
+                return;
+            }
+
+            // Some leases expired (e.g. long pause) and may have been taken over: they aren't renewed, and the holders need to know
+            // their fencing tokens are stale
+            final Set<String> ownedLockNames = lockDao.getLockNames(connection, ownerId, now);
+            for (final LeaseGlobalLock lock : heldLocks.values()) {
+                if (!ownedLockNames.contains(lock.lockName) && lock.markLost()) {
+                    logger.error("Lease lost for lock {} (fencing token {})", lock.lockName, lock.fencingToken);
+                    heldLocks.remove(lock.lockName, lock);
+                    lockTable.removeLock(lock.lockName, lock);
+                    signalRelease(lock.lockName);
+                }
+            }
+        } catch (final SQLException e) {
+            logger.warn("Unable to renew lock leases", e);
+        } catch (final RuntimeException e) {
+            // Don't let the scheduler cancel the heartbeat
+            logger.warn("Unable to renew lock leases", e);
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    private void closeConnection(final Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (final SQLException e) {
+                logger.warn("Unable to close connection", e);
+            }
+        }
+    }
+
+    // Once its lease is lost, the lock is removed from the lock table right away (other requests can take it again) and
+    // releasing it throws LockLostException
+    private final class LeaseGlobalLock implements FencedGlobalLock {
+
+        private final String lockName;
+        private final long fencingToken;
+
+        // Guarded by this
+        private boolean isLost;
+        private boolean isReleased;
+
+        private LeaseGlobalLock(final String lockName, final long fencingToken) {
+            this.lockName = lockName;
+            this.fencingToken = fencingToken;
+        }
+
+        @Override
+        public long getFencingToken() {
+            return fencingToken;
+        }
+
+        @Override
+        public void release() {
+            synchronized (this) {
+                if (isLost) {
+                    throw new LockLostException(lockName);
+                }
+                isReleased = lockTable.releaseLock(lockName);
+                if (!isReleased) {
+                    return;
+                }
+            }
+
+            heldLocks.remove(lockName, this);
+            Connection connection = null;
+            try {
+                connection = dataSource.getConnection();
+                // No-op if the lease was lost in the meantime
+                if (!lockDao.releaseLock(connection, lockName, ownerId, fencingToken)) {
+                    logger.warn("Lock {} was no longer held (fencing token {})", lockName, fencingToken);
+                }
+            } catch (final SQLException e) {
+                // The lease will eventually expire
+                logger.warn("Unable to release lock for {}", lockName, e);
+            } finally {
+                closeConnection(connection);
+            }
+            signalRelease(lockName);
+        }
+
+        private synchronized boolean isLost() {
+            return isLost;
+        }
+
+        // Returns false if the lock was released in the meantime
+        private synchronized boolean markLost() {
+            if (isReleased) {
+                return false;
+            }
+            isLost = true;
+            return true;
+        }
+    }
+}
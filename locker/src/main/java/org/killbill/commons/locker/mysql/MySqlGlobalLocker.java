@@ -36,7 +36,19 @@ public class MySqlGlobalLocker extends GlobalLockerBaseWithDao implements Global
     }
 
     public MySqlGlobalLocker(final DataSource dataSource, final long timeout, final TimeUnit timeUnit) {
-        super(dataSource, new MysqlGlobalLockDao(), timeout, timeUnit);
+        this(dataSource, timeout, timeUnit, 0);
+    }
+
+    // See GlobalLockerBaseWithDao for nbLockSessions
+    public MySqlGlobalLocker(final DataSource dataSource, final long timeout, final TimeUnit timeUnit, final int nbLockSessions) {
+        super(dataSource, new MysqlGlobalLockDao(), timeout, timeUnit, nbLockSessions);
+    }
+
+    // GET_LOCK only waits whole seconds: below one second, locks held by other nodes are tried without waiting, and
+    // tried again once the timeout expires (local releases still wake up the waiters right away)
+    @Override
+    protected boolean isDoLockWaiting() {
+        return super.isDoLockWaiting() && TimeUnit.MILLISECONDS.convert(timeout, timeUnit) >= 1000;
     }
 
     @Override
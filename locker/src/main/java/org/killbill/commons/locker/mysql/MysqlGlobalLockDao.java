@@ -22,9 +22,10 @@ package org.killbill.commons.locker.mysql;
 import org.killbill.commons.locker.GlobalLockDao;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 // Note: the MySQL lock is connection specific (closing the connection releases the lock)
@@ -33,30 +34,70 @@ public class MysqlGlobalLockDao implements GlobalLockDao {
     @Override
     public boolean lock(final Connection connection, final String lockName, final long timeout, final TimeUnit timeUnit) throws SQLException {
         //
-        // We pass 0 so as to not wait at all.
-        // This is not optimal but mysql only supports seconds and also it make the code more readable/symetrical
-        // by having the same implementation between mysql and postgreSQL (which does not have timeout)
+        // The server waits for the lock to be released (and hands it over right away), up to the timeout. MySQL only
+        // supports whole seconds, so the timeout is rounded down: sub-second timeouts don't wait server-side at all
+        // (see MySqlGlobalLocker#isDoLockWaiting).
         //
-        final String sql = String.format("select GET_LOCK('%s', %d);", lockName.replace("'", "\'"), 0);
-        return executeLockQuery(connection, sql);
+        final long timeoutSec = TimeUnit.SECONDS.convert(timeout, timeUnit);
+        return executeLockQuery(connection, "select GET_LOCK(?, ?);", lockName, timeoutSec);
     }
 
     @Override
     public boolean releaseLock(final Connection connection, final String lockName) throws SQLException {
-        final String sql = String.format("select RELEASE_LOCK('%s');", lockName.replace("'", "\'"));
-        return executeLockQuery(connection, sql);
+        return executeLockQuery(connection, "select RELEASE_LOCK(?);", lockName, null);
     }
 
     @Override
     public boolean isLockFree(final Connection connection, final String lockName) throws SQLException {
-        final String sql = String.format("select IS_FREE_LOCK('%s');", lockName.replace("'", "\'"));
-        return executeLockQuery(connection, sql);
+        return executeLockQuery(connection, "select IS_FREE_LOCK(?);", lockName, null);
     }
 
-    private boolean executeLockQuery(final Connection connection, final String query) throws SQLException {
-        try (final Statement statement = connection.createStatement();
-             final ResultSet rs = statement.executeQuery(query)) {
-            return rs.next() && (rs.getByte(1) == 1);
+    // Note: multiple locks per session require MySQL 5.7+ (GET_LOCK used to release the lock previously held)
+    @Override
+    public boolean[] tryLocks(final Connection connection, final List<String> lockNames) throws SQLException {
+        return executeLockQueries(connection, "GET_LOCK(?, 0)", lockNames);
+    }
+
+    @Override
+    public boolean[] releaseLocks(final Connection connection, final List<String> lockNames) throws SQLException {
+        return executeLockQueries(connection, "RELEASE_LOCK(?)", lockNames);
+    }
+
+    private boolean[] executeLockQueries(final Connection connection, final String function, final List<String> lockNames) throws SQLException {
+        final StringBuilder query = new StringBuilder("select ");
+        for (int i = 0; i < lockNames.size(); i++) {
+            if (i > 0) {
+                query.append(", ");
+            }
+            query.append(function);
+        }
+        query.append(";");
+
+        final boolean[] results = new boolean[lockNames.size()];
+        try (final PreparedStatement statement = connection.prepareStatement(query.toString())) {
+            for (int i = 0; i < results.length; i++) {
+                statement.setString(i + 1, lockNames.get(i));
+            }
+            try (final ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    for (int i = 0; i < results.length; i++) {
+                        results[i] = rs.getByte(i + 1) == 1;
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private boolean executeLockQuery(final Connection connection, final String query, final String lockName, final Long timeoutSec) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setString(1, lockName);
+            if (timeoutSec != null) {
+                statement.setLong(2, timeoutSec);
+            }
+            try (final ResultSet rs = statement.executeQuery()) {
+                return rs.next() && (rs.getByte(1) == 1);
+            }
         }
     }
 }
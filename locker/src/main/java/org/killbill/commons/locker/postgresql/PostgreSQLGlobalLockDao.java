@@ -22,18 +22,55 @@ package org.killbill.commons.locker.postgresql;
 import org.killbill.commons.locker.GlobalLockDao;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 // Note: the lock is connection specific (closing the connection releases the lock)
 public class PostgreSQLGlobalLockDao implements GlobalLockDao {
 
+    // Raised when lock_timeout expires
+    private static final String LOCK_NOT_AVAILABLE = "55P03";
+
     @Override
     public boolean lock(final Connection connection, final String lockName, final long timeout, final TimeUnit timeUnit) throws SQLException {
+        // Uncontended case: a single round trip
         final String sql = String.format("SELECT pg_try_advisory_lock(%s);", lockName);
-        return executeLockQuery(connection, sql);
+        if (executeLockQuery(connection, sql)) {
+            return true;
+        }
+
+        final long timeoutMillis = TimeUnit.MILLISECONDS.convert(timeout, timeUnit);
+        if (timeoutMillis <= 0) {
+            return false;
+        }
+
+        // The server waits for the lock to be released (and hands it over right away), up to lock_timeout. The setting is
+        // local to a transaction of our own, so that it doesn't outlive it (the connection may be pooled), even when
+        // the timeout expires (which aborts the transaction). Session level advisory locks don't depend on the transaction.
+        final boolean autoCommit = connection.getAutoCommit();
+        if (autoCommit) {
+            connection.setAutoCommit(false);
+        }
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute(String.format("SET LOCAL lock_timeout = %d;", timeoutMillis));
+            statement.execute(String.format("SELECT pg_advisory_lock(%s);", lockName));
+            connection.commit();
+            return true;
+        } catch (final SQLException e) {
+            connection.rollback();
+            if (LOCK_NOT_AVAILABLE.equals(e.getSQLState())) {
+                return false;
+            }
+            throw e;
+        } finally {
+            if (autoCommit) {
+                connection.setAutoCommit(true);
+            }
+        }
     }
 
     @Override
@@ -48,6 +85,42 @@ public class PostgreSQLGlobalLockDao implements GlobalLockDao {
         return executeLockQuery(connection, sql);
     }
 
+    @Override
+    public boolean[] tryLocks(final Connection connection, final List<String> lockNames) throws SQLException {
+        return executeLockQueries(connection, "pg_try_advisory_lock(?)", lockNames);
+    }
+
+    @Override
+    public boolean[] releaseLocks(final Connection connection, final List<String> lockNames) throws SQLException {
+        return executeLockQueries(connection, "pg_advisory_unlock(?)", lockNames);
+    }
+
+    private boolean[] executeLockQueries(final Connection connection, final String function, final List<String> lockNames) throws SQLException {
+        final StringBuilder query = new StringBuilder("SELECT ");
+        for (int i = 0; i < lockNames.size(); i++) {
+            if (i > 0) {
+                query.append(", ");
+            }
+            query.append(function);
+        }
+        query.append(";");
+
+        final boolean[] results = new boolean[lockNames.size()];
+        try (final PreparedStatement statement = connection.prepareStatement(query.toString())) {
+            for (int i = 0; i < results.length; i++) {
+                statement.setLong(i + 1, Long.parseLong(lockNames.get(i)));
+            }
+            try (final ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    for (int i = 0; i < results.length; i++) {
+                        results[i] = rs.getBoolean(i + 1);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
     private boolean executeLockQuery(final Connection connection, final String query) throws SQLException {
         try (final Statement statement = connection.createStatement();
              final ResultSet rs = statement.executeQuery(query)) {
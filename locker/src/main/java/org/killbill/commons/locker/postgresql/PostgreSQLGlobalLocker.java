@@ -45,7 +45,12 @@ public class PostgreSQLGlobalLocker extends GlobalLockerBaseWithDao implements G
     }
 
     public PostgreSQLGlobalLocker(final DataSource dataSource, final long timeout, final TimeUnit timeUnit) {
-        super(dataSource, new PostgreSQLGlobalLockDao(), timeout, timeUnit);
+        this(dataSource, timeout, timeUnit, 0);
+    }
+
+    // See GlobalLockerBaseWithDao for nbLockSessions
+    public PostgreSQLGlobalLocker(final DataSource dataSource, final long timeout, final TimeUnit timeUnit, final int nbLockSessions) {
+        super(dataSource, new PostgreSQLGlobalLockDao(), timeout, timeUnit, nbLockSessions);
     }
 
     @Override
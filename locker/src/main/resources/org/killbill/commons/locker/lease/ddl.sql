@@ -0,0 +1,11 @@
+/*! SET default_storage_engine=INNODB */;
+
+DROP TABLE IF EXISTS global_locks;
+CREATE TABLE global_locks (
+    lock_name varchar(128) NOT NULL,
+    owner_id varchar(64) DEFAULT NULL,
+    fencing_token bigint NOT NULL,
+    lease_expiration bigint NOT NULL,
+    PRIMARY KEY(lock_name)
+);
+CREATE INDEX global_locks_owner_id ON global_locks(owner_id);
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.commons.locker;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.killbill.commons.request.Request;
+import org.killbill.commons.request.RequestData;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestLockSessionPool {
+
+    private InMemoryLockDao lockDao;
+    private AtomicInteger nbConnections;
+    private DataSource dataSource;
+
+    @BeforeMethod(groups = "fast")
+    public void beforeMethod() throws Exception {
+        Request.resetPerThreadRequestData();
+        lockDao = new InMemoryLockDao();
+        nbConnections = new AtomicInteger();
+        dataSource = (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class[]{DataSource.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getConnection".equals(method.getName())) {
+                    nbConnections.incrementAndGet();
+                    return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                            return null;
+                        }
+                    });
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @AfterMethod(groups = "fast")
+    public void afterMethod() throws Exception {
+        Request.resetPerThreadRequestData();
+    }
+
+    @Test(groups = "fast")
+    public void testOperationsAreBatched() throws Exception {
+        final LockSessionPool pool = new LockSessionPool(dataSource, lockDao, 1, new LockSessionPool.LostLocksCallback() {
+            @Override
+            public void onLocksLost(final List<String> lockNames) {
+                Assert.fail("Lost locks " + lockNames);
+            }
+        });
+        final int nbThreads = 16;
+        final int nbLocksPerThread = 50;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            final List<Future<Boolean>> results = new LinkedList<Future<Boolean>>();
+            for (int i = 0; i < nbThreads; i++) {
+                final int threadId = i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        boolean success = true;
+                        for (int j = 0; j < nbLocksPerThread; j++) {
+                            final String lockName = threadId + "-" + j;
+                            success &= pool.getSession(lockName).tryLock(lockName);
+                        }
+                        for (int j = 0; j < nbLocksPerThread; j++) {
+                            final String lockName = threadId + "-" + j;
+                            success &= pool.getSession(lockName).releaseLock(lockName);
+                        }
+                        return success;
+                    }
+                }));
+            }
+            for (final Future<Boolean> result : results) {
+                Assert.assertTrue(result.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Single session, opened once
+        Assert.assertEquals(nbConnections.get(), 1);
+        Assert.assertTrue(lockDao.heldLocks.isEmpty());
+        Assert.assertTrue(lockDao.nbRoundTrips.get() < 2 * nbThreads * nbLocksPerThread);
+        pool.close();
+    }
+
+    @Test(groups = "fast")
+    public void testLocksOnSessions() throws Exception {
+        final GlobalLockerBaseWithDao locker = new GlobalLockerBaseWithDao(dataSource, lockDao, 10, TimeUnit.MILLISECONDS, 2) {
+            @Override
+            protected GlobalLock getGlobalLock(final Connection connection, final String lockName, final ResetReentrantLockCallback resetCb) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            protected String getLockName(final String service, final String lockKey) {
+                return service + "-" + lockKey;
+            }
+        };
+
+        Request.setPerThreadRequestData(new RequestData("12345"));
+        final List<GlobalLock> locks = new LinkedList<GlobalLock>();
+        for (int i = 0; i < 10; i++) {
+            locks.add(locker.lockWithNumberOfTries("MY_LOCK", String.valueOf(i), 1));
+        }
+        // More locks than sessions
+        Assert.assertEquals(nbConnections.get(), 2);
+        Assert.assertEquals(lockDao.heldLocks.size(), 10);
+        Assert.assertFalse(locker.isFree("MY_LOCK", "0"));
+
+        // Re-entrant
+        locker.lockWithNumberOfTries("MY_LOCK", "0", 1).release();
+        Assert.assertFalse(locker.isFree("MY_LOCK", "0"));
+
+        // Held locally by another request: the session would grant it again, but the locker doesn't
+        Request.setPerThreadRequestData(new RequestData("54321"));
+        try {
+            locker.lockWithNumberOfTries("MY_LOCK", "0", 1);
+            Assert.fail();
+        } catch (final LockFailedException ignored) {
+        }
+
+        Request.setPerThreadRequestData(new RequestData("12345"));
+        for (final GlobalLock lock : locks) {
+            lock.release();
+        }
+        Assert.assertTrue(lockDao.heldLocks.isEmpty());
+        Assert.assertTrue(locker.isFree("MY_LOCK", "0"));
+        locker.close();
+    }
+
+    @Test(groups = "fast")
+    public void testSessionFailure() throws Exception {
+        final GlobalLockerBaseWithDao locker = new GlobalLockerBaseWithDao(dataSource, lockDao, 10, TimeUnit.MILLISECONDS, 1) {
+            @Override
+            protected GlobalLock getGlobalLock(final Connection connection, final String lockName, final ResetReentrantLockCallback resetCb) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            protected String getLockName(final String service, final String lockKey) {
+                return service + "-" + lockKey;
+            }
+        };
+
+        Request.setPerThreadRequestData(new RequestData("12345"));
+        final GlobalLock lock = locker.lockWithNumberOfTries("MY_LOCK", "0", 1);
+        final GlobalLock lockAll = locker.lockAllWithNumberOfTries("MY_LOCK", Arrays.asList("1", "2"), 1);
+
+        // The session goes away (and the database releases its locks): the next operation notices it
+        lockDao.isFailing = true;
+        try {
+            locker.lockWithNumberOfTries("MY_LOCK", "3", 1);
+            Assert.fail();
+        } catch (final LockFailedException ignored) {
+        }
+        lockDao.isFailing = false;
+
+        // Nothing is held anymore, locally or in the database
+        Assert.assertTrue(lockDao.heldLocks.isEmpty());
+        Assert.assertTrue(locker.isFree("MY_LOCK", "0"));
+        Assert.assertTrue(locker.isFree("MY_LOCK", "1"));
+
+        // Another request can take them again (on a new session)
+        Request.setPerThreadRequestData(new RequestData("54321"));
+        locker.lockWithNumberOfTries("MY_LOCK", "0", 1).release();
+
+        // The holders find out when releasing them
+        Request.setPerThreadRequestData(new RequestData("12345"));
+        try {
+            lock.release();
+            Assert.fail();
+        } catch (final LockLostException ignored) {
+        }
+        try {
+            lockAll.release();
+            Assert.fail();
+        } catch (final LockLostException ignored) {
+        }
+        Assert.assertTrue(lockDao.heldLocks.isEmpty());
+        locker.close();
+    }
+
+    // Advisory locks which, like the database ones, are re-entrant per session (all sessions are considered the same here)
+    private static final class InMemoryLockDao implements GlobalLockDao {
+
+        private final Set<String> heldLocks = new HashSet<String>();
+        private final AtomicInteger nbRoundTrips = new AtomicInteger();
+
+        // The session goes away (and its locks with it) on the next round trip
+        private volatile boolean isFailing;
+
+        @Override
+        public boolean lock(final Connection connection, final String lockName, final long timeout, final TimeUnit timeUnit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean releaseLock(final Connection connection, final String lockName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized boolean isLockFree(final Connection connection, final String lockName) {
+            return !heldLocks.contains(lockName);
+        }
+
+        @Override
+        public boolean[] tryLocks(final Connection connection, final List<String> lockNames) throws SQLException {
+            return execute(lockNames, true);
+        }
+
+        @Override
+        public boolean[] releaseLocks(final Connection connection, final List<String> lockNames) throws SQLException {
+            return execute(lockNames, false);
+        }
+
+        private synchronized boolean[] execute(final List<String> lockNames, final boolean lock) throws SQLException {
+            nbRoundTrips.incrementAndGet();
+            try {
+                // Round trip
+                Thread.sleep(1);
+            } catch (final InterruptedException e) {
+                throw new SQLException(e);
+            }
+            if (isFailing) {
+                heldLocks.clear();
+                throw new SQLException("Communications link failure");
+            }
+
+            final boolean[] results = new boolean[lockNames.size()];
+            for (int i = 0; i < results.length; i++) {
+                if (lock) {
+                    heldLocks.add(lockNames.get(i));
+                    results[i] = true;
+                } else {
+                    results[i] = heldLocks.remove(lockNames.get(i));
+                }
+            }
+            return results;
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testLockAllOnSessions() throws Exception {
+        final GlobalLockerBaseWithDao locker = new GlobalLockerBaseWithDao(dataSource, lockDao, 10, TimeUnit.MILLISECONDS, 2) {
+            @Override
+            protected GlobalLock getGlobalLock(final Connection connection, final String lockName, final ResetReentrantLockCallback resetCb) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            protected String getLockName(final String service, final String lockKey) {
+                return service + "-" + lockKey;
+            }
+        };
+
+        final List<String> lockKeys = new LinkedList<String>();
+        for (int i = 0; i < 10; i++) {
+            lockKeys.add(String.valueOf(i));
+        }
+
+        Request.setPerThreadRequestData(new RequestData("12345"));
+        final GlobalLock lock = locker.lockAllWithNumberOfTries("MY_LOCK", lockKeys, 1);
+        Assert.assertEquals(lockDao.heldLocks.size(), 10);
+        // At most one round trip per session
+        Assert.assertTrue(lockDao.nbRoundTrips.get() <= 2);
+
+        // One of them is held by another request: none is taken
+        Request.setPerThreadRequestData(new RequestData("54321"));
+        try {
+            locker.lockAllWithNumberOfTries("MY_LOCK", Arrays.asList("9", "10", "11"), 1);
+            Assert.fail();
+        } catch (final LockFailedException ignored) {
+        }
+        Assert.assertTrue(locker.isFree("MY_LOCK", "10"));
+        Assert.assertTrue(locker.isFree("MY_LOCK", "11"));
+
+        Request.setPerThreadRequestData(new RequestData("12345"));
+        lock.release();
+        Assert.assertTrue(lockDao.heldLocks.isEmpty());
+        locker.close();
+    }
+
+    @Test(groups = "fast")
+    public void testLockAllOnOneConnection() throws Exception {
+        final GlobalLockerBaseWithDao locker = new GlobalLockerBaseWithDao(dataSource, lockDao, 10, TimeUnit.MILLISECONDS) {
+            @Override
+            protected GlobalLock getGlobalLock(final Connection connection, final String lockName, final ResetReentrantLockCallback resetCb) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            protected String getLockName(final String service, final String lockKey) {
+                return service + "-" + lockKey;
+            }
+        };
+
+        Request.setPerThreadRequestData(new RequestData("12345"));
+        final GlobalLock lock = locker.lockAllWithNumberOfTries("MY_LOCK", Arrays.asList("2", "0", "1"), 1);
+        Assert.assertEquals(nbConnections.get(), 1);
+        Assert.assertEquals(lockDao.nbRoundTrips.get(), 1);
+        Assert.assertEquals(lockDao.heldLocks.size(), 3);
+
+        lock.release();
+        Assert.assertTrue(lockDao.heldLocks.isEmpty());
+        Assert.assertTrue(locker.isFree("MY_LOCK", "0"));
+    }
+}
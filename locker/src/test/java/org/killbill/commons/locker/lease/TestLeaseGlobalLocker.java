@@ -0,0 +1,209 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.commons.locker.lease;
+
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.killbill.commons.locker.FencedGlobalLock;
+import org.killbill.commons.locker.GlobalLock;
+import org.killbill.commons.locker.LockFailedException;
+import org.killbill.commons.locker.LockLostException;
+import org.killbill.commons.request.Request;
+import org.killbill.commons.request.RequestData;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestLeaseGlobalLocker {
+
+    private JdbcDataSource dataSource;
+    private Connection keepAliveConnection;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID());
+        // In-memory databases go away with their last connection
+        keepAliveConnection = dataSource.getConnection();
+
+        final InputStream ddl = LeaseGlobalLocker.class.getResourceAsStream("ddl.sql");
+        final String sql = new Scanner(ddl, "UTF-8").useDelimiter("\\A").next();
+        try (final Statement statement = keepAliveConnection.createStatement()) {
+            for (final String query : sql.split(";")) {
+                if (!query.trim().isEmpty()) {
+                    statement.execute(query);
+                }
+            }
+        }
+
+        Request.setPerThreadRequestData(new RequestData("12345"));
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws SQLException {
+        keepAliveConnection.close();
+    }
+
+    @Test(groups = "fast")
+    public void testLockingAcrossNodes() throws LockFailedException {
+        final String serviceLock = "MY_LOCK";
+        final String lockName = UUID.randomUUID().toString();
+
+        final LeaseGlobalLocker node1 = new LeaseGlobalLocker(dataSource);
+        final LeaseGlobalLocker node2 = new LeaseGlobalLocker(dataSource);
+        try {
+            Assert.assertTrue(node1.isFree(serviceLock, lockName));
+
+            final GlobalLock lock = node1.lockWithNumberOfTries(serviceLock, lockName, 1);
+            Assert.assertEquals(((FencedGlobalLock) lock).getFencingToken(), 1L);
+            Assert.assertFalse(node1.isFree(serviceLock, lockName));
+            Assert.assertFalse(node2.isFree(serviceLock, lockName));
+
+            try {
+                node2.lockWithNumberOfTries(serviceLock, lockName, 1);
+                Assert.fail();
+            } catch (final LockFailedException e) {
+                Assert.assertFalse(node2.isFree(serviceLock, lockName));
+            }
+
+            // Re-entrant on the owning node, with the same token
+            final GlobalLock reentrantLock = node1.lockWithNumberOfTries(serviceLock, lockName, 1);
+            Assert.assertEquals(((FencedGlobalLock) reentrantLock).getFencingToken(), 1L);
+            reentrantLock.release();
+            Assert.assertFalse(node2.isFree(serviceLock, lockName));
+
+            lock.release();
+            Assert.assertTrue(node1.isFree(serviceLock, lockName));
+            Assert.assertTrue(node2.isFree(serviceLock, lockName));
+
+            // Tokens keep increasing across owners
+            final GlobalLock lock2 = node2.lockWithNumberOfTries(serviceLock, lockName, 1);
+            Assert.assertEquals(((FencedGlobalLock) lock2).getFencingToken(), 2L);
+            lock2.release();
+
+            final GlobalLock lock3 = node1.lockWithNumberOfTries(serviceLock, lockName, 1);
+            Assert.assertEquals(((FencedGlobalLock) lock3).getFencingToken(), 3L);
+            lock3.release();
+        } finally {
+            node1.close();
+            node2.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testExpiredLeaseIsTakenOver() throws LockFailedException, InterruptedException {
+        final String serviceLock = "MY_LOCK";
+        final String lockName = UUID.randomUUID().toString();
+
+        final LeaseGlobalLocker node1 = new LeaseGlobalLocker(dataSource, 100L, TimeUnit.MILLISECONDS, 300L, TimeUnit.MILLISECONDS);
+        final LeaseGlobalLocker node2 = new LeaseGlobalLocker(dataSource, 100L, TimeUnit.MILLISECONDS, 300L, TimeUnit.MILLISECONDS);
+        try {
+            final GlobalLock lock = node1.lockWithNumberOfTries(serviceLock, lockName, 1);
+            // Simulate a crash: the lease isn't renewed anymore
+            node1.close();
+
+            Thread.sleep(600);
+            Assert.assertTrue(node2.isFree(serviceLock, lockName));
+            final GlobalLock lock2 = node2.lockWithNumberOfTries(serviceLock, lockName, 1);
+            Assert.assertTrue(((FencedGlobalLock) lock2).getFencingToken() > ((FencedGlobalLock) lock).getFencingToken());
+
+            // The stale holder cannot release the new owner's lock
+            lock.release();
+            Assert.assertFalse(node2.isFree(serviceLock, lockName));
+
+            lock2.release();
+            Assert.assertTrue(node2.isFree(serviceLock, lockName));
+        } finally {
+            node1.close();
+            node2.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testLeaseIsRenewed() throws LockFailedException, InterruptedException {
+        final String serviceLock = "MY_LOCK";
+        final String lockName = UUID.randomUUID().toString();
+
+        final LeaseGlobalLocker node1 = new LeaseGlobalLocker(dataSource, 100L, TimeUnit.MILLISECONDS, 300L, TimeUnit.MILLISECONDS);
+        final LeaseGlobalLocker node2 = new LeaseGlobalLocker(dataSource, 100L, TimeUnit.MILLISECONDS, 300L, TimeUnit.MILLISECONDS);
+        try {
+            final GlobalLock lock = node1.lockWithNumberOfTries(serviceLock, lockName, 1);
+
+            // Well past the initial lease
+            Thread.sleep(1000);
+            Assert.assertFalse(node2.isFree(serviceLock, lockName));
+            try {
+                node2.lockWithNumberOfTries(serviceLock, lockName, 1);
+                Assert.fail();
+            } catch (final LockFailedException ignored) {
+            }
+
+            lock.release();
+            Assert.assertTrue(node2.isFree(serviceLock, lockName));
+        } finally {
+            node1.close();
+            node2.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testExpiredLeaseIsLost() throws Exception {
+        final String serviceLock = "MY_LOCK";
+        final String lockName = UUID.randomUUID().toString();
+
+        final LeaseGlobalLocker node1 = new LeaseGlobalLocker(dataSource, 100L, TimeUnit.MILLISECONDS, 300L, TimeUnit.MILLISECONDS);
+        try {
+            final GlobalLock lock = node1.lockWithNumberOfTries(serviceLock, lockName, 1);
+
+            // The lease expires before the heartbeat could renew it (e.g. long GC pause)
+            try (final Statement statement = keepAliveConnection.createStatement()) {
+                statement.execute("update global_locks set lease_expiration = 0");
+            }
+            Thread.sleep(400);
+
+            // Not renewed, and no longer held locally: another request can take it again
+            Assert.assertTrue(node1.isFree(serviceLock, lockName));
+            Request.setPerThreadRequestData(new RequestData("54321"));
+            final GlobalLock lock2 = node1.lockWithNumberOfTries(serviceLock, lockName, 1);
+            Assert.assertEquals(((FencedGlobalLock) lock2).getFencingToken(), 2L);
+
+            // The stale holder finds out when releasing it
+            Request.setPerThreadRequestData(new RequestData("12345"));
+            try {
+                lock.release();
+                Assert.fail();
+            } catch (final LockLostException ignored) {
+            }
+
+            Request.setPerThreadRequestData(new RequestData("54321"));
+            lock2.release();
+            Assert.assertTrue(node1.isFree(serviceLock, lockName));
+        } finally {
+            node1.close();
+        }
+    }
+}
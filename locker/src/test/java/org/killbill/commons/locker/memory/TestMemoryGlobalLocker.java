@@ -20,7 +20,16 @@
 package org.killbill.commons.locker.memory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.killbill.commons.locker.GlobalLock;
 import org.killbill.commons.locker.GlobalLocker;
@@ -110,4 +119,199 @@ public class TestMemoryGlobalLocker {
         reentrantLock2.release();
         Assert.assertTrue(locker.isFree(serviceLock, lockName));
     }
+
+    @Test(groups = "fast")
+    public void testConcurrentLocks() throws Exception {
+        final String serviceLock = "MY_LOCK_CONCURRENT";
+        final int nbThreads = 8;
+        final int nbLocksPerThread = 1000;
+        // All threads contend on the same keys
+        final int nbKeys = 2;
+
+        // Long timeout: the threads wait for each other instead of failing
+        final GlobalLocker locker = new MemoryGlobalLocker(10, TimeUnit.SECONDS);
+        final AtomicInteger[] nbHolders = new AtomicInteger[nbKeys];
+        // Only updated under the lock of the key
+        final int[] nbCriticalSections = new int[nbKeys];
+        for (int k = 0; k < nbKeys; k++) {
+            nbHolders[k] = new AtomicInteger();
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            final List<Future<Boolean>> results = new LinkedList<Future<Boolean>>();
+            for (int i = 0; i < nbThreads; i++) {
+                final String requestId = "thread-" + i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        Request.setPerThreadRequestData(new RequestData(requestId));
+                        try {
+                            for (int j = 0; j < nbLocksPerThread; j++) {
+                                final int key = j % nbKeys;
+                                final String lockName = String.valueOf(key);
+                                final GlobalLock lock = locker.lockWithNumberOfTries(serviceLock, lockName, 1);
+                                try {
+                                    if (nbHolders[key].incrementAndGet() != 1) {
+                                        return false;
+                                    }
+
+                                    final GlobalLock reentrantLock = locker.lockWithNumberOfTries(serviceLock, lockName, 1);
+                                    reentrantLock.release();
+                                    if (locker.isFree(serviceLock, lockName)) {
+                                        return false;
+                                    }
+                                    nbCriticalSections[key]++;
+
+                                    nbHolders[key].decrementAndGet();
+                                } finally {
+                                    lock.release();
+                                }
+                            }
+                            return true;
+                        } finally {
+                            Request.resetPerThreadRequestData();
+                        }
+                    }
+                }));
+            }
+
+            for (final Future<Boolean> result : results) {
+                Assert.assertTrue(result.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // No update lost, i.e. the critical sections never overlapped
+        for (int k = 0; k < nbKeys; k++) {
+            Assert.assertEquals(nbCriticalSections[k], nbThreads * nbLocksPerThread / nbKeys);
+            Assert.assertTrue(locker.isFree(serviceLock, String.valueOf(k)));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testWaiterIsWokenUpOnRelease() throws Exception {
+        final String serviceLock = "MY_LOCK_HANDOFF";
+        final String lockName = UUID.randomUUID().toString();
+
+        // Long timeout: the waiter should get the lock as soon as it is released, not when the timeout expires
+        final GlobalLocker locker = new MemoryGlobalLocker(10, TimeUnit.SECONDS);
+        Request.setPerThreadRequestData(new RequestData("holder"));
+        final GlobalLock lock = locker.lockWithNumberOfTries(serviceLock, lockName, 1);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Long> waitTimeMillis = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    Request.setPerThreadRequestData(new RequestData("waiter"));
+                    try {
+                        final long ini = System.nanoTime();
+                        final GlobalLock handedOverLock = locker.lockWithNumberOfTries(serviceLock, lockName, 1);
+                        final long waitTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ini);
+                        handedOverLock.release();
+                        return waitTime;
+                    } finally {
+                        Request.resetPerThreadRequestData();
+                    }
+                }
+            });
+
+            Thread.sleep(200);
+            Assert.assertFalse(waitTimeMillis.isDone());
+            lock.release();
+
+            Assert.assertTrue(waitTimeMillis.get(5, TimeUnit.SECONDS) < 5000);
+            Assert.assertTrue(locker.isFree(serviceLock, lockName));
+        } finally {
+            Request.resetPerThreadRequestData();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testLockAll() throws IOException, LockFailedException {
+        final String serviceLock = "MY_LOCK_ALL";
+        final String lockName1 = UUID.randomUUID().toString();
+        final String lockName2 = UUID.randomUUID().toString();
+        final String lockName3 = UUID.randomUUID().toString();
+
+        final GlobalLocker locker = new MemoryGlobalLocker();
+
+        Request.setPerThreadRequestData(new RequestData("12345"));
+        final GlobalLock lock1 = locker.lockWithNumberOfTries(serviceLock, lockName1, 1);
+
+        // One of the locks is held by another request: none of them is taken
+        Request.setPerThreadRequestData(new RequestData("54321"));
+        try {
+            locker.lockAllWithNumberOfTries(serviceLock, Arrays.asList(lockName3, lockName2, lockName1), 1);
+            Assert.fail();
+        } catch (final LockFailedException ignored) {
+        }
+        Assert.assertTrue(locker.isFree(serviceLock, lockName2));
+        Assert.assertTrue(locker.isFree(serviceLock, lockName3));
+
+        // Re-entrant for the ones already held by the request
+        Request.setPerThreadRequestData(new RequestData("12345"));
+        final GlobalLock allLocks = locker.lockAllWithNumberOfTries(serviceLock, Arrays.asList(lockName3, lockName2, lockName1, lockName2), 1);
+        Assert.assertFalse(locker.isFree(serviceLock, lockName1));
+        Assert.assertFalse(locker.isFree(serviceLock, lockName2));
+        Assert.assertFalse(locker.isFree(serviceLock, lockName3));
+
+        allLocks.release();
+        Assert.assertFalse(locker.isFree(serviceLock, lockName1));
+        Assert.assertTrue(locker.isFree(serviceLock, lockName2));
+        Assert.assertTrue(locker.isFree(serviceLock, lockName3));
+
+        lock1.release();
+        Assert.assertTrue(locker.isFree(serviceLock, lockName1));
+    }
+
+    @Test(groups = "fast")
+    public void testDefaultLockAll() throws IOException, LockFailedException {
+        final String serviceLock = "MY_LOCK_ALL_DEFAULT";
+        final MemoryGlobalLocker delegate = new MemoryGlobalLocker();
+        final List<String> lockedKeys = new LinkedList<String>();
+        // Only implements the single lock methods
+        final GlobalLocker locker = new GlobalLocker() {
+            @Override
+            public GlobalLock lockWithNumberOfTries(final String service, final String lockKey, final int retry) throws LockFailedException {
+                lockedKeys.add(lockKey);
+                return delegate.lockWithNumberOfTries(service, lockKey, retry);
+            }
+
+            @Override
+            public boolean isFree(final String service, final String lockKey) {
+                return delegate.isFree(service, lockKey);
+            }
+        };
+
+        Request.setPerThreadRequestData(new RequestData("12345"));
+        final GlobalLock lockC = locker.lockWithNumberOfTries(serviceLock, "c", 1);
+        lockedKeys.clear();
+
+        // In order, and all or nothing
+        Request.setPerThreadRequestData(new RequestData("54321"));
+        try {
+            locker.lockAllWithNumberOfTries(serviceLock, Arrays.asList("d", "c", "a", "b", "a"), 1);
+            Assert.fail();
+        } catch (final LockFailedException ignored) {
+        }
+        Assert.assertEquals(lockedKeys, Arrays.asList("a", "b", "c"));
+        Assert.assertTrue(locker.isFree(serviceLock, "a"));
+        Assert.assertTrue(locker.isFree(serviceLock, "b"));
+
+        Request.setPerThreadRequestData(new RequestData("12345"));
+        lockC.release();
+        Request.setPerThreadRequestData(new RequestData("54321"));
+        final GlobalLock allLocks = locker.lockAllWithNumberOfTries(serviceLock, Arrays.asList("d", "c", "a", "b"), 1);
+        Assert.assertFalse(locker.isFree(serviceLock, "a"));
+        Assert.assertFalse(locker.isFree(serviceLock, "d"));
+
+        allLocks.release();
+        for (final String lockKey : Arrays.asList("a", "b", "c", "d")) {
+            Assert.assertTrue(locker.isFree(serviceLock, lockKey));
+        }
+    }
 }
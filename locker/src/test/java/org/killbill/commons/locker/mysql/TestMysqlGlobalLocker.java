@@ -23,6 +23,7 @@ import org.killbill.commons.embeddeddb.mysql.MySQLEmbeddedDB;
 import org.killbill.commons.locker.GlobalLock;
 import org.killbill.commons.locker.GlobalLocker;
 import org.killbill.commons.locker.LockFailedException;
+import org.killbill.commons.locker.LockLostException;
 import org.killbill.commons.request.Request;
 import org.killbill.commons.request.RequestData;
 import org.testng.Assert;
@@ -33,7 +34,13 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class TestMysqlGlobalLocker {
 
@@ -173,4 +180,143 @@ public class TestMysqlGlobalLocker {
         reentrantLock2.release();
         Assert.assertTrue(locker.isFree(serviceLock, lockName));
     }
+
+    @Test(groups = "mysql")
+    public void testSubSecondTimeout() throws IOException, LockFailedException {
+        final String serviceLock = "MY_SUB_SECOND_LOCK";
+        final String lockName = UUID.randomUUID().toString();
+
+        final MySqlGlobalLocker locker = new MySqlGlobalLocker(embeddedDB.getDataSource(), 200, TimeUnit.MILLISECONDS);
+        // Another node
+        final MySqlGlobalLocker otherLocker = new MySqlGlobalLocker(embeddedDB.getDataSource());
+
+        final GlobalLock lock = otherLocker.lockWithNumberOfTries(serviceLock, lockName, 1);
+        final long startMillis = System.currentTimeMillis();
+        try {
+            locker.lockWithNumberOfTries(serviceLock, lockName, 1);
+            Assert.fail();
+        } catch (final LockFailedException ignored) {
+        }
+        // Not rounded up to GET_LOCK's one second
+        final long elapsedMillis = System.currentTimeMillis() - startMillis;
+        Assert.assertTrue(elapsedMillis >= 200 && elapsedMillis < 1000, "elapsedMillis=" + elapsedMillis);
+
+        lock.release();
+        locker.lockWithNumberOfTries(serviceLock, lockName, 1).release();
+    }
+
+    @Test(groups = "mysql")
+    public void testLockSessions() throws IOException, LockFailedException {
+        final String serviceLock = "MY_SESSION_LOCK";
+        final String lockName1 = UUID.randomUUID().toString();
+        final String lockName2 = UUID.randomUUID().toString();
+
+        // Both locks held by a single session
+        final MySqlGlobalLocker locker = new MySqlGlobalLocker(embeddedDB.getDataSource(), 100, TimeUnit.MILLISECONDS, 1);
+        // Another node
+        final MySqlGlobalLocker otherLocker = new MySqlGlobalLocker(embeddedDB.getDataSource());
+        try {
+            final GlobalLock lock1 = locker.lockWithNumberOfTries(serviceLock, lockName1, 1);
+            final GlobalLock lock2 = locker.lockWithNumberOfTries(serviceLock, lockName2, 1);
+            Assert.assertFalse(otherLocker.isFree(serviceLock, lockName1));
+            Assert.assertFalse(otherLocker.isFree(serviceLock, lockName2));
+
+            boolean gotException = false;
+            try {
+                otherLocker.lockWithNumberOfTries(serviceLock, lockName1, 1);
+            } catch (final LockFailedException e) {
+                gotException = true;
+            }
+            Assert.assertTrue(gotException);
+
+            lock1.release();
+            Assert.assertTrue(otherLocker.isFree(serviceLock, lockName1));
+            Assert.assertFalse(otherLocker.isFree(serviceLock, lockName2));
+            otherLocker.lockWithNumberOfTries(serviceLock, lockName1, 1).release();
+
+            lock2.release();
+            Assert.assertTrue(otherLocker.isFree(serviceLock, lockName2));
+        } finally {
+            locker.close();
+        }
+    }
+
+    @Test(groups = "mysql")
+    public void testLockSessionFailure() throws Exception {
+        final String serviceLock = "MY_SESSION_FAILURE_LOCK";
+        final String lockName1 = UUID.randomUUID().toString();
+        final String lockName2 = UUID.randomUUID().toString();
+
+        final MySqlGlobalLocker locker = new MySqlGlobalLocker(embeddedDB.getDataSource(), 100, TimeUnit.MILLISECONDS, 1);
+        // Another node
+        final MySqlGlobalLocker otherLocker = new MySqlGlobalLocker(embeddedDB.getDataSource());
+        try {
+            final GlobalLock lock1 = locker.lockWithNumberOfTries(serviceLock, lockName1, 1);
+
+            // Kill the session holding the lock, MySQL releases it right away
+            try (final Connection connection = embeddedDB.getDataSource().getConnection()) {
+                final long sessionId;
+                try (final PreparedStatement statement = connection.prepareStatement("select IS_USED_LOCK(?)")) {
+                    statement.setString(1, serviceLock + "-" + lockName1);
+                    try (final ResultSet rs = statement.executeQuery()) {
+                        Assert.assertTrue(rs.next());
+                        sessionId = rs.getLong(1);
+                    }
+                }
+                try (final Statement statement = connection.createStatement()) {
+                    statement.execute("KILL CONNECTION " + sessionId);
+                }
+            }
+            Assert.assertTrue(otherLocker.isFree(serviceLock, lockName1));
+
+            // The first try fails on the dead session, the second one re-opens it
+            final GlobalLock lock2 = locker.lockWithNumberOfTries(serviceLock, lockName2, 2);
+            Assert.assertFalse(otherLocker.isFree(serviceLock, lockName2));
+
+            // lock1 isn't held locally anymore either
+            Assert.assertTrue(locker.isFree(serviceLock, lockName1));
+            otherLocker.lockWithNumberOfTries(serviceLock, lockName1, 1).release();
+            try {
+                lock1.release();
+                Assert.fail();
+            } catch (final LockLostException ignored) {
+            }
+
+            lock2.release();
+            Assert.assertTrue(otherLocker.isFree(serviceLock, lockName2));
+        } finally {
+            locker.close();
+        }
+    }
+
+    @Test(groups = "mysql")
+    public void testLockAll() throws IOException, LockFailedException {
+        final String serviceLock = "MY_LOCK_ALL";
+        final String lockName1 = UUID.randomUUID().toString();
+        final String lockName2 = UUID.randomUUID().toString();
+
+        final MySqlGlobalLocker locker = new MySqlGlobalLocker(embeddedDB.getDataSource());
+        // Another node
+        final MySqlGlobalLocker otherLocker = new MySqlGlobalLocker(embeddedDB.getDataSource());
+
+        final GlobalLock lock2 = otherLocker.lockWithNumberOfTries(serviceLock, lockName2, 1);
+        boolean gotException = false;
+        try {
+            locker.lockAllWithNumberOfTries(serviceLock, Arrays.asList(lockName1, lockName2), 1);
+        } catch (final LockFailedException e) {
+            gotException = true;
+        }
+        Assert.assertTrue(gotException);
+        // All or nothing
+        Assert.assertTrue(otherLocker.isFree(serviceLock, lockName1));
+
+        lock2.release();
+        final GlobalLock lock = locker.lockAllWithNumberOfTries(serviceLock, Arrays.asList(lockName1, lockName2), 1);
+        Assert.assertFalse(otherLocker.isFree(serviceLock, lockName1));
+        Assert.assertFalse(otherLocker.isFree(serviceLock, lockName2));
+
+        lock.release();
+        Assert.assertTrue(otherLocker.isFree(serviceLock, lockName1));
+        Assert.assertTrue(otherLocker.isFree(serviceLock, lockName2));
+    }
 }
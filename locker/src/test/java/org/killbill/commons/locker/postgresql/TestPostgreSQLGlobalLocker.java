@@ -23,6 +23,7 @@ import org.killbill.commons.embeddeddb.postgresql.PostgreSQLEmbeddedDB;
 import org.killbill.commons.locker.GlobalLock;
 import org.killbill.commons.locker.GlobalLocker;
 import org.killbill.commons.locker.LockFailedException;
+import org.killbill.commons.locker.LockLostException;
 import org.killbill.commons.request.Request;
 import org.killbill.commons.request.RequestData;
 import org.testng.Assert;
@@ -33,7 +34,12 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class TestPostgreSQLGlobalLocker {
 
@@ -107,4 +113,140 @@ public class TestPostgreSQLGlobalLocker {
         Assert.assertTrue(locker.isFree(serviceLock, lockName));
     }
 
+
+    @Test(groups = "postgresql")
+    public void testLockTimeoutDoesNotLeak() throws Exception {
+        final String lockName = String.valueOf(UUID.randomUUID().getMostSignificantBits());
+        final PostgreSQLGlobalLockDao lockDao = new PostgreSQLGlobalLockDao();
+
+        try (final Connection holder = embeddedDB.getDataSource().getConnection();
+             final Connection connection = embeddedDB.getDataSource().getConnection()) {
+            Assert.assertTrue(lockDao.lock(holder, lockName, 0, TimeUnit.MILLISECONDS));
+
+            // Pooled connections may not be in auto-commit mode
+            connection.setAutoCommit(false);
+            Assert.assertFalse(lockDao.lock(connection, lockName, 50, TimeUnit.MILLISECONDS));
+
+            // Neither lock_timeout nor the aborted transaction are left behind
+            try (final Statement statement = connection.createStatement();
+                 final ResultSet rs = statement.executeQuery("SHOW lock_timeout")) {
+                Assert.assertTrue(rs.next());
+                Assert.assertEquals(rs.getString(1), "0");
+            }
+
+            Assert.assertTrue(lockDao.releaseLock(holder, lockName));
+            Assert.assertTrue(lockDao.lock(connection, lockName, 50, TimeUnit.MILLISECONDS));
+            Assert.assertTrue(lockDao.releaseLock(connection, lockName));
+            connection.rollback();
+        }
+    }
+
+    @Test(groups = "postgresql")
+    public void testLockSessions() throws IOException, LockFailedException {
+        final String serviceLock = "MY_SESSION_LOCK";
+        final String lockName1 = UUID.randomUUID().toString();
+        final String lockName2 = UUID.randomUUID().toString();
+
+        // Both locks held by a single session
+        final PostgreSQLGlobalLocker locker = new PostgreSQLGlobalLocker(embeddedDB.getDataSource(), 100, TimeUnit.MILLISECONDS, 1);
+        // Another node
+        final PostgreSQLGlobalLocker otherLocker = new PostgreSQLGlobalLocker(embeddedDB.getDataSource());
+        try {
+            final GlobalLock lock1 = locker.lockWithNumberOfTries(serviceLock, lockName1, 1);
+            final GlobalLock lock2 = locker.lockWithNumberOfTries(serviceLock, lockName2, 1);
+            Assert.assertFalse(otherLocker.isFree(serviceLock, lockName1));
+            Assert.assertFalse(otherLocker.isFree(serviceLock, lockName2));
+
+            boolean gotException = false;
+            try {
+                otherLocker.lockWithNumberOfTries(serviceLock, lockName1, 1);
+            } catch (final LockFailedException e) {
+                gotException = true;
+            }
+            Assert.assertTrue(gotException);
+
+            lock1.release();
+            Assert.assertTrue(otherLocker.isFree(serviceLock, lockName1));
+            Assert.assertFalse(otherLocker.isFree(serviceLock, lockName2));
+            otherLocker.lockWithNumberOfTries(serviceLock, lockName1, 1).release();
+
+            lock2.release();
+            Assert.assertTrue(otherLocker.isFree(serviceLock, lockName2));
+        } finally {
+            locker.close();
+        }
+    }
+
+    @Test(groups = "postgresql")
+    public void testLockSessionFailure() throws Exception {
+        final String serviceLock = "MY_SESSION_FAILURE_LOCK";
+        final String lockName1 = UUID.randomUUID().toString();
+        final String lockName2 = UUID.randomUUID().toString();
+        final String lockName3 = UUID.randomUUID().toString();
+
+        final PostgreSQLGlobalLocker locker = new PostgreSQLGlobalLocker(embeddedDB.getDataSource(), 100, TimeUnit.MILLISECONDS, 1);
+        // Another node
+        final PostgreSQLGlobalLocker otherLocker = new PostgreSQLGlobalLocker(embeddedDB.getDataSource());
+        try {
+            final GlobalLock lock = locker.lockAllWithNumberOfTries(serviceLock, Arrays.asList(lockName1, lockName2), 1);
+
+            // Terminate the backend holding the advisory locks (the only ones held at this point)
+            try (final Connection connection = embeddedDB.getDataSource().getConnection();
+                 final Statement statement = connection.createStatement();
+                 final ResultSet rs = statement.executeQuery("select pg_terminate_backend(pid) from (select distinct pid from pg_locks where locktype = 'advisory' and pid <> pg_backend_pid()) backends")) {
+                Assert.assertTrue(rs.next());
+                Assert.assertTrue(rs.getBoolean(1));
+                Assert.assertFalse(rs.next());
+            }
+
+            // The first try fails on the dead session, the second one re-opens it
+            final GlobalLock lock3 = locker.lockWithNumberOfTries(serviceLock, lockName3, 2);
+
+            // All the locks held by the dead session are lost, locally as well
+            Assert.assertTrue(locker.isFree(serviceLock, lockName1));
+            Assert.assertTrue(otherLocker.isFree(serviceLock, lockName2));
+            Assert.assertFalse(otherLocker.isFree(serviceLock, lockName3));
+            try {
+                lock.release();
+                Assert.fail();
+            } catch (final LockLostException ignored) {
+            }
+
+            lock3.release();
+            Assert.assertTrue(otherLocker.isFree(serviceLock, lockName3));
+        } finally {
+            locker.close();
+        }
+    }
+
+    @Test(groups = "postgresql")
+    public void testLockAll() throws IOException, LockFailedException {
+        final String serviceLock = "MY_LOCK_ALL";
+        final String lockName1 = UUID.randomUUID().toString();
+        final String lockName2 = UUID.randomUUID().toString();
+
+        final PostgreSQLGlobalLocker locker = new PostgreSQLGlobalLocker(embeddedDB.getDataSource());
+        // Another node
+        final PostgreSQLGlobalLocker otherLocker = new PostgreSQLGlobalLocker(embeddedDB.getDataSource());
+
+        final GlobalLock lock2 = otherLocker.lockWithNumberOfTries(serviceLock, lockName2, 1);
+        boolean gotException = false;
+        try {
+            locker.lockAllWithNumberOfTries(serviceLock, Arrays.asList(lockName1, lockName2), 1);
+        } catch (final LockFailedException e) {
+            gotException = true;
+        }
+        Assert.assertTrue(gotException);
+        // All or nothing
+        Assert.assertTrue(otherLocker.isFree(serviceLock, lockName1));
+
+        lock2.release();
+        final GlobalLock lock = locker.lockAllWithNumberOfTries(serviceLock, Arrays.asList(lockName1, lockName2), 1);
+        Assert.assertFalse(otherLocker.isFree(serviceLock, lockName1));
+        Assert.assertFalse(otherLocker.isFree(serviceLock, lockName2));
+
+        lock.release();
+        Assert.assertTrue(otherLocker.isFree(serviceLock, lockName1));
+        Assert.assertTrue(otherLocker.isFree(serviceLock, lockName2));
+    }
 }
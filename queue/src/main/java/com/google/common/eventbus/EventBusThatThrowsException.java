@@ -19,11 +19,10 @@
 
 package com.google.common.eventbus;
 
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.util.Iterator;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.eventbus.SubscriberDispatchTables.SubscriberInvoker;
 import com.google.common.util.concurrent.MoreExecutors;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
@@ -35,6 +34,9 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
  * <p/>
  * They closed the bug, but i am still not seeing any way to get those exceptions back, so since we REALLY
  * need it, we have to hack the code.
+ * <p/>
+ * Subscribers are kept in our own registry (see {@link SubscriberDispatchTables}) and are invoked synchronously, in the
+ * posting thread: the Guava registry, dispatcher and executor are bypassed altogether.
  */
 @SuppressFBWarnings("NM_CLASS_NOT_EXCEPTION")
 public class EventBusThatThrowsException extends EventBus {
@@ -42,78 +44,70 @@ public class EventBusThatThrowsException extends EventBus {
     @VisibleForTesting
     final SubscriberExceptionsTrackerHandler exceptionHandler;
 
-    private final SubscriberRegistry subscribers;
-    private final Dispatcher dispatcher;
+    private final SubscriberDispatchTables subscribers = new SubscriberDispatchTables();
 
     public EventBusThatThrowsException(final String identifier) {
+        this(identifier, new SubscriberExceptionsTrackerHandler());
+    }
+
+    private EventBusThatThrowsException(final String identifier, final SubscriberExceptionsTrackerHandler exceptionHandler) {
         super(identifier,
-              // See postWithException below
+              // Unused, see postWithException below
               MoreExecutors.directExecutor(),
               Dispatcher.immediate(),
-              new SubscriberExceptionsTrackerHandler());
-        this.subscribers = getSubscribers();
-        this.dispatcher = getDispatcher();
-        this.exceptionHandler = getExceptionHandler();
+              exceptionHandler);
+        this.exceptionHandler = exceptionHandler;
     }
 
-    public void postWithException(final Object event) throws EventBusException {
-        final Iterator<Subscriber> eventSubscribers = subscribers.getSubscribers(event);
-        if (eventSubscribers.hasNext()) {
-            // Just in case...
-            exceptionHandler.reset();
+    @Override
+    public void register(final Object object) {
+        subscribers.register(object);
+    }
 
-            RuntimeException guavaException = null;
-            final Exception subscriberException;
-            try {
-                dispatcher.dispatch(event, eventSubscribers);
-            } catch (final RuntimeException e) {
-                guavaException = e;
-            } finally {
-                // This works because we are both using the immediate dispatcher and the direct executor
-                // Note: we always want to dequeue here to avoid any memory leaks
-                subscriberException = exceptionHandler.caught();
-            }
+    @Override
+    public void unregister(final Object object) {
+        subscribers.unregister(object);
+    }
 
-            if (guavaException != null) {
-                throw guavaException;
-            }
-            if (subscriberException != null) {
-                throw new EventBusException(subscriberException);
-            }
-        } else if (!(event instanceof DeadEvent)) {
-            // the event had no subscribers and was not itself a DeadEvent
-            post(new DeadEvent(this, event));
+    @Override
+    public void post(final Object event) {
+        try {
+            postWithException(event);
+        } catch (final EventBusException ignored) {
+            // Already logged by the exception handler
         }
     }
 
-    //
-    // Even more ugliness to access private fields from the BusEvent class. Obviously this is very fragile;
-    // if they decide to just rename their field name field, all hell breaks loose. So updating guava will
-    //  require some attention-- but none of our tests would work so we should also see it pretty quick!
-    //
-
-    private SubscriberRegistry getSubscribers() {
-        return getDeclaredField("subscribers");
-    }
+    public void postWithException(final Object event) throws EventBusException {
+        final SubscriberInvoker[] eventSubscribers = subscribers.getSubscribers(event.getClass());
+        if (eventSubscribers.length == 0) {
+            if (!(event instanceof DeadEvent)) {
+                // the event had no subscribers and was not itself a DeadEvent
+                post(new DeadEvent(this, event));
+            }
+            return;
+        }
 
-    private Dispatcher getDispatcher() {
-        return getDeclaredField("dispatcher");
-    }
+        // Just in case...
+        exceptionHandler.reset();
 
-    private SubscriberExceptionsTrackerHandler getExceptionHandler() {
-        return getDeclaredField("exceptionHandler");
-    }
+        boolean failed = false;
+        for (final SubscriberInvoker subscriber : eventSubscribers) {
+            try {
+                subscriber.invoke(event);
+            } catch (final Error e) {
+                exceptionHandler.reset();
+                throw e;
+            } catch (final Throwable t) {
+                // Like Guava, keep going: all subscribers get the event
+                failed = true;
+                exceptionHandler.handleException(t, new SubscriberExceptionContext(this, event, subscriber.target, subscriber.method));
+            }
+        }
 
-    @SuppressWarnings("unchecked")
-    private <T> T getDeclaredField(final String fieldName) {
-        try {
-            final Field f = EventBus.class.getDeclaredField(fieldName);
-            f.setAccessible(true);
-            return (T) f.get(this);
-        } catch (final NoSuchFieldException e) {
-            throw new RuntimeException("Failed to retrieve private field from BusEvent class " + fieldName, e);
-        } catch (final IllegalAccessException e) {
-            throw new RuntimeException("Failed to retrieve private field from BusEvent class " + fieldName, e);
+        if (failed) {
+            // Note: we always want to dequeue here to avoid any memory leaks
+            throw new EventBusException(exceptionHandler.caught());
         }
     }
 
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.google.common.eventbus;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Replacement for the Guava SubscriberRegistry, optimized for dispatching: subscribers are invoked through bound
+ * {@link MethodHandle}s, and the subscribers for a given event class (i.e. including the ones for its supertypes) are
+ * computed once into a dispatch table. Reads are lock-free: registering or unregistering (rare) publishes a new immutable
+ * snapshot, with its own (empty) dispatch tables.
+ */
+final class SubscriberDispatchTables {
+
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(void.class, Object.class);
+    private static final SubscriberInvoker[] NO_SUBSCRIBERS = new SubscriberInvoker[0];
+
+    private volatile Snapshot snapshot = new Snapshot(ImmutableMap.<Class<?>, ImmutableList<SubscriberInvoker>>of());
+
+    synchronized void register(final Object listener) {
+        final Map<Class<?>, List<SubscriberInvoker>> subscribersByEventType = copySubscribers();
+        for (final SubscriberInvoker invoker : findAllSubscribers(listener)) {
+            List<SubscriberInvoker> eventTypeSubscribers = subscribersByEventType.get(invoker.eventType);
+            if (eventTypeSubscribers == null) {
+                eventTypeSubscribers = new ArrayList<SubscriberInvoker>();
+                subscribersByEventType.put(invoker.eventType, eventTypeSubscribers);
+            }
+            // Same semantics as Guava: registering the same instance twice is a no-op
+            if (!eventTypeSubscribers.contains(invoker)) {
+                eventTypeSubscribers.add(invoker);
+            }
+        }
+        publish(subscribersByEventType);
+    }
+
+    synchronized void unregister(final Object listener) {
+        final Map<Class<?>, List<SubscriberInvoker>> subscribersByEventType = copySubscribers();
+        for (final SubscriberInvoker invoker : findAllSubscribers(listener)) {
+            final List<SubscriberInvoker> eventTypeSubscribers = subscribersByEventType.get(invoker.eventType);
+            if (eventTypeSubscribers == null || !eventTypeSubscribers.remove(invoker)) {
+                throw new IllegalArgumentException("missing event subscriber for an annotated method. Is " + listener + " registered?");
+            }
+        }
+        publish(subscribersByEventType);
+    }
+
+    // Subscribers for the event class and all its supertypes, in registration order for a given type
+    SubscriberInvoker[] getSubscribers(final Class<?> eventClass) {
+        final Snapshot current = snapshot;
+        SubscriberInvoker[] dispatchTable = current.dispatchTables.get(eventClass);
+        if (dispatchTable == null) {
+            dispatchTable = current.buildDispatchTable(eventClass);
+            final SubscriberInvoker[] existing = current.dispatchTables.putIfAbsent(eventClass, dispatchTable);
+            if (existing != null) {
+                dispatchTable = existing;
+            }
+        }
+        return dispatchTable;
+    }
+
+    private Map<Class<?>, List<SubscriberInvoker>> copySubscribers() {
+        final Map<Class<?>, List<SubscriberInvoker>> subscribersByEventType = new LinkedHashMap<Class<?>, List<SubscriberInvoker>>();
+        for (final Map.Entry<Class<?>, ImmutableList<SubscriberInvoker>> entry : snapshot.subscribersByEventType.entrySet()) {
+            subscribersByEventType.put(entry.getKey(), new ArrayList<SubscriberInvoker>(entry.getValue()));
+        }
+        return subscribersByEventType;
+    }
+
+    private void publish(final Map<Class<?>, List<SubscriberInvoker>> subscribersByEventType) {
+        final ImmutableMap.Builder<Class<?>, ImmutableList<SubscriberInvoker>> builder = ImmutableMap.builder();
+        for (final Map.Entry<Class<?>, List<SubscriberInvoker>> entry : subscribersByEventType.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                builder.put(entry.getKey(), ImmutableList.<SubscriberInvoker>copyOf(entry.getValue()));
+            }
+        }
+        snapshot = new Snapshot(builder.build());
+    }
+
+    // Same discovery rules as Guava: @Subscribe methods with one parameter, on the class and all its supertypes, overridden
+    // methods being only considered once
+    private static List<SubscriberInvoker> findAllSubscribers(final Object listener) {
+        final Map<MethodIdentifier, Method> methods = new HashMap<MethodIdentifier, Method>();
+        final Set<Method> orderedMethods = new LinkedHashSet<Method>();
+        for (final Class<?> supertype : SubscriberRegistry.flattenHierarchy(listener.getClass())) {
+            for (final Method method : supertype.getDeclaredMethods()) {
+                if (!method.isAnnotationPresent(Subscribe.class) || method.isSynthetic()) {
+                    continue;
+                }
+                final Class<?>[] parameterTypes = method.getParameterTypes();
+                if (parameterTypes.length != 1) {
+                    throw new IllegalArgumentException(String.format("Method %s has @Subscribe annotation but has %s parameters. Subscriber methods must have exactly 1 parameter.",
+                                                                     method, parameterTypes.length));
+                }
+                final MethodIdentifier identifier = new MethodIdentifier(method);
+                if (!methods.containsKey(identifier)) {
+                    methods.put(identifier, method);
+                    orderedMethods.add(method);
+                }
+            }
+        }
+
+        final ImmutableList.Builder<SubscriberInvoker> invokers = ImmutableList.builder();
+        for (final Method method : orderedMethods) {
+            invokers.add(new SubscriberInvoker(listener, method));
+        }
+        return invokers.build();
+    }
+
+    private static final class Snapshot {
+
+        private final ImmutableMap<Class<?>, ImmutableList<SubscriberInvoker>> subscribersByEventType;
+        private final ConcurrentMap<Class<?>, SubscriberInvoker[]> dispatchTables;
+
+        private Snapshot(final ImmutableMap<Class<?>, ImmutableList<SubscriberInvoker>> subscribersByEventType) {
+            this.subscribersByEventType = subscribersByEventType;
+            this.dispatchTables = new ConcurrentHashMap<Class<?>, SubscriberInvoker[]>();
+        }
+
+        private SubscriberInvoker[] buildDispatchTable(final Class<?> eventClass) {
+            final ImmutableList.Builder<SubscriberInvoker> dispatchTable = ImmutableList.builder();
+            for (final Class<?> eventType : SubscriberRegistry.flattenHierarchy(eventClass)) {
+                final ImmutableList<SubscriberInvoker> eventTypeSubscribers = subscribersByEventType.get(eventType);
+                if (eventTypeSubscribers != null) {
+                    dispatchTable.addAll(eventTypeSubscribers);
+                }
+            }
+            final ImmutableList<SubscriberInvoker> result = dispatchTable.build();
+            return result.isEmpty() ? NO_SUBSCRIBERS : result.toArray(NO_SUBSCRIBERS);
+        }
+    }
+
+    static final class SubscriberInvoker {
+
+        final Object target;
+        final Method method;
+        final Class<?> eventType;
+        private final MethodHandle invoker;
+        // Same as Guava: unless annotated with @AllowConcurrentEvents, a subscriber method is never invoked concurrently
+        private final boolean isThreadSafe;
+
+        private SubscriberInvoker(final Object target, final Method method) {
+            this.target = target;
+            this.method = method;
+            this.eventType = method.getParameterTypes()[0];
+            this.isThreadSafe = method.isAnnotationPresent(AllowConcurrentEvents.class);
+            method.setAccessible(true);
+            try {
+                this.invoker = MethodHandles.lookup().unreflect(method).bindTo(target).asType(INVOKER_TYPE);
+            } catch (final IllegalAccessException e) {
+                throw new IllegalArgumentException("Unable to access subscriber method " + method, e);
+            }
+        }
+
+        void invoke(final Object event) throws Throwable {
+            if (isThreadSafe) {
+                invoker.invokeExact(event);
+            } else {
+                synchronized (this) {
+                    invoker.invokeExact(event);
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final SubscriberInvoker that = (SubscriberInvoker) o;
+            return target == that.target && method.equals(that.method);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 + method.hashCode()) * 31 + System.identityHashCode(target);
+        }
+    }
+
+    private static final class MethodIdentifier {
+
+        private final String name;
+        private final List<Class<?>> parameterTypes;
+
+        private MethodIdentifier(final Method method) {
+            this.name = method.getName();
+            this.parameterTypes = Arrays.<Class<?>>asList(method.getParameterTypes());
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final MethodIdentifier that = (MethodIdentifier) o;
+            return name.equals(that.name) && parameterTypes.equals(that.parameterTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + parameterTypes.hashCode();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.bus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.bus.api.PersistentBus.EventBusException;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.commons.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
+//
+// Group commit for PersistentBus#postAsync: callers stage their entries in a bounded buffer, and a single writer thread
+// drains it, writing the entries of many posts in one transaction. The futures are completed by the writer thread once
+// the transaction has committed (or failed), so callers should not chain any long running work on it synchronously.
+//
+public class BusGroupCommitWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(BusGroupCommitWriter.class);
+
+    // Max time to notice stop() was called
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    public interface BatchWriter {
+
+        // Writes all entries in a single transaction
+        void write(List<BusEventModelDao> entries) throws Exception;
+    }
+
+    private static final class StagedPost {
+
+        private final List<BusEventModelDao> entries;
+        private final CompletableFuture<Void> future;
+
+        private StagedPost(final List<BusEventModelDao> entries, final CompletableFuture<Void> future) {
+            this.entries = entries;
+            this.future = future;
+        }
+    }
+
+    private final String name;
+    private final BatchWriter batchWriter;
+    private final int bufferCapacity;
+    private final int maxBatchSize;
+    private final LinkedBlockingQueue<StagedPost> stagingBuffer;
+    // Number of staged events (a post may contain several), bounded by bufferCapacity
+    private final AtomicInteger nbStagedEvents;
+    private final Histogram batchSizes;
+    // Makes staging and stopping atomic with respect to each other: once stop() has flipped isRunning, nothing can be staged
+    // anymore, so that every staged post is either written or failed (see failStagedPosts)
+    private final Object stagingLock;
+
+    private volatile boolean isRunning;
+    private ExecutorService writerExecutor;
+
+    public BusGroupCommitWriter(final String name, final BatchWriter batchWriter, final int bufferCapacity, final int maxBatchSize, final MetricRegistry metricRegistry) {
+        this.name = name;
+        this.batchWriter = batchWriter;
+        this.bufferCapacity = bufferCapacity;
+        this.maxBatchSize = maxBatchSize;
+        this.stagingBuffer = new LinkedBlockingQueue<StagedPost>();
+        this.nbStagedEvents = new AtomicInteger(0);
+        this.batchSizes = metricRegistry.histogram(MetricRegistry.name(BusGroupCommitWriter.class, name, "batchSize"));
+        metricRegistry.register(MetricRegistry.name(BusGroupCommitWriter.class, name, "stagedEvents"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return nbStagedEvents.get();
+            }
+        });
+        this.stagingLock = new Object();
+        this.isRunning = false;
+    }
+
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        synchronized (stagingLock) {
+            isRunning = true;
+        }
+        writerExecutor = Executors.newSingleThreadExecutor(name + "-postAsync");
+        writerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // On stop, the buffer is drained before exiting
+                while (isRunning || !stagingBuffer.isEmpty()) {
+                    try {
+                        final StagedPost first = stagingBuffer.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                        if (first != null) {
+                            writeBatch(first);
+                        }
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                failStagedPosts();
+            }
+        });
+    }
+
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        synchronized (stagingLock) {
+            isRunning = false;
+        }
+        writerExecutor.shutdown();
+        try {
+            writerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            log.info("{} postAsync writer stop sequence has been interrupted", name);
+            Thread.currentThread().interrupt();
+        }
+        failStagedPosts();
+    }
+
+    public CompletableFuture<Void> stage(final List<BusEventModelDao> entries) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        synchronized (stagingLock) {
+            if (!isRunning) {
+                future.completeExceptionally(new EventBusException(String.format("Attempting to post events in a stopped bus %s", name)));
+                return future;
+            }
+            if (entries.isEmpty()) {
+                future.complete(null);
+                return future;
+            }
+
+            // Don't block the caller: fail right away when the writer can't keep up
+            if (nbStagedEvents.addAndGet(entries.size()) > bufferCapacity) {
+                nbStagedEvents.addAndGet(-entries.size());
+                future.completeExceptionally(new EventBusException(String.format("Bus %s postAsync buffer is full (%s events)", name, bufferCapacity)));
+                return future;
+            }
+
+            stagingBuffer.add(new StagedPost(entries, future));
+        }
+        return future;
+    }
+
+    private void writeBatch(final StagedPost first) {
+        final List<StagedPost> batch = new ArrayList<StagedPost>();
+        final List<BusEventModelDao> entries = new ArrayList<BusEventModelDao>(first.entries);
+        batch.add(first);
+        // Single consumer, so what we peek is what we poll (a post bigger than maxBatchSize is written on its own)
+        StagedPost next = stagingBuffer.peek();
+        while (next != null && entries.size() + next.entries.size() <= maxBatchSize) {
+            stagingBuffer.poll();
+            batch.add(next);
+            entries.addAll(next.entries);
+            next = stagingBuffer.peek();
+        }
+
+        Exception failure = null;
+        try {
+            batchWriter.write(entries);
+        } catch (final Exception e) {
+            log.warn("{} Failed to write {} staged events", name, entries.size(), e);
+            failure = e;
+        }
+        nbStagedEvents.addAndGet(-entries.size());
+        batchSizes.update(entries.size());
+
+        for (final StagedPost post : batch) {
+            if (failure == null) {
+                post.future.complete(null);
+            } else {
+                post.future.completeExceptionally(new EventBusException("Failed to write events", failure));
+            }
+        }
+    }
+
+    // Only left over if the writer was interrupted, or did not drain the buffer before the stop timeout
+    private void failStagedPosts() {
+        StagedPost post = stagingBuffer.poll();
+        while (post != null) {
+            nbStagedEvents.addAndGet(-post.entries.size());
+            post.future.completeExceptionally(new EventBusException(String.format("Bus %s was stopped before the events were written", name)));
+            post = stagingBuffer.poll();
+        }
+    }
+}
@@ -19,10 +19,15 @@
 
 package org.killbill.bus;
 
+import java.io.IOException;
 import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
@@ -47,6 +52,7 @@ import org.killbill.clock.DefaultClock;
 import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
 import org.killbill.commons.profiling.Profiling;
 import org.killbill.commons.profiling.ProfilingFeature;
+import org.killbill.queue.BatchEventSerializer;
 import org.killbill.queue.DBBackedQueue;
 import org.killbill.queue.DBBackedQueue.ReadyEntriesWithMetrics;
 import org.killbill.queue.DBBackedQueueWithInflightQueue;
@@ -54,21 +60,29 @@ import org.killbill.queue.DBBackedQueueWithPolling;
 import org.killbill.queue.DefaultQueueLifecycle;
 import org.killbill.queue.InTransaction;
 import org.killbill.queue.api.PersistentQueueConfig.PersistentQueueMode;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.api.QueueEvent;
 import org.killbill.queue.dao.EventEntryModelDao;
+import org.killbill.queue.dao.RecordIdPaginatedIterable;
 import org.killbill.queue.dispatching.BlockingRejectionExecutionHandler;
+import org.killbill.queue.dispatching.CallableCallback;
 import org.killbill.queue.dispatching.CallableCallbackBase;
 import org.killbill.queue.dispatching.Dispatcher;
+import org.killbill.queue.history.HistoryArchiver;
 import org.skife.config.ConfigurationObjectFactory;
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.eventbus.EventBusThatThrowsException;
@@ -79,23 +93,34 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
     private final DBI dbi;
     private final EventBusThatThrowsException eventBusDelegate;
-    private final DBBackedQueue<BusEventModelDao> dao;
+    // One entry per partition (bus table)
+    private final List<PersistentBusConfig> partitionConfigs;
+    private final List<DBBackedQueue<BusEventModelDao>> daos;
+    private final List<BusReaper> reapers;
+    // Null if the history retention is disabled (the history table is shared by all partitions)
+    private final HistoryArchiver<BusEventModelDao> historyArchiver;
+    private final List<BusCallableCallback> busCallableCallbacks;
+    // Routes each entry to the callback of its partition
+    private final PartitionedBusCallableCallback partitionedCallableCallback;
     private final Clock clock;
     private final PersistentBusConfig config;
     private final Profiling<Iterable<BusEventModelDao>, RuntimeException> prof;
-    private final BusReaper reaper;
+    private final Profiling<List<BusEventModelDao>, RuntimeException> pageProf;
 
     private final Dispatcher<BusEvent, BusEventModelDao> dispatcher;
 
     // Time it takes to handle the bus request (going through multiple handles potentially)
     private final Timer busHandlersProcessingTime;
+    private final BatchEventSerializer batchEventSerializer;
+    // Group commit of the postAsync calls
+    private final BusGroupCommitWriter postAsyncWriter;
+    // One bus per subscription group, consuming its own copy of the events
+    private final Map<String, DefaultPersistentBus> subscriptionBuses;
 
     private final AtomicBoolean isInitialized;
     private final AtomicBoolean isStarted;
     private final String dbBackedQId;
 
-    private final BusCallableCallback busCallableCallback;
-
     private static final class EventBusDelegate extends EventBusThatThrowsException {
 
         public EventBusDelegate(final String busName) {
@@ -110,11 +135,29 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
         this.clock = clock;
         this.config = config;
         this.dbBackedQId = config.getTableName();
-        this.dao = config.getPersistentQueueMode() == PersistentQueueMode.STICKY_EVENTS ?
-                   new DBBackedQueueWithInflightQueue<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, dbBackedQId, metricRegistry, databaseTransactionNotificationApi) :
-                   new DBBackedQueueWithPolling<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, dbBackedQId, metricRegistry);
+
+        final int nbPartitions = Math.max(config.getNbPartitions(), 1);
+        final ImmutableList.Builder<PersistentBusConfig> partitionConfigsBuilder = ImmutableList.builder();
+        final ImmutableList.Builder<DBBackedQueue<BusEventModelDao>> daosBuilder = ImmutableList.builder();
+        final ImmutableList.Builder<BusReaper> reapersBuilder = ImmutableList.builder();
+        for (int partition = 0; partition < nbPartitions; partition++) {
+            final PersistentBusConfig partitionConfig = new PersistentBusPartitionConfig(config, partition);
+            final DBBackedQueue<BusEventModelDao> partitionDao = config.getPersistentQueueMode() == PersistentQueueMode.STICKY_EVENTS ?
+                                                                 new DBBackedQueueWithInflightQueue<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, partitionConfig, partitionConfig.getTableName(), metricRegistry, databaseTransactionNotificationApi) :
+                                                                 new DBBackedQueueWithPolling<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, partitionConfig, partitionConfig.getTableName(), metricRegistry);
+            partitionConfigsBuilder.add(partitionConfig);
+            daosBuilder.add(partitionDao);
+            reapersBuilder.add(new BusReaper(partitionDao, partitionConfig, clock));
+        }
+        this.partitionConfigs = partitionConfigsBuilder.build();
+        this.daos = daosBuilder.build();
+        this.reapers = reapersBuilder.build();
+        this.historyArchiver = config.getHistoryRetention().getMillis() > 0 ?
+                               new HistoryArchiver<BusEventModelDao>(dbi, daos.get(0).getSqlDao(), config, clock, "BusHistoryArchiver", metricRegistry) :
+                               null;
 
         this.prof = new Profiling<Iterable<BusEventModelDao>, RuntimeException>();
+        this.pageProf = new Profiling<List<BusEventModelDao>, RuntimeException>();
         final ThreadFactory busThreadFactory = new ThreadFactory() {
             @Override
             public Thread newThread(final Runnable r) {
@@ -124,16 +167,33 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
             }
         };
 
+        this.batchEventSerializer = new BatchEventSerializer(eventCodec);
+        this.postAsyncWriter = new BusGroupCommitWriter(dbBackedQId, new BusGroupCommitWriter.BatchWriter() {
+            @Override
+            public void write(final List<BusEventModelDao> entries) {
+                insertEntries(entries);
+            }
+        }, config.getPostAsyncBufferCapacity(), config.getPostAsyncMaxBatchSize(), metricRegistry);
         this.busHandlersProcessingTime = metricRegistry.timer(MetricRegistry.name(DefaultPersistentBus.class, dbBackedQId, "busHandlersProcessingTime"));
 
         this.eventBusDelegate = new EventBusDelegate("Killbill EventBus");
+        final ImmutableMap.Builder<String, DefaultPersistentBus> subscriptionBusesBuilder = ImmutableMap.builder();
+        for (final String subscriptionGroup : Splitter.on(',').trimResults().omitEmptyStrings().split(config.getSubscriptionGroups())) {
+            subscriptionBusesBuilder.put(subscriptionGroup, new DefaultPersistentBus(dbi, clock, new PersistentBusSubscriptionConfig(config, subscriptionGroup), metricRegistry, databaseTransactionNotificationApi));
+        }
+        this.subscriptionBuses = subscriptionBusesBuilder.build();
         this.isInitialized = new AtomicBoolean(false);
         this.isStarted = new AtomicBoolean(false);
-        this.reaper = new BusReaper(this.dao, config, clock);
 
-        this.busCallableCallback = new BusCallableCallback(this);
+        final ImmutableList.Builder<BusCallableCallback> busCallableCallbacksBuilder = ImmutableList.builder();
+        for (int partition = 0; partition < nbPartitions; partition++) {
+            busCallableCallbacksBuilder.add(new BusCallableCallback(this, daos.get(partition), partitionConfigs.get(partition)));
+        }
+        this.busCallableCallbacks = busCallableCallbacksBuilder.build();
+        this.partitionedCallableCallback = new PartitionedBusCallableCallback();
+        // The Dispatcher is shared by all partitions: each entry is handled by the callback of its own partition
         this.dispatcher = new Dispatcher<>(1, config, 10, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(config.getEventQueueCapacity()), busThreadFactory, new BlockingRejectionExecutionHandler(),
-                                           clock, busCallableCallback, this);
+                                           clock, partitionedCallableCallback, this, metricRegistry);
 
     }
 
@@ -151,8 +211,13 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
         }
 
         if (isInitialized.compareAndSet(false, true)) {
-            dao.initialize();
+            for (final DBBackedQueue<BusEventModelDao> dao : daos) {
+                dao.initialize();
+            }
             dispatcher.start();
+            for (final DefaultPersistentBus subscriptionBus : subscriptionBuses.values()) {
+                subscriptionBus.initQueue();
+            }
             return true;
         } else {
             return false;
@@ -174,9 +239,18 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
         if (isStarted.compareAndSet(false, true)) {
             if (config.getPersistentQueueMode() == PersistentQueueMode.STICKY_POLLING || config.getPersistentQueueMode() == PersistentQueueMode.STICKY_EVENTS) {
-                reaper.start();
+                for (final BusReaper reaper : reapers) {
+                    reaper.start();
+                }
             }
+            if (historyArchiver != null) {
+                historyArchiver.start();
+            }
+            postAsyncWriter.start();
             super.startQueue();
+            for (final DefaultPersistentBus subscriptionBus : subscriptionBuses.values()) {
+                subscriptionBus.startQueue();
+            }
             return true;
         } else {
             return false;
@@ -186,22 +260,65 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     @Override
     public void stopQueue() {
         if (isStarted.compareAndSet(true, false)) {
+            // Flush the events staged by postAsync first
+            postAsyncWriter.stop();
+            for (final DefaultPersistentBus subscriptionBus : subscriptionBuses.values()) {
+                subscriptionBus.stopQueue();
+            }
             isInitialized.set(false);
-            reaper.stop();
+            for (final BusReaper reaper : reapers) {
+                reaper.stop();
+            }
+            if (historyArchiver != null) {
+                historyArchiver.stop();
+            }
             super.stopQueue();
             dispatcher.stop();
-            dao.close();
+            for (final DBBackedQueue<BusEventModelDao> dao : daos) {
+                dao.close();
+            }
         }
     }
 
+    @Override
+    protected int getNbDispatchPartitions() {
+        return daos.size();
+    }
+
+    @Override
+    protected int getDispatcherBacklog() {
+        return dispatcher.getBacklog();
+    }
+
     @Override
     public DispatchResultMetrics doDispatchEvents() {
-        final ReadyEntriesWithMetrics<BusEventModelDao> eventsWithMetrics = dao.getReadyEntries();
+        return doDispatchEvents(0);
+    }
+
+    @Override
+    public DispatchResultMetrics doDispatchEvents(final int partition) {
+        if (config.getPersistentQueueMode() == PersistentQueueMode.STICKY_EVENTS) {
+            return doDispatchEvents(partition, daos.get(partition).getReadyEntries());
+        }
+
+        // Polling modes: only claim what the dispatcher can start, we are woken up when credits are returned
+        final int nbCredits = dispatcher.reserveCredits(config.getMaxEntriesClaimed());
+        if (nbCredits == 0) {
+            return new DispatchResultMetrics(0, 0, true);
+        }
+        try {
+            return doDispatchEvents(partition, daos.get(partition).getReadyEntries(nbCredits));
+        } finally {
+            dispatcher.releaseCredits(nbCredits);
+        }
+    }
+
+    private DispatchResultMetrics doDispatchEvents(final int partition, final ReadyEntriesWithMetrics<BusEventModelDao> eventsWithMetrics) {
         final List<BusEventModelDao> events = eventsWithMetrics.getEntries();
         if (events.isEmpty()) {
             return new DispatchResultMetrics(0, eventsWithMetrics.getTime());
         }
-        log.debug("Bus events from {} to process: {}", config.getTableName(), events);
+        log.debug("Bus events from {} to process: {}", partitionConfigs.get(partition).getTableName(), events);
 
         long ini = System.nanoTime();
         for (final BusEventModelDao cur : events) {
@@ -212,15 +329,94 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
     @Override
     public void doProcessCompletedEvents(final Iterable<? extends EventEntryModelDao> completed) {
-        busCallableCallback.moveCompletedOrFailedEvents((Iterable<BusEventModelDao>) completed);
+        partitionedCallableCallback.moveCompletedOrFailedEvents(toBusEvents(completed));
+    }
+
+    @Override
+    public void doProcessCompletedAndRetriedEvents(final Iterable<? extends EventEntryModelDao> completed, final Iterable<? extends EventEntryModelDao> retried) {
+        partitionedCallableCallback.moveCompletedOrFailedAndUpdateRetriedEvents(toBusEvents(completed), toBusEvents(retried));
     }
 
     @Override
     public void doProcessRetriedEvents(final Iterable<? extends EventEntryModelDao> retried) {
-        Iterator<? extends EventEntryModelDao> it = retried.iterator();
-        while (it.hasNext()) {
-            BusEventModelDao cur = (BusEventModelDao) it.next();
-            busCallableCallback.updateRetriedEvents(cur);
+        for (final BusEventModelDao cur : toBusEvents(retried)) {
+            partitionedCallableCallback.updateRetriedEvents(cur);
+        }
+    }
+
+    private static Iterable<BusEventModelDao> toBusEvents(final Iterable<? extends EventEntryModelDao> entries) {
+        return Iterables.transform(entries, new Function<EventEntryModelDao, BusEventModelDao>() {
+            @Override
+            public BusEventModelDao apply(final EventEntryModelDao input) {
+                return (BusEventModelDao) input;
+            }
+        });
+    }
+
+    // Entries are routed by searchKey2 (tenant), so all the events for a given tenant stay in the same partition
+    private int getPartition(@Nullable final Long searchKey2) {
+        if (daos.size() == 1 || searchKey2 == null) {
+            return 0;
+        }
+        return (int) Math.abs(searchKey2 % daos.size());
+    }
+
+    private List<List<BusEventModelDao>> groupByPartition(final Iterable<BusEventModelDao> entries) {
+        final List<List<BusEventModelDao>> result = new ArrayList<List<BusEventModelDao>>(daos.size());
+        for (int partition = 0; partition < daos.size(); partition++) {
+            result.add(new ArrayList<BusEventModelDao>());
+        }
+        for (final BusEventModelDao cur : entries) {
+            result.get(getPartition(cur.getSearchKey2())).add(cur);
+        }
+        return result;
+    }
+
+    private final class PartitionedBusCallableCallback implements CallableCallback<BusEvent, BusEventModelDao> {
+
+        private BusCallableCallback getCallback(final BusEventModelDao modelDao) {
+            return busCallableCallbacks.get(getPartition(modelDao.getSearchKey2()));
+        }
+
+        @Override
+        public BusEvent deserialize(final BusEventModelDao modelDao) {
+            return getCallback(modelDao).deserialize(modelDao);
+        }
+
+        @Override
+        public void dispatch(final BusEvent event, final BusEventModelDao modelDao) throws Exception {
+            getCallback(modelDao).dispatch(event, modelDao);
+        }
+
+        @Override
+        public BusEventModelDao buildEntry(final BusEventModelDao modelDao, final DateTime now, final PersistentQueueEntryLifecycleState newState, final long newErrorCount) {
+            return getCallback(modelDao).buildEntry(modelDao, now, newState, newErrorCount);
+        }
+
+        @Override
+        public void moveCompletedOrFailedEvents(final Iterable<BusEventModelDao> entries) {
+            final List<List<BusEventModelDao>> entriesPerPartition = groupByPartition(entries);
+            for (int partition = 0; partition < daos.size(); partition++) {
+                if (!entriesPerPartition.get(partition).isEmpty()) {
+                    busCallableCallbacks.get(partition).moveCompletedOrFailedEvents(entriesPerPartition.get(partition));
+                }
+            }
+        }
+
+        @Override
+        public void updateRetriedEvents(final BusEventModelDao updatedEntry) {
+            getCallback(updatedEntry).updateRetriedEvents(updatedEntry);
+        }
+
+        @Override
+        public void moveCompletedOrFailedAndUpdateRetriedEvents(final Iterable<BusEventModelDao> completedOrFailed, final Iterable<BusEventModelDao> retried) {
+            final List<List<BusEventModelDao>> completedPerPartition = groupByPartition(completedOrFailed);
+            final List<List<BusEventModelDao>> retriedPerPartition = groupByPartition(retried);
+            for (int partition = 0; partition < daos.size(); partition++) {
+                if (!completedPerPartition.get(partition).isEmpty() || !retriedPerPartition.get(partition).isEmpty()) {
+                    busCallableCallbacks.get(partition).moveCompletedOrFailedAndUpdateRetriedEvents(completedPerPartition.get(partition), retriedPerPartition.get(partition));
+                }
+            }
         }
     }
 
@@ -247,14 +443,36 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
         }
     }
 
+    @Override
+    public void register(final Object handlerInstance, final String subscriptionGroup) throws EventBusException {
+        getSubscriptionBus(subscriptionGroup).register(handlerInstance);
+    }
+
+    @Override
+    public void unregister(final Object handlerInstance, final String subscriptionGroup) throws EventBusException {
+        getSubscriptionBus(subscriptionGroup).unregister(handlerInstance);
+    }
+
+    private DefaultPersistentBus getSubscriptionBus(final String subscriptionGroup) throws EventBusException {
+        final DefaultPersistentBus subscriptionBus = subscriptionBuses.get(subscriptionGroup);
+        if (subscriptionBus == null) {
+            throw new EventBusException(String.format("Subscription group %s isn't configured (%s)", subscriptionGroup, subscriptionBuses.keySet()));
+        }
+        return subscriptionBus;
+    }
+
     @Override
     public void post(final BusEvent event) throws EventBusException {
         try {
             if (isInitialized.get()) {
-                final String json = objectMapper.writeValueAsString(event);
+                final String json = eventCodec.encode(event);
                 final BusEventModelDao entry = new BusEventModelDao(CreatorName.get(), clock.getUTCNow(), event.getClass().getName(), json,
                                                                     event.getUserToken(), event.getSearchKey1(), event.getSearchKey2());
-                dao.insertEntry(entry);
+                if (subscriptionBuses.isEmpty()) {
+                    daos.get(getPartition(event.getSearchKey2())).insertEntry(entry);
+                } else {
+                    insertEntries(ImmutableList.<BusEventModelDao>of(entry));
+                }
 
             } else {
                 log.warn("Attempting to post event " + event + " in a non initialized bus");
@@ -264,6 +482,40 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
         }
     }
 
+    @Override
+    public CompletableFuture<Void> postAsync(final BusEvent event) {
+        return postAsync(ImmutableList.<BusEvent>of(event));
+    }
+
+    @Override
+    public CompletableFuture<Void> postAsync(final Collection<? extends BusEvent> events) {
+        if (!isInitialized.get()) {
+            final CompletableFuture<Void> future = new CompletableFuture<Void>();
+            future.completeExceptionally(new EventBusException("Attempting to post events in a non initialized bus"));
+            return future;
+        }
+
+        // Serialization happens on the caller thread, so that the writer thread only does I/O
+        final List<BusEvent> eventsList = ImmutableList.<BusEvent>copyOf(events);
+        final List<String> jsons;
+        try {
+            jsons = batchEventSerializer.serialize(eventsList);
+        } catch (final IOException e) {
+            final CompletableFuture<Void> future = new CompletableFuture<Void>();
+            future.completeExceptionally(new EventBusException("Unable to serialize events " + eventsList, e));
+            return future;
+        }
+
+        final String creatorName = CreatorName.get();
+        final DateTime now = clock.getUTCNow();
+        final List<BusEventModelDao> entries = new ArrayList<BusEventModelDao>(eventsList.size());
+        for (int i = 0; i < eventsList.size(); i++) {
+            final BusEvent event = eventsList.get(i);
+            entries.add(new BusEventModelDao(creatorName, now, event.getClass().getName(), jsons.get(i), event.getUserToken(), event.getSearchKey1(), event.getSearchKey2()));
+        }
+        return postAsyncWriter.stage(entries);
+    }
+
     @Override
     public void postFromTransaction(final BusEvent event, final Connection connection) throws EventBusException {
         if (!isInitialized.get()) {
@@ -273,8 +525,8 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
         final String json;
         try {
-            json = objectMapper.writeValueAsString(event);
-        } catch (final JsonProcessingException e) {
+            json = eventCodec.encode(event);
+        } catch (final IOException e) {
             log.warn("Unable to serialize event " + event, e);
             return;
         }
@@ -291,7 +543,10 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
             @Override
             public Void withSqlDao(final PersistentBusSqlDao transactional) {
-                dao.insertEntryFromTransaction(transactional, entry);
+                daos.get(getPartition(entry.getSearchKey2())).insertEntryFromTransaction(transactional, entry);
+                for (final DefaultPersistentBus subscriptionBus : subscriptionBuses.values()) {
+                    subscriptionBus.insertEntriesFromTransaction(transactional, ImmutableList.<BusEventModelDao>of(entry));
+                }
                 return null;
             }
         };
@@ -299,9 +554,81 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
         InTransaction.execute(dbi, connection, handler, PersistentBusSqlDao.class);
     }
 
+    @Override
+    public void postFromTransaction(final Iterable<? extends BusEvent> events, final Connection connection) throws EventBusException {
+        if (!isInitialized.get()) {
+            log.warn("Attempting to post events in a non initialized bus");
+            return;
+        }
+
+        final List<BusEvent> eventsList = ImmutableList.<BusEvent>copyOf(events);
+        final List<String> jsons;
+        try {
+            jsons = batchEventSerializer.serialize(eventsList);
+        } catch (final IOException e) {
+            log.warn("Unable to serialize events " + eventsList, e);
+            return;
+        }
+
+        final String creatorName = CreatorName.get();
+        final DateTime now = clock.getUTCNow();
+        final List<BusEventModelDao> entries = new ArrayList<BusEventModelDao>(eventsList.size());
+        for (int i = 0; i < eventsList.size(); i++) {
+            final BusEvent event = eventsList.get(i);
+            entries.add(new BusEventModelDao(creatorName,
+                                             now,
+                                             event.getClass().getName(),
+                                             jsons.get(i),
+                                             event.getUserToken(),
+                                             event.getSearchKey1(),
+                                             event.getSearchKey2()));
+        }
+
+        final InTransaction.InTransactionHandler<PersistentBusSqlDao, Void> handler = new InTransaction.InTransactionHandler<PersistentBusSqlDao, Void>() {
+
+            @Override
+            public Void withSqlDao(final PersistentBusSqlDao transactional) {
+                insertEntriesFromTransaction(transactional, entries);
+                return null;
+            }
+        };
+
+        InTransaction.execute(dbi, connection, handler, PersistentBusSqlDao.class);
+    }
+
+    private void insertEntries(final List<BusEventModelDao> entries) {
+        dbi.inTransaction(new TransactionCallback<Void>() {
+            @Override
+            public Void inTransaction(final Handle handle, final TransactionStatus status) {
+                insertEntriesFromTransaction(handle.attach(PersistentBusSqlDao.class), entries);
+                return null;
+            }
+        });
+    }
+
+    // Entries are routed to their partition, all partitions (and subscription groups) being written in the caller's transaction
+    private void insertEntriesFromTransaction(final PersistentBusSqlDao transactional, final List<BusEventModelDao> entries) {
+        final List<List<BusEventModelDao>> entriesPerPartition = new ArrayList<List<BusEventModelDao>>(daos.size());
+        for (int partition = 0; partition < daos.size(); partition++) {
+            entriesPerPartition.add(new ArrayList<BusEventModelDao>());
+        }
+        for (final BusEventModelDao entry : entries) {
+            entriesPerPartition.get(getPartition(entry.getSearchKey2())).add(entry);
+        }
+
+        for (int partition = 0; partition < daos.size(); partition++) {
+            if (!entriesPerPartition.get(partition).isEmpty()) {
+                daos.get(partition).insertEntriesFromTransaction(transactional, entriesPerPartition.get(partition));
+            }
+        }
+        for (final DefaultPersistentBus subscriptionBus : subscriptionBuses.values()) {
+            subscriptionBus.insertEntriesFromTransaction(transactional, entries);
+        }
+    }
+
     @Override
     public <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getAvailableBusEventsForSearchKeys(final Long searchKey1, final Long searchKey2) {
-        return getAvailableBusEventsForSearchKeysInternal((PersistentBusSqlDao) dao.getSqlDao(), null, searchKey1, searchKey2);
+        return getAvailableBusEventsForSearchKeysInternal((PersistentBusSqlDao) daos.get(getPartition(searchKey2)).getSqlDao(), null, searchKey1, searchKey2);
     }
 
     @Override
@@ -317,7 +644,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
     @Override
     public <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getAvailableBusEventsForSearchKey2(final DateTime maxCreatedDate, final Long searchKey2) {
-        return getAvailableBusEventsForSearchKeysInternal((PersistentBusSqlDao) dao.getSqlDao(), maxCreatedDate, null, searchKey2);
+        return getAvailableBusEventsForSearchKeysInternal((PersistentBusSqlDao) daos.get(getPartition(searchKey2)).getSqlDao(), maxCreatedDate, null, searchKey2);
     }
 
     @Override
@@ -333,12 +660,16 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
     @Override
     public <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getInProcessingBusEvents() {
-        return toBusEventWithMetadata(dao.getSqlDao().getInProcessingEntries(config.getTableName()));
+        final List<Iterable<BusEventModelDao>> entries = new ArrayList<Iterable<BusEventModelDao>>(daos.size());
+        for (int partition = 0; partition < daos.size(); partition++) {
+            entries.add(daos.get(partition).getSqlDao().getInProcessingEntries(partitionConfigs.get(partition).getTableName()));
+        }
+        return toBusEventWithMetadata(Iterables.concat(entries));
     }
 
     @Override
     public <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getAvailableOrInProcessingBusEventsForSearchKeys(final Long searchKey1, final Long searchKey2) {
-        return getAvailableOrInProcessingBusEventsForSearchKeysInternal((PersistentBusSqlDao) dao.getSqlDao(), null, searchKey1, searchKey2);
+        return getAvailableOrInProcessingBusEventsForSearchKeysInternal((PersistentBusSqlDao) daos.get(getPartition(searchKey2)).getSqlDao(), null, searchKey1, searchKey2);
     }
 
     @Override
@@ -354,7 +685,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
     @Override
     public <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getAvailableOrInProcessingBusEventsForSearchKey2(final DateTime maxCreatedDate, final Long searchKey2) {
-        return getAvailableOrInProcessingBusEventsForSearchKeysInternal((PersistentBusSqlDao) dao.getSqlDao(), maxCreatedDate, null, searchKey2);
+        return getAvailableOrInProcessingBusEventsForSearchKeysInternal((PersistentBusSqlDao) daos.get(getPartition(searchKey2)).getSqlDao(), maxCreatedDate, null, searchKey2);
     }
 
     @Override
@@ -370,17 +701,41 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
     @Override
     public <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getHistoricalBusEventsForSearchKeys(final Long searchKey1, final Long searchKey2) {
-        return getHistoricalBusEventsForSearchKeysInternal((PersistentBusSqlDao) dao.getSqlDao(), null, searchKey1, searchKey2);
+        return getHistoricalBusEventsForSearchKeysInternal((PersistentBusSqlDao) daos.get(getPartition(searchKey2)).getSqlDao(), null, searchKey1, searchKey2);
     }
 
     @Override
     public <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getHistoricalBusEventsForSearchKey2(final DateTime minCreatedDate, final Long searchKey2) {
-        return getHistoricalBusEventsForSearchKeysInternal((PersistentBusSqlDao) dao.getSqlDao(), minCreatedDate, null, searchKey2);
+        return getHistoricalBusEventsForSearchKeysInternal((PersistentBusSqlDao) daos.get(getPartition(searchKey2)).getSqlDao(), minCreatedDate, null, searchKey2);
+    }
+
+    @Override
+    public <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getHistoricalBusEventsForSearchKey2(final DateTime minCreatedDate, final Long searchKey2, final int pageSize) {
+        final PersistentBusSqlDao sqlDao = (PersistentBusSqlDao) daos.get(getPartition(searchKey2)).getSqlDao();
+        final Iterable<BusEventModelDao> entries = new RecordIdPaginatedIterable<BusEventModelDao>(pageSize) {
+            @Override
+            protected List<BusEventModelDao> fetchPage(final long fromRecordId, final int pageSize) {
+                return pageProf.executeWithProfiling(ProfilingFeature.ProfilingFeatureType.DAO, "DAO:PersistentBusSqlDao:getHistoricalQueueEntriesForSearchKey2Page", new Profiling.WithProfilingCallback<List<BusEventModelDao>, RuntimeException>() {
+                    @Override
+                    public List<BusEventModelDao> execute() throws RuntimeException {
+                        return sqlDao.getHistoricalQueueEntriesForSearchKey2Page(minCreatedDate, searchKey2, fromRecordId, pageSize, config.getHistoryTableName());
+                    }
+                });
+            }
+        };
+        return toBusEventWithMetadata(entries);
     }
 
     @Override
     public long getNbReadyEntries(final DateTime maxCreatedDate) {
-        return dao.getNbReadyEntries(maxCreatedDate.toDate());
+        long nbReadyEntries = 0;
+        for (final DBBackedQueue<BusEventModelDao> dao : daos) {
+            nbReadyEntries += dao.getNbReadyEntries(maxCreatedDate.toDate());
+        }
+        for (final DefaultPersistentBus subscriptionBus : subscriptionBuses.values()) {
+            nbReadyEntries += subscriptionBus.getNbReadyEntries(maxCreatedDate);
+        }
+        return nbReadyEntries;
     }
 
     @Override
@@ -423,8 +778,8 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
                     @Override
                     public Iterator<BusEventModelDao> iterator() {
                         return searchKey1 != null ?
-                               transactionalDao.getReadyQueueEntriesForSearchKeys(searchKey1, searchKey2, config.getTableName()) :
-                               transactionalDao.getReadyQueueEntriesForSearchKey2(maxCreatedDate, searchKey2, config.getTableName());
+                               transactionalDao.getReadyQueueEntriesForSearchKeys(searchKey1, searchKey2, partitionConfigs.get(getPartition(searchKey2)).getTableName()) :
+                               transactionalDao.getReadyQueueEntriesForSearchKey2(maxCreatedDate, searchKey2, partitionConfigs.get(getPartition(searchKey2)).getTableName());
                     }
                 };
             }
@@ -439,8 +794,8 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
                     @Override
                     public Iterator<BusEventModelDao> iterator() {
                         return searchKey1 != null ?
-                               transactionalDao.getReadyOrInProcessingQueueEntriesForSearchKeys(searchKey1, searchKey2, config.getTableName()) :
-                               transactionalDao.getReadyOrInProcessingQueueEntriesForSearchKey2(maxCreatedDate, searchKey2, config.getTableName());
+                               transactionalDao.getReadyOrInProcessingQueueEntriesForSearchKeys(searchKey1, searchKey2, partitionConfigs.get(getPartition(searchKey2)).getTableName()) :
+                               transactionalDao.getReadyOrInProcessingQueueEntriesForSearchKey2(maxCreatedDate, searchKey2, partitionConfigs.get(getPartition(searchKey2)).getTableName());
                     }
                 };
             }
@@ -474,7 +829,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     }
 
     private <T extends BusEvent> BusEventWithMetadata<T> toBusEventWithMetadata(final BusEventModelDao entry) {
-        final T event = CallableCallbackBase.deserializeEvent(entry, objectMapper);
+        final T event = CallableCallbackBase.deserializeEvent(entry, eventCodec);
         return new BusEventWithMetadata<T>(entry.getRecordId(),
                                            entry.getUserToken(),
                                            entry.getCreatedDate(),
@@ -483,8 +838,9 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
                                            event);
     }
 
+    // First (or only) partition
     public DBBackedQueue<BusEventModelDao> getDao() {
-        return dao;
+        return daos.get(0);
     }
 
     public Clock getClock() {
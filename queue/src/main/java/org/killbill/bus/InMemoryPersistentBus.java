@@ -20,7 +20,9 @@
 package org.killbill.bus;
 
 import java.sql.Connection;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
@@ -33,6 +35,7 @@ import org.killbill.bus.api.PersistentBusConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.EventBusThatThrowsException;
 
 public class InMemoryPersistentBus implements PersistentBus {
@@ -86,6 +89,17 @@ public class InMemoryPersistentBus implements PersistentBus {
         delegate.unregister(handlerInstance);
     }
 
+    // Events are delivered synchronously to all handlers: groups don't make any difference in memory
+    @Override
+    public void register(final Object handlerInstance, final String subscriptionGroup) throws EventBusException {
+        register(handlerInstance);
+    }
+
+    @Override
+    public void unregister(final Object handlerInstance, final String subscriptionGroup) throws EventBusException {
+        unregister(handlerInstance);
+    }
+
     @Override
     public void post(final BusEvent event) throws EventBusException {
         checkInitialized("post");
@@ -96,6 +110,24 @@ public class InMemoryPersistentBus implements PersistentBus {
         }
     }
 
+    @Override
+    public CompletableFuture<Void> postAsync(final BusEvent event) {
+        return postAsync(ImmutableList.<BusEvent>of(event));
+    }
+
+    // Nothing to wait for: events are dispatched synchronously
+    @Override
+    public CompletableFuture<Void> postAsync(final Collection<? extends BusEvent> events) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        try {
+            postFromTransaction(events, null);
+            future.complete(null);
+        } catch (final EventBusException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
     @Override
     public void postFromTransaction(final BusEvent event, final Connection connection) throws EventBusException {
         checkInitialized("postFromTransaction");
@@ -106,6 +138,18 @@ public class InMemoryPersistentBus implements PersistentBus {
         }
     }
 
+    @Override
+    public void postFromTransaction(final Iterable<? extends BusEvent> events, final Connection connection) throws EventBusException {
+        checkInitialized("postFromTransaction");
+        for (final BusEvent event : events) {
+            try {
+                delegate.postWithException(event);
+            } catch (final com.google.common.eventbus.EventBusException e) {
+                throw new EventBusException(e.getMessage(), e);
+            }
+        }
+    }
+
     @Override
     public boolean initQueue() {
         if (config.isProcessingOff()) {
@@ -209,6 +253,11 @@ public class InMemoryPersistentBus implements PersistentBus {
         throw new UnsupportedOperationException("Guava doesn't expose the events to dispatch");
     }
 
+    @Override
+    public <T extends BusEvent> List<BusEventWithMetadata<T>> getHistoricalBusEventsForSearchKey2(final DateTime minCreatedDate, final Long searchKey2, final int pageSize) {
+        throw new UnsupportedOperationException("Guava doesn't expose the events to dispatch");
+    }
+
     @Override
     public long getNbReadyEntries(final DateTime maxCreatedDate) {
         throw new UnsupportedOperationException("Guava doesn't expose the events to dispatch");
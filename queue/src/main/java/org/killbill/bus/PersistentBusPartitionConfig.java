@@ -0,0 +1,252 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.bus;
+
+import org.killbill.bus.api.PersistentBusConfig;
+import org.skife.config.TimeSpan;
+
+//
+// View of the bus configuration for one partition: same settings, but pointing to the partition table.
+// The history table is shared across partitions.
+//
+class PersistentBusPartitionConfig extends PersistentBusConfig {
+
+    private final PersistentBusConfig delegate;
+    private final String tableName;
+
+    PersistentBusPartitionConfig(final PersistentBusConfig delegate, final int partition) {
+        this(delegate, delegate.getNbPartitions() > 1 ? delegate.getTableName() + "_" + partition : delegate.getTableName());
+    }
+
+    protected PersistentBusPartitionConfig(final PersistentBusConfig delegate, final String tableName) {
+        this.delegate = delegate;
+        this.tableName = tableName;
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return delegate.isInMemory();
+    }
+
+    @Override
+    public int getMaxFailureRetries() {
+        return delegate.getMaxFailureRetries();
+    }
+
+    @Override
+    public int getMinInFlightEntries() {
+        return delegate.getMinInFlightEntries();
+    }
+
+    @Override
+    public int getMaxInFlightEntries() {
+        return delegate.getMaxInFlightEntries();
+    }
+
+    @Override
+    public int getMaxEntriesClaimed() {
+        return delegate.getMaxEntriesClaimed();
+    }
+
+    @Override
+    public PersistentQueueMode getPersistentQueueMode() {
+        return delegate.getPersistentQueueMode();
+    }
+
+    @Override
+    public TimeSpan getClaimedTime() {
+        return delegate.getClaimedTime();
+    }
+
+    @Override
+    public long getPollingSleepTimeMs() {
+        return delegate.getPollingSleepTimeMs();
+    }
+
+    @Override
+    public boolean isAdaptivePolling() {
+        return delegate.isAdaptivePolling();
+    }
+
+    @Override
+    public long getPollingMaxSleepTimeMs() {
+        return delegate.getPollingMaxSleepTimeMs();
+    }
+
+    @Override
+    public boolean isProcessingOff() {
+        return delegate.isProcessingOff();
+    }
+
+    @Override
+    public int geMaxDispatchThreads() {
+        return delegate.geMaxDispatchThreads();
+    }
+
+    @Override
+    public int getNbDispatchLanes() {
+        return delegate.getNbDispatchLanes();
+    }
+
+    @Override
+    public int geNbLifecycleDispatchThreads() {
+        return delegate.geNbLifecycleDispatchThreads();
+    }
+
+    @Override
+    public int geNbLifecycleCompleteThreads() {
+        return delegate.geNbLifecycleCompleteThreads();
+    }
+
+    @Override
+    public int getLifecycleCompleteBatchSize() {
+        return delegate.getLifecycleCompleteBatchSize();
+    }
+
+    @Override
+    public long getLifecycleCompleteBatchWindowMs() {
+        return delegate.getLifecycleCompleteBatchWindowMs();
+    }
+
+    @Override
+    public QueueEventFormat getEventFormat() {
+        return delegate.getEventFormat();
+    }
+
+    @Override
+    public int getEventCompressionThreshold() {
+        return delegate.getEventCompressionThreshold();
+    }
+
+    @Override
+    public String getEventCodecClass() {
+        return delegate.getEventCodecClass();
+    }
+
+    @Override
+    public WakeupTransportType getWakeupTransport() {
+        return delegate.getWakeupTransport();
+    }
+
+    @Override
+    public long getWakeupWatermarkSleepTimeMs() {
+        return delegate.getWakeupWatermarkSleepTimeMs();
+    }
+
+    @Override
+    public int getEventQueueCapacity() {
+        return delegate.getEventQueueCapacity();
+    }
+
+    @Override
+    public String getTableName() {
+        return tableName;
+    }
+
+    @Override
+    public int getNbPartitions() {
+        return delegate.getNbPartitions();
+    }
+
+    @Override
+    public String getSubscriptionGroups() {
+        return delegate.getSubscriptionGroups();
+    }
+
+    @Override
+    public int getPostAsyncBufferCapacity() {
+        return delegate.getPostAsyncBufferCapacity();
+    }
+
+    @Override
+    public int getPostAsyncMaxBatchSize() {
+        return delegate.getPostAsyncMaxBatchSize();
+    }
+
+    @Override
+    public String getHistoryTableName() {
+        return delegate.getHistoryTableName();
+    }
+
+    @Override
+    public TimeSpan getHistoryRetention() {
+        return delegate.getHistoryRetention();
+    }
+
+    @Override
+    public String getHistoryArchiveTableName() {
+        return delegate.getHistoryArchiveTableName();
+    }
+
+    @Override
+    public int getHistoryArchiveBatchSize() {
+        return delegate.getHistoryArchiveBatchSize();
+    }
+
+    @Override
+    public long getHistoryArchiveSleepTimeMs() {
+        return delegate.getHistoryArchiveSleepTimeMs();
+    }
+
+    @Override
+    public TimeSpan getHistoryArchiveSchedule() {
+        return delegate.getHistoryArchiveSchedule();
+    }
+
+    @Override
+    public HistoryPartitioning getHistoryPartitioning() {
+        return delegate.getHistoryPartitioning();
+    }
+
+    @Override
+    public HistoryPolicy getHistoryPolicy() {
+        return delegate.getHistoryPolicy();
+    }
+
+    @Override
+    public int getHistorySamplingPercentage() {
+        return delegate.getHistorySamplingPercentage();
+    }
+
+    @Override
+    public String getHistoryPolicyOverrides() {
+        return delegate.getHistoryPolicyOverrides();
+    }
+
+    @Override
+    public TimeSpan getReapThreshold() {
+        return delegate.getReapThreshold();
+    }
+
+    @Override
+    public int getMaxReDispatchCount() {
+        return delegate.getMaxReDispatchCount();
+    }
+
+    @Override
+    public TimeSpan getReapSchedule() {
+        return delegate.getReapSchedule();
+    }
+
+    @Override
+    public int getNbReapShards() {
+        return delegate.getNbReapShards();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.bus;
+
+import org.killbill.bus.api.PersistentBusConfig;
+import org.skife.config.TimeSpan;
+
+//
+// View of the bus configuration for one subscription group: same settings, but pointing to the group tables (<tableName>_<group>,
+// themselves partitioned if needed). The completed group copies are not moved to history: the history table is shared, and
+// already has the entry of the main bus for each event.
+//
+class PersistentBusSubscriptionConfig extends PersistentBusPartitionConfig {
+
+    private final String subscriptionGroup;
+
+    PersistentBusSubscriptionConfig(final PersistentBusConfig delegate, final String subscriptionGroup) {
+        super(delegate, delegate.getTableName() + "_" + subscriptionGroup);
+        this.subscriptionGroup = subscriptionGroup;
+    }
+
+    public String getSubscriptionGroup() {
+        return subscriptionGroup;
+    }
+
+    @Override
+    public String getSubscriptionGroups() {
+        return "";
+    }
+
+    @Override
+    public HistoryPolicy getHistoryPolicy() {
+        return HistoryPolicy.NONE;
+    }
+
+    @Override
+    public String getHistoryPolicyOverrides() {
+        return "";
+    }
+
+    @Override
+    public TimeSpan getHistoryRetention() {
+        return new TimeSpan("0d");
+    }
+}
@@ -20,6 +20,8 @@
 package org.killbill.bus.api;
 
 import java.sql.Connection;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 import org.joda.time.DateTime;
 import org.killbill.queue.api.QueueLifecycle;
@@ -70,6 +72,25 @@ public interface PersistentBus extends QueueLifecycle {
      */
     void unregister(Object handlerInstance) throws EventBusException;
 
+    /**
+     * Register a handler in a subscription group: the group consumes the bus through its own tables, so its
+     * progress, retries and failures are independent of the other handlers.
+     *
+     * @param handlerInstance   handler to register
+     * @param subscriptionGroup group, one of the configured subscription groups
+     * @throws EventBusException if bus not been started yet or if the group isn't configured
+     */
+    void register(Object handlerInstance, String subscriptionGroup) throws EventBusException;
+
+    /**
+     * Unregister a handler from a subscription group
+     *
+     * @param handlerInstance   handler to unregister
+     * @param subscriptionGroup group the handler was registered in
+     * @throws EventBusException
+     */
+    void unregister(Object handlerInstance, String subscriptionGroup) throws EventBusException;
+
     /**
      * Post an event asynchronously
      *
@@ -78,6 +99,24 @@ public interface PersistentBus extends QueueLifecycle {
      */
     void post(BusEvent event) throws EventBusException;
 
+    /**
+     * Post an event without blocking on the database: the event is staged in memory and written by a background thread,
+     * grouped with the events posted concurrently (one transaction for many events).
+     *
+     * @param event to be posted
+     * @return a future completed once the event is durable, or completed exceptionally (with an EventBusException) if
+     * the bus hasn't been started, the staging buffer is full or the write failed
+     */
+    CompletableFuture<Void> postAsync(BusEvent event);
+
+    /**
+     * Post events without blocking on the database, see {@link #postAsync(BusEvent)}
+     *
+     * @param events to be posted
+     * @return a future completed once all events are durable (they are written in the same transaction)
+     */
+    CompletableFuture<Void> postAsync(Collection<? extends BusEvent> events);
+
     /**
      * Post an event from within a transaction.
      * Guarantees that the event is persisted on disk from within the same transaction
@@ -88,6 +127,16 @@ public interface PersistentBus extends QueueLifecycle {
      */
     void postFromTransaction(BusEvent event, Connection connection) throws EventBusException;
 
+    /**
+     * Post a batch of events from within a transaction, inserted through a single JDBC batch.
+     * Guarantees that the events are persisted on disk from within the same transaction
+     *
+     * @param events     to be posted
+     * @param connection current connection
+     * @throws EventBusException if bus not been started yet
+     */
+    void postFromTransaction(Iterable<? extends BusEvent> events, Connection connection) throws EventBusException;
+
     /**
      * Retrieve all available bus events matching that search key
      *
@@ -187,6 +236,17 @@ public interface PersistentBus extends QueueLifecycle {
      */
     <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getHistoricalBusEventsForSearchKey2(DateTime minCreatedDate, Long searchKey2);
 
+    /**
+     * Retrieve all historical bus events matching that search key, ordered by record_id and fetched by pages: unlike
+     * {@link #getHistoricalBusEventsForSearchKey2(DateTime, Long)}, no database connection is held while iterating
+     *
+     * @param minCreatedDate created_date cutoff, to limit the search
+     * @param searchKey2     the value for key2
+     * @param pageSize       the number of events fetched per query
+     * @return a list of BusEventWithMetadata objects matching the search
+     */
+    <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getHistoricalBusEventsForSearchKey2(DateTime minCreatedDate, Long searchKey2, int pageSize);
+
     /**
      * Count the number of bus entries ready to be processed
      *
@@ -72,9 +72,25 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.sleep")
     @Default("3000")
-    @Description("Time in milliseconds to sleep between runs (only valid in STICKY_POLLING, POLLING)")
+    @Description("Time in milliseconds to sleep between runs (only valid in STICKY_POLLING, POLLING, POLLING_SKIP_LOCKED)")
     public abstract long getPollingSleepTimeMs();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.sleep.adaptive")
+    @Default("false")
+    @Description("Whether to poll again right away after a full batch and to back off (up to sleep.max) when no entry is found")
+    public boolean isAdaptivePolling() {
+        return PersistentQueueConfig.super.isAdaptivePolling();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.sleep.max")
+    @Default("30000")
+    @Description("Max time in milliseconds to sleep between runs when backing off (only valid when sleep.adaptive is set)")
+    public long getPollingMaxSleepTimeMs() {
+        return PersistentQueueConfig.super.getPollingMaxSleepTimeMs();
+    }
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.off")
     @Default("false")
@@ -87,6 +103,14 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Description("Max number of dispatch threads to use")
     public abstract int geMaxDispatchThreads();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.dispatch.lanes")
+    @Default("0")
+    @Description("Number of serial lanes entries are hashed onto by searchKey1, to process entries for a given key in order (0 to disable)")
+    public int getNbDispatchLanes() {
+        return PersistentQueueConfig.super.getNbDispatchLanes();
+    }
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.lifecycle.dispatch.nbThreads")
     @Default("1")
@@ -99,6 +123,62 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Description("Max number of lifecycle complete threads to use")
     public abstract int geNbLifecycleCompleteThreads();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.lifecycle.complete.batchSize")
+    @Default("100")
+    @Description("Max number of completed or retried entries written to the database in a single transaction")
+    public int getLifecycleCompleteBatchSize() {
+        return PersistentQueueConfig.super.getLifecycleCompleteBatchSize();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.lifecycle.complete.batchWindowMs")
+    @Default("0")
+    @Description("Time in milliseconds to wait for more completed or retried entries before writing a partial batch (0 to not wait)")
+    public long getLifecycleCompleteBatchWindowMs() {
+        return PersistentQueueConfig.super.getLifecycleCompleteBatchWindowMs();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.event.format")
+    @Default("JSON")
+    @Description("Format used to serialize events in the table (JSON or SMILE), events in both formats can always be read")
+    public QueueEventFormat getEventFormat() {
+        return PersistentQueueConfig.super.getEventFormat();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.event.compression.threshold")
+    @Default("0")
+    @Description("Size (in characters) above which serialized events are compressed (Deflate) in the table (0 to disable)")
+    public int getEventCompressionThreshold() {
+        return PersistentQueueConfig.super.getEventCompressionThreshold();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.event.codec")
+    @Default("")
+    @Description("Fully qualified name of a custom QueueEventCodec, with a public constructor taking the config or no argument (empty for the default codec)")
+    public String getEventCodecClass() {
+        return PersistentQueueConfig.super.getEventCodecClass();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.wakeup.transport")
+    @Default("NONE")
+    @Description("How entries committed by other nodes are detected (NONE, LISTEN_NOTIFY for PostgreSQL or WATERMARK), only valid in STICKY_EVENTS mode")
+    public WakeupTransportType getWakeupTransport() {
+        return PersistentQueueConfig.super.getWakeupTransport();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.wakeup.watermark.sleep")
+    @Default("25")
+    @Description("Time in milliseconds between two checks of the table watermark (only valid with the WATERMARK wakeup transport)")
+    public long getWakeupWatermarkSleepTimeMs() {
+        return PersistentQueueConfig.super.getWakeupWatermarkSleepTimeMs();
+    }
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.queue.capacity")
     @Default("30000")
@@ -111,12 +191,112 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Description("Bus events table name")
     public abstract String getTableName();
 
+    @Config("org.killbill.persistent.bus.${instanceName}.nbPartitions")
+    @Default("1")
+    @Description("Number of physical bus tables (<tableName>_0 to <tableName>_N-1 if greater than 1), events are routed by searchKey2")
+    public int getNbPartitions() {
+        return 1;
+    }
+
+    @Config("org.killbill.persistent.bus.${instanceName}.subscriptionGroups")
+    @Default("")
+    @Description("Comma-separated list of handler groups, each consuming the bus through its own tables (<tableName>_<group>)")
+    public String getSubscriptionGroups() {
+        return "";
+    }
+
+    @Config("org.killbill.persistent.bus.${instanceName}.postAsync.bufferCapacity")
+    @Default("10000")
+    @Description("Max number of events staged by postAsync and not yet written (postAsync fails right away when full)")
+    public int getPostAsyncBufferCapacity() {
+        return 10000;
+    }
+
+    @Config("org.killbill.persistent.bus.${instanceName}.postAsync.maxBatchSize")
+    @Default("500")
+    @Description("Max number of events staged by postAsync written in a single transaction")
+    public int getPostAsyncMaxBatchSize() {
+        return 500;
+    }
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.historyTableName")
     @Default("bus_events_history")
     @Description("Bus events history table name")
     public abstract String getHistoryTableName();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.retention")
+    @Default("0d")
+    @Description("How long entries are kept in the history table before being archived or dropped (0 to keep them forever)")
+    public TimeSpan getHistoryRetention() {
+        return PersistentQueueConfig.super.getHistoryRetention();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.archiveTableName")
+    @Default("")
+    @Description("Table (with the same schema as the history table) expired history entries are moved to (empty to drop them)")
+    public String getHistoryArchiveTableName() {
+        return PersistentQueueConfig.super.getHistoryArchiveTableName();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.archive.batchSize")
+    @Default("1000")
+    @Description("Max number of history entries archived per transaction")
+    public int getHistoryArchiveBatchSize() {
+        return PersistentQueueConfig.super.getHistoryArchiveBatchSize();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.archive.sleep")
+    @Default("100")
+    @Description("Time in milliseconds to sleep between two archiving transactions")
+    public long getHistoryArchiveSleepTimeMs() {
+        return PersistentQueueConfig.super.getHistoryArchiveSleepTimeMs();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.archive.schedule")
+    @Default("1h")
+    @Description("History archiver schedule period")
+    public TimeSpan getHistoryArchiveSchedule() {
+        return PersistentQueueConfig.super.getHistoryArchiveSchedule();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.partitioning")
+    @Default("NONE")
+    @Description("Whether the history table is partitioned by created_date (NONE, DAILY or MONTHLY), in which case expired partitions are dropped and upcoming ones created")
+    public HistoryPartitioning getHistoryPartitioning() {
+        return PersistentQueueConfig.super.getHistoryPartitioning();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.policy")
+    @Default("FULL")
+    @Description("Which completed entries are moved to the history table (FULL, SAMPLED, ERRORS_ONLY or NONE), the others are deleted")
+    public HistoryPolicy getHistoryPolicy() {
+        return PersistentQueueConfig.super.getHistoryPolicy();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.samplingPercentage")
+    @Default("1")
+    @Description("Percentage of the processed entries moved to the history table in SAMPLED mode")
+    public int getHistorySamplingPercentage() {
+        return PersistentQueueConfig.super.getHistorySamplingPercentage();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.policy.overrides")
+    @Default("")
+    @Description("Comma separated list of per event class history policies, e.g. com.acme.FooEvent:NONE,com.acme.BarEvent:SAMPLED")
+    public String getHistoryPolicyOverrides() {
+        return PersistentQueueConfig.super.getHistoryPolicyOverrides();
+    }
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.reapThreshold")
     @Default("10m")
@@ -134,4 +314,12 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Default("3m")
     @Description("Reaper schedule period")
     public abstract TimeSpan getReapSchedule();
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.reapShards")
+    @Default("1")
+    @Description("Number of record_id shards the reaping is split into, each shard being reaped by a single node at a time (PostgreSQL and MySQL only)")
+    public int getNbReapShards() {
+        return PersistentQueueConfig.super.getNbReapShards();
+    }
 }
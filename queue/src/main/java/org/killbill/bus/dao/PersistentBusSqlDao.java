@@ -80,4 +80,11 @@ public interface PersistentBusSqlDao extends QueueSqlDao<BusEventModelDao> {
     public Iterator<BusEventModelDao> getHistoricalQueueEntriesForSearchKey2(@Bind("minCreatedDate") final DateTime minCreatedDate,
                                                                              @Bind("searchKey2") final Long searchKey2,
                                                                              @Define("historyTableName") final String historyTableName);
+
+    @SqlQuery
+    public List<BusEventModelDao> getHistoricalQueueEntriesForSearchKey2Page(@Bind("minCreatedDate") final DateTime minCreatedDate,
+                                                                             @Bind("searchKey2") final Long searchKey2,
+                                                                             @Bind("fromRecordId") final long fromRecordId,
+                                                                             @Bind("max") final int max,
+                                                                             @Define("historyTableName") final String historyTableName);
 }
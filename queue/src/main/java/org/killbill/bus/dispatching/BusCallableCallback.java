@@ -23,7 +23,9 @@ import org.joda.time.DateTime;
 import org.killbill.CreatorName;
 import org.killbill.bus.DefaultPersistentBus;
 import org.killbill.bus.api.BusEvent;
+import org.killbill.bus.api.PersistentBusConfig;
 import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.queue.DBBackedQueue;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.dispatching.CallableCallbackBase;
 
@@ -34,7 +36,12 @@ public class BusCallableCallback extends CallableCallbackBase<BusEvent, BusEvent
     private final DefaultPersistentBus parent;
 
     public BusCallableCallback(final DefaultPersistentBus parent) {
-        super(parent.getDao(), parent.getClock(), parent.getConfig(), parent.getObjectMapper());
+        this(parent, parent.getDao(), parent.getConfig());
+    }
+
+    // Used when the bus is partitioned: completed entries need to be moved out of their own partition table
+    public BusCallableCallback(final DefaultPersistentBus parent, final DBBackedQueue<BusEventModelDao> dao, final PersistentBusConfig config) {
+        super(dao, parent.getClock(), config, parent.getEventCodec());
         this.parent = parent;
     }
 
@@ -24,6 +24,7 @@ import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -34,6 +35,7 @@ import org.killbill.CreatorName;
 import org.killbill.clock.Clock;
 import org.killbill.commons.profiling.Profiling;
 import org.killbill.commons.profiling.ProfilingFeature;
+import org.killbill.notificationq.api.FutureNotification;
 import org.killbill.notificationq.api.NotificationEvent;
 import org.killbill.notificationq.api.NotificationEventWithMetadata;
 import org.killbill.notificationq.api.NotificationQueue;
@@ -42,11 +44,14 @@ import org.killbill.notificationq.api.NotificationQueueService;
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
 import org.killbill.notificationq.dao.NotificationEventModelDao;
 import org.killbill.notificationq.dao.NotificationSqlDao;
+import org.killbill.queue.BatchEventSerializer;
 import org.killbill.queue.DBBackedQueue;
 import org.killbill.queue.InTransaction;
 import org.killbill.queue.QueueObjectMapper;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.killbill.queue.codec.QueueEventCodec;
 import org.killbill.queue.dao.QueueSqlDao;
+import org.killbill.queue.dao.RecordIdPaginatedIterable;
 import org.killbill.queue.dispatching.CallableCallbackBase;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Transaction;
@@ -57,6 +62,7 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Function;
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 
@@ -70,10 +76,14 @@ public class DefaultNotificationQueue implements NotificationQueue {
     private final String queueName;
     private final NotificationQueueHandler handler;
     private final NotificationQueueService notificationQueueService;
-    private final ObjectMapper objectMapper;
+    @Nullable
+    private final NotificationRecordedListener notificationRecordedListener;
+    private final QueueEventCodec eventCodec;
+    private final BatchEventSerializer batchEventSerializer;
     private final Clock clock;
     private final NotificationQueueConfig config;
     private final Profiling<Iterable<NotificationEventModelDao>, RuntimeException> prof;
+    private final Profiling<List<NotificationEventModelDao>, RuntimeException> pageProf;
 
     private AtomicBoolean isInitialized;
     private AtomicBoolean isStarted;
@@ -87,6 +97,20 @@ public class DefaultNotificationQueue implements NotificationQueue {
     public DefaultNotificationQueue(final String svcName, final String queueName, final NotificationQueueHandler handler,
                                     final DBI dbi, final DBBackedQueue<NotificationEventModelDao> dao, final NotificationQueueService notificationQueueService,
                                     final Clock clock, final NotificationQueueConfig config, final ObjectMapper objectMapper) {
+        this(svcName, queueName, handler, dbi, dao, notificationQueueService, clock, config,
+             QueueObjectMapper.newCodec(objectMapper, config));
+    }
+
+    public DefaultNotificationQueue(final String svcName, final String queueName, final NotificationQueueHandler handler,
+                                    final DBI dbi, final DBBackedQueue<NotificationEventModelDao> dao, final NotificationQueueService notificationQueueService,
+                                    final Clock clock, final NotificationQueueConfig config, final QueueEventCodec eventCodec) {
+        this(svcName, queueName, handler, dbi, dao, notificationQueueService, clock, config, eventCodec, null);
+    }
+
+    public DefaultNotificationQueue(final String svcName, final String queueName, final NotificationQueueHandler handler,
+                                    final DBI dbi, final DBBackedQueue<NotificationEventModelDao> dao, final NotificationQueueService notificationQueueService,
+                                    final Clock clock, final NotificationQueueConfig config, final QueueEventCodec eventCodec,
+                                    @Nullable final NotificationRecordedListener notificationRecordedListener) {
         this.isStarted = new AtomicBoolean(false);
         this.isInitialized = new AtomicBoolean(false);
         this.dbi = dbi;
@@ -95,25 +119,30 @@ public class DefaultNotificationQueue implements NotificationQueue {
         this.handler = handler;
         this.dao = dao;
         this.notificationQueueService = notificationQueueService;
-        this.objectMapper = objectMapper;
+        this.notificationRecordedListener = notificationRecordedListener;
+        this.eventCodec = eventCodec;
+        this.batchEventSerializer = new BatchEventSerializer(eventCodec);
         this.clock = clock;
         this.config = config;
         this.prof = new Profiling<Iterable<NotificationEventModelDao>, RuntimeException>();
+        this.pageProf = new Profiling<List<NotificationEventModelDao>, RuntimeException>();
     }
 
     @Override
     public void recordFutureNotification(final DateTime futureNotificationTime, final NotificationEvent event, final UUID userToken, final Long searchKey1, final Long searchKey2) throws IOException {
-        final String eventJson = objectMapper.writeValueAsString(event);
+        final String eventJson = eventCodec.encode(event);
         final UUID futureUserToken = UUID.randomUUID();
         final Long searchKey2WithNull = MoreObjects.firstNonNull(searchKey2, 0L);
         final NotificationEventModelDao notification = new NotificationEventModelDao(CreatorName.get(), clock.getUTCNow(), event.getClass().getName(), eventJson, userToken, searchKey1, searchKey2WithNull, futureUserToken, futureNotificationTime, getFullQName());
         dao.insertEntry(notification);
+        // Committed by insertEntry
+        onNotificationsRecorded(ImmutableList.<NotificationEventModelDao>of(notification));
     }
 
     @Override
     public void recordFutureNotificationFromTransaction(final Connection connection, final DateTime futureNotificationTime, final NotificationEvent event,
                                                         final UUID userToken, final Long searchKey1, final Long searchKey2) throws IOException {
-        final String eventJson = objectMapper.writeValueAsString(event);
+        final String eventJson = eventCodec.encode(event);
         final UUID futureUserToken = UUID.randomUUID();
         final Long searchKey2WithNull = MoreObjects.firstNonNull(searchKey2, 0L);
         final NotificationEventModelDao notification = new NotificationEventModelDao(CreatorName.get(), clock.getUTCNow(), event.getClass().getName(), eventJson, userToken, searchKey1, searchKey2WithNull, futureUserToken, futureNotificationTime, getFullQName());
@@ -126,11 +155,57 @@ public class DefaultNotificationQueue implements NotificationQueue {
             }
         };
         InTransaction.execute(dbi, connection, handler, NotificationSqlDao.class);
+        // The caller's transaction is not committed yet (and may be rolled back)
+        onNotificationsRecordedFromTransaction(ImmutableList.<NotificationEventModelDao>of(notification));
+    }
+
+    @Override
+    public void recordFutureNotifications(final Iterable<FutureNotification> futureNotifications) throws IOException {
+        final List<NotificationEventModelDao> notifications = toNotificationEventModelDaos(futureNotifications);
+        dao.insertEntries(notifications);
+        // Committed by insertEntries
+        onNotificationsRecorded(notifications);
+    }
+
+    @Override
+    public void recordFutureNotificationsFromTransaction(final Connection connection, final Iterable<FutureNotification> futureNotifications) throws IOException {
+        final List<NotificationEventModelDao> notifications = toNotificationEventModelDaos(futureNotifications);
+
+        final InTransaction.InTransactionHandler<NotificationSqlDao, Void> handler = new InTransaction.InTransactionHandler<NotificationSqlDao, Void>() {
+            @Override
+            public Void withSqlDao(final NotificationSqlDao transactional) {
+                dao.insertEntriesFromTransaction(transactional, notifications);
+                return null;
+            }
+        };
+        InTransaction.execute(dbi, connection, handler, NotificationSqlDao.class);
+        // See recordFutureNotificationFromTransaction
+        onNotificationsRecordedFromTransaction(notifications);
+    }
+
+    private List<NotificationEventModelDao> toNotificationEventModelDaos(final Iterable<FutureNotification> futureNotifications) throws IOException {
+        final List<FutureNotification> futureNotificationsList = ImmutableList.<FutureNotification>copyOf(futureNotifications);
+        final List<NotificationEvent> events = new ArrayList<NotificationEvent>(futureNotificationsList.size());
+        for (final FutureNotification futureNotification : futureNotificationsList) {
+            events.add(futureNotification.getEvent());
+        }
+        final List<String> eventJsons = batchEventSerializer.serialize(events);
+
+        final String creatorName = CreatorName.get();
+        final DateTime now = clock.getUTCNow();
+        final List<NotificationEventModelDao> notifications = new ArrayList<NotificationEventModelDao>(futureNotificationsList.size());
+        for (int i = 0; i < futureNotificationsList.size(); i++) {
+            final FutureNotification futureNotification = futureNotificationsList.get(i);
+            final Long searchKey2WithNull = MoreObjects.firstNonNull(futureNotification.getSearchKey2(), 0L);
+            notifications.add(new NotificationEventModelDao(creatorName, now, futureNotification.getEvent().getClass().getName(), eventJsons.get(i), futureNotification.getUserToken(),
+                                                            futureNotification.getSearchKey1(), searchKey2WithNull, UUID.randomUUID(), futureNotification.getFutureNotificationTime(), getFullQName()));
+        }
+        return notifications;
     }
 
     @Override
     public void updateFutureNotification(final Long recordId, final NotificationEvent event, final Long searchKey1, final Long searchKey2) throws IOException {
-        final String eventJson = objectMapper.writeValueAsString(event);
+        final String eventJson = eventCodec.encode(event);
         final Long searchKey2WithNull = MoreObjects.firstNonNull(searchKey2, 0L);
         ((NotificationSqlDao) dao.getSqlDao()).updateEntry(recordId, eventJson, searchKey1, searchKey2WithNull, config.getTableName());
     }
@@ -143,12 +218,12 @@ public class DefaultNotificationQueue implements NotificationQueue {
                                                  final Long searchKey2) throws IOException {
 
 
-        final String eventJson = objectMapper.writeValueAsString(event);
+        final String eventJson = eventCodec.encode(event);
         final Long searchKey2WithNull = MoreObjects.firstNonNull(searchKey2, 0L);
         final InTransaction.InTransactionHandler<NotificationSqlDao, Void> handler = new InTransaction.InTransactionHandler<NotificationSqlDao, Void>() {
             @Override
             public Void withSqlDao(final NotificationSqlDao transactional) {
-                ((NotificationSqlDao) dao.getSqlDao()).updateEntry(recordId, eventJson, searchKey1, searchKey2WithNull, config.getTableName());
+                transactional.updateEntry(recordId, eventJson, searchKey1, searchKey2WithNull, config.getTableName());
                 return null;
             }
         };
@@ -236,6 +311,35 @@ public class DefaultNotificationQueue implements NotificationQueue {
         return getHistoricalNotificationsInternal((NotificationSqlDao) dao.getSqlDao(), minEffectiveDate, null, searchKey2);
     }
 
+    @Override
+    public <T extends NotificationEvent> Iterable<NotificationEventWithMetadata<T>> getHistoricalNotificationForSearchKey2(final DateTime minEffectiveDate, final Long searchKey2, final int pageSize) {
+        final NotificationSqlDao sqlDao = (NotificationSqlDao) dao.getSqlDao();
+        final Iterable<NotificationEventModelDao> entries = new RecordIdPaginatedIterable<NotificationEventModelDao>(pageSize) {
+            @Override
+            protected List<NotificationEventModelDao> fetchPage(final long fromRecordId, final int pageSize) {
+                return pageProf.executeWithProfiling(ProfilingFeature.ProfilingFeatureType.DAO, "DAO:NotificationSqlDao:getHistoricalQueueEntriesForSearchKey2Page", new Profiling.WithProfilingCallback<List<NotificationEventModelDao>, RuntimeException>() {
+                    @Override
+                    public List<NotificationEventModelDao> execute() throws RuntimeException {
+                        return sqlDao.getHistoricalQueueEntriesForSearchKey2Page(getFullQName(), minEffectiveDate, searchKey2, fromRecordId, pageSize, config.getHistoryTableName());
+                    }
+                });
+            }
+        };
+        return toNotificationEventWithMetadata(entries);
+    }
+
+    private void onNotificationsRecorded(final Iterable<NotificationEventModelDao> notifications) {
+        if (notificationRecordedListener != null) {
+            notificationRecordedListener.onNotificationsRecorded(notifications);
+        }
+    }
+
+    private void onNotificationsRecordedFromTransaction(final Iterable<NotificationEventModelDao> notifications) {
+        if (notificationRecordedListener != null) {
+            notificationRecordedListener.onNotificationsRecordedFromTransaction(notifications);
+        }
+    }
+
     private <T extends NotificationEvent> Iterable<NotificationEventWithMetadata<T>> getFutureNotificationsInternal(final NotificationSqlDao transactionalDao, @Nullable final DateTime maxEffectiveDate, @Nullable final Long searchKey1, final Long searchKey2) {
         final Iterable<NotificationEventModelDao> entries = getFutureNotificationsInternalWithProfiling(transactionalDao, maxEffectiveDate, searchKey1, searchKey2);
         return toNotificationEventWithMetadata(entries);
@@ -310,7 +414,7 @@ public class DefaultNotificationQueue implements NotificationQueue {
     }
 
     private <T extends NotificationEvent> NotificationEventWithMetadata<T> toNotificationEventWithMetadata(final NotificationEventModelDao cur) {
-        final T event = CallableCallbackBase.deserializeEvent(cur, objectMapper);
+        final T event = CallableCallbackBase.deserializeEvent(cur, eventCodec);
         return new NotificationEventWithMetadata<T>(cur.getRecordId(), cur.getUserToken(), cur.getCreatedDate(), cur.getSearchKey1(), cur.getSearchKey2(), event,
                                                     cur.getFutureUserToken(), cur.getEffectiveDate(), cur.getQueueName());
     }
@@ -21,12 +21,14 @@ package org.killbill.notificationq;
 
 import java.util.Properties;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.sql.DataSource;
 
 import org.killbill.clock.Clock;
 import org.killbill.clock.DefaultClock;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
 import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueConfig;
 import org.killbill.queue.InTransaction;
@@ -53,9 +55,22 @@ public class DefaultNotificationQueueService extends NotificationQueueServiceBas
      * @param config         queues configuration
      * @param metricRegistry DropWizard metrics registry instance
      */
-    @Inject
     public DefaultNotificationQueueService(@Named(QUEUE_NAME) final IDBI idbi, final Clock clock, final NotificationQueueConfig config, final MetricRegistry metricRegistry) {
-        super(clock, config, idbi, metricRegistry);
+        this(idbi, clock, config, metricRegistry, null);
+    }
+
+    /**
+     * @param idbi                               a DBI instance from the killbill-jdbi jar
+     * @param clock                              a clock instance from the killbill-clock jar
+     * @param config                             queues configuration
+     * @param metricRegistry                     DropWizard metrics registry instance
+     * @param databaseTransactionNotificationApi notified of the commits of the DBI transactions, to dispatch on time the notifications recorded
+     *                                           in a caller's transaction when lookAhead is enabled (may be null)
+     */
+    @Inject
+    public DefaultNotificationQueueService(@Named(QUEUE_NAME) final IDBI idbi, final Clock clock, final NotificationQueueConfig config, final MetricRegistry metricRegistry,
+                                           @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        super(clock, config, idbi, metricRegistry, databaseTransactionNotificationApi);
         this.dbi = (DBI) idbi;
     }
 
@@ -76,6 +91,6 @@ public class DefaultNotificationQueueService extends NotificationQueueServiceBas
     protected NotificationQueue createNotificationQueueInternal(final String svcName,
                                                                 final String queueName,
                                                                 final NotificationQueueHandler handler) {
-        return new DefaultNotificationQueue(svcName, queueName, handler, dbi, dao, this, clock, config);
+        return new DefaultNotificationQueue(svcName, queueName, handler, dbi, dao, this, clock, config, getEventCodec(), this);
     }
 }
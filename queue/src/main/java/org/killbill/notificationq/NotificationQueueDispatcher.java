@@ -21,6 +21,7 @@ package org.killbill.notificationq;
 
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -32,7 +33,13 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nullable;
+
+import org.killbill.CreatorName;
 import org.killbill.clock.Clock;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEvent;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEventType;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
 import org.killbill.notificationq.api.NotificationEvent;
 import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueConfig;
@@ -44,25 +51,34 @@ import org.killbill.queue.DBBackedQueue;
 import org.killbill.queue.DBBackedQueue.ReadyEntriesWithMetrics;
 import org.killbill.queue.DBBackedQueueWithPolling;
 import org.killbill.queue.DefaultQueueLifecycle;
+import org.killbill.queue.HierarchicalTimingWheel;
 import org.killbill.queue.api.PersistentQueueConfig.PersistentQueueMode;
 import org.killbill.queue.dao.EventEntryModelDao;
 import org.killbill.queue.dispatching.BlockingRejectionExecutionHandler;
 import org.killbill.queue.dispatching.Dispatcher;
+import org.killbill.queue.history.HistoryArchiver;
 import org.skife.jdbi.v2.IDBI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 @SuppressFBWarnings("VO_VOLATILE_INCREMENT")
-public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
+public class NotificationQueueDispatcher extends DefaultQueueLifecycle implements NotificationRecordedListener {
 
     protected static final Logger log = LoggerFactory.getLogger(NotificationQueueDispatcher.class);
 
     public static final int CLAIM_TIME_MS = (5 * 60 * 1000); // 5 minutes
 
+    // Timing wheel settings: 10ms precision, 256 buckets per level (2.56s, 10.9m, 46.6h, ...)
+    private static final long TIMING_WHEEL_TICK_MS = 10;
+    private static final int TIMING_WHEEL_SIZE = 256;
+
     private final AtomicLong nbProcessedEvents;
 
     protected final NotificationQueueConfig config;
@@ -83,9 +99,29 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
     private final NotificationCallableCallback notificationCallableCallback;
 
     private final NotificationReaper reaper;
+    // Null if the history retention is disabled
+    private final HistoryArchiver<NotificationEventModelDao> historyArchiver;
+
+    // Upcoming notifications (null if lookAhead is disabled): the wheel is only used to know when to run the next dispatch loop,
+    // the notifications are still claimed from the database
+    private final HierarchicalTimingWheel timingWheel;
+    private volatile long nextLookAheadMs;
+    private volatile long lookAheadHorizonMs;
+    // Ids for the notifications recorded by this node, whose record_id is not known (negative, not to collide with record_ids)
+    private final AtomicLong localTimingWheelIds;
+    // Notifications recorded in a caller's transaction are added to the timing wheel once it commits (null if not available,
+    // such notifications are then picked up by the next look-ahead refresh)
+    @Nullable
+    private final DatabaseTransactionNotificationApi databaseTransactionNotificationApi;
+    private final ThreadLocal<List<NotificationEventModelDao>> uncommittedNotifications;
 
     // Package visibility on purpose
     NotificationQueueDispatcher(final Clock clock, final NotificationQueueConfig config, final IDBI dbi, final MetricRegistry metricRegistry) {
+        this(clock, config, dbi, metricRegistry, null);
+    }
+
+    NotificationQueueDispatcher(final Clock clock, final NotificationQueueConfig config, final IDBI dbi, final MetricRegistry metricRegistry,
+                                @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
         super(config.getTableName(), config, metricRegistry);
         final ThreadFactory notificationQThreadFactory = new ThreadFactory() {
             @Override
@@ -105,6 +141,9 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
         this.clock = clock;
         this.config = config;
         this.nbProcessedEvents = new AtomicLong();
+        this.localTimingWheelIds = new AtomicLong();
+        this.databaseTransactionNotificationApi = databaseTransactionNotificationApi;
+        this.uncommittedNotifications = new ThreadLocal<List<NotificationEventModelDao>>();
         this.dao = new DBBackedQueueWithPolling<NotificationEventModelDao>(clock, dbi, NotificationSqlDao.class, config, config.getTableName(), metricRegistry);
 
         this.queues = new TreeMap<String, NotificationQueue>();
@@ -117,10 +156,25 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
         this.activeQueues = 0;
 
         this.reaper = new NotificationReaper(this.dao, config, clock);
+        this.historyArchiver = config.getHistoryRetention().getMillis() > 0 ?
+                               new HistoryArchiver<NotificationEventModelDao>(dbi, this.dao.getSqlDao(), config, clock, "NotificationHistoryArchiver", metricRegistry) :
+                               null;
 
         this.notificationCallableCallback = new NotificationCallableCallback(this);
         this.dispatcher = new Dispatcher<>(1, config, 10, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(config.getEventQueueCapacity()), notificationQThreadFactory, new BlockingRejectionExecutionHandler(),
-                                           clock, notificationCallableCallback, this);
+                                           clock, notificationCallableCallback, this, metricRegistry);
+
+        if (config.getLookAheadTime().getMillis() > 0) {
+            this.timingWheel = new HierarchicalTimingWheel(TIMING_WHEEL_TICK_MS, TIMING_WHEEL_SIZE, clock.getUTCNow().getMillis(), config.getLookAheadMaxEntries());
+            metricRegistry.register(MetricRegistry.name(NotificationQueueDispatcher.class, config.getTableName(), "timingWheel", "size"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return timingWheel.size();
+                }
+            });
+        } else {
+            this.timingWheel = null;
+        }
     }
 
     @Override
@@ -154,6 +208,17 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
                 if (config.getPersistentQueueMode() == PersistentQueueMode.STICKY_POLLING) {
                     reaper.start();
                 }
+                if (historyArchiver != null) {
+                    historyArchiver.start();
+                }
+                if (timingWheel != null) {
+                    timingWheel.clear();
+                    nextLookAheadMs = 0;
+                    lookAheadHorizonMs = 0;
+                    if (databaseTransactionNotificationApi != null) {
+                        databaseTransactionNotificationApi.registerForNotification(this);
+                    }
+                }
                 super.startQueue();
                 isStarted = true;
                 return true;
@@ -173,6 +238,12 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
             if (activeQueues == 0) {
                 isInitialized.set(false);
                 reaper.stop();
+                if (historyArchiver != null) {
+                    historyArchiver.stop();
+                }
+                if (timingWheel != null && databaseTransactionNotificationApi != null) {
+                    databaseTransactionNotificationApi.unregisterForNotification(this);
+                }
                 super.stopQueue();
                 dispatcher.stop();
                 dao.close();
@@ -188,17 +259,126 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
 
     @Override
     public DispatchResultMetrics doDispatchEvents() {
-        final List<NotificationEventModelDao> notifications = getReadyNotifications();
-        if (notifications.isEmpty()) {
-            return new DispatchResultMetrics(0, -1);
+        if (timingWheel != null) {
+            refreshUpcomingNotificationsIfNeeded();
+        }
+
+        // Only claim what the dispatcher can start: we are woken up when credits are returned
+        final int nbCredits = dispatcher.reserveCredits(config.getMaxEntriesClaimed());
+        if (nbCredits == 0) {
+            return new DispatchResultMetrics(0, -1, true);
+        }
+        try {
+            final List<NotificationEventModelDao> notifications = getReadyNotifications(nbCredits);
+            if (notifications.isEmpty()) {
+                return new DispatchResultMetrics(0, -1);
+            }
+            log.debug("Notifications from {} to process: {}", config.getTableName(), notifications);
+
+            for (final NotificationEventModelDao cur : notifications) {
+                dispatcher.dispatch(cur);
+            }
+            // No need to return time, this is easy to compute from caller
+            return new DispatchResultMetrics(notifications.size(), -1);
+        } finally {
+            dispatcher.releaseCredits(nbCredits);
+        }
+    }
+
+    @Override
+    protected int getDispatcherBacklog() {
+        return dispatcher.getBacklog();
+    }
+
+    @Override
+    protected long getDispatchSleepTimeMs(final long loopTimeMsec, final long pollingSleepTimeMs) {
+        if (timingWheel == null) {
+            return super.getDispatchSleepTimeMs(loopTimeMsec, pollingSleepTimeMs);
+        }
+
+        final long now = clock.getUTCNow().getMillis();
+        final long latestDeadline = timingWheel.expire(now);
+        if (latestDeadline != HierarchicalTimingWheel.NO_DEADLINE) {
+            // Some notifications are due (or will be within the current tick)
+            return latestDeadline - now;
+        }
+        // No polling in between: notifications recorded by this node are added to the wheel (see onNotificationsRecorded),
+        // and the ones recorded by other nodes are loaded by the next look-ahead refresh
+        return Math.min(timingWheel.getNextExpirationMs(), nextLookAheadMs) - now;
+    }
+
+    // Dispatch the notifications recorded by this node on time, if they are due before the next look-ahead refresh
+    @Override
+    public void onNotificationsRecorded(final Iterable<NotificationEventModelDao> notifications) {
+        if (timingWheel == null || !isStarted) {
+            return;
+        }
+
+        for (final NotificationEventModelDao notification : notifications) {
+            onNotificationRecorded(notification);
+        }
+    }
+
+    @Override
+    public void onNotificationsRecordedFromTransaction(final Iterable<NotificationEventModelDao> notifications) {
+        if (timingWheel == null || databaseTransactionNotificationApi == null || !isStarted) {
+            return;
+        }
+
+        List<NotificationEventModelDao> uncommitted = uncommittedNotifications.get();
+        if (uncommitted == null) {
+            uncommitted = new ArrayList<NotificationEventModelDao>();
+            uncommittedNotifications.set(uncommitted);
+        }
+        for (final NotificationEventModelDao notification : notifications) {
+            uncommitted.add(notification);
+        }
+    }
+
+    // Invoked by the thread committing (or rolling back) the transaction
+    @AllowConcurrentEvents
+    @Subscribe
+    public void handleDatabaseTransactionEvent(final DatabaseTransactionEvent event) {
+        final List<NotificationEventModelDao> uncommitted = uncommittedNotifications.get();
+        if (uncommitted == null) {
+            return;
+        }
+        uncommittedNotifications.remove();
+        if (event.getType() == DatabaseTransactionEventType.COMMIT) {
+            onNotificationsRecorded(uncommitted);
+        }
+    }
+
+    private void onNotificationRecorded(final NotificationEventModelDao notification) {
+        final long effectiveDate = notification.getEffectiveDate().getMillis();
+        final long nextExpirationMs = timingWheel.getNextExpirationMs();
+        if (effectiveDate <= clock.getUTCNow().getMillis()) {
+            wakeUpDispatchers();
+        } else if (effectiveDate <= lookAheadHorizonMs &&
+                   timingWheel.add(-localTimingWheelIds.incrementAndGet(), effectiveDate) &&
+                   effectiveDate < nextExpirationMs) {
+            // Have the dispatcher threads recompute their sleep time
+            wakeUpDispatchers();
+        }
+    }
+
+    private void refreshUpcomingNotificationsIfNeeded() {
+        final long now = clock.getUTCNow().getMillis();
+        if (now < nextLookAheadMs) {
+            return;
         }
-        log.debug("Notifications from {} to process: {}", config.getTableName(), notifications);
 
-        for (final NotificationEventModelDao cur : notifications) {
-            dispatcher.dispatch(cur);
+        final long horizon = now + config.getLookAheadTime().getMillis();
+        final String owner = config.getPersistentQueueMode() == PersistentQueueMode.STICKY_POLLING ? CreatorName.get() : null;
+        final List<NotificationEventModelDao> upcoming = ((NotificationSqlDao) dao.getSqlDao()).getUpcomingEntries(new Date(horizon), config.getLookAheadMaxEntries(), owner, config.getTableName());
+        for (final NotificationEventModelDao cur : upcoming) {
+            timingWheel.add(cur.getRecordId(), cur.getEffectiveDate().getMillis());
         }
-        // No need to return time, this is easy to compute from caller
-        return new DispatchResultMetrics(notifications.size(), -1);
+
+        // If the result was truncated, notifications after the last one will be picked up at the next refresh
+        lookAheadHorizonMs = upcoming.size() < config.getLookAheadMaxEntries() ? horizon : upcoming.get(upcoming.size() - 1).getEffectiveDate().getMillis();
+        nextLookAheadMs = now + config.getLookAheadRefreshTime().getMillis();
+        log.debug("{}: Loaded {} upcoming notifications, {} in the timing wheel", config.getTableName(), upcoming.size(), timingWheel.size());
     }
 
     @Override
@@ -206,6 +386,12 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
         notificationCallableCallback.moveCompletedOrFailedEvents((Iterable<NotificationEventModelDao>) completed);
     }
 
+    @Override
+    public void doProcessCompletedAndRetriedEvents(final Iterable<? extends EventEntryModelDao> completed, final Iterable<? extends EventEntryModelDao> retried) {
+        notificationCallableCallback.moveCompletedOrFailedAndUpdateRetriedEvents((Iterable<NotificationEventModelDao>) completed, (Iterable<NotificationEventModelDao>) retried);
+        wakeUpDispatchersForRetries(retried);
+    }
+
     @Override
     public void doProcessRetriedEvents(final Iterable<? extends EventEntryModelDao> retried) {
         Iterator<? extends EventEntryModelDao> it = retried.iterator();
@@ -213,6 +399,14 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
             NotificationEventModelDao cur = (NotificationEventModelDao) it.next();
             notificationCallableCallback.updateRetriedEvents(cur);
         }
+        wakeUpDispatchersForRetries(retried);
+    }
+
+    // Retried notifications are available again right away, but they are not in the timing wheel
+    private void wakeUpDispatchersForRetries(final Iterable<? extends EventEntryModelDao> retried) {
+        if (timingWheel != null && retried.iterator().hasNext()) {
+            wakeUpDispatchers();
+        }
     }
 
     public void handleNotificationWithMetrics(final NotificationQueueHandler handler, final NotificationEventModelDao notification, final NotificationEvent key) throws NotificationQueueException {
@@ -257,9 +451,13 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
         return queue.getHandler();
     }
 
-    private List<NotificationEventModelDao> getReadyNotifications() {
-        final ReadyEntriesWithMetrics<NotificationEventModelDao> result = dao.getReadyEntries();
+    private List<NotificationEventModelDao> getReadyNotifications(final int maxEntries) {
+        final ReadyEntriesWithMetrics<NotificationEventModelDao> result = dao.getReadyEntries(maxEntries);
         final List<NotificationEventModelDao> input = result.getEntries();
+        if (timingWheel != null && input.size() >= maxEntries) {
+            // More notifications may be ready: don't wait for the next deadline
+            wakeUpDispatchers();
+        }
         final List<NotificationEventModelDao> claimedNotifications = new ArrayList<NotificationEventModelDao>();
         for (final NotificationEventModelDao cur : input) {
 
@@ -22,7 +22,10 @@ package org.killbill.notificationq;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import org.killbill.clock.Clock;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
 import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueConfig;
 import org.killbill.notificationq.api.NotificationQueueService;
@@ -37,6 +40,11 @@ public abstract class NotificationQueueServiceBase extends NotificationQueueDisp
         super(clock, config, dbi, metricRegistry);
     }
 
+    public NotificationQueueServiceBase(final Clock clock, final NotificationQueueConfig config, final IDBI dbi, final MetricRegistry metricRegistry,
+                                        @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        super(clock, config, dbi, metricRegistry, databaseTransactionNotificationApi);
+    }
+
     @Override
     public NotificationQueue createNotificationQueue(final String svcName,
                                                      final String queueName,
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.notificationq.api;
+
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+
+/**
+ * A notification to record through NotificationQueue#recordFutureNotifications
+ */
+public class FutureNotification {
+
+    private final DateTime futureNotificationTime;
+    private final NotificationEvent event;
+    private final UUID userToken;
+    private final Long searchKey1;
+    private final Long searchKey2;
+
+    /**
+     * @param futureNotificationTime the time at which the notification is ready
+     * @param event                  the event to be serialized on disk
+     * @param userToken              a opaque token that can be attached to that event
+     * @param searchKey1             a key that can be used for search
+     * @param searchKey2             a key that can be used for search
+     */
+    public FutureNotification(final DateTime futureNotificationTime, final NotificationEvent event, final UUID userToken, final Long searchKey1, final Long searchKey2) {
+        this.futureNotificationTime = futureNotificationTime;
+        this.event = event;
+        this.userToken = userToken;
+        this.searchKey1 = searchKey1;
+        this.searchKey2 = searchKey2;
+    }
+
+    public DateTime getFutureNotificationTime() {
+        return futureNotificationTime;
+    }
+
+    public NotificationEvent getEvent() {
+        return event;
+    }
+
+    public UUID getUserToken() {
+        return userToken;
+    }
+
+    public Long getSearchKey1() {
+        return searchKey1;
+    }
+
+    public Long getSearchKey2() {
+        return searchKey2;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("FutureNotification{");
+        sb.append("futureNotificationTime=").append(futureNotificationTime);
+        sb.append(", event=").append(event);
+        sb.append(", userToken=").append(userToken);
+        sb.append(", searchKey1=").append(searchKey1);
+        sb.append(", searchKey2=").append(searchKey2);
+        sb.append('}');
+        return sb.toString();
+    }
+}
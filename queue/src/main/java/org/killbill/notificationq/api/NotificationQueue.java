@@ -75,6 +75,24 @@ public interface NotificationQueue extends QueueLifecycle {
                                                  final Long searchKey2)
             throws IOException;
 
+    /**
+     * Record a batch of notifications, inserted through a single JDBC batch
+     *
+     * @param notifications the notifications to record
+     * @throws IOException if the serialization of one of the events fails (none of them is recorded)
+     */
+    void recordFutureNotifications(final Iterable<FutureNotification> notifications)
+            throws IOException;
+
+    /**
+     * @param connection    the transaction that should be used to record the events
+     * @param notifications the notifications to record
+     * @throws IOException if the serialization of one of the events fails (none of them is recorded)
+     */
+    void recordFutureNotificationsFromTransaction(final Connection connection,
+                                                  final Iterable<FutureNotification> notifications)
+            throws IOException;
+
 
     void updateFutureNotification(final Long recordId,
                                   final NotificationEvent eventJson,
@@ -186,6 +204,17 @@ public interface NotificationQueue extends QueueLifecycle {
      */
     <T extends NotificationEvent> Iterable<NotificationEventWithMetadata<T>> getHistoricalNotificationForSearchKey2(final DateTime minEffectiveDate, final Long searchKey2);
 
+    /**
+     * Retrieve all historical notifications associated with that queue and matching that search key, ordered by record_id
+     * and fetched by pages: unlike {@link #getHistoricalNotificationForSearchKey2(DateTime, Long)}, no database connection is held while iterating
+     *
+     * @param minEffectiveDate effective_date cutoff, to limit the search
+     * @param searchKey2 the value for key2
+     * @param pageSize the number of notifications fetched per query
+     * @return a list of NotificationEventWithMetadata objects matching the search
+     */
+    <T extends NotificationEvent> Iterable<NotificationEventWithMetadata<T>> getHistoricalNotificationForSearchKey2(final DateTime minEffectiveDate, final Long searchKey2, final int pageSize);
+
     /**
      * Count the number of notifications ready to be processed
      *
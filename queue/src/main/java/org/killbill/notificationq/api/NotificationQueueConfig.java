@@ -77,6 +77,43 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Description("Time in milliseconds to sleep between runs")
     public abstract long getPollingSleepTimeMs();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.sleep.adaptive")
+    @Default("false")
+    @Description("Whether to poll again right away after a full batch and to back off (up to sleep.max) when no entry is found")
+    public boolean isAdaptivePolling() {
+        return PersistentQueueConfig.super.isAdaptivePolling();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.sleep.max")
+    @Default("30000")
+    @Description("Max time in milliseconds to sleep between runs when backing off (only valid when sleep.adaptive is set)")
+    public long getPollingMaxSleepTimeMs() {
+        return PersistentQueueConfig.super.getPollingMaxSleepTimeMs();
+    }
+
+    @Config("org.killbill.notificationq.${instanceName}.lookAhead")
+    @Default("0m")
+    @Description("How far ahead notifications are loaded in memory to be dispatched at their exact effective date instead of polling (0 to disable)")
+    public TimeSpan getLookAheadTime() {
+        return new TimeSpan("0m");
+    }
+
+    @Config("org.killbill.notificationq.${instanceName}.lookAhead.refresh")
+    @Default("30s")
+    @Description("How often the upcoming notifications are reloaded from the database (only valid when lookAhead is set)")
+    public TimeSpan getLookAheadRefreshTime() {
+        return new TimeSpan("30s");
+    }
+
+    @Config("org.killbill.notificationq.${instanceName}.lookAhead.max")
+    @Default("10000")
+    @Description("Max number of upcoming notifications kept in memory (only valid when lookAhead is set)")
+    public int getLookAheadMaxEntries() {
+        return 10000;
+    }
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.notification.off")
     @Default("false")
@@ -89,6 +126,14 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Description("Number of threads to use")
     public abstract int geMaxDispatchThreads();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.dispatch.lanes")
+    @Default("0")
+    @Description("Number of serial lanes entries are hashed onto by searchKey1, to process entries for a given key in order (0 to disable)")
+    public int getNbDispatchLanes() {
+        return PersistentQueueConfig.super.getNbDispatchLanes();
+    }
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.lifecycle.dispatch.nbThreads")
     @Default("1")
@@ -101,6 +146,62 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Description("Max number of lifecycle complete threads to use")
     public abstract int geNbLifecycleCompleteThreads();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.lifecycle.complete.batchSize")
+    @Default("100")
+    @Description("Max number of completed or retried entries written to the database in a single transaction")
+    public int getLifecycleCompleteBatchSize() {
+        return PersistentQueueConfig.super.getLifecycleCompleteBatchSize();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.lifecycle.complete.batchWindowMs")
+    @Default("0")
+    @Description("Time in milliseconds to wait for more completed or retried entries before writing a partial batch (0 to not wait)")
+    public long getLifecycleCompleteBatchWindowMs() {
+        return PersistentQueueConfig.super.getLifecycleCompleteBatchWindowMs();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.event.format")
+    @Default("JSON")
+    @Description("Format used to serialize events in the table (JSON or SMILE), events in both formats can always be read")
+    public QueueEventFormat getEventFormat() {
+        return PersistentQueueConfig.super.getEventFormat();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.event.compression.threshold")
+    @Default("0")
+    @Description("Size (in characters) above which serialized events are compressed (Deflate) in the table (0 to disable)")
+    public int getEventCompressionThreshold() {
+        return PersistentQueueConfig.super.getEventCompressionThreshold();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.event.codec")
+    @Default("")
+    @Description("Fully qualified name of a custom QueueEventCodec, with a public constructor taking the config or no argument (empty for the default codec)")
+    public String getEventCodecClass() {
+        return PersistentQueueConfig.super.getEventCodecClass();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.wakeup.transport")
+    @Default("NONE")
+    @Description("How entries committed by other nodes are detected (NONE, LISTEN_NOTIFY for PostgreSQL or WATERMARK), only valid in STICKY_EVENTS mode")
+    public WakeupTransportType getWakeupTransport() {
+        return PersistentQueueConfig.super.getWakeupTransport();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.wakeup.watermark.sleep")
+    @Default("25")
+    @Description("Time in milliseconds between two checks of the table watermark (only valid with the WATERMARK wakeup transport)")
+    public long getWakeupWatermarkSleepTimeMs() {
+        return PersistentQueueConfig.super.getWakeupWatermarkSleepTimeMs();
+    }
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.queue.capacity")
     @Default("100")
@@ -119,6 +220,78 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Description("Notifications history table name")
     public abstract String getHistoryTableName();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.retention")
+    @Default("0d")
+    @Description("How long entries are kept in the history table before being archived or dropped (0 to keep them forever)")
+    public TimeSpan getHistoryRetention() {
+        return PersistentQueueConfig.super.getHistoryRetention();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.archiveTableName")
+    @Default("")
+    @Description("Table (with the same schema as the history table) expired history entries are moved to (empty to drop them)")
+    public String getHistoryArchiveTableName() {
+        return PersistentQueueConfig.super.getHistoryArchiveTableName();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.archive.batchSize")
+    @Default("1000")
+    @Description("Max number of history entries archived per transaction")
+    public int getHistoryArchiveBatchSize() {
+        return PersistentQueueConfig.super.getHistoryArchiveBatchSize();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.archive.sleep")
+    @Default("100")
+    @Description("Time in milliseconds to sleep between two archiving transactions")
+    public long getHistoryArchiveSleepTimeMs() {
+        return PersistentQueueConfig.super.getHistoryArchiveSleepTimeMs();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.archive.schedule")
+    @Default("1h")
+    @Description("History archiver schedule period")
+    public TimeSpan getHistoryArchiveSchedule() {
+        return PersistentQueueConfig.super.getHistoryArchiveSchedule();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.partitioning")
+    @Default("NONE")
+    @Description("Whether the history table is partitioned by created_date (NONE, DAILY or MONTHLY), in which case expired partitions are dropped and upcoming ones created")
+    public HistoryPartitioning getHistoryPartitioning() {
+        return PersistentQueueConfig.super.getHistoryPartitioning();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.policy")
+    @Default("FULL")
+    @Description("Which completed entries are moved to the history table (FULL, SAMPLED, ERRORS_ONLY or NONE), the others are deleted")
+    public HistoryPolicy getHistoryPolicy() {
+        return PersistentQueueConfig.super.getHistoryPolicy();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.samplingPercentage")
+    @Default("1")
+    @Description("Percentage of the processed entries moved to the history table in SAMPLED mode")
+    public int getHistorySamplingPercentage() {
+        return PersistentQueueConfig.super.getHistorySamplingPercentage();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.policy.overrides")
+    @Default("")
+    @Description("Comma separated list of per event class history policies, e.g. com.acme.FooEvent:NONE,com.acme.BarEvent:SAMPLED")
+    public String getHistoryPolicyOverrides() {
+        return PersistentQueueConfig.super.getHistoryPolicyOverrides();
+    }
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.reapThreshold")
     @Default("10m")
@@ -136,4 +309,12 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Default("3m")
     @Description("Reaper schedule period")
     public abstract TimeSpan getReapSchedule();
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.reapShards")
+    @Default("1")
+    @Description("Number of record_id shards the reaping is split into, each shard being reaped by a single node at a time (PostgreSQL and MySQL only)")
+    public int getNbReapShards() {
+        return PersistentQueueConfig.super.getNbReapShards();
+    }
 }
@@ -19,7 +19,11 @@
 
 package org.killbill.notificationq.dao;
 
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
 import org.killbill.commons.jdbi.statement.SmartFetchSize;
@@ -68,6 +72,14 @@ public interface NotificationSqlDao extends QueueSqlDao<NotificationEventModelDa
                                                                                @Bind("searchKey2") final Long searchKey2,
                                                                                @Define("historyTableName") final String historyTableName);
 
+    @SqlQuery
+    List<NotificationEventModelDao> getHistoricalQueueEntriesForSearchKey2Page(@Bind("queueName") String queueName,
+                                                                               @Bind("minEffectiveDate") final DateTime minEffectiveDate,
+                                                                               @Bind("searchKey2") final Long searchKey2,
+                                                                               @Bind("fromRecordId") final long fromRecordId,
+                                                                               @Bind("max") final int max,
+                                                                               @Define("historyTableName") final String historyTableName);
+
     @SqlQuery
     @SmartFetchSize(shouldStream = true)
     Iterator<NotificationEventModelDao> getHistoricalQueueEntriesForSearchKey2(@Bind("queueName") String queueName,
@@ -75,6 +87,13 @@ public interface NotificationSqlDao extends QueueSqlDao<NotificationEventModelDa
                                                                                @Bind("searchKey2") final Long searchKey2,
                                                                                @Define("historyTableName") final String historyTableName);
 
+    // Only the record_id and effective_date are populated
+    @SqlQuery
+    List<NotificationEventModelDao> getUpcomingEntries(@Bind("now") Date horizon,
+                                                       @Bind("max") int max,
+                                                       @Nullable @Define("owner") String owner,
+                                                       @Define("tableName") final String tableName);
+
     @SqlUpdate
     void updateEntry(@Bind("recordId") Long id,
                      @Bind("eventJson") String eventJson,
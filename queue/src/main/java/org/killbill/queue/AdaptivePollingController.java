@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.queue;
+
+import com.google.common.base.Preconditions;
+
+//
+// Computes how long a polling dispatcher thread should sleep before its next loop, based on the last loop:
+// - a full batch means there is a backlog: poll again right away, unless the Dispatcher is itself backlogged
+// (claiming more entries would only make them wait in its work queue),
+// - a partial batch means the backlog has been drained: sleep the base polling time,
+// - no entry at all: back off exponentially, from the base polling time up to the max sleep time,
+// - no entry claimed because the Dispatcher had no credits left: sleep the base polling time (we are woken up when credits
+// are returned), without counting it as an empty loop since the queue may well have a backlog.
+//
+// Each dispatcher thread has its own controller, so it does not need to be thread safe (its state is only read by the metrics).
+//
+public class AdaptivePollingController {
+
+    // Enough to reach any max sleep time from the min base, without overflowing
+    private static final int MAX_BACKOFF_SHIFT = 30;
+    // A base of 0 would never back off, and spin on the database when the queue is idle
+    private static final long MIN_BASE_SLEEP_TIME_MS = 10;
+
+    private final long baseSleepTimeMs;
+    private final long maxSleepTimeMs;
+    private final int maxEntriesClaimed;
+
+    private volatile int nbEmptyLoops;
+    private volatile long sleepTimeMs;
+
+    public AdaptivePollingController(final long baseSleepTimeMs, final long maxSleepTimeMs, final int maxEntriesClaimed) {
+        Preconditions.checkArgument(baseSleepTimeMs >= 0, "baseSleepTimeMs should be positive");
+        Preconditions.checkArgument(maxEntriesClaimed > 0, "maxEntriesClaimed should be > 0");
+        this.baseSleepTimeMs = Math.max(baseSleepTimeMs, MIN_BASE_SLEEP_TIME_MS);
+        this.maxSleepTimeMs = Math.max(this.baseSleepTimeMs, maxSleepTimeMs);
+        this.maxEntriesClaimed = maxEntriesClaimed;
+        this.nbEmptyLoops = 0;
+        this.sleepTimeMs = this.baseSleepTimeMs;
+    }
+
+    public long nextSleepTimeMsWithoutCredits() {
+        sleepTimeMs = baseSleepTimeMs;
+        return sleepTimeMs;
+    }
+
+    public long nextSleepTimeMs(final int nbEntries, final int dispatcherBacklog) {
+        if (nbEntries >= maxEntriesClaimed) {
+            nbEmptyLoops = 0;
+            sleepTimeMs = dispatcherBacklog < maxEntriesClaimed ? 0 : baseSleepTimeMs;
+        } else if (nbEntries > 0) {
+            nbEmptyLoops = 0;
+            sleepTimeMs = baseSleepTimeMs;
+        } else {
+            final int shift = Math.min(nbEmptyLoops, MAX_BACKOFF_SHIFT);
+            sleepTimeMs = Math.min(baseSleepTimeMs << shift, maxSleepTimeMs);
+            if (sleepTimeMs < maxSleepTimeMs && nbEmptyLoops < MAX_BACKOFF_SHIFT) {
+                nbEmptyLoops++;
+            }
+        }
+        return sleepTimeMs;
+    }
+
+    // Called when the dispatcher threads are explicitly woken up: new entries are likely, stop backing off
+    public void reset() {
+        nbEmptyLoops = 0;
+        sleepTimeMs = baseSleepTimeMs;
+    }
+
+    public long getSleepTimeMs() {
+        return sleepTimeMs;
+    }
+
+    public int getNbEmptyLoops() {
+        return nbEmptyLoops;
+    }
+}
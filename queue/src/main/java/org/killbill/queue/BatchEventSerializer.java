@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.killbill.queue.codec.QueueEventCodec;
+
+import com.google.common.collect.Lists;
+
+//
+// Serializes the events of a batch post in parallel: for tens of thousands of events, serialization is a large part
+// of the time spent in the caller's transaction.
+//
+public class BatchEventSerializer {
+
+    // Below that, forking is not worth it
+    private static final int MIN_EVENTS_PER_TASK = 256;
+
+    private final QueueEventCodec eventCodec;
+
+    public BatchEventSerializer(final QueueEventCodec eventCodec) {
+        this.eventCodec = eventCodec;
+    }
+
+    // The result is in the same order as the events
+    public List<String> serialize(final List<?> events) throws IOException {
+        final int nbTasks = Math.min(ForkJoinPool.getCommonPoolParallelism(), events.size() / MIN_EVENTS_PER_TASK);
+        if (nbTasks <= 1) {
+            return serializeChunk(events);
+        }
+
+        final List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>(nbTasks);
+        for (final List<?> chunk : Lists.partition(events, (events.size() + nbTasks - 1) / nbTasks)) {
+            futures.add(ForkJoinPool.commonPool().submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws IOException {
+                    return serializeChunk(chunk);
+                }
+            }));
+        }
+
+        final List<String> result = new ArrayList<String>(events.size());
+        try {
+            for (final Future<List<String>> future : futures) {
+                result.addAll(future.get());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while serializing events", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to serialize events", e.getCause());
+        } finally {
+            for (final Future<List<String>> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return result;
+    }
+
+    private List<String> serializeChunk(final List<?> events) throws IOException {
+        final List<String> result = new ArrayList<String>(events.size());
+        for (final Object event : events) {
+            result.add(eventCodec.encode(event));
+        }
+        return result;
+    }
+}
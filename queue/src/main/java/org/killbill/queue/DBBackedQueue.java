@@ -48,6 +48,7 @@ import org.skife.jdbi.v2.tweak.HandleCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.google.common.base.Function;
@@ -83,7 +84,9 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
     protected final Timer rawGetEntriesTime;
     // Time to insert one entry in the DB
     protected final Timer rawInsertEntryTime;
-    // Time to claim the batch of entries (STICKY_POLLING)
+    // Time to insert a batch of entries in the DB
+    protected final Timer rawInsertEntriesTime;
+    // Time to claim the batch of entries (STICKY_POLLING, POLLING_SKIP_LOCKED)
     protected final Timer rawClaimEntriesTime;
     // Time to claim one entry (POLLING mode)
     protected final Timer rawClaimEntryTime;
@@ -91,6 +94,16 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
     protected final Timer rawDeleteEntriesTime;
     // Time to move one entry (delete from table + insert into history)
     protected final Timer rawDeleteEntryTime;
+    // Time to make a batch of entries available again after a failure
+    protected final Timer rawUpdateEntriesOnErrorTime;
+
+    // Entries reaped (i.e. re-dispatched), and entries left behind but not reaped because stuck on this node or late
+    protected final Counter reapedEntries;
+    protected final Counter stuckEntries;
+    protected final Counter lateEntries;
+
+    // Lazily initialized, on the first sharded reaping
+    private volatile ReaperShardLocker reaperShardLocker;
 
     protected final Profiling<Long, RuntimeException> prof;
 
@@ -109,10 +122,15 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
 
         this.rawGetEntriesTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawGetEntriesTime"));
         this.rawInsertEntryTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawInsertEntryTime"));
+        this.rawInsertEntriesTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawInsertEntriesTime"));
         this.rawClaimEntriesTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawClaimEntriesTime"));
         this.rawClaimEntryTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawClaimEntryTime"));
         this.rawDeleteEntriesTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawDeleteEntriesTime"));
         this.rawDeleteEntryTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawDeleteEntryTime"));
+        this.rawUpdateEntriesOnErrorTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawUpdateEntriesOnErrorTime"));
+        this.reapedEntries = metricRegistry.counter(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "reapedEntries"));
+        this.stuckEntries = metricRegistry.counter(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "stuckEntries"));
+        this.lateEntries = metricRegistry.counter(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "lateEntries"));
 
         this.DB_QUEUE_LOG_ID = "DBBackedQueue-" + dbBackedQId;
     }
@@ -142,6 +160,11 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
 
     public abstract ReadyEntriesWithMetrics<T> getReadyEntries();
 
+    // Implementations claiming entries should not claim more than maxEntries (see Dispatcher#reserveCredits)
+    public ReadyEntriesWithMetrics<T> getReadyEntries(final int maxEntries) {
+        return getReadyEntries();
+    }
+
     public abstract void insertEntryFromTransaction(final QueueSqlDao<T> transactional, final T entry);
 
     public abstract void updateOnError(final T entry);
@@ -158,6 +181,21 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
         });
     }
 
+    public void insertEntries(final List<T> entries) {
+        executeTransaction(new Transaction<Void, QueueSqlDao<T>>() {
+            @Override
+            public Void inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) {
+                insertEntriesFromTransaction(transactional, entries);
+                return null;
+            }
+        });
+    }
+
+    // Subclasses should override if they need the recordIds of the new entries
+    public void insertEntriesFromTransaction(final QueueSqlDao<T> transactional, final List<T> entries) {
+        safeInsertEntries(transactional, entries);
+    }
+
     public void moveEntryToHistory(final T entry) {
         executeTransaction(new Transaction<Void, QueueSqlDao<T>>() {
             @Override
@@ -207,6 +245,57 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
         }
     }
 
+    //
+    // Group commit of the completion stage: move the completed (or failed) entries into history and make the retried entries
+    // available again, all in one transaction using JDBC batches.
+    //
+    public void completeEntries(final Iterable<T> completedOrFailedEntries, final Iterable<T> retriedEntries) {
+        completeEntries(completedOrFailedEntries, ImmutableList.<T>of(), retriedEntries);
+    }
+
+    // Same as above, but the entries not to be kept in history are simply deleted
+    public void completeEntries(final Iterable<T> toHistoryEntries, final Iterable<T> toRemoveEntries, final Iterable<T> retriedEntries) {
+        try {
+            executeTransaction(new Transaction<Void, QueueSqlDao<T>>() {
+                @Override
+                public Void inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) throws Exception {
+                    moveEntriesToHistoryFromTransaction(transactional, toHistoryEntries);
+                    removeEntriesFromTransaction(transactional, toRemoveEntries);
+                    updateOnErrorFromTransaction(transactional, retriedEntries);
+                    return null;
+                }
+            });
+        } catch (final Exception e) {
+            log.warn("{} Failed to complete entries: toHistory={}, toRemove={}, retried={}", DB_QUEUE_LOG_ID, toHistoryEntries, toRemoveEntries, retriedEntries, e);
+        }
+    }
+
+    protected void removeEntriesFromTransaction(final QueueSqlDao<T> transactional, final Iterable<T> entries) {
+        if (!entries.iterator().hasNext()) {
+            return;
+        }
+
+        final ImmutableList.Builder<Long> recordIds = ImmutableList.builder();
+        for (final T cur : entries) {
+            log.debug("{} Removing entry without history: recordId={}, className={}", DB_QUEUE_LOG_ID, cur.getRecordId(), cur.getClassName());
+            recordIds.add(cur.getRecordId());
+        }
+
+        final long ini = System.nanoTime();
+        transactional.removeEntries(recordIds.build(), config.getTableName());
+        rawDeleteEntriesTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
+    }
+
+    protected void updateOnErrorFromTransaction(final QueueSqlDao<T> transactional, final Iterable<T> entries) {
+        if (!entries.iterator().hasNext()) {
+            return;
+        }
+
+        final long ini = System.nanoTime();
+        transactional.updateEntriesOnError(entries, clock.getUTCNow().toDate(), config.getTableName());
+        rawUpdateEntriesOnErrorTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
+    }
+
     public void moveEntriesToHistoryFromTransaction(final QueueSqlDao<T> transactional, final Iterable<T> entries) {
         if (!entries.iterator().hasNext()) {
             return;
@@ -244,7 +333,7 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
     }
 
     public long getNbReadyEntries(final Date now) {
-        final String owner = config.getPersistentQueueMode() == PersistentQueueMode.POLLING ? null : CreatorName.get();
+        final String owner = isNonStickyMode() ? null : CreatorName.get();
         return executeQuery(new Query<Long, QueueSqlDao<T>>() {
             @Override
             public Long execute(final QueueSqlDao<T> queueSqlDao) {
@@ -253,6 +342,11 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
         });
     }
 
+    protected boolean isNonStickyMode() {
+        return config.getPersistentQueueMode() == PersistentQueueMode.POLLING ||
+               config.getPersistentQueueMode() == PersistentQueueMode.POLLING_SKIP_LOCKED;
+    }
+
     protected Long safeInsertEntry(final QueueSqlDao<T> transactional, final T entry) {
         return prof.executeWithProfiling(ProfilingFeature.ProfilingFeatureType.DAO, "QueueSqlDao:insert", new Profiling.WithProfilingCallback<Long, RuntimeException>() {
 
@@ -274,14 +368,91 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
         });
     }
 
-    // It is a good idea to monitor reapEntries in logs as these entries should rarely happen
+    // Returns the recordIds of the new entries, in order
+    protected List<Long> safeInsertEntries(final QueueSqlDao<T> transactional, final List<T> entries) {
+        if (entries.isEmpty()) {
+            return ImmutableList.<Long>of();
+        }
+
+        final long init = System.nanoTime();
+        final List<Long> recordIds = transactional.insertEntriesWithGeneratedKeys(entries, config.getTableName());
+        if (recordIds.size() != entries.size()) {
+            log.warn("{} Error inserting entries: nbEntries={}, nbRecordIds={}", DB_QUEUE_LOG_ID, entries.size(), recordIds.size());
+        } else {
+            log.debug("{} Inserting {} entries", DB_QUEUE_LOG_ID, entries.size());
+        }
+        rawInsertEntriesTime.update(System.nanoTime() - init, TimeUnit.NANOSECONDS);
+
+        return recordIds;
+    }
+
+    //
+    // It is a good idea to monitor reapEntries (logs and metrics) as these entries should rarely happen.
+    //
+    // The table is walked by record_id, in chunks of getMaxReDispatchCount entries (one transaction each), up to the max record_id
+    // at the beginning of the run (so that re-inserted entries aren't walked again). If getNbReapShards > 1, the record_id space
+    // is split in contiguous ranges (so that each shard is a primary key range scan) and each shard is reaped by a single node at a time.
+    //
     public void reapEntries(final Date reapingDate) {
-        executeTransaction(new Transaction<Void, QueueSqlDao<T>>() {
+        final Long maxRecordId = executeQuery(new Query<Long, QueueSqlDao<T>>() {
             @Override
-            public Void inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) throws Exception {
+            public Long execute(final QueueSqlDao<T> queueSqlDao) {
+                return queueSqlDao.getMaxRecordId(config.getTableName());
+            }
+        });
+        if (maxRecordId == null) {
+            return;
+        }
+
+        final int nbShards = Math.max(config.getNbReapShards(), 1);
+        if (nbShards == 1) {
+            reapRecordIdRange(reapingDate, 0, maxRecordId);
+            return;
+        }
+
+        final ReaperShardLocker shardLocker = getReaperShardLocker();
+        // Start with a different shard on each node, to limit the contention on the shard locks
+        final int firstShard = Math.abs(CreatorName.get().hashCode() % nbShards);
+        for (int i = 0; i < nbShards; i++) {
+            final int shard = (firstShard + i) % nbShards;
+            final boolean reaped = shardLocker.reapShardIfAvailable(String.format("reaper-%s-%s", config.getTableName(), shard), shard, new ReaperShardLocker.ShardCallback() {
+                @Override
+                public void reapShard(final int shard) {
+                    // Shard s covers the record_ids in (maxRecordId * s / nbShards, maxRecordId * (s + 1) / nbShards]
+                    reapRecordIdRange(reapingDate, getShardBound(maxRecordId, nbShards, shard), getShardBound(maxRecordId, nbShards, shard + 1));
+                }
+            });
+            if (!reaped) {
+                log.debug("{} reapEntries: shard {} is being reaped by another node", DB_QUEUE_LOG_ID, shard);
+            }
+        }
+    }
+
+    private static long getShardBound(final long maxRecordId, final int nbShards, final int shard) {
+        return maxRecordId * shard / nbShards;
+    }
+
+    // Reaps the entries with a record_id in (fromRecordId, toRecordId]
+    private void reapRecordIdRange(final Date reapingDate, final long fromRecordId, final long toRecordId) {
+        long lastReapedRecordId = fromRecordId;
+        while (lastReapedRecordId < toRecordId) {
+            final Long lastRecordId = reapChunk(reapingDate, lastReapedRecordId, toRecordId);
+            if (lastRecordId == null) {
+                break;
+            }
+            lastReapedRecordId = lastRecordId;
+        }
+    }
+
+    // Returns the record_id of the last entry looked at, or null if there is nothing left behind after this chunk
+    private Long reapChunk(final Date reapingDate, final long fromRecordId, final long toRecordId) {
+        return executeTransaction(new Transaction<Long, QueueSqlDao<T>>() {
+            @Override
+            public Long inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) throws Exception {
                 final DateTime now = clock.getUTCNow();
                 final String owner = CreatorName.get();
-                final List<T> entriesLeftBehind = transactional.getEntriesLeftBehind(config.getMaxReDispatchCount(), now.toDate(), reapingDate, config.getTableName());
+                final int maxEntries = config.getMaxReDispatchCount();
+                final List<T> entriesLeftBehind = transactional.getEntriesLeftBehind(maxEntries, now.toDate(), reapingDate, fromRecordId, toRecordId, config.getTableName());
 
                 if (entriesLeftBehind.isEmpty()) {
                     return null;
@@ -289,8 +460,8 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
 
                 final Collection<T> entriesToMove = new ArrayList<T>(entriesLeftBehind.size());
                 final List<T> entriesToReInsert = new ArrayList<T>(entriesLeftBehind.size());
-                final List<T> stuckEntries = new LinkedList<T>();
-                final List<T> lateEntries = new LinkedList<T>();
+                final List<T> stuckEntriesLeftBehind = new LinkedList<T>();
+                final List<T> lateEntriesLeftBehind = new LinkedList<T>();
                 for (final T entryLeftBehind : entriesLeftBehind) {
                     // entryIsBeingProcessedByThisNode is a sign of a stuck entry on this node
                     final boolean entryIsBeingProcessedByThisNode = owner.equals(entryLeftBehind.getProcessingOwner());
@@ -298,9 +469,9 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
                     final boolean entryCreatedByThisNodeAndNeverProcessed = owner.equals(entryLeftBehind.getCreatingOwner()) && entryLeftBehind.getProcessingOwner() == null;
                     if (entryIsBeingProcessedByThisNode) {
                         // See https://github.com/killbill/killbill-commons/issues/47
-                        stuckEntries.add(entryLeftBehind);
+                        stuckEntriesLeftBehind.add(entryLeftBehind);
                     } else if (entryCreatedByThisNodeAndNeverProcessed) {
-                        lateEntries.addAll(entriesLeftBehind);
+                        lateEntriesLeftBehind.add(entryLeftBehind);
                     } else {
                         // Fields will be reset appropriately in insertReapedEntriesFromTransaction
                         entriesToReInsert.add(entryLeftBehind);
@@ -311,16 +482,19 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
                     }
                 }
 
-                if (!stuckEntries.isEmpty()) {
-                    log.warn("{} reapEntries: stuck queue entries {}", DB_QUEUE_LOG_ID, stuckEntries);
+                if (!stuckEntriesLeftBehind.isEmpty()) {
+                    stuckEntries.inc(stuckEntriesLeftBehind.size());
+                    log.warn("{} reapEntries: stuck queue entries {}", DB_QUEUE_LOG_ID, stuckEntriesLeftBehind);
                 }
-                if (!lateEntries.isEmpty()) {
-                    log.warn("{} reapEntries: late queue entries {}", DB_QUEUE_LOG_ID, lateEntries);
+                if (!lateEntriesLeftBehind.isEmpty()) {
+                    lateEntries.inc(lateEntriesLeftBehind.size());
+                    log.warn("{} reapEntries: late queue entries {}", DB_QUEUE_LOG_ID, lateEntriesLeftBehind);
                 }
 
                 if (!entriesToReInsert.isEmpty()) {
                     moveEntriesToHistoryFromTransaction(transactional, entriesToMove);
                     insertReapedEntriesFromTransaction(transactional, entriesToReInsert, now);
+                    reapedEntries.inc(entriesToReInsert.size());
                     log.warn("{} reapEntries: {} entries were reaped by {} {}",
                              DB_QUEUE_LOG_ID, entriesToReInsert.size(), owner, Iterables.<T, UUID>transform(entriesToReInsert,
                                                                                                             new Function<T, UUID>() {
@@ -331,11 +505,24 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
                                                                                                             }));
                 }
 
-                return null;
+                return entriesLeftBehind.size() < maxEntries ? null : entriesLeftBehind.get(entriesLeftBehind.size() - 1).getRecordId();
             }
         });
     }
 
+    private ReaperShardLocker getReaperShardLocker() {
+        if (reaperShardLocker == null) {
+            final String databaseProductName = dbi.withHandle(new HandleCallback<String>() {
+                @Override
+                public String withHandle(final Handle handle) throws Exception {
+                    return handle.getConnection().getMetaData().getDatabaseProductName();
+                }
+            });
+            reaperShardLocker = ReaperShardLocker.create(dbi, databaseProductName);
+        }
+        return reaperShardLocker;
+    }
+
     protected <U> U executeQuery(final Query<U, QueueSqlDao<T>> query) {
         return dbi.withHandle(new HandleCallback<U>() {
             @Override
@@ -19,13 +19,16 @@
 
 package org.killbill.queue;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.DateTime;
 import org.killbill.CreatorName;
 import org.killbill.bus.dao.PersistentBusSqlDao;
@@ -34,9 +37,14 @@ import org.killbill.commons.jdbi.notification.DatabaseTransactionEvent;
 import org.killbill.commons.jdbi.notification.DatabaseTransactionEventType;
 import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
 import org.killbill.queue.api.PersistentQueueConfig;
+import org.killbill.queue.api.PersistentQueueConfig.WakeupTransportType;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.killbill.queue.api.WakeupTransport;
+import org.killbill.queue.api.WakeupTransport.WakeupListener;
 import org.killbill.queue.dao.EventEntryModelDao;
 import org.killbill.queue.dao.QueueSqlDao;
+import org.killbill.queue.wakeup.PostgreSQLWakeupTransport;
+import org.killbill.queue.wakeup.WatermarkWakeupTransport;
 import org.skife.jdbi.v2.IDBI;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionStatus;
@@ -50,6 +58,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.AllowConcurrentEvents;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.primitives.Longs;
 
 public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extends DBBackedQueue<T> {
 
@@ -61,7 +70,13 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
     // Drain inflightQ using getMaxInFlightEntries() config at a time and sleep for a maximum of 100 mSec if there is nothing to do
     private static final long INFLIGHT_POLLING_TIMEOUT_MSEC = 100;
 
-    private final LinkedBlockingQueue<Long> inflightEvents;
+    // Size of the lock free part of the inflightQ (it overflows into a growable buffer) and initial size of the per thread recordId cache
+    private static final int INFLIGHT_RING_CAPACITY = 16384;
+    private static final int ROW_REF_INITIAL_CAPACITY = 8;
+
+    private final LongRingBuffer inflightEvents;
+    // Per dispatch thread, to poll the inflightQ without allocating
+    private final ThreadLocal<long[]> polledRecordIdsBuffer;
 
     private final DatabaseTransactionNotificationApi databaseTransactionNotificationApi;
 
@@ -73,6 +88,17 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
     private final int queueId;
     private final TransientInflightQRowIdCache transientInflightQRowIdCache;
 
+    //
+    // Entries committed outside of this JVM (see WakeupTransport) are pulled by recordId, above pullWatermark.
+    // Local entries are tracked until the watermark passes them, so that they don't end up twice in the inflightQ.
+    //
+    @Nullable
+    private final WakeupTransport wakeupTransport;
+    private final NavigableSet<Long> localRecordIds;
+    private final AtomicBoolean isPullRequested;
+    private final AtomicBoolean isPulling;
+    private volatile long pullWatermark;
+
     public DBBackedQueueWithInflightQueue(final Clock clock,
                                           final IDBI dbi,
                                           final Class<? extends QueueSqlDao<T>> sqlDaoClass,
@@ -80,13 +106,26 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
                                           final String dbBackedQId,
                                           final MetricRegistry metricRegistry,
                                           final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        this(clock, dbi, sqlDaoClass, config, dbBackedQId, metricRegistry, databaseTransactionNotificationApi, null);
+    }
+
+    // A null wakeupTransport means the one from the config (if any)
+    public DBBackedQueueWithInflightQueue(final Clock clock,
+                                          final IDBI dbi,
+                                          final Class<? extends QueueSqlDao<T>> sqlDaoClass,
+                                          final PersistentQueueConfig config,
+                                          final String dbBackedQId,
+                                          final MetricRegistry metricRegistry,
+                                          final DatabaseTransactionNotificationApi databaseTransactionNotificationApi,
+                                          @Nullable final WakeupTransport wakeupTransport) {
         super(clock, dbi, sqlDaoClass, config, dbBackedQId, metricRegistry);
 
         Preconditions.checkArgument(config.getMinInFlightEntries() <= config.getMaxInFlightEntries());
 
         this.queueId = QUEUE_ID_CNT.incrementAndGet();
-        // We use an unboundedQ - the risk of running OUtOfMemory exists for a very large number of entries showing a more systematic problem...
-        this.inflightEvents = new LinkedBlockingQueue<Long>();
+        // We use an unboundedQ (MPSC queue of primitive longs, with a growable overflow) - the risk of running OUtOfMemory exists for a very large number of entries showing a more systematic problem...
+        this.inflightEvents = new LongRingBuffer(INFLIGHT_RING_CAPACITY);
+        this.polledRecordIdsBuffer = new ThreadLocal<long[]>();
 
         this.databaseTransactionNotificationApi = databaseTransactionNotificationApi;
         databaseTransactionNotificationApi.registerForNotification(this);
@@ -100,18 +139,46 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
         });
 
         this.transientInflightQRowIdCache = new TransientInflightQRowIdCache(queueId);
+
+        this.wakeupTransport = wakeupTransport != null ? wakeupTransport : createWakeupTransport();
+        this.localRecordIds = new ConcurrentSkipListSet<Long>();
+        this.isPullRequested = new AtomicBoolean(false);
+        this.isPulling = new AtomicBoolean(false);
+        this.pullWatermark = -1;
+    }
+
+    private WakeupTransport createWakeupTransport() {
+        final WakeupTransportType wakeupTransportType = config.getWakeupTransport();
+        if (wakeupTransportType == WakeupTransportType.LISTEN_NOTIFY) {
+            return new PostgreSQLWakeupTransport(dbi, config.getTableName());
+        } else if (wakeupTransportType == WakeupTransportType.WATERMARK) {
+            return new WatermarkWakeupTransport(sqlDao, config.getTableName(), config.getWakeupWatermarkSleepTimeMs());
+        } else {
+            return null;
+        }
     }
 
     @Override
     public void initialize() {
 
         initializeInflightQueue();
-        log.info("{} Initialized with queueId={}, mode={}",
-                 DB_QUEUE_LOG_ID, queueId, config.getPersistentQueueMode());
+        if (wakeupTransport != null) {
+            wakeupTransport.start(new WakeupListener() {
+                @Override
+                public void onWakeup() {
+                    pullCommittedEntries();
+                }
+            });
+        }
+        log.info("{} Initialized with queueId={}, mode={}, wakeupTransport={}",
+                 DB_QUEUE_LOG_ID, queueId, config.getPersistentQueueMode(), wakeupTransport != null ? wakeupTransport.getClass().getSimpleName() : "none");
     }
 
     @Override
     public void close() {
+        if (wakeupTransport != null) {
+            wakeupTransport.stop();
+        }
         databaseTransactionNotificationApi.unregisterForNotification(this);
     }
 
@@ -128,46 +195,71 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
         // It keeps track of it as a per thread data. Very soon, when the transaction gets committed/rolled back it can then extract the info
         // and insert the recordId into a blockingQ that is highly optimized to dispatch events.
         transientInflightQRowIdCache.addRowId(lastInsertId);
+        trackLocalRecordId(lastInsertId);
     }
 
-    private long pollEntriesFromInflightQ(final List<Long> result) {
-
-        long pollSleepTime = 0;
-        inflightEvents.drainTo(result, config.getMaxInFlightEntries());
-        if (result.isEmpty()) {
-            try {
-                long beforePollTime = System.nanoTime();
-                // We block until we see the first entry or reach the timeout (in which case we will rerun the doDispatchEvents() loop and come back here).
-                final Long entryId = inflightEvents.poll(INFLIGHT_POLLING_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
-                // Maybe there was at least one entry and we did not sleep at all, in which case this time is close to 0.
-                pollSleepTime = System.nanoTime() - beforePollTime;
-                if (entryId != null) {
-                    result.add(entryId);
-                }
-            } catch (final InterruptedException e) {
-                Thread.currentThread().interrupt();
-                log.warn("{} Got interrupted", DB_QUEUE_LOG_ID);
-                return 0;
+    @Override
+    public void insertEntriesFromTransaction(final QueueSqlDao<T> transactional, final List<T> entries) {
+        final List<Long> lastInsertIds = safeInsertEntries(transactional, entries);
+        // See insertEntryFromTransaction
+        for (final Long lastInsertId : lastInsertIds) {
+            if (lastInsertId != null && lastInsertId > 0) {
+                transientInflightQRowIdCache.addRowId(lastInsertId);
+                trackLocalRecordId(lastInsertId);
             }
         }
-        return pollSleepTime;
+    }
+
+    // Returns the number of recordIds added to result (starting at offset), or -1 if we got interrupted
+    private int pollEntriesFromInflightQ(final long[] result, final int offset, final long[] pollSleepTime) {
+
+        final int nbDrained = inflightEvents.drainTo(result, offset, result.length - offset);
+        if (nbDrained > 0) {
+            return nbDrained;
+        }
+
+        try {
+            final long beforePollTime = System.nanoTime();
+            // We block until we see the first entry or reach the timeout (in which case we will rerun the doDispatchEvents() loop and come back here).
+            final int nbPolled = inflightEvents.poll(result, offset, 1, INFLIGHT_POLLING_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+            // Maybe there was at least one entry and we did not sleep at all, in which case this time is close to 0.
+            pollSleepTime[0] += System.nanoTime() - beforePollTime;
+            return nbPolled;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("{} Got interrupted", DB_QUEUE_LOG_ID);
+            return -1;
+        }
     }
 
     @Override
     public ReadyEntriesWithMetrics<T> getReadyEntries() {
 
         final long ini = System.nanoTime();
-        long pollSleepTime = 0;
+        final long[] pollSleepTime = {0};
 
-        final List<Long> recordIds = new ArrayList<Long>(config.getMaxInFlightEntries());
+        long[] polledRecordIds = polledRecordIdsBuffer.get();
+        if (polledRecordIds == null || polledRecordIds.length != config.getMaxInFlightEntries()) {
+            polledRecordIds = new long[config.getMaxInFlightEntries()];
+            polledRecordIdsBuffer.set(polledRecordIds);
+        }
+        int nbRecordIds = 0;
         do {
-            pollSleepTime += pollEntriesFromInflightQ(recordIds);
-        } while (recordIds.size() < config.getMinInFlightEntries() && pollSleepTime < INFLIGHT_POLLING_TIMEOUT_MSEC);
+            final int nbPolled = pollEntriesFromInflightQ(polledRecordIds, nbRecordIds, pollSleepTime);
+            if (nbPolled < 0) {
+                break;
+            }
+            nbRecordIds += nbPolled;
+        } while (nbRecordIds < config.getMinInFlightEntries() && pollSleepTime[0] < INFLIGHT_POLLING_TIMEOUT_MSEC);
 
 
         List<T> entries = ImmutableList.<T>of();
-        if (!recordIds.isEmpty()) {
-            log.debug("{} fetchReadyEntriesFromIds: {}", DB_QUEUE_LOG_ID, recordIds);
+        if (nbRecordIds > 0) {
+            // Bound as primitives (see BindLongsIn)
+            final long[] recordIds = Arrays.copyOf(polledRecordIds, nbRecordIds);
+            if (log.isDebugEnabled()) {
+                log.debug("{} fetchReadyEntriesFromIds: {}", DB_QUEUE_LOG_ID, Arrays.toString(recordIds));
+            }
 
             entries = executeQuery(new Query<List<T>, QueueSqlDao<T>>() {
                 @Override
@@ -180,7 +272,7 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
                 }
             });
         }
-        return new ReadyEntriesWithMetrics<T>(entries, (System.nanoTime() - ini) - pollSleepTime);
+        return new ReadyEntriesWithMetrics<T>(entries, (System.nanoTime() - ini) - pollSleepTime[0]);
 
     }
 
@@ -196,6 +288,15 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
         });
     }
 
+    @Override
+    protected void updateOnErrorFromTransaction(final QueueSqlDao<T> transactional, final Iterable<T> entries) {
+        super.updateOnErrorFromTransaction(transactional, entries);
+        // Entries will be re-inserted into the inflightQ when the transaction commits
+        for (final T entry : entries) {
+            transientInflightQRowIdCache.addRowId(entry.getRecordId());
+        }
+    }
+
     @Override
     protected void insertReapedEntriesFromTransaction(final QueueSqlDao<T> transactional, final List<T> entriesLeftBehind, final DateTime now) {
         for (final T entry : entriesLeftBehind) {
@@ -222,22 +323,80 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
         }
 
         try {
-            // Add entry in the inflightQ and clear threadlocal
-            final Iterator<Long> entries = transientInflightQRowIdCache.iterator();
-            while (entries.hasNext()) {
-                final Long entry = entries.next();
-                final boolean result = inflightEvents.offer(entry);
-                if (result) {
-                    log.debug("{} Inserting entry {} into inflightQ", DB_QUEUE_LOG_ID, entry);
-                } else {
-                    log.warn("{} Inflight Q overflowed....", DB_QUEUE_LOG_ID, entry);
+            // Add entries in the inflightQ and clear threadlocal
+            final int nbEntries = transientInflightQRowIdCache.size();
+            final long[] entries = transientInflightQRowIdCache.rowIds();
+            final int nbInserted = inflightEvents.offerAll(entries, nbEntries);
+            if (wakeupTransport != null && nbEntries > 0) {
+                wakeupTransport.signal();
+            }
+            if (nbInserted == nbEntries) {
+                if (log.isDebugEnabled()) {
+                    log.debug("{} Inserting entries {} into inflightQ", DB_QUEUE_LOG_ID, Arrays.toString(Arrays.copyOf(entries, nbEntries)));
                 }
+            } else {
+                log.warn("{} Inflight Q overflowed, dropped entries {}", DB_QUEUE_LOG_ID, Arrays.toString(Arrays.copyOfRange(entries, nbInserted, nbEntries)));
             }
         } finally {
             transientInflightQRowIdCache.reset();
         }
     }
 
+    // Recorded before the commit, so that a pull racing with the commit cannot see the entry as foreign
+    private void trackLocalRecordId(final long recordId) {
+        if (wakeupTransport != null && recordId > pullWatermark) {
+            localRecordIds.add(recordId);
+        }
+    }
+
+    //
+    // Invoked by the wakeup transport: add the ready entries committed (for this node) outside of this JVM to the inflightQ.
+    // Wakeups received while pulling are coalesced into one more pull. Note that an entry committed after entries with a
+    // higher recordId may be missed, and left to the reaper.
+    //
+    private void pullCommittedEntries() {
+        isPullRequested.set(true);
+        while (isPullRequested.get() && isPulling.compareAndSet(false, true)) {
+            try {
+                isPullRequested.set(false);
+                doPullCommittedEntries();
+            } catch (final RuntimeException e) {
+                log.warn("{} Failed to pull committed entries", DB_QUEUE_LOG_ID, e);
+            } finally {
+                isPulling.set(false);
+            }
+        }
+    }
+
+    private void doPullCommittedEntries() {
+        int nbPulled = 0;
+        List<Long> recordIds;
+        do {
+            recordIds = ((PersistentBusSqlDao) sqlDao).getReadyEntryIds(clock.getUTCNow().toDate(), pullWatermark + 1, MAX_FETCHED_RECORDS_ID, CreatorName.get(), config.getTableName());
+            if (recordIds.isEmpty()) {
+                break;
+            }
+
+            final long[] foreignRecordIds = new long[recordIds.size()];
+            int nbForeign = 0;
+            for (final Long recordId : recordIds) {
+                if (!localRecordIds.remove(recordId)) {
+                    foreignRecordIds[nbForeign++] = recordId;
+                }
+            }
+            inflightEvents.offerAll(foreignRecordIds, nbForeign);
+            nbPulled += nbForeign;
+
+            pullWatermark = recordIds.get(recordIds.size() - 1);
+            // Local entries below the watermark can't be pulled anymore
+            localRecordIds.headSet(pullWatermark, true).clear();
+        } while (recordIds.size() == MAX_FETCHED_RECORDS_ID);
+
+        if (nbPulled > 0) {
+            log.debug("{} Pulled {} committed entries into inflightQ, watermark={}", DB_QUEUE_LOG_ID, nbPulled, pullWatermark);
+        }
+    }
+
     @VisibleForTesting
     public int getInflightQSize() {
         return inflightEvents.size();
@@ -260,7 +419,7 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
             return (entry != null && entry.queueId == queueId);
         }
 
-        public void addRowId(final Long rowId) {
+        public void addRowId(final long rowId) {
             RowRef entry = rowRefThreadLocal.get();
             if (entry == null) {
                 entry = new RowRef(queueId);
@@ -273,29 +432,37 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
             rowRefThreadLocal.remove();
         }
 
-        public Iterator<Long> iterator() {
+        public int size() {
             final RowRef entry = rowRefThreadLocal.get();
             Preconditions.checkNotNull(entry);
-            return entry.iterator();
+            return entry.size;
+        }
+
+        // Only the first size() elements are valid
+        public long[] rowIds() {
+            final RowRef entry = rowRefThreadLocal.get();
+            Preconditions.checkNotNull(entry);
+            return entry.rowIds;
         }
 
         // Internal structure to keep track of recordId per queue
         private static final class RowRef {
 
             private final int queueId;
-            private final List<Long> rowIds;
+            private long[] rowIds;
+            private int size;
 
             public RowRef(final int queueId) {
                 this.queueId = queueId;
-                this.rowIds = new ArrayList<Long>();
+                this.rowIds = new long[ROW_REF_INITIAL_CAPACITY];
+                this.size = 0;
             }
 
             public void addRowId(final long rowId) {
-                rowIds.add(rowId);
-            }
-
-            public Iterator<Long> iterator() {
-                return rowIds.iterator();
+                if (size == rowIds.length) {
+                    rowIds = Arrays.copyOf(rowIds, size * 2);
+                }
+                rowIds[size++] = rowId;
             }
         }
     }
@@ -306,20 +473,25 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
 
         int totalEntries = 0;
         long fromRecordId = -1;
+        long lastRecordId = -1;
         do {
             final List<Long> existingIds = ((PersistentBusSqlDao) sqlDao).getReadyEntryIds(clock.getUTCNow().toDate(), fromRecordId, MAX_FETCHED_RECORDS_ID, CreatorName.get(), config.getTableName());
             if (existingIds.isEmpty()) {
                 break;
             }
 
-            inflightEvents.addAll(existingIds);
+            inflightEvents.offerAll(Longs.toArray(existingIds), existingIds.size());
             totalEntries += existingIds.size();
+            lastRecordId = existingIds.get(existingIds.size() - 1);
             if (existingIds.size() < MAX_FETCHED_RECORDS_ID) {
                 break;
             }
-            fromRecordId = existingIds.get(existingIds.size() - 1) + 1;
+            fromRecordId = lastRecordId + 1;
         } while (true);
 
+        // Entries loaded above must not be pulled again
+        pullWatermark = lastRecordId;
+
         log.info("{} Inserting {} entries into inflightQ during initialization",
                  DB_QUEUE_LOG_ID, totalEntries);
 
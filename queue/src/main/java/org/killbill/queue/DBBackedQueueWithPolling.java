@@ -19,6 +19,7 @@
 
 package org.killbill.queue;
 
+import java.sql.DatabaseMetaData;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
@@ -32,19 +33,26 @@ import org.killbill.queue.api.PersistentQueueConfig.PersistentQueueMode;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.dao.EventEntryModelDao;
 import org.killbill.queue.dao.QueueSqlDao;
+import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.IDBI;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.tweak.HandleCallback;
 
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.primitives.Longs;
 
 public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBackedQueue<T> {
 
+    // Only relevant in POLLING_SKIP_LOCKED mode: whether the underlying database supports FOR UPDATE SKIP LOCKED
+    private volatile boolean skipLockedSupported;
+
     public DBBackedQueueWithPolling(final Clock clock,
                                     final IDBI dbi,
                                     final Class<? extends QueueSqlDao<T>> sqlDaoClass,
@@ -56,8 +64,20 @@ public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBa
 
     @Override
     public void initialize() {
-        log.info("{} Initialized  mode={}",
-                 DB_QUEUE_LOG_ID, config.getPersistentQueueMode());
+        if (config.getPersistentQueueMode() == PersistentQueueMode.POLLING_SKIP_LOCKED) {
+            skipLockedSupported = dbi.withHandle(new HandleCallback<Boolean>() {
+                @Override
+                public Boolean withHandle(final Handle handle) throws Exception {
+                    final DatabaseMetaData metaData = handle.getConnection().getMetaData();
+                    return isSkipLockedSupported(metaData.getDatabaseProductName(), metaData.getDatabaseMajorVersion(), metaData.getDatabaseMinorVersion());
+                }
+            });
+            if (!skipLockedSupported) {
+                log.warn("{} Database does not support SKIP LOCKED, falling back to FOR UPDATE: concurrent nodes will serialize on claims", DB_QUEUE_LOG_ID);
+            }
+        }
+        log.info("{} Initialized  mode={}, skipLockedSupported={}",
+                 DB_QUEUE_LOG_ID, config.getPersistentQueueMode(), skipLockedSupported);
     }
 
     @Override
@@ -72,13 +92,18 @@ public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBa
 
     @Override
     public ReadyEntriesWithMetrics<T> getReadyEntries() {
+        return getReadyEntries(config.getMaxEntriesClaimed());
+    }
+
+    @Override
+    public ReadyEntriesWithMetrics<T> getReadyEntries(final int maxEntries) {
         final long ini = System.nanoTime();
         final List<T> claimedEntries = executeTransaction(new Transaction<List<T>, QueueSqlDao<T>>() {
             @Override
             public List<T> inTransaction(final QueueSqlDao<T> queueSqlDao, final TransactionStatus status) throws Exception {
                 final DateTime now = clock.getUTCNow();
 
-                final List<T> entriesToClaim = fetchReadyEntries(now, config.getMaxEntriesClaimed(), queueSqlDao);
+                final List<T> entriesToClaim = fetchReadyEntries(now, Math.min(maxEntries, config.getMaxEntriesClaimed()), queueSqlDao);
 
                 List<T> claimedEntries = ImmutableList.of();
                 if (!entriesToClaim.isEmpty()) {
@@ -117,9 +142,15 @@ public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBa
     }
 
     private List<T> fetchReadyEntries(final DateTime now, final int maxEntries, final QueueSqlDao<T> queueSqlDao) {
-        final String owner = config.getPersistentQueueMode() == PersistentQueueMode.POLLING ? null : CreatorName.get();
+        final String owner = isNonStickyMode() ? null : CreatorName.get();
         final long ini = System.nanoTime();
-        final List<T> result = queueSqlDao.getReadyEntries(now.toDate(), maxEntries, owner, config.getTableName());
+        final List<T> result;
+        if (config.getPersistentQueueMode() == PersistentQueueMode.POLLING_SKIP_LOCKED) {
+            // Rows are locked until the end of the transaction, which allows to claim them all at once below
+            result = queueSqlDao.getReadyEntriesForUpdate(now.toDate(), maxEntries, owner, skipLockedSupported, config.getTableName());
+        } else {
+            result = queueSqlDao.getReadyEntries(now.toDate(), maxEntries, owner, config.getTableName());
+        }
         rawGetEntriesTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
         return result;
     }
@@ -130,6 +161,7 @@ public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBa
                 return sequentialClaimEntries(now, candidates, queueSqlDao);
 
             case STICKY_POLLING:
+            case POLLING_SKIP_LOCKED:
                 return batchClaimEntries(now, candidates, queueSqlDao);
 
             default:
@@ -156,14 +188,15 @@ public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBa
         final int resultCount = queueSqlDao.claimEntries(recordIds, owner, nextAvailable, config.getTableName());
         rawClaimEntriesTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
 
-        // We should ALWAYS see the same number since we are in STICKY_POLLING mode and there is only one thread claiming entries.
+        // We should ALWAYS see the same number since we are either in STICKY_POLLING mode and there is only one thread claiming entries,
+        // or in POLLING_SKIP_LOCKED mode and the candidate rows are locked by our transaction.
         // We keep the 2 cases below for safety (code was written when this was MT-threaded), and we log with warn (will eventually remove it in the future)
         if (resultCount == candidates.size()) {
             log.debug("{} batchClaimEntries claimed (recordIds={}, now={}, nextAvailable={}, owner={}): {}",
                       DB_QUEUE_LOG_ID, recordIds, now, nextAvailable, owner, candidates);
             return candidates;
         } else {
-            final List<T> maybeClaimedEntries = queueSqlDao.getEntriesFromIds(ImmutableList.copyOf(recordIds), config.getTableName());
+            final List<T> maybeClaimedEntries = queueSqlDao.getEntriesFromIds(Longs.toArray(recordIds), config.getTableName());
             final StringBuilder stringBuilder = new StringBuilder();
             for (int i = 0; i < maybeClaimedEntries.size(); i++) {
                 final T eventEntryModelDao = maybeClaimedEntries.get(i);
@@ -202,6 +235,23 @@ public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBa
         }));
     }
 
+    @VisibleForTesting
+    static boolean isSkipLockedSupported(final String databaseProductName, final int majorVersion, final int minorVersion) {
+        if (databaseProductName == null) {
+            return false;
+        }
+        final String productName = databaseProductName.toLowerCase();
+        if (productName.contains("mysql")) {
+            return majorVersion >= 8;
+        } else if (productName.contains("mariadb")) {
+            return majorVersion > 10 || (majorVersion == 10 && minorVersion >= 6);
+        } else if (productName.contains("postgresql")) {
+            return majorVersion > 9 || (majorVersion == 9 && minorVersion >= 5);
+        } else {
+            return false;
+        }
+    }
+
     private boolean claimEntry(final DateTime now, final T entry, final QueueSqlDao<T> queueSqlDao) {
         final Date nextAvailable = now.plus(config.getClaimedTime().getMillis()).toDate();
 
@@ -21,13 +21,19 @@ package org.killbill.queue;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.killbill.commons.concurrent.Executors;
 import org.killbill.queue.api.PersistentQueueConfig;
 import org.killbill.queue.api.QueueLifecycle;
+import org.killbill.queue.codec.DefaultQueueEventCodec;
+import org.killbill.queue.codec.QueueEventCodec;
 import org.killbill.queue.dao.EventEntryModelDao;
 import org.skife.jdbi.v2.exceptions.DBIException;
 import org.slf4j.Logger;
@@ -49,12 +55,10 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
 
     private static final long MAX_SLEEP_TIME_MS = 100;
 
-    // Max size of the batch we allow
-    private static final int MAX_COMPLETED_ENTRIES = 15;
-
 
     protected final String svcQName;
     protected final ObjectMapper objectMapper;
+    protected final QueueEventCodec eventCodec;
     protected final PersistentQueueConfig config;
     private final LinkedBlockingQueue<EventEntryModelDao> completedOrFailedEvents;
     private final LinkedBlockingQueue<EventEntryModelDao> retriedEvents;
@@ -66,7 +70,15 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
     private final Histogram dispatchedEntries;
     // Nb of entries completed at each loop
     private final Histogram completeEntries;
+    // Time between the first entry of a batch being picked up and the batch being written (includes the batch window)
+    private final Timer completeLatency;
     private final boolean isStickyEvent;
+    // Incremented each time the dispatcher threads are asked to wake up
+    private final AtomicLong dispatchWakeUps;
+    private final ReentrantLock dispatchWakeUpLock;
+    private final Condition dispatchWakeUpCondition;
+    // One per dispatcher thread, when adaptive polling is enabled
+    private final List<AdaptivePollingController> adaptivePollingControllers;
     private volatile boolean isProcessingEvents;
     // Deferred in start sequence to allow for restart, which is not possible after the shutdown (mostly for test purpose)
     private ExecutorService executor;
@@ -79,15 +91,41 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
         this.config = config;
         this.isProcessingEvents = false;
         this.objectMapper = objectMapper;
+        this.eventCodec = QueueObjectMapper.newCodec(objectMapper, config);
         this.completedOrFailedEvents = new LinkedBlockingQueue<>();
         this.retriedEvents = new LinkedBlockingQueue<>();
         this.isStickyEvent = config.getPersistentQueueMode() == PersistentQueueConfig.PersistentQueueMode.STICKY_EVENTS;
+        this.dispatchWakeUps = new AtomicLong();
+        this.dispatchWakeUpLock = new ReentrantLock();
+        this.dispatchWakeUpCondition = dispatchWakeUpLock.newCondition();
+        this.adaptivePollingControllers = new CopyOnWriteArrayList<>();
 
         this.dispatchTime = metricRegistry.timer(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "dispatchTime"));
         this.completeTime = metricRegistry.timer(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "completeTime"));
 
         this.dispatchedEntries = metricRegistry.histogram(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "dispatchedEntries"));
         this.completeEntries = metricRegistry.histogram(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "completeEntries"));
+        this.completeLatency = metricRegistry.timer(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "completeLatency"));
+
+        if (config.getEventCompressionThreshold() > 0 && eventCodec instanceof DefaultQueueEventCodec) {
+            final DefaultQueueEventCodec defaultQueueEventCodec = (DefaultQueueEventCodec) eventCodec;
+            metricRegistry.register(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "eventCodec", "compressionRatio"), new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return defaultQueueEventCodec.getCompressionRatio();
+                }
+            });
+            metricRegistry.register(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "eventCodec", "bytesSaved"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return defaultQueueEventCodec.getBytesSaved();
+                }
+            });
+        }
+
+        if (isAdaptivePolling()) {
+            registerAdaptivePollingMetrics(metricRegistry);
+        }
 
         metricRegistry.register(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "completedOrFailedEvents", "size"), new Gauge<Integer>() {
             @Override
@@ -95,20 +133,30 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
                 return completedOrFailedEvents.size();
             }
         });
+        metricRegistry.register(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "retriedEvents", "size"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return retriedEvents.size();
+            }
+        });
     }
 
     @Override
     public boolean startQueue() {
 
-        this.executor = Executors.newFixedThreadPool(config.geNbLifecycleDispatchThreads() + config.geNbLifecycleCompleteThreads(),
+        final int nbDispatchPartitions = getNbDispatchPartitions();
+        this.executor = Executors.newFixedThreadPool(nbDispatchPartitions * config.geNbLifecycleDispatchThreads() + config.geNbLifecycleCompleteThreads(),
                                                      config.getTableName() + "-lifecycle-th");
 
         log.info("{}: Starting...", svcQName);
 
         isProcessingEvents = true;
+        adaptivePollingControllers.clear();
 
-        for (int i = 0; i < config.geNbLifecycleDispatchThreads(); i++) {
-            executor.execute(new DispatcherRunnable());
+        for (int partition = 0; partition < nbDispatchPartitions; partition++) {
+            for (int i = 0; i < config.geNbLifecycleDispatchThreads(); i++) {
+                executor.execute(new DispatcherRunnable(partition));
+            }
         }
 
         for (int i = 0; i < config.geNbLifecycleCompleteThreads(); i++) {
@@ -145,22 +193,112 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
 
     public abstract DispatchResultMetrics doDispatchEvents();
 
+    // Queues backed by several tables get geNbLifecycleDispatchThreads() dispatcher threads per partition
+    protected int getNbDispatchPartitions() {
+        return 1;
+    }
+
+    public DispatchResultMetrics doDispatchEvents(final int partition) {
+        return doDispatchEvents();
+    }
+
+    // Time to sleep before the next dispatch loop (not used in STICKY_EVENTS mode), pollingSleepTimeMs being either
+    // the configured one or the one computed by the AdaptivePollingController
+    protected long getDispatchSleepTimeMs(final long loopTimeMsec, final long pollingSleepTimeMs) {
+        return pollingSleepTimeMs - loopTimeMsec;
+    }
+
+    // Called by the Dispatcher when it can accept entries again, after entries could not be claimed for lack of capacity
+    public void onDispatchCapacityAvailable() {
+        wakeUpDispatchers();
+    }
+
+    // Nb of entries dispatched but not yet picked up by a handler thread, used to throttle adaptive polling
+    protected int getDispatcherBacklog() {
+        return 0;
+    }
+
+    private boolean isAdaptivePolling() {
+        return config.isAdaptivePolling() && !isStickyEvent;
+    }
+
+    private void registerAdaptivePollingMetrics(final MetricRegistry metricRegistry) {
+        metricRegistry.register(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "adaptivePolling", "sleepTime"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                long sleepTimeMs = 0;
+                for (final AdaptivePollingController controller : adaptivePollingControllers) {
+                    sleepTimeMs = Math.max(sleepTimeMs, controller.getSleepTimeMs());
+                }
+                return sleepTimeMs;
+            }
+        });
+        metricRegistry.register(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "adaptivePolling", "emptyLoops"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                int nbEmptyLoops = 0;
+                for (final AdaptivePollingController controller : adaptivePollingControllers) {
+                    nbEmptyLoops = Math.max(nbEmptyLoops, controller.getNbEmptyLoops());
+                }
+                return nbEmptyLoops;
+            }
+        });
+        metricRegistry.register(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "adaptivePolling", "dispatcherBacklog"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getDispatcherBacklog();
+            }
+        });
+    }
+
+    // Interrupt the sleep of the dispatcher threads, so that they run a new dispatch loop right away
+    protected void wakeUpDispatchers() {
+        dispatchWakeUpLock.lock();
+        try {
+            dispatchWakeUps.incrementAndGet();
+            dispatchWakeUpCondition.signalAll();
+        } finally {
+            dispatchWakeUpLock.unlock();
+        }
+    }
+
     public abstract void doProcessCompletedEvents(final Iterable<? extends EventEntryModelDao> completed);
 
     public abstract void doProcessRetriedEvents(final Iterable<? extends EventEntryModelDao> retried);
 
+    // Subclasses should override to write both sets of entries in a single transaction
+    public void doProcessCompletedAndRetriedEvents(final Iterable<? extends EventEntryModelDao> completed, final Iterable<? extends EventEntryModelDao> retried) {
+        if (completed.iterator().hasNext()) {
+            doProcessCompletedEvents(completed);
+        }
+        if (retried.iterator().hasNext()) {
+            doProcessRetriedEvents(retried);
+        }
+    }
+
     public ObjectMapper getObjectMapper() {
         return objectMapper;
     }
 
+    public QueueEventCodec getEventCodec() {
+        return eventCodec;
+    }
+
     public static class DispatchResultMetrics {
 
         private final int nbEntries;
         private final long timeNanoSec;
+        // Nothing was claimed because the Dispatcher had no credits left (see Dispatcher#reserveCredits)
+        private final boolean isOutOfCredits;
 
         public DispatchResultMetrics(final int nbEntries, final long timeNanoSec) {
+            this(nbEntries, timeNanoSec, false);
+        }
+
+        public DispatchResultMetrics(final int nbEntries, final long timeNanoSec, final boolean isOutOfCredits) {
             this.nbEntries = nbEntries;
             this.timeNanoSec = timeNanoSec;
+            this.isOutOfCredits = isOutOfCredits;
         }
 
         public int getNbEntries() {
@@ -170,6 +308,10 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
         public long getTimeNanoSec() {
             return timeNanoSec;
         }
+
+        public boolean isOutOfCredits() {
+            return isOutOfCredits;
+        }
     }
 
     private final class CompletionRunnable implements Runnable {
@@ -192,29 +334,32 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
                     withHandlingRuntimeException(new RunnableRawCallback() {
                         @Override
                         public void callback() throws InterruptedException {
-                            long ini = System.nanoTime();
-                            long pollSleepTime = 0;
-                            final List<EventEntryModelDao> completed = new ArrayList<>(MAX_COMPLETED_ENTRIES);
-                            completedOrFailedEvents.drainTo(completed, MAX_COMPLETED_ENTRIES);
-                            if (completed.isEmpty()) {
-                                long beforePollTime = System.nanoTime();
+                            final int batchSize = config.getLifecycleCompleteBatchSize();
+                            final List<EventEntryModelDao> completed = new ArrayList<>(batchSize);
+                            final List<EventEntryModelDao> retried = new ArrayList<>();
+
+                            drainCompletedAndRetriedEvents(completed, retried, batchSize);
+                            if (completed.isEmpty() && retried.isEmpty()) {
                                 final EventEntryModelDao entry = completedOrFailedEvents.poll(MAX_SLEEP_TIME_MS, TimeUnit.MILLISECONDS);
-                                pollSleepTime = System.nanoTime() - beforePollTime;
                                 if (entry != null) {
                                     completed.add(entry);
                                 }
+                                drainCompletedAndRetriedEvents(completed, retried, batchSize);
+                                if (completed.isEmpty() && retried.isEmpty()) {
+                                    return;
+                                }
                             }
 
-                            if (!completed.isEmpty()) {
-                                doProcessCompletedEvents(completed);
-                            }
+                            final long batchStart = System.nanoTime();
+                            waitForBatchWindow(completed, retried, batchSize, batchStart);
 
-                            int retried = drainRetriedEvents();
-                            final int completeOrRetried = completed.size() + retried;
-                            if (completeOrRetried > 0) {
-                                completeEntries.update(completeOrRetried);
-                                completeTime.update((System.nanoTime() - ini) - pollSleepTime, TimeUnit.NANOSECONDS);
-                            }
+                            final long ini = System.nanoTime();
+                            doProcessCompletedAndRetriedEvents(completed, retried);
+                            final long fini = System.nanoTime();
+
+                            completeEntries.update(completed.size() + retried.size());
+                            completeTime.update(fini - ini, TimeUnit.NANOSECONDS);
+                            completeLatency.update(fini - batchStart, TimeUnit.NANOSECONDS);
                         }
                     });
                 }
@@ -227,19 +372,45 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
             }
         }
 
-        private int drainRetriedEvents() {
-            final int curSize = retriedEvents.size();
-            if (curSize > 0) {
-                final List<EventEntryModelDao> retried = new ArrayList<>(curSize);
-                retriedEvents.drainTo(retried, curSize);
-                doProcessRetriedEvents(retried);
+        private void drainCompletedAndRetriedEvents(final List<EventEntryModelDao> completed, final List<EventEntryModelDao> retried, final int batchSize) {
+            // Retried entries first, so they cannot be starved by a steady flow of completed ones
+            retriedEvents.drainTo(retried, batchSize - completed.size() - retried.size());
+            completedOrFailedEvents.drainTo(completed, batchSize - completed.size() - retried.size());
+        }
+
+        // Coalesce more entries into a partial batch, for up to the configured window
+        private void waitForBatchWindow(final List<EventEntryModelDao> completed, final List<EventEntryModelDao> retried, final int batchSize, final long batchStart) throws InterruptedException {
+            final long batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(config.getLifecycleCompleteBatchWindowMs());
+            while (completed.size() + retried.size() < batchSize) {
+                final long remainingNanos = batchWindowNanos - (System.nanoTime() - batchStart);
+                if (remainingNanos <= 0 || !isProcessingEvents) {
+                    break;
+                }
+                // Retried entries are rare, we only block on the completed ones and pick up the retried ones along the way
+                final EventEntryModelDao entry = completedOrFailedEvents.poll(Math.min(remainingNanos, TimeUnit.MILLISECONDS.toNanos(MAX_SLEEP_TIME_MS)), TimeUnit.NANOSECONDS);
+                if (entry != null) {
+                    completed.add(entry);
+                }
+                drainCompletedAndRetriedEvents(completed, retried, batchSize);
             }
-            return curSize;
         }
     }
 
     private final class DispatcherRunnable implements Runnable {
 
+        private final int partition;
+        private final AdaptivePollingController adaptivePollingController;
+
+        private DispatcherRunnable(final int partition) {
+            this.partition = partition;
+            if (isAdaptivePolling()) {
+                this.adaptivePollingController = new AdaptivePollingController(config.getPollingSleepTimeMs(), config.getPollingMaxSleepTimeMs(), config.getMaxEntriesClaimed());
+                adaptivePollingControllers.add(adaptivePollingController);
+            } else {
+                this.adaptivePollingController = null;
+            }
+        }
+
         @Override
         public void run() {
 
@@ -258,11 +429,13 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
                     withHandlingRuntimeException(new RunnableRawCallback() {
                         @Override
                         public void callback() throws InterruptedException {
+                            // Read before the loop, so that a wake up happening while we dispatch is not lost
+                            final long wakeUpsBeforeLoop = dispatchWakeUps.get();
                             final long beforeLoop = System.nanoTime();
-                            dispatchEvents();
+                            final DispatchResultMetrics metricsResult = dispatchEvents();
                             final long afterLoop = System.nanoTime();
 
-                            sleepSporadically((afterLoop - beforeLoop) / ONE_MILLION);
+                            sleepSporadically((afterLoop - beforeLoop) / ONE_MILLION, metricsResult, wakeUpsBeforeLoop);
                         }
                     });
                 }
@@ -276,32 +449,63 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
         }
 
 
-        private void dispatchEvents() {
+        private DispatchResultMetrics dispatchEvents() {
 
             long ini = System.nanoTime();
-            final DispatchResultMetrics metricsResult = doDispatchEvents();
+            final DispatchResultMetrics metricsResult = doDispatchEvents(partition);
             dispatchedEntries.update(metricsResult.getNbEntries());
             if (isStickyEvent) {
                 dispatchTime.update(metricsResult.getTimeNanoSec(), TimeUnit.NANOSECONDS);
             } else {
                 dispatchTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
             }
+            return metricsResult;
         }
 
-        private void sleepSporadically(final long loopTimeMsec) throws InterruptedException {
+        private void sleepSporadically(final long loopTimeMsec, final DispatchResultMetrics metricsResult, final long wakeUpsBeforeLoop) throws InterruptedException {
             if (isStickyEvent) {
                 // In this mode, the main thread does not sleep, but blocks on the inflightQ to minimize latency.
                 return;
             }
 
-            long remainingSleepTime = config.getPollingSleepTimeMs() - loopTimeMsec;
+            final long pollingSleepTimeMs;
+            if (adaptivePollingController == null) {
+                pollingSleepTimeMs = config.getPollingSleepTimeMs();
+            } else if (metricsResult.isOutOfCredits()) {
+                pollingSleepTimeMs = adaptivePollingController.nextSleepTimeMsWithoutCredits();
+            } else {
+                pollingSleepTimeMs = adaptivePollingController.nextSleepTimeMs(metricsResult.getNbEntries(), getDispatcherBacklog());
+            }
+            long remainingSleepTime = getDispatchSleepTimeMs(loopTimeMsec, pollingSleepTimeMs);
             while (remainingSleepTime > 0) {
                 final long curSleepTime = remainingSleepTime > MAX_SLEEP_TIME_MS ? MAX_SLEEP_TIME_MS : remainingSleepTime;
-                Thread.sleep(curSleepTime);
+                if (awaitWakeUp(curSleepTime, wakeUpsBeforeLoop)) {
+                    if (adaptivePollingController != null) {
+                        adaptivePollingController.reset();
+                    }
+                    return;
+                }
                 remainingSleepTime -= curSleepTime;
             }
         }
 
+        // Returns true if wakeUpDispatchers was called
+        private boolean awaitWakeUp(final long sleepTimeMsec, final long wakeUpsBeforeLoop) throws InterruptedException {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(sleepTimeMsec);
+            dispatchWakeUpLock.lockInterruptibly();
+            try {
+                while (dispatchWakeUps.get() == wakeUpsBeforeLoop) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = dispatchWakeUpCondition.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                dispatchWakeUpLock.unlock();
+            }
+        }
+
     }
 
 
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+
+//
+// Hierarchical hashed timing wheel (as described by Varghese & Lauck, and used in Kafka's purgatory): adding an entry is O(1)
+// regardless of how far in the future it is due. Each level has wheelSize buckets spanning tickMs each, entries which do not fit
+// in a level overflow into the next one (whose tick is the whole span of the level below), and are cascaded down as time advances.
+//
+// Only non empty buckets are kept in a priority queue, so that the owner can wait until the next bucket expires instead of ticking.
+// Entries of the lowest level expire at the beginning of their tick, i.e. up to tickMs before their actual deadline: callers should
+// use the deadline returned by expire to know the exact time.
+//
+// All accesses are synchronized on the wheel.
+//
+public class HierarchicalTimingWheel {
+
+    public static final long NO_DEADLINE = Long.MIN_VALUE;
+
+    private final int maxEntries;
+    // Ids of all entries in the wheel, to ignore duplicates
+    private final Set<Long> ids;
+    private final PriorityQueue<Bucket> nonEmptyBuckets;
+    private final Level lowestLevel;
+
+    public HierarchicalTimingWheel(final long tickMs, final int wheelSize, final long startMs, final int maxEntries) {
+        Preconditions.checkArgument(tickMs > 0, "tickMs should be > 0");
+        Preconditions.checkArgument(wheelSize > 1, "wheelSize should be > 1");
+        Preconditions.checkArgument(maxEntries > 0, "maxEntries should be > 0");
+        this.maxEntries = maxEntries;
+        this.ids = new HashSet<Long>();
+        this.nonEmptyBuckets = new PriorityQueue<Bucket>();
+        this.lowestLevel = new Level(tickMs, wheelSize, startMs);
+    }
+
+    // Returns false if the entry is already in the wheel, already expired or if the wheel is full
+    public synchronized boolean add(final long id, final long deadlineMs) {
+        if (ids.size() >= maxEntries || ids.contains(id)) {
+            return false;
+        }
+        if (!lowestLevel.add(new Entry(id, deadlineMs))) {
+            return false;
+        }
+        ids.add(id);
+        return true;
+    }
+
+    // Removes all the entries whose bucket has expired at nowMs and returns the latest deadline among them (NO_DEADLINE if none)
+    public synchronized long expire(final long nowMs) {
+        long latestDeadline = NO_DEADLINE;
+        Bucket bucket = nonEmptyBuckets.peek();
+        while (bucket != null && bucket.expirationMs <= nowMs) {
+            nonEmptyBuckets.poll();
+            lowestLevel.advanceClock(bucket.expirationMs);
+
+            final List<Entry> entries = bucket.flush();
+            for (final Entry entry : entries) {
+                // Cascade the entry to a lower level, or expire it
+                if (!lowestLevel.add(entry)) {
+                    ids.remove(entry.id);
+                    latestDeadline = Math.max(latestDeadline, entry.deadlineMs);
+                }
+            }
+            bucket = nonEmptyBuckets.peek();
+        }
+        return latestDeadline;
+    }
+
+    // Time at which expire should be called next (Long.MAX_VALUE if the wheel is empty)
+    public synchronized long getNextExpirationMs() {
+        final Bucket bucket = nonEmptyBuckets.peek();
+        return bucket == null ? Long.MAX_VALUE : bucket.expirationMs;
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    public synchronized void clear() {
+        for (final Bucket bucket : nonEmptyBuckets) {
+            bucket.flush();
+        }
+        nonEmptyBuckets.clear();
+        ids.clear();
+    }
+
+    private static final class Entry {
+
+        private final long id;
+        private final long deadlineMs;
+
+        private Entry(final long id, final long deadlineMs) {
+            this.id = id;
+            this.deadlineMs = deadlineMs;
+        }
+    }
+
+    private static final class Bucket implements Comparable<Bucket> {
+
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private long expirationMs = -1;
+
+        private List<Entry> flush() {
+            final List<Entry> result = new ArrayList<Entry>(entries);
+            entries.clear();
+            expirationMs = -1;
+            return result;
+        }
+
+        @Override
+        public int compareTo(final Bucket other) {
+            return Long.compare(expirationMs, other.expirationMs);
+        }
+    }
+
+    private final class Level {
+
+        private final long tickMs;
+        private final int wheelSize;
+        private final long intervalMs;
+        private final Bucket[] buckets;
+        // Rounded down to tickMs
+        private long currentTimeMs;
+        // Created lazily, for entries due after intervalMs
+        private Level overflowLevel;
+
+        private Level(final long tickMs, final int wheelSize, final long startMs) {
+            this.tickMs = tickMs;
+            this.wheelSize = wheelSize;
+            this.intervalMs = tickMs * wheelSize;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new Bucket();
+            }
+            this.currentTimeMs = startMs - (startMs % tickMs);
+        }
+
+        // Returns false if the entry has expired
+        private boolean add(final Entry entry) {
+            if (entry.deadlineMs < currentTimeMs + tickMs) {
+                return false;
+            } else if (entry.deadlineMs < currentTimeMs + intervalMs) {
+                final long virtualId = entry.deadlineMs / tickMs;
+                final Bucket bucket = buckets[(int) (virtualId % wheelSize)];
+                bucket.entries.add(entry);
+                final long expirationMs = virtualId * tickMs;
+                if (bucket.expirationMs != expirationMs) {
+                    // The bucket was empty (buckets of a level never overlap in time)
+                    bucket.expirationMs = expirationMs;
+                    nonEmptyBuckets.add(bucket);
+                }
+                return true;
+            } else {
+                if (overflowLevel == null) {
+                    overflowLevel = new Level(intervalMs, wheelSize, currentTimeMs);
+                }
+                return overflowLevel.add(entry);
+            }
+        }
+
+        private void advanceClock(final long timeMs) {
+            if (timeMs >= currentTimeMs + tickMs) {
+                currentTimeMs = timeMs - (timeMs % tickMs);
+                if (overflowLevel != null) {
+                    overflowLevel.advanceClock(currentTimeMs);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+
+//
+// Multi-producer single-consumer queue of primitive longs: unlike a LinkedBlockingQueue<Long>, it does not allocate
+// a node and a boxed Long per element, and producers never take a lock in steady state.
+//
+// Producers claim a slot of a fixed size ring with a CAS on the producer index, and publish the value through the slot
+// sequence (as in Vyukov's bounded queue). When the ring is full, values go to an overflow buffer guarded by a lock, which
+// grows as needed (up to maxCapacity): producers keep using it until it has been drained, so that it cannot starve.
+// Values offered while the overflow starts or ends can be reordered with the overflowed ones.
+//
+// Consumers are serialized (there is usually a single one, e.g. the lifecycle dispatch thread).
+//
+public class LongRingBuffer {
+
+    // Some VMs reserve header words in an array
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int MAX_RING_CAPACITY = 1 << 30;
+
+    private final int maxCapacity;
+
+    private final long[] ring;
+    private final int mask;
+    // Max number of values in the ring (ring.length unless maxCapacity is lower)
+    private final int ringLimit;
+    // Per slot: the producer index it can be claimed for, or that index + 1 once the value is published
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerIndex = new AtomicLong();
+    // Only written by the consumer
+    private volatile long consumerIndex;
+
+    private final ReentrantLock consumerLock = new ReentrantLock();
+    private volatile Thread waitingConsumer;
+
+    private final Object overflowLock = new Object();
+    private volatile boolean isOverflowing;
+    // Guarded by overflowLock
+    private long[] overflow;
+    private int overflowHead;
+    private volatile int overflowSize;
+
+    public LongRingBuffer(final int ringCapacity) {
+        this(ringCapacity, MAX_ARRAY_SIZE);
+    }
+
+    public LongRingBuffer(final int ringCapacity, final int maxCapacity) {
+        Preconditions.checkArgument(ringCapacity > 0 && ringCapacity <= MAX_RING_CAPACITY, "Invalid ringCapacity " + ringCapacity);
+        Preconditions.checkArgument(maxCapacity >= ringCapacity && maxCapacity <= MAX_ARRAY_SIZE, "Invalid maxCapacity " + maxCapacity);
+        // Power of two
+        final int ringLength = ringCapacity == 1 ? 1 : Integer.highestOneBit(ringCapacity - 1) << 1;
+        this.ring = new long[ringLength];
+        this.mask = ringLength - 1;
+        this.ringLimit = Math.min(ringLength, maxCapacity);
+        this.sequences = new AtomicLongArray(ringLength);
+        for (int i = 0; i < ringLength; i++) {
+            sequences.set(i, i);
+        }
+        this.maxCapacity = maxCapacity;
+        this.overflow = new long[0];
+    }
+
+    // Returns false if the queue has reached its maxCapacity
+    public boolean offer(final long value) {
+        final boolean offered = offerWithoutWakeUp(value);
+        if (offered) {
+            wakeUpConsumer();
+        }
+        return offered;
+    }
+
+    // Returns the number of values which were added
+    public int offerAll(final long[] values, final int length) {
+        Preconditions.checkArgument(length >= 0 && length <= values.length);
+        int nbAdded = 0;
+        while (nbAdded < length && offerWithoutWakeUp(values[nbAdded])) {
+            nbAdded++;
+        }
+        if (nbAdded > 0) {
+            wakeUpConsumer();
+        }
+        return nbAdded;
+    }
+
+    // Non blocking: move up to maxElements into dst starting at offset and return how many were moved
+    public int drainTo(final long[] dst, final int offset, final int maxElements) {
+        consumerLock.lock();
+        try {
+            return drainToWithLock(dst, offset, maxElements);
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    // Wait up to the timeout for at least one element, then move up to maxElements into dst starting at offset
+    public int poll(final long[] dst, final int offset, final int maxElements, final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        consumerLock.lockInterruptibly();
+        try {
+            while (true) {
+                final int nbDrained = drainToWithLock(dst, offset, maxElements);
+                if (nbDrained > 0 || maxElements == 0) {
+                    return nbDrained;
+                }
+
+                final long nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    return 0;
+                }
+
+                waitingConsumer = Thread.currentThread();
+                try {
+                    // Check again once registered: a producer which published before wouldn't have woken us up
+                    if (isEmpty()) {
+                        LockSupport.parkNanos(this, nanos);
+                    }
+                } finally {
+                    waitingConsumer = null;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    // Approximate when producers are active
+    public int size() {
+        final long ringSize = producerIndex.get() - consumerIndex;
+        return (int) Math.min(Math.max(ringSize, 0) + overflowSize, Integer.MAX_VALUE);
+    }
+
+    // Drops all the published values
+    public void clear() {
+        consumerLock.lock();
+        try {
+            while (consumeRing(null, 0)) {
+                // Drop it
+            }
+            synchronized (overflowLock) {
+                overflowHead = 0;
+                overflowSize = 0;
+                isOverflowing = false;
+            }
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    private boolean offerWithoutWakeUp(final long value) {
+        return (!isOverflowing && offerToRing(value)) || offerToOverflow(value);
+    }
+
+    private boolean offerToRing(final long value) {
+        while (true) {
+            final long index = producerIndex.get();
+            final int slot = (int) index & mask;
+            final long sequence = sequences.get(slot);
+            if (sequence == index) {
+                if (index - consumerIndex >= ringLimit) {
+                    return false;
+                }
+                if (producerIndex.compareAndSet(index, index + 1)) {
+                    ring[slot] = value;
+                    // Publish
+                    sequences.set(slot, index + 1);
+                    return true;
+                }
+            } else if (sequence < index) {
+                // Full: the slot still holds the value from the previous lap
+                return false;
+            }
+            // Claimed by another producer in the meantime
+        }
+    }
+
+    private boolean offerToOverflow(final long value) {
+        synchronized (overflowLock) {
+            if (overflowSize >= maxCapacity - ringLimit) {
+                return false;
+            }
+            if (overflowSize == overflow.length) {
+                growOverflow();
+            }
+            overflow[(overflowHead + overflowSize) % overflow.length] = value;
+            overflowSize++;
+            isOverflowing = true;
+            return true;
+        }
+    }
+
+    private void wakeUpConsumer() {
+        final Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private boolean isEmpty() {
+        final long index = consumerIndex;
+        return sequences.get((int) index & mask) != index + 1 && !isOverflowing;
+    }
+
+    private int drainToWithLock(final long[] dst, final int offset, final int maxElements) {
+        Preconditions.checkArgument(offset >= 0 && maxElements >= 0 && offset + maxElements <= dst.length);
+        int nbDrained = 0;
+        while (nbDrained < maxElements && consumeRing(dst, offset + nbDrained)) {
+            nbDrained++;
+        }
+        if (nbDrained < maxElements && isOverflowing) {
+            nbDrained += drainOverflow(dst, offset + nbDrained, maxElements - nbDrained);
+        }
+        return nbDrained;
+    }
+
+    // Move the next published value of the ring into dst[dstIndex] (dropped if dst is null), if any
+    private boolean consumeRing(final long[] dst, final int dstIndex) {
+        final long index = consumerIndex;
+        final int slot = (int) index & mask;
+        if (sequences.get(slot) != index + 1) {
+            return false;
+        }
+        if (dst != null) {
+            dst[dstIndex] = ring[slot];
+        }
+        // Free the slot for the next lap
+        sequences.set(slot, index + ring.length);
+        consumerIndex = index + 1;
+        return true;
+    }
+
+    private int drainOverflow(final long[] dst, final int offset, final int maxElements) {
+        synchronized (overflowLock) {
+            final int nbToDrain = Math.min(maxElements, overflowSize);
+            for (int i = 0; i < nbToDrain; i++) {
+                dst[offset + i] = overflow[overflowHead];
+                overflowHead = (overflowHead + 1) % overflow.length;
+            }
+            overflowSize -= nbToDrain;
+            if (overflowSize == 0) {
+                overflowHead = 0;
+                // Back to the ring
+                isOverflowing = false;
+            }
+            return nbToDrain;
+        }
+    }
+
+    private void growOverflow() {
+        final int newCapacity = (int) Math.min(Math.max((long) overflow.length * 2, ring.length), maxCapacity - ringLimit);
+        final long[] newOverflow = new long[newCapacity];
+        for (int i = 0; i < overflowSize; i++) {
+            newOverflow[i] = overflow[(overflowHead + i) % overflow.length];
+        }
+        overflow = newOverflow;
+        overflowHead = 0;
+    }
+}
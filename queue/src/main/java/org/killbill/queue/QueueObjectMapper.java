@@ -19,22 +19,81 @@
 
 package org.killbill.queue;
 
+import org.killbill.queue.api.PersistentQueueConfig;
+import org.killbill.queue.api.PersistentQueueConfig.QueueEventFormat;
+import org.killbill.queue.codec.DefaultQueueEventCodec;
+import org.killbill.queue.codec.QueueEventCodec;
+
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 
 public class QueueObjectMapper {
 
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectMapper objectMapper = configure(new ObjectMapper());
+    private static final ObjectMapper smileObjectMapper = configure(new ObjectMapper(new SmileFactory()));
+
+    private static final QueueEventCodec jsonCodec = new DefaultQueueEventCodec(objectMapper, smileObjectMapper, QueueEventFormat.JSON);
+    private static final QueueEventCodec smileCodec = new DefaultQueueEventCodec(objectMapper, smileObjectMapper, QueueEventFormat.SMILE);
 
-    static {
-        objectMapper.registerModule(new JodaModule());
-        objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
-        objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    private static ObjectMapper configure(final ObjectMapper mapper) {
+        mapper.registerModule(new JodaModule());
+        mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        return mapper;
     }
 
     public static ObjectMapper get() {
         return objectMapper;
     }
+
+    public static ObjectMapper getSmile() {
+        return smileObjectMapper;
+    }
+
+    // Shared codecs, so that the per-class caches are only populated once
+    public static QueueEventCodec getCodec(final QueueEventFormat format) {
+        return format == QueueEventFormat.SMILE ? smileCodec : jsonCodec;
+    }
+
+    // Codec for a custom (JSON) ObjectMapper
+    public static QueueEventCodec newCodec(final ObjectMapper jsonMapper, final QueueEventFormat format) {
+        return newCodec(jsonMapper, format, 0);
+    }
+
+    // Codec configured for a queue: either the custom codec class, or the default codec for the configured format and compression threshold
+    public static QueueEventCodec newCodec(final ObjectMapper jsonMapper, final PersistentQueueConfig config) {
+        final String codecClassName = config.getEventCodecClass();
+        if (Strings.isNullOrEmpty(codecClassName)) {
+            return newCodec(jsonMapper, config.getEventFormat(), config.getEventCompressionThreshold());
+        }
+        try {
+            final Class<? extends QueueEventCodec> codecClass = Class.forName(codecClassName).asSubclass(QueueEventCodec.class);
+            try {
+                return codecClass.getConstructor(PersistentQueueConfig.class).newInstance(config);
+            } catch (final NoSuchMethodException e) {
+                return codecClass.getConstructor().newInstance();
+            }
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalArgumentException(String.format("Unable to instantiate the event codec %s: it must be a QueueEventCodec on the classpath, with a public constructor taking the config or no argument", codecClassName), e);
+        } catch (final ClassCastException e) {
+            throw new IllegalArgumentException(String.format("Invalid event codec %s: it must implement QueueEventCodec", codecClassName), e);
+        }
+    }
+
+    // Codecs compressing payloads are never shared, as they keep track of their compression statistics.
+    // The Smile mapper only has the default configuration (a mapper can't be copied over another factory), so writing Smile with
+    // a custom mapper would silently drop its modules, mixins and features: use a custom codec (see getEventCodecClass) instead.
+    public static QueueEventCodec newCodec(final ObjectMapper jsonMapper, final QueueEventFormat format, final int compressionThreshold) {
+        if (jsonMapper == objectMapper && compressionThreshold <= 0) {
+            return getCodec(format);
+        }
+        Preconditions.checkArgument(jsonMapper == objectMapper || format != QueueEventFormat.SMILE,
+                                    "The SMILE event format requires the default ObjectMapper, configure a custom event codec to use SMILE with a custom ObjectMapper");
+        return new DefaultQueueEventCodec(jsonMapper, smileObjectMapper, format, compressionThreshold);
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.skife.jdbi.v2.util.BooleanMapper;
+
+//
+// Non-blocking, session level, database locks used to split the reaping work across nodes: a node only reaps the shards
+// it could lock, the others being reaped by other nodes at the same time (and by this node on its next run if they are
+// still left behind). On databases without such locks (e.g. H2), this locker does not lock anything: all shards are reaped.
+//
+public class ReaperShardLocker {
+
+    public interface ShardCallback {
+
+        void reapShard(int shard);
+    }
+
+    public static ReaperShardLocker create(final IDBI dbi, final String databaseProductName) {
+        if ("PostgreSQL".equals(databaseProductName)) {
+            return new SessionLockReaperShardLocker(dbi) {
+
+                // Namespace of the advisory locks, so that they can't collide with the (single key) GlobalLocker ones
+                private static final int ADVISORY_LOCK_NAMESPACE = 0x4B425250;
+
+                @Override
+                protected boolean tryLock(final Handle handle, final String lockName) {
+                    return handle.createQuery("select pg_try_advisory_lock(:namespace, hashtext(:lockName))")
+                                 .bind("namespace", ADVISORY_LOCK_NAMESPACE)
+                                 .bind("lockName", lockName)
+                                 .map(BooleanMapper.FIRST)
+                                 .first();
+                }
+
+                @Override
+                protected void releaseLock(final Handle handle, final String lockName) {
+                    handle.createQuery("select pg_advisory_unlock(:namespace, hashtext(:lockName))")
+                          .bind("namespace", ADVISORY_LOCK_NAMESPACE)
+                          .bind("lockName", lockName)
+                          .map(BooleanMapper.FIRST)
+                          .first();
+                }
+            };
+        } else if ("MySQL".equals(databaseProductName) || "MariaDB".equals(databaseProductName)) {
+            return new SessionLockReaperShardLocker(dbi) {
+                @Override
+                protected boolean tryLock(final Handle handle, final String lockName) {
+                    return handle.createQuery("select get_lock(:lockName, 0) = 1")
+                                 .bind("lockName", lockName)
+                                 .map(BooleanMapper.FIRST)
+                                 .first();
+                }
+
+                @Override
+                protected void releaseLock(final Handle handle, final String lockName) {
+                    handle.createQuery("select release_lock(:lockName) = 1")
+                          .bind("lockName", lockName)
+                          .map(BooleanMapper.FIRST)
+                          .first();
+                }
+            };
+        } else {
+            return new ReaperShardLocker();
+        }
+    }
+
+    // Returns false if the shard is being reaped by another node
+    public boolean reapShardIfAvailable(final String lockName, final int shard, final ShardCallback callback) {
+        callback.reapShard(shard);
+        return true;
+    }
+
+    private abstract static class SessionLockReaperShardLocker extends ReaperShardLocker {
+
+        private final IDBI dbi;
+
+        private SessionLockReaperShardLocker(final IDBI dbi) {
+            this.dbi = dbi;
+        }
+
+        @Override
+        public boolean reapShardIfAvailable(final String lockName, final int shard, final ShardCallback callback) {
+            return dbi.withHandle(new HandleCallback<Boolean>() {
+                @Override
+                public Boolean withHandle(final Handle handle) throws Exception {
+                    if (!tryLock(handle, lockName)) {
+                        return false;
+                    }
+                    try {
+                        // The lock is held by this connection, the reaping itself happens in separate transactions
+                        callback.reapShard(shard);
+                        return true;
+                    } finally {
+                        releaseLock(handle, lockName);
+                    }
+                }
+            });
+        }
+
+        protected abstract boolean tryLock(final Handle handle, final String lockName);
+
+        protected abstract void releaseLock(final Handle handle, final String lockName);
+    }
+}
@@ -23,14 +23,53 @@ import org.skife.config.TimeSpan;
 
 public interface PersistentQueueConfig {
 
-    // We support 3 different modes to the queue
+    // We support 4 different modes to the queue
     enum PersistentQueueMode {
         // Entries written from a given node (server) will also be dispatched to that same node; the code will poll for new entries
         STICKY_POLLING,
         // Entries written from a given node (server) will also be dispatched to that same node; the code will react to database commit/abort events to fetch new entries
         STICKY_EVENTS,
         // Entries written from a given node (server) will may be dispatched to any nodes by polling for all available entries
-        POLLING
+        POLLING,
+        // Same as POLLING, but each node claims a whole batch at once by locking the candidate rows with SELECT ... FOR UPDATE SKIP LOCKED,
+        // so that several nodes can share the same table without contending on the same rows
+        POLLING_SKIP_LOCKED
+    }
+
+    // Format used to write the event_json column (rows in any of these formats can always be read)
+    enum QueueEventFormat {
+        JSON,
+        // Binary JSON (Smile), base64 encoded
+        SMILE
+    }
+
+    // How a node learns about entries committed by other nodes (only valid in STICKY_EVENTS mode)
+    enum WakeupTransportType {
+        // Only through the reaper
+        NONE,
+        // PostgreSQL LISTEN/NOTIFY
+        LISTEN_NOTIFY,
+        // Polling of the max record_id of the table
+        WATERMARK
+    }
+
+    // How the history table is partitioned by created_date (the table has to be created accordingly)
+    enum HistoryPartitioning {
+        NONE,
+        DAILY,
+        MONTHLY
+    }
+
+    // Which completed entries are moved to the history table (the others are simply deleted)
+    enum HistoryPolicy {
+        // All entries
+        FULL,
+        // All failed entries, and a percentage of the processed ones
+        SAMPLED,
+        // Failed entries only
+        ERRORS_ONLY,
+        // No entry
+        NONE
     }
 
     boolean isInMemory();
@@ -49,23 +88,105 @@ public interface PersistentQueueConfig {
 
     long getPollingSleepTimeMs();
 
+    // Settings introduced after the initial ones come with a default, so that existing implementations don't have to be updated
+    default boolean isAdaptivePolling() {
+        return false;
+    }
+
+    default long getPollingMaxSleepTimeMs() {
+        return 30000L;
+    }
+
     boolean isProcessingOff();
 
     int getEventQueueCapacity();
 
     int geMaxDispatchThreads();
 
+    default int getNbDispatchLanes() {
+        return 0;
+    }
+
     int geNbLifecycleDispatchThreads();
 
     int geNbLifecycleCompleteThreads();
 
+    default int getLifecycleCompleteBatchSize() {
+        return 100;
+    }
+
+    default long getLifecycleCompleteBatchWindowMs() {
+        return 0L;
+    }
+
+    default QueueEventFormat getEventFormat() {
+        return QueueEventFormat.JSON;
+    }
+
+    default int getEventCompressionThreshold() {
+        return 0;
+    }
+
+    // Fully qualified name of a custom QueueEventCodec (empty for the default codec, configured by the format and compression threshold)
+    default String getEventCodecClass() {
+        return "";
+    }
+
+    default WakeupTransportType getWakeupTransport() {
+        return WakeupTransportType.NONE;
+    }
+
+    default long getWakeupWatermarkSleepTimeMs() {
+        return 25L;
+    }
+
     String getTableName();
 
     String getHistoryTableName();
 
+    default TimeSpan getHistoryRetention() {
+        return new TimeSpan("0d");
+    }
+
+    default String getHistoryArchiveTableName() {
+        return "";
+    }
+
+    default int getHistoryArchiveBatchSize() {
+        return 1000;
+    }
+
+    default long getHistoryArchiveSleepTimeMs() {
+        return 100L;
+    }
+
+    default TimeSpan getHistoryArchiveSchedule() {
+        return new TimeSpan("1h");
+    }
+
+    default HistoryPartitioning getHistoryPartitioning() {
+        return HistoryPartitioning.NONE;
+    }
+
+    default HistoryPolicy getHistoryPolicy() {
+        return HistoryPolicy.FULL;
+    }
+
+    default int getHistorySamplingPercentage() {
+        return 1;
+    }
+
+    default String getHistoryPolicyOverrides() {
+        return "";
+    }
+
     TimeSpan getReapThreshold();
 
     int getMaxReDispatchCount();
 
     TimeSpan getReapSchedule();
+
+    default int getNbReapShards() {
+        return 1;
+    }
 }
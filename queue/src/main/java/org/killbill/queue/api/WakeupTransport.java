@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.api;
+
+/**
+ * Lets a node learn about entries committed to a queue table by other nodes (or processes), instead of waiting for the reaper.
+ */
+public interface WakeupTransport {
+
+    interface WakeupListener {
+
+        /**
+         * Invoked (from a transport thread) when new entries may have been committed; implementations should be cheap and coalesce calls
+         */
+        void onWakeup();
+    }
+
+    /**
+     * Starts listening for commits
+     *
+     * @param listener the listener to notify
+     */
+    void start(WakeupListener listener);
+
+    /**
+     * Tells the other nodes that entries were committed (invoked after the commit)
+     */
+    void signal();
+
+    /**
+     * Stops listening
+     */
+    void stop();
+}
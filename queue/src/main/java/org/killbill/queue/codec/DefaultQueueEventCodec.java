@@ -0,0 +1,245 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.killbill.queue.api.PersistentQueueConfig.QueueEventFormat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.io.BaseEncoding;
+
+//
+// Jackson based codec: events are encoded either as plain JSON, or as Smile (binary JSON, faster to parse and smaller
+// for events with many fields), base64 encoded in the column and marked with a prefix. Both formats can always be decoded.
+// Smile payloads which would not fit in the column are only kept if smaller than the JSON (base64 adds a third to their size).
+//
+// Classes, readers and writers are resolved once per event class: ObjectReader/ObjectWriter instances are immutable and
+// thread safe, and skip the root type lookup ObjectMapper#readValue does on every call.
+//
+// Optionally, payloads larger than compressionThreshold characters are compressed with Deflate: the stored value is then
+// prefixed and base64 encoded, its first byte telling the format of the compressed payload. Entries are moved to the history
+// table as stored, so a payload is only decompressed if the event is actually deserialized.
+//
+public class DefaultQueueEventCodec implements QueueEventCodec {
+
+    // Cannot be the beginning of a JSON document
+    public static final String SMILE_PREFIX = "#smile:";
+    public static final String DEFLATE_PREFIX = "#deflate:";
+
+    // Size of the event_json column
+    public static final int MAX_PAYLOAD_LENGTH = 2048;
+
+    // Header byte of compressed payloads
+    private static final byte JSON_MARKER = 'J';
+    private static final byte SMILE_MARKER = 'S';
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final ObjectMapper jsonMapper;
+    private final ObjectMapper smileMapper;
+    private final QueueEventFormat format;
+    // 0 to disable compression
+    private final int compressionThreshold;
+
+    private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+    private final ConcurrentMap<Class<?>, ObjectReader> jsonReaders = new ConcurrentHashMap<Class<?>, ObjectReader>();
+    private final ConcurrentMap<Class<?>, ObjectReader> smileReaders = new ConcurrentHashMap<Class<?>, ObjectReader>();
+    private final ConcurrentMap<Class<?>, ObjectWriter> jsonWriters = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+    private final ConcurrentMap<Class<?>, ObjectWriter> smileWriters = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+
+    // Size of the compressed payloads, before and after compression
+    private final AtomicLong uncompressedSize = new AtomicLong();
+    private final AtomicLong compressedSize = new AtomicLong();
+
+    public DefaultQueueEventCodec(final ObjectMapper jsonMapper, final ObjectMapper smileMapper, final QueueEventFormat format) {
+        this(jsonMapper, smileMapper, format, 0);
+    }
+
+    public DefaultQueueEventCodec(final ObjectMapper jsonMapper, final ObjectMapper smileMapper, final QueueEventFormat format, final int compressionThreshold) {
+        this.jsonMapper = jsonMapper;
+        this.smileMapper = smileMapper;
+        this.format = format;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public String encode(final Object event) throws IOException {
+        if (format == QueueEventFormat.SMILE) {
+            final byte[] smile = getWriter(smileWriters, smileMapper, event.getClass()).writeValueAsBytes(event);
+            // Base64 inflates the Smile payload by a third, which can make it larger than the JSON: when it doesn't fit
+            // in the column, only keep it if it is the smaller of the two
+            if (SMILE_PREFIX.length() + base64Length(smile.length) <= MAX_PAYLOAD_LENGTH) {
+                return encodeSmile(smile);
+            }
+            final String json = getWriter(jsonWriters, jsonMapper, event.getClass()).writeValueAsString(event);
+            return SMILE_PREFIX.length() + base64Length(smile.length) < json.length() ? encodeSmile(smile) : encodeJson(json);
+        } else {
+            return encodeJson(getWriter(jsonWriters, jsonMapper, event.getClass()).writeValueAsString(event));
+        }
+    }
+
+    @Override
+    public Object decode(final String className, final String payload) throws IOException, ClassNotFoundException {
+        final Class<?> claz = resolveClass(className);
+        if (payload.startsWith(DEFLATE_PREFIX)) {
+            final byte[] compressed = BaseEncoding.base64().decode(payload.substring(DEFLATE_PREFIX.length()));
+            if (compressed.length == 0) {
+                throw new IOException("Empty compressed payload");
+            }
+            final byte[] decompressed = inflate(compressed);
+            if (compressed[0] == SMILE_MARKER) {
+                return getReader(smileReaders, smileMapper, claz).readValue(decompressed);
+            } else if (compressed[0] == JSON_MARKER) {
+                return getReader(jsonReaders, jsonMapper, claz).readValue(decompressed);
+            } else {
+                throw new IOException("Unknown compressed payload format " + compressed[0]);
+            }
+        } else if (payload.startsWith(SMILE_PREFIX)) {
+            return getReader(smileReaders, smileMapper, claz).readValue(BaseEncoding.base64().decode(payload.substring(SMILE_PREFIX.length())));
+        } else {
+            return getReader(jsonReaders, jsonMapper, claz).readValue(payload);
+        }
+    }
+
+    public QueueEventFormat getFormat() {
+        return format;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    // Compressed size over uncompressed size, for the payloads which were compressed (1 if none)
+    public double getCompressionRatio() {
+        final long uncompressed = uncompressedSize.get();
+        return uncompressed == 0 ? 1.0 : (double) compressedSize.get() / uncompressed;
+    }
+
+    // In characters, as stored in the event_json column
+    public long getBytesSaved() {
+        return uncompressedSize.get() - compressedSize.get();
+    }
+
+    private String encodeSmile(final byte[] smile) {
+        final String payload = SMILE_PREFIX + BaseEncoding.base64().encode(smile);
+        return shouldCompress(payload) ? compress(payload, SMILE_MARKER, smile) : payload;
+    }
+
+    private String encodeJson(final String json) {
+        return shouldCompress(json) ? compress(json, JSON_MARKER, json.getBytes(StandardCharsets.UTF_8)) : json;
+    }
+
+    private static int base64Length(final int nbBytes) {
+        return 4 * ((nbBytes + 2) / 3);
+    }
+
+    private boolean shouldCompress(final String payload) {
+        return compressionThreshold > 0 && payload.length() > compressionThreshold;
+    }
+
+    // Fall back to the uncompressed payload if compression doesn't help
+    private String compress(final String payload, final byte marker, final byte[] bytes) {
+        final String compressed = DEFLATE_PREFIX + BaseEncoding.base64().encode(deflate(marker, bytes));
+        if (compressed.length() >= payload.length()) {
+            return payload;
+        }
+        uncompressedSize.addAndGet(payload.length());
+        compressedSize.addAndGet(compressed.length());
+        return compressed;
+    }
+
+    private static byte[] deflate(final byte marker, final byte[] input) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 1);
+            out.write(marker);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                final int nbBytes = deflater.deflate(buffer);
+                out.write(buffer, 0, nbBytes);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Skips the header byte
+    private static byte[] inflate(final byte[] input) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input, 1, input.length - 1);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                final int nbBytes = inflater.inflate(buffer);
+                if (nbBytes == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed payload");
+                }
+                out.write(buffer, 0, nbBytes);
+            }
+            return out.toByteArray();
+        } catch (final DataFormatException e) {
+            throw new IOException("Invalid compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private Class<?> resolveClass(final String className) throws ClassNotFoundException {
+        Class<?> claz = classes.get(className);
+        if (claz == null) {
+            claz = Class.forName(className);
+            classes.putIfAbsent(className, claz);
+        }
+        return claz;
+    }
+
+    private ObjectReader getReader(final ConcurrentMap<Class<?>, ObjectReader> readers, final ObjectMapper mapper, final Class<?> claz) {
+        ObjectReader reader = readers.get(claz);
+        if (reader == null) {
+            reader = mapper.readerFor(claz);
+            readers.putIfAbsent(claz, reader);
+        }
+        return reader;
+    }
+
+    private ObjectWriter getWriter(final ConcurrentMap<Class<?>, ObjectWriter> writers, final ObjectMapper mapper, final Class<?> claz) {
+        ObjectWriter writer = writers.get(claz);
+        if (writer == null) {
+            writer = mapper.writerFor(claz);
+            writers.putIfAbsent(claz, writer);
+        }
+        return writer;
+    }
+}
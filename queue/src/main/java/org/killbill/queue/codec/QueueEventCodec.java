@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.codec;
+
+import java.io.IOException;
+
+/**
+ * Converts queue events to and from the value stored in the event_json column.
+ * <p>
+ * Implementations must be able to decode every format they may encounter in the tables (e.g. rows written
+ * before a format change, or by nodes with a different configuration), not only the one they encode to.
+ */
+public interface QueueEventCodec {
+
+    String encode(Object event) throws IOException;
+
+    Object decode(String className, String payload) throws IOException, ClassNotFoundException;
+}
@@ -25,6 +25,7 @@ import java.util.List;
 
 import javax.annotation.Nullable;
 
+import org.killbill.commons.jdbi.binder.BindLongsIn;
 import org.killbill.commons.jdbi.binder.SmartBindBean;
 import org.killbill.commons.jdbi.template.KillBillSqlDaoStringTemplate;
 import org.skife.jdbi.v2.sqlobject.Bind;
@@ -50,7 +51,7 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
                     @Define("tableName") final String tableName);
 
     @SqlQuery
-    List<T> getEntriesFromIds(@BindIn("record_ids") final List<Long> recordIds,
+    List<T> getEntriesFromIds(@BindLongsIn("record_ids") final long[] recordIds,
                               @Define("tableName") final String tableName);
 
     @SqlQuery
@@ -62,6 +63,14 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
                             @Define("tableName") final String tableName);
 
 
+    @SqlQuery
+    List<T> getReadyEntriesForUpdate(@Bind("now") Date now,
+                                     @Bind("max") int max,
+                                     @Nullable @Define("owner") String owner,
+                                     // Whether the database supports FOR UPDATE SKIP LOCKED (MySQL 8+, PostgreSQL 9.5+), H2 falls back to FOR UPDATE
+                                     @Define("skipLocked") boolean skipLocked,
+                                     @Define("tableName") final String tableName);
+
     @SqlQuery
     long getNbReadyEntries(@Bind("now") Date now,
                             // This is somewhat a hack, should really be a @Bind parameter but we also use it
@@ -76,6 +85,8 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
     List<T> getEntriesLeftBehind(@Bind("max") int max,
                                  @Bind("now") Date now,
                                  @Bind("reapingDate") Date reapingDate,
+                                 @Bind("fromRecordId") long fromRecordId,
+                                 @Bind("toRecordId") long toRecordId,
                                  @Define("tableName") final String tableName);
 
     @SqlUpdate
@@ -96,6 +107,13 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
                       @Bind("errorCount") Long errorCount,
                       @Define("tableName") final String tableName);
 
+    // Batch version of updateOnError: recordId and errorCount are read from each entry
+    @SqlBatch
+    @BatchChunkSize(100)
+    void updateEntriesOnError(@SmartBindBean Iterable<T> evts,
+                              @Bind("now") Date now,
+                              @Define("tableName") final String tableName);
+
     @SqlUpdate
     void removeEntry(@Bind("recordId") Long id,
                      @Define("tableName") final String tableName);
@@ -104,6 +122,17 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
     void removeEntries(@BindIn("record_ids") final Collection<Long> recordIds,
                        @Define("tableName") final String tableName);
 
+    @SqlQuery
+    List<Long> getRecordIdsCreatedBefore(@Bind("cutoff") Date cutoff,
+                                         @Bind("max") int max,
+                                         @Define("tableName") final String tableName);
+
+    // Copy entries as-is (record_id included) to a table with the same schema, e.g. a history archive table
+    @SqlUpdate
+    void copyEntries(@BindIn("record_ids") final Collection<Long> recordIds,
+                     @Define("fromTableName") final String fromTableName,
+                     @Define("toTableName") final String toTableName);
+
     @SqlUpdate
     @GetGeneratedKeys(value = LongMapper.class, columnName = "record_id")
     Long insertEntry(@SmartBindBean T evt,
@@ -113,4 +142,11 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
     @BatchChunkSize(100)
     void insertEntries(@SmartBindBean Iterable<T> evts,
                        @Define("tableName") final String tableName);
+
+    // Single PreparedBatch (per chunk) returning the record_id of each entry, in order
+    @SqlBatch
+    @BatchChunkSize(1000)
+    @GetGeneratedKeys(value = LongMapper.class, columnName = "record_id")
+    List<Long> insertEntriesWithGeneratedKeys(@SmartBindBean Iterable<T> evts,
+                                              @Define("tableName") final String tableName);
 }
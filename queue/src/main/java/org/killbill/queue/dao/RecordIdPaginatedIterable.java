@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.queue.dao;
+
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+
+//
+// Streams entries by pages of pageSize, ordered by record_id, using the last record_id of a page as the cursor for the next one
+// (keyset pagination). Each page is fetched with its own short-lived query, so that iterating over millions of entries neither
+// holds a database connection nor more than one page in memory.
+//
+public abstract class RecordIdPaginatedIterable<T extends EventEntryModelDao> implements Iterable<T> {
+
+    private final int pageSize;
+
+    public RecordIdPaginatedIterable(final int pageSize) {
+        Preconditions.checkArgument(pageSize > 0, "pageSize should be > 0");
+        this.pageSize = pageSize;
+    }
+
+    // Entries with a record_id strictly greater than fromRecordId, ordered by record_id, up to pageSize
+    protected abstract List<T> fetchPage(final long fromRecordId, final int pageSize);
+
+    @Override
+    public Iterator<T> iterator() {
+        return new AbstractIterator<T>() {
+
+            private Iterator<T> currentPage = null;
+            private int currentPageSize = 0;
+            private long lastRecordId = -1L;
+
+            @Override
+            protected T computeNext() {
+                if (currentPage == null || !currentPage.hasNext()) {
+                    if (currentPage != null && currentPageSize < pageSize) {
+                        // Last page
+                        return endOfData();
+                    }
+                    final List<T> page = fetchPage(lastRecordId, pageSize);
+                    if (page.isEmpty()) {
+                        return endOfData();
+                    }
+                    currentPage = page.iterator();
+                    currentPageSize = page.size();
+                }
+
+                final T entry = currentPage.next();
+                lastRecordId = entry.getRecordId();
+                return entry;
+            }
+        };
+    }
+}
@@ -35,4 +35,6 @@ public interface CallableCallback<E extends QueueEvent, M extends EventEntryMode
     void moveCompletedOrFailedEvents(final Iterable<M> entries);
 
     void updateRetriedEvents(final M updatedEntry);
+
+    void moveCompletedOrFailedAndUpdateRetriedEvents(final Iterable<M> completedOrFailed, final Iterable<M> retried);
 }
@@ -19,17 +19,23 @@
 
 package org.killbill.queue.dispatching;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.joda.time.DateTime;
 import org.killbill.clock.Clock;
 import org.killbill.queue.DBBackedQueue;
+import org.killbill.queue.QueueObjectMapper;
 import org.killbill.queue.api.PersistentQueueConfig;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.api.QueueEvent;
+import org.killbill.queue.codec.QueueEventCodec;
 import org.killbill.queue.dao.EventEntryModelDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 
 public abstract class CallableCallbackBase<E extends QueueEvent, M extends EventEntryModelDao> implements CallableCallback<E, M> {
 
@@ -38,25 +44,34 @@ public abstract class CallableCallbackBase<E extends QueueEvent, M extends Event
     private final DBBackedQueue<M> dao;
     private final Clock clock;
     private final PersistentQueueConfig config;
-    private final ObjectMapper objectMapper;
+    private final QueueEventCodec eventCodec;
+    private final HistoryPolicyFilter historyPolicyFilter;
 
     public CallableCallbackBase(final DBBackedQueue<M> dao, final Clock clock, final PersistentQueueConfig config, final ObjectMapper objectMapper) {
+        this(dao, clock, config, QueueObjectMapper.newCodec(objectMapper, config));
+    }
+
+    public CallableCallbackBase(final DBBackedQueue<M> dao, final Clock clock, final PersistentQueueConfig config, final QueueEventCodec eventCodec) {
         this.dao = dao;
         this.clock = clock;
         this.config = config;
-        this.objectMapper = objectMapper;
+        this.eventCodec = eventCodec;
+        this.historyPolicyFilter = new HistoryPolicyFilter(config);
     }
 
     @Override
     public E deserialize(final M modelDao) {
-        return deserializeEvent(modelDao, objectMapper);
+        return deserializeEvent(modelDao, eventCodec);
     }
 
-    @SuppressWarnings("unchecked")
     public static <E extends QueueEvent, M extends EventEntryModelDao> E deserializeEvent(final M modelDao, final ObjectMapper objectMapper) {
+        return deserializeEvent(modelDao, QueueObjectMapper.newCodec(objectMapper, PersistentQueueConfig.QueueEventFormat.JSON));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E extends QueueEvent, M extends EventEntryModelDao> E deserializeEvent(final M modelDao, final QueueEventCodec eventCodec) {
         try {
-            final Class<?> claz = Class.forName(modelDao.getClassName());
-            return (E) objectMapper.readValue(modelDao.getEventJson(), claz);
+            return (E) eventCodec.decode(modelDao.getClassName(), modelDao.getEventJson());
         } catch (final Exception e) {
             log.error(String.format("Failed to deserialize json object %s for class %s", modelDao.getEventJson(), modelDao.getClassName()), e);
             return null;
@@ -65,7 +80,11 @@ public abstract class CallableCallbackBase<E extends QueueEvent, M extends Event
 
     @Override
     public void moveCompletedOrFailedEvents(final Iterable<M> entries) {
-        dao.moveEntriesToHistory(entries);
+        if (historyPolicyFilter.isFull()) {
+            dao.moveEntriesToHistory(entries);
+        } else {
+            moveCompletedOrFailedAndUpdateRetriedEvents(entries, ImmutableList.<M>of());
+        }
     }
 
     @Override
@@ -73,6 +92,25 @@ public abstract class CallableCallbackBase<E extends QueueEvent, M extends Event
         dao.updateOnError(updatedEntry);
     }
 
+    @Override
+    public void moveCompletedOrFailedAndUpdateRetriedEvents(final Iterable<M> completedOrFailed, final Iterable<M> retried) {
+        if (historyPolicyFilter.isFull()) {
+            dao.completeEntries(completedOrFailed, retried);
+            return;
+        }
+
+        final List<M> toHistory = new ArrayList<M>();
+        final List<M> toRemove = new ArrayList<M>();
+        for (final M entry : completedOrFailed) {
+            if (historyPolicyFilter.isKeptInHistory(entry.getClassName(), entry.getProcessingState(), entry.getRecordId())) {
+                toHistory.add(entry);
+            } else {
+                toRemove.add(entry);
+            }
+        }
+        dao.completeEntries(toHistory, toRemove, retried);
+    }
+
     @Override
     public abstract void dispatch(final E event, final M modelDao) throws Exception;
 
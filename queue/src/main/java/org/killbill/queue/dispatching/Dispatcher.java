@@ -24,9 +24,14 @@ import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
 
 import org.killbill.clock.Clock;
 import org.killbill.commons.concurrent.DynamicThreadPoolExecutorWithLoggingOnExceptions;
@@ -40,6 +45,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 public class Dispatcher<E extends QueueEvent, M extends EventEntryModelDao> {
@@ -60,8 +67,23 @@ public class Dispatcher<E extends QueueEvent, M extends EventEntryModelDao> {
     private final DefaultQueueLifecycle parentLifeCycle;
     private final Clock clock;
 
+    // Key-affine dispatch (0 to disable)
+    private final int nbDispatchLanes;
+    private final int laneCapacity;
+
+    // Credit based flow control: entries are only claimed if they can be started (or queued) right away,
+    // instead of blocking in the rejection handler while their claim expires
+    private final int nbCredits;
+    // Entries dispatched and not completed yet
+    private final AtomicInteger nbInflightEntries;
+    // Credits reserved by the lifecycle, for entries being claimed
+    private final AtomicInteger nbReservedCredits;
+    // Set when credits were requested while there were none left, to wake the lifecycle up once some are returned
+    private final AtomicBoolean isWaitingForCredits;
+
     // Deferred in start sequence to allow for restart, which is not possible after the shutdown (mostly for test purpose)
     private ExecutorService handlerExecutor;
+    private volatile KeyAffineExecutor keyAffineExecutor;
 
     public Dispatcher(final int corePoolSize,
                       final PersistentQueueConfig config,
@@ -73,6 +95,20 @@ public class Dispatcher<E extends QueueEvent, M extends EventEntryModelDao> {
                       final Clock clock,
                       final CallableCallback<E, M> handlerCallback,
                       final DefaultQueueLifecycle parentLifeCycle) {
+        this(corePoolSize, config, keepAliveTime, keepAliveTimeUnit, workQueue, threadFactory, rejectionHandler, clock, handlerCallback, parentLifeCycle, null);
+    }
+
+    public Dispatcher(final int corePoolSize,
+                      final PersistentQueueConfig config,
+                      final long keepAliveTime,
+                      final TimeUnit keepAliveTimeUnit,
+                      final BlockingQueue<Runnable> workQueue,
+                      final ThreadFactory threadFactory,
+                      final RejectedExecutionHandler rejectionHandler,
+                      final Clock clock,
+                      final CallableCallback<E, M> handlerCallback,
+                      final DefaultQueueLifecycle parentLifeCycle,
+                      @Nullable final MetricRegistry metricRegistry) {
         this.corePoolSize = corePoolSize;
         this.maximumPoolSize = config.geMaxDispatchThreads();
         this.keepAliveTime = keepAliveTime;
@@ -85,10 +121,26 @@ public class Dispatcher<E extends QueueEvent, M extends EventEntryModelDao> {
         this.maxFailureRetries = config.getMaxFailureRetries();
         this.handlerCallback = handlerCallback;
         this.parentLifeCycle = parentLifeCycle;
+
+        this.nbCredits = maximumPoolSize + config.getEventQueueCapacity();
+        this.nbInflightEntries = new AtomicInteger();
+        this.nbReservedCredits = new AtomicInteger();
+        this.isWaitingForCredits = new AtomicBoolean(false);
+
+        this.nbDispatchLanes = config.getNbDispatchLanes();
+        // A lane slot is held until the entry completes, like a credit: as many slots as credits, so that dispatching never blocks
+        this.laneCapacity = Math.max(nbCredits, 1);
+        if (nbDispatchLanes > 0 && metricRegistry != null) {
+            registerLaneMetrics(metricRegistry, config.getTableName());
+        }
     }
 
     public void start() {
         this.handlerExecutor = new DynamicThreadPoolExecutorWithLoggingOnExceptions(corePoolSize, maximumPoolSize, keepAliveTime, keepAliveTimeUnit, workQueue, threadFactory, rejectionHandler);
+        if (nbDispatchLanes > 0) {
+            // No more drainers than handler threads, so that submitting one never hits the rejection handler
+            this.keyAffineExecutor = new KeyAffineExecutor(handlerExecutor, nbDispatchLanes, laneCapacity, Math.min(nbDispatchLanes, maximumPoolSize));
+        }
     }
 
     public void stop() {
@@ -103,8 +155,101 @@ public class Dispatcher<E extends QueueEvent, M extends EventEntryModelDao> {
     @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_BAD_PRACTICE")
     public void dispatch(final M modelDao) {
         log.debug("Dispatching entry {}", modelDao);
-        final CallableQueueHandler<E, M> entry = new CallableQueueHandler<E, M>(modelDao, handlerCallback, parentLifeCycle, clock, maxFailureRetries);
-        handlerExecutor.submit(entry);
+        final CallableQueueHandler<E, M> handler = new CallableQueueHandler<E, M>(modelDao, handlerCallback, parentLifeCycle, clock, maxFailureRetries);
+        final Callable<E> entry = new Callable<E>() {
+            @Override
+            public E call() throws Exception {
+                try {
+                    return handler.call();
+                } finally {
+                    returnCredit();
+                }
+            }
+        };
+
+        nbInflightEntries.incrementAndGet();
+        try {
+            if (keyAffineExecutor != null) {
+                // Entries for the same searchKey1 (e.g. account) are processed in order, one at a time
+                keyAffineExecutor.execute(modelDao.getSearchKey1(), new FutureTask<E>(entry));
+            } else {
+                handlerExecutor.submit(entry);
+            }
+        } catch (final RuntimeException e) {
+            returnCredit();
+            throw e;
+        }
+    }
+
+    // Reserve room for up to maxEntries: the entries claimed with these credits should then be dispatched, before releasing the credits
+    public int reserveCredits(final int maxEntries) {
+        while (true) {
+            final int nbReserved = nbReservedCredits.get();
+            final int nbAvailable = nbCredits - nbInflightEntries.get() - nbReserved;
+            if (nbAvailable <= 0) {
+                // Flag first and check again: a credit returned before the flag was set would not wake the lifecycle up
+                isWaitingForCredits.set(true);
+                if (getAvailableCredits() <= 0) {
+                    return 0;
+                }
+                continue;
+            }
+            final int nbGranted = Math.min(maxEntries, nbAvailable);
+            if (nbReservedCredits.compareAndSet(nbReserved, nbReserved + nbGranted)) {
+                return nbGranted;
+            }
+        }
+    }
+
+    public void releaseCredits(final int nbReserved) {
+        nbReservedCredits.addAndGet(-nbReserved);
+        // Unused reserved credits may have made another dispatcher thread give up
+        wakeUpIfWaitingForCredits();
+    }
+
+    public int getAvailableCredits() {
+        return Math.max(0, nbCredits - nbInflightEntries.get() - nbReservedCredits.get());
+    }
+
+    private void returnCredit() {
+        nbInflightEntries.decrementAndGet();
+        wakeUpIfWaitingForCredits();
+    }
+
+    private void wakeUpIfWaitingForCredits() {
+        if (isWaitingForCredits.get() && isWaitingForCredits.compareAndSet(true, false) && parentLifeCycle != null) {
+            parentLifeCycle.onDispatchCapacityAvailable();
+        }
+    }
+
+    // Nb of entries waiting for a handler thread
+    public int getBacklog() {
+        final KeyAffineExecutor executor = keyAffineExecutor;
+        return workQueue.size() + (executor == null ? 0 : executor.getDepth());
+    }
+
+    private void registerLaneMetrics(final MetricRegistry metricRegistry, final String dispatcherName) {
+        metricRegistry.register(MetricRegistry.name(Dispatcher.class, dispatcherName, "lanes", "depth"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                final KeyAffineExecutor executor = keyAffineExecutor;
+                return executor == null ? 0 : executor.getDepth();
+            }
+        });
+        metricRegistry.register(MetricRegistry.name(Dispatcher.class, dispatcherName, "lanes", "maxDepth"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                final KeyAffineExecutor executor = keyAffineExecutor;
+                return executor == null ? 0 : executor.getMaxLaneDepth();
+            }
+        });
+        metricRegistry.register(MetricRegistry.name(Dispatcher.class, dispatcherName, "lanes", "skew"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                final KeyAffineExecutor executor = keyAffineExecutor;
+                return executor == null ? 0.0 : executor.getSkew();
+            }
+        });
     }
 
     public static class CallableQueueHandler<E extends QueueEvent, M extends EventEntryModelDao> implements Callable<E> {
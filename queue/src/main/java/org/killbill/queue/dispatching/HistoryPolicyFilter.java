@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.dispatching;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.killbill.queue.api.PersistentQueueConfig;
+import org.killbill.queue.api.PersistentQueueConfig.HistoryPolicy;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+
+//
+// Decides which completed entries are moved to the history table, the others being simply deleted (which saves the insert).
+// Sampling is based on the record_id, so that a given entry is always treated the same way.
+//
+public class HistoryPolicyFilter {
+
+    private final HistoryPolicy defaultPolicy;
+    private final int samplingPercentage;
+    private final Map<String, HistoryPolicy> policyOverrides;
+
+    public HistoryPolicyFilter(final PersistentQueueConfig config) {
+        this(config.getHistoryPolicy(), config.getHistorySamplingPercentage(), config.getHistoryPolicyOverrides());
+    }
+
+    public HistoryPolicyFilter(final HistoryPolicy defaultPolicy, final int samplingPercentage, final String policyOverrides) {
+        Preconditions.checkArgument(samplingPercentage >= 0 && samplingPercentage <= 100, "Invalid history samplingPercentage %s, should be between 0 and 100", samplingPercentage);
+        this.defaultPolicy = defaultPolicy;
+        this.samplingPercentage = samplingPercentage;
+        this.policyOverrides = parsePolicyOverrides(policyOverrides);
+    }
+
+    // Whether all entries are moved to history, in which case there is no need to filter them
+    public boolean isFull() {
+        return defaultPolicy == HistoryPolicy.FULL && policyOverrides.isEmpty();
+    }
+
+    public boolean isKeptInHistory(final String className, final PersistentQueueEntryLifecycleState processingState, final Long recordId) {
+        final HistoryPolicy policy = policyOverrides.containsKey(className) ? policyOverrides.get(className) : defaultPolicy;
+        switch (policy) {
+            case FULL:
+                return true;
+            case SAMPLED:
+                return processingState != PersistentQueueEntryLifecycleState.PROCESSED || (recordId != null && recordId % 100 < samplingPercentage);
+            case ERRORS_ONLY:
+                return processingState != PersistentQueueEntryLifecycleState.PROCESSED;
+            case NONE:
+            default:
+                return false;
+        }
+    }
+
+    private static Map<String, HistoryPolicy> parsePolicyOverrides(final String policyOverrides) {
+        if (policyOverrides == null || policyOverrides.trim().isEmpty()) {
+            return ImmutableMap.<String, HistoryPolicy>of();
+        }
+
+        final Map<String, String> overrides;
+        try {
+            overrides = Splitter.on(',').omitEmptyStrings().trimResults().withKeyValueSeparator(Splitter.on(':').trimResults()).split(policyOverrides);
+        } catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Invalid history policy overrides '%s', expected a comma separated list of eventClass:policy", policyOverrides), e);
+        }
+
+        final ImmutableMap.Builder<String, HistoryPolicy> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, String> override : overrides.entrySet()) {
+            builder.put(override.getKey(), parsePolicy(override.getKey(), override.getValue()));
+        }
+        return builder.build();
+    }
+
+    private static HistoryPolicy parsePolicy(final String className, final String policy) {
+        try {
+            return HistoryPolicy.valueOf(policy);
+        } catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Invalid history policy override '%s' for %s, should be one of %s", policy, className, Arrays.toString(HistoryPolicy.values())), e);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.dispatching;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+//
+// Runs the tasks sharing the same key one after the other, in submission order, while tasks for different keys run in parallel.
+//
+// Keys are hashed onto a fixed number of serial lanes. A lane is not bound to a thread: when it has work, it is added to the ready
+// lanes and a drainer is scheduled on the shared executor. Drainers serve the ready lanes round-robin, a few tasks at a time, so
+// that idle threads naturally pick up the busy lanes and a hot lane cannot starve the others. A lane which still has work after its
+// turn goes back to the ready lanes instead of being resubmitted to the executor: worker threads never block on a full work queue.
+// At most maxDrainers drainers are submitted at a time, so that the executor (threads and work queue) can always accept them.
+//
+public class KeyAffineExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(KeyAffineExecutor.class);
+
+    // Max number of tasks a lane runs before letting the other ready lanes go first
+    private static final int MAX_TASKS_PER_TURN = 16;
+
+    private final Executor executor;
+    private final Semaphore capacity;
+    private final Lane[] lanes;
+    // Lanes with work, waiting for a drainer
+    private final Queue<Lane> readyLanes;
+    private final Runnable drainer;
+    private final int maxDrainers;
+    // Drainers submitted to the executor and not done yet
+    private final AtomicInteger nbDrainers;
+
+    public KeyAffineExecutor(final Executor executor, final int nbLanes, final int capacity) {
+        this(executor, nbLanes, capacity, nbLanes);
+    }
+
+    public KeyAffineExecutor(final Executor executor, final int nbLanes, final int capacity, final int maxDrainers) {
+        Preconditions.checkArgument(nbLanes > 0, "nbLanes should be > 0");
+        Preconditions.checkArgument(capacity > 0, "capacity should be > 0");
+        Preconditions.checkArgument(maxDrainers > 0, "maxDrainers should be > 0");
+        this.executor = executor;
+        this.maxDrainers = maxDrainers;
+        this.nbDrainers = new AtomicInteger(0);
+        this.capacity = new Semaphore(capacity);
+        this.lanes = new Lane[nbLanes];
+        for (int i = 0; i < nbLanes; i++) {
+            lanes[i] = new Lane();
+        }
+        this.readyLanes = new ConcurrentLinkedQueue<Lane>();
+        this.drainer = new Runnable() {
+            @Override
+            public void run() {
+                do {
+                    drainReadyLanes();
+                    nbDrainers.decrementAndGet();
+                    // A lane may have been added after our last poll, while the max number of drainers was running
+                } while (!readyLanes.isEmpty() && tryReserveDrainer());
+            }
+        };
+    }
+
+    // Blocks when the number of pending tasks reaches the capacity (similar to BlockingRejectionExecutionHandler)
+    public void execute(@Nullable final Long key, final Runnable task) {
+        try {
+            capacity.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a free slot in the dispatch lanes", e);
+        }
+
+        final Lane lane = lanes[getLaneIndex(key)];
+        lane.depth.incrementAndGet();
+        lane.tasks.add(task);
+        try {
+            scheduleIfIdle(lane);
+        } catch (final RejectedExecutionException e) {
+            // The task may already have been picked up by a drainer, in which case it has been accepted after all
+            if (lane.tasks.remove(task)) {
+                lane.depth.decrementAndGet();
+                capacity.release();
+                throw e;
+            }
+            log.warn("Unable to schedule a drainer for dispatch lane, task picked up by a running drainer", e);
+        }
+    }
+
+    public int getNbLanes() {
+        return lanes.length;
+    }
+
+    public int getDepth() {
+        int depth = 0;
+        for (final Lane lane : lanes) {
+            depth += lane.depth.get();
+        }
+        return depth;
+    }
+
+    public int getMaxLaneDepth() {
+        int maxDepth = 0;
+        for (final Lane lane : lanes) {
+            maxDepth = Math.max(maxDepth, lane.depth.get());
+        }
+        return maxDepth;
+    }
+
+    // Ratio between the deepest lane and the average lane depth: 1 when the work is evenly spread, nbLanes when a single lane has it all
+    public double getSkew() {
+        final int depth = getDepth();
+        return depth == 0 ? 0.0 : ((double) getMaxLaneDepth() * lanes.length) / depth;
+    }
+
+    int getLaneIndex(@Nullable final Long key) {
+        if (key == null) {
+            return 0;
+        }
+        // Spread sequential keys (record ids) across lanes
+        final int hash = Long.hashCode(key) * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), lanes.length);
+    }
+
+    private void scheduleIfIdle(final Lane lane) {
+        if (lane.scheduled.compareAndSet(false, true)) {
+            readyLanes.add(lane);
+            try {
+                startDrainerIfNeeded();
+            } catch (final RejectedExecutionException e) {
+                // Unless a running drainer got to it first, the lane is idle again
+                if (readyLanes.remove(lane)) {
+                    lane.scheduled.set(false);
+                }
+                throw e;
+            }
+        }
+    }
+
+    // Otherwise, the running drainers will get to the lane
+    private void startDrainerIfNeeded() {
+        if (!tryReserveDrainer()) {
+            return;
+        }
+        try {
+            executor.execute(drainer);
+        } catch (final RejectedExecutionException e) {
+            nbDrainers.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean tryReserveDrainer() {
+        while (true) {
+            final int current = nbDrainers.get();
+            if (current >= maxDrainers) {
+                return false;
+            }
+            if (nbDrainers.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Every lane added to the ready lanes is followed by a drainer (either a new one, or a running one), so none is left behind
+    private void drainReadyLanes() {
+        Lane lane;
+        while ((lane = readyLanes.poll()) != null) {
+            lane.runTurn();
+            lane.scheduled.set(false);
+            // Tasks may have been added after our last poll (or we yielded): queue the lane again, we will get back to it
+            if (!lane.tasks.isEmpty() && lane.scheduled.compareAndSet(false, true)) {
+                readyLanes.add(lane);
+            }
+        }
+    }
+
+    private final class Lane {
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicInteger depth = new AtomicInteger(0);
+        // Whether this lane is currently ready or being drained: at most one thread drains a lane at a time
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private void runTurn() {
+            for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+                final Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (final RuntimeException e) {
+                    log.warn("Dispatch lane task failed", e);
+                } finally {
+                    depth.decrementAndGet();
+                    capacity.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.history;
+
+import java.sql.DatabaseMetaData;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.joda.time.DateTime;
+import org.killbill.clock.Clock;
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.queue.api.PersistentQueueConfig;
+import org.killbill.queue.api.PersistentQueueConfig.HistoryPartitioning;
+import org.killbill.queue.dao.EventEntryModelDao;
+import org.killbill.queue.dao.QueueSqlDao;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+
+//
+// Keeps the history table bounded while the queue is running:
+// - by default, entries older than the retention are moved (or simply deleted if no archive table is configured) in small
+//   transactions, sleeping in between so that the load stays negligible compared to the queue itself
+// - if the history table is partitioned by created_date, upcoming partitions are created ahead of time and expired
+//   partitions are dropped, which doesn't generate any row-level work (the archive table is ignored in that mode)
+//
+// All operations are idempotent, so the archiver can run on all nodes at the same time (partitions are only rolled by one node
+// at a time though, see HistoryPartitionManager).
+//
+public class HistoryArchiver<T extends EventEntryModelDao> {
+
+    private static final Logger log = LoggerFactory.getLogger(HistoryArchiver.class);
+
+    // Number of partitions created ahead of the current period
+    private static final int NB_PARTITIONS_AHEAD = 2;
+
+    private final IDBI dbi;
+    private final QueueSqlDao<T> sqlDao;
+    private final PersistentQueueConfig config;
+    private final Clock clock;
+    private final String threadScheduledExecutorName;
+    private final AtomicBoolean isStarted;
+    private final Counter archivedEntries;
+    private final Counter droppedPartitions;
+
+    private HistoryPartitionManager partitionManager;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> archiveHandle;
+
+    public HistoryArchiver(final IDBI dbi, final QueueSqlDao<T> sqlDao, final PersistentQueueConfig config, final Clock clock, final String threadScheduledExecutorName, final MetricRegistry metricRegistry) {
+        this.dbi = dbi;
+        this.sqlDao = sqlDao;
+        this.config = config;
+        this.clock = clock;
+        this.threadScheduledExecutorName = threadScheduledExecutorName;
+        this.isStarted = new AtomicBoolean(false);
+        this.archivedEntries = metricRegistry.counter(MetricRegistry.name(HistoryArchiver.class, config.getHistoryTableName(), "archivedEntries"));
+        this.droppedPartitions = metricRegistry.counter(MetricRegistry.name(HistoryArchiver.class, config.getHistoryTableName(), "droppedPartitions"));
+    }
+
+    public void start() {
+        if (!isStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        partitionManager = null;
+        if (config.getHistoryPartitioning() != HistoryPartitioning.NONE) {
+            final String databaseProductName = dbi.withHandle(new HandleCallback<String>() {
+                @Override
+                public String withHandle(final Handle handle) throws Exception {
+                    final DatabaseMetaData metaData = handle.getConnection().getMetaData();
+                    return metaData.getDatabaseProductName();
+                }
+            });
+            partitionManager = HistoryPartitionManager.create(dbi, databaseProductName, config.getHistoryTableName(), config.getHistoryPartitioning());
+            if (partitionManager == null) {
+                log.warn("{}: History partitioning isn't supported on {}, falling back to deleting entries", threadScheduledExecutorName, databaseProductName);
+            }
+        }
+
+        final long schedulePeriodMillis = config.getHistoryArchiveSchedule().getMillis();
+        log.info("{}: Starting... historyRetention={}, historyPartitioning={}, schedulePeriodMillis={}",
+                 threadScheduledExecutorName, config.getHistoryRetention(), partitionManager != null ? config.getHistoryPartitioning() : HistoryPartitioning.NONE, schedulePeriodMillis);
+
+        final Runnable archive = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    archiveHistory();
+                } catch (final RuntimeException e) {
+                    // Don't let the scheduler swallow the exception and cancel the next runs
+                    log.warn("{}: Failed to archive history table {}", threadScheduledExecutorName, config.getHistoryTableName(), e);
+                }
+            }
+        };
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadScheduledExecutorName);
+        // Run right away so that the partitions for the current period exist before the first entry is moved to history
+        archiveHandle = scheduler.scheduleWithFixedDelay(archive, 0, schedulePeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (!isStarted.compareAndSet(true, false)) {
+            return;
+        }
+
+        log.info("{}: Shutdown...", threadScheduledExecutorName);
+        if (!archiveHandle.isCancelled() || !archiveHandle.isDone()) {
+            archiveHandle.cancel(true);
+        }
+
+        if (!scheduler.isShutdown()) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                log.info("{} stop sequence has been interrupted", threadScheduledExecutorName);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isStarted() {
+        return isStarted.get();
+    }
+
+    void archiveHistory() {
+        final DateTime now = clock.getUTCNow();
+        final DateTime cutoff = now.minus(config.getHistoryRetention().getMillis());
+        if (partitionManager != null) {
+            rollPartitions(now, cutoff);
+        } else {
+            archiveEntries(cutoff);
+        }
+    }
+
+    private void rollPartitions(final DateTime now, final DateTime cutoff) {
+        final List<String> dropped = partitionManager.rollPartitions(now, NB_PARTITIONS_AHEAD, cutoff);
+        if (!dropped.isEmpty()) {
+            log.info("{}: Dropped expired history partitions {}", threadScheduledExecutorName, dropped);
+            droppedPartitions.inc(dropped.size());
+        }
+    }
+
+    private void archiveEntries(final DateTime cutoff) {
+        final String historyTableName = config.getHistoryTableName();
+        final String archiveTableName = Strings.emptyToNull(config.getHistoryArchiveTableName());
+        final int batchSize = config.getHistoryArchiveBatchSize();
+
+        long nbArchived = 0;
+        while (isStarted.get()) {
+            final List<Long> recordIds = sqlDao.getRecordIdsCreatedBefore(cutoff.toDate(), batchSize, historyTableName);
+            if (recordIds.isEmpty()) {
+                break;
+            }
+
+            sqlDao.inTransaction(new Transaction<Void, QueueSqlDao<T>>() {
+                @Override
+                public Void inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) throws Exception {
+                    if (archiveTableName != null) {
+                        transactional.copyEntries(recordIds, historyTableName, archiveTableName);
+                    }
+                    transactional.removeEntries(recordIds, historyTableName);
+                    return null;
+                }
+            });
+            archivedEntries.inc(recordIds.size());
+            nbArchived += recordIds.size();
+
+            if (recordIds.size() < batchSize) {
+                break;
+            }
+
+            try {
+                Thread.sleep(config.getHistoryArchiveSleepTimeMs());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (nbArchived > 0) {
+            log.info("{}: Archived {} entries older than {} from {}", threadScheduledExecutorName, nbArchived, cutoff, historyTableName);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.history;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.killbill.queue.api.PersistentQueueConfig.HistoryPartitioning;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.skife.jdbi.v2.util.BooleanMapper;
+import org.skife.jdbi.v2.util.StringMapper;
+
+import com.google.common.collect.ImmutableList;
+
+//
+// Rolls created_date range partitions of a history table: partitions are named <historyTable>_p<yyyyMMdd> (DAILY)
+// or <historyTable>_p<yyyyMM> (MONTHLY) and cover [start of period, start of next period).
+//
+// The history table itself has to be created partitioned (see README); on MySQL it also needs a catch-all pmax
+// partition, which new partitions are split from.
+//
+public abstract class HistoryPartitionManager {
+
+    private static final DateTimeFormatter DAILY_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd");
+    private static final DateTimeFormatter MONTHLY_FORMATTER = DateTimeFormat.forPattern("yyyyMM");
+    private static final DateTimeFormatter BOUND_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd");
+
+    protected final IDBI dbi;
+    protected final String historyTableName;
+    private final HistoryPartitioning partitioning;
+    private final Pattern partitionNamePattern;
+
+    protected HistoryPartitionManager(final IDBI dbi, final String historyTableName, final HistoryPartitioning partitioning) {
+        this.dbi = dbi;
+        this.historyTableName = historyTableName;
+        this.partitioning = partitioning;
+        this.partitionNamePattern = Pattern.compile(Pattern.quote(historyTableName.toLowerCase()) + "_p(\\d{" + (partitioning == HistoryPartitioning.DAILY ? 8 : 6) + "})");
+    }
+
+    // Returns null if the database doesn't support (or we don't know how to roll) partitions
+    @Nullable
+    public static HistoryPartitionManager create(final IDBI dbi, final String databaseProductName, final String historyTableName, final HistoryPartitioning partitioning) {
+        if ("PostgreSQL".equals(databaseProductName)) {
+            return new PostgreSQLHistoryPartitionManager(dbi, historyTableName, partitioning);
+        } else if ("MySQL".equals(databaseProductName) || "MariaDB".equals(databaseProductName)) {
+            return new MySQLHistoryPartitionManager(dbi, historyTableName, partitioning);
+        } else {
+            return null;
+        }
+    }
+
+    // Creates the partitions for the current period and the nbPeriodsAhead next ones, and drops the partitions whose whole
+    // range is older than the cutoff. Returns the names of the dropped partitions.
+    public List<String> rollPartitions(final DateTime now, final int nbPeriodsAhead, final DateTime cutoff) {
+        return dbi.withHandle(new HandleCallback<List<String>>() {
+            @Override
+            public List<String> withHandle(final Handle handle) throws Exception {
+                return rollPartitions(handle, now, nbPeriodsAhead, cutoff);
+            }
+        });
+    }
+
+    List<String> rollPartitions(final Handle handle, final DateTime now, final int nbPeriodsAhead, final DateTime cutoff) {
+        // Concurrent DDL on the same table fails (e.g. two MySQL nodes reorganizing pmax), so only one node at a time rolls the
+        // partitions: the others skip this run, the partitions being created far enough ahead of time
+        if (!tryLock(handle)) {
+            return ImmutableList.<String>of();
+        }
+        try {
+            ensurePartitions(handle, now, nbPeriodsAhead);
+            return dropPartitionsBefore(handle, cutoff);
+        } finally {
+            releaseLock(handle);
+        }
+    }
+
+    // Makes sure the partitions for the current period and the nbPeriodsAhead next ones exist
+    void ensurePartitions(final Handle handle, final DateTime now, final int nbPeriodsAhead) {
+        final List<String> existingPartitions = getPartitionNames(handle);
+        LocalDate periodStart = getPeriodStart(now);
+        for (int i = 0; i <= nbPeriodsAhead; i++) {
+            final String partitionName = getPartitionName(periodStart);
+            if (!existingPartitions.contains(partitionName)) {
+                createPartition(handle, partitionName, periodStart, getNextPeriodStart(periodStart));
+            }
+            periodStart = getNextPeriodStart(periodStart);
+        }
+    }
+
+    // Drops the partitions whose whole range is older than the cutoff, returns the names of the dropped partitions
+    List<String> dropPartitionsBefore(final Handle handle, final DateTime cutoff) {
+        final ImmutableList.Builder<String> droppedPartitions = ImmutableList.builder();
+        for (final String partitionName : getPartitionNames(handle)) {
+            final LocalDate periodStart = getPeriodStart(partitionName);
+            if (periodStart != null && !getNextPeriodStart(periodStart).toDateTimeAtStartOfDay(DateTimeZone.UTC).isAfter(cutoff)) {
+                dropPartition(handle, partitionName);
+                droppedPartitions.add(partitionName);
+            }
+        }
+        return droppedPartitions.build();
+    }
+
+    LocalDate getPeriodStart(final DateTime now) {
+        final LocalDate today = now.toDateTime(DateTimeZone.UTC).toLocalDate();
+        return partitioning == HistoryPartitioning.DAILY ? today : today.withDayOfMonth(1);
+    }
+
+    LocalDate getNextPeriodStart(final LocalDate periodStart) {
+        return partitioning == HistoryPartitioning.DAILY ? periodStart.plusDays(1) : periodStart.plusMonths(1);
+    }
+
+    String getPartitionName(final LocalDate periodStart) {
+        final DateTimeFormatter formatter = partitioning == HistoryPartitioning.DAILY ? DAILY_FORMATTER : MONTHLY_FORMATTER;
+        return historyTableName.toLowerCase() + "_p" + formatter.print(periodStart);
+    }
+
+    // Returns null for partitions not managed by us (e.g. MySQL pmax)
+    @Nullable
+    LocalDate getPeriodStart(final String partitionName) {
+        final Matcher matcher = partitionNamePattern.matcher(partitionName.toLowerCase());
+        if (!matcher.matches()) {
+            return null;
+        }
+        final DateTimeFormatter formatter = partitioning == HistoryPartitioning.DAILY ? DAILY_FORMATTER : MONTHLY_FORMATTER;
+        return formatter.parseLocalDate(matcher.group(1));
+    }
+
+    protected static String getBound(final LocalDate date) {
+        return BOUND_FORMATTER.print(date);
+    }
+
+    protected String getLockName() {
+        return historyTableName.toLowerCase() + "_partitions";
+    }
+
+    protected static List<String> getPartitionNames(final Handle handle, final String partitionNamesQuery, final String tableName) {
+        return handle.createQuery(partitionNamesQuery)
+                     .bind("tableName", tableName)
+                     .map(StringMapper.FIRST)
+                     .list();
+    }
+
+    // Non-blocking, session level, lock serializing the DDL across nodes
+    protected abstract boolean tryLock(final Handle handle);
+
+    protected abstract void releaseLock(final Handle handle);
+
+    protected abstract List<String> getPartitionNames(final Handle handle);
+
+    protected abstract void createPartition(final Handle handle, final String partitionName, final LocalDate from, final LocalDate to);
+
+    protected abstract void dropPartition(final Handle handle, final String partitionName);
+
+    private static final class PostgreSQLHistoryPartitionManager extends HistoryPartitionManager {
+
+        // Namespace of the advisory locks, so that they can't collide with the (single key) GlobalLocker ones
+        private static final int ADVISORY_LOCK_NAMESPACE = 0x4B424850;
+
+        private PostgreSQLHistoryPartitionManager(final IDBI dbi, final String historyTableName, final HistoryPartitioning partitioning) {
+            super(dbi, historyTableName, partitioning);
+        }
+
+        @Override
+        protected boolean tryLock(final Handle handle) {
+            return handle.createQuery("select pg_try_advisory_lock(:namespace, hashtext(:lockName))")
+                         .bind("namespace", ADVISORY_LOCK_NAMESPACE)
+                         .bind("lockName", getLockName())
+                         .map(BooleanMapper.FIRST)
+                         .first();
+        }
+
+        @Override
+        protected void releaseLock(final Handle handle) {
+            handle.createQuery("select pg_advisory_unlock(:namespace, hashtext(:lockName))")
+                  .bind("namespace", ADVISORY_LOCK_NAMESPACE)
+                  .bind("lockName", getLockName())
+                  .map(BooleanMapper.FIRST)
+                  .first();
+        }
+
+        @Override
+        protected List<String> getPartitionNames(final Handle handle) {
+            return getPartitionNames(handle,
+                                     "select c.relname from pg_inherits i join pg_class c on c.oid = i.inhrelid join pg_class p on p.oid = i.inhparent where p.relname = :tableName",
+                                     historyTableName.toLowerCase());
+        }
+
+        @Override
+        protected void createPartition(final Handle handle, final String partitionName, final LocalDate from, final LocalDate to) {
+            handle.execute(String.format("create table if not exists %s partition of %s for values from ('%s') to ('%s')",
+                                         partitionName, historyTableName, getBound(from), getBound(to)));
+        }
+
+        @Override
+        protected void dropPartition(final Handle handle, final String partitionName) {
+            handle.execute(String.format("drop table if exists %s", partitionName));
+        }
+    }
+
+    private static final class MySQLHistoryPartitionManager extends HistoryPartitionManager {
+
+        private MySQLHistoryPartitionManager(final IDBI dbi, final String historyTableName, final HistoryPartitioning partitioning) {
+            super(dbi, historyTableName, partitioning);
+        }
+
+        @Override
+        protected boolean tryLock(final Handle handle) {
+            return handle.createQuery("select get_lock(:lockName, 0) = 1")
+                         .bind("lockName", getLockName())
+                         .map(BooleanMapper.FIRST)
+                         .first();
+        }
+
+        @Override
+        protected void releaseLock(final Handle handle) {
+            handle.createQuery("select release_lock(:lockName) = 1")
+                  .bind("lockName", getLockName())
+                  .map(BooleanMapper.FIRST)
+                  .first();
+        }
+
+        @Override
+        protected List<String> getPartitionNames(final Handle handle) {
+            return getPartitionNames(handle,
+                                     "select partition_name from information_schema.partitions where table_schema = database() and lower(table_name) = :tableName and partition_name is not null",
+                                     historyTableName.toLowerCase());
+        }
+
+        @Override
+        protected void createPartition(final Handle handle, final String partitionName, final LocalDate from, final LocalDate to) {
+            // Partitions are created in order, so the new one is always split from the tail of pmax
+            handle.execute(String.format("alter table %s reorganize partition pmax into (partition %s values less than ('%s'), partition pmax values less than (maxvalue))",
+                                         historyTableName, partitionName, getBound(to)));
+        }
+
+        @Override
+        protected void dropPartition(final Handle handle, final String partitionName) {
+            handle.execute(String.format("alter table %s drop partition %s", historyTableName, partitionName));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.wakeup;
+
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.queue.api.WakeupTransport;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.exceptions.DBIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//
+// PostgreSQL LISTEN/NOTIFY: one connection is dedicated to listening on the channel, and signals are sent with pg_notify,
+// coalesced so that at most one is in flight at a time. Writers not going through the queue can be covered by a trigger
+// notifying the same channel (see README).
+//
+public class PostgreSQLWakeupTransport implements WakeupTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(PostgreSQLWakeupTransport.class);
+
+    // Max time to block waiting for notifications, i.e. max time to notice stop() was called
+    private static final int LISTEN_TIMEOUT_MS = 500;
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final IDBI dbi;
+    private final String channel;
+    private final AtomicBoolean isSignalPending;
+
+    private volatile boolean isRunning;
+    private ExecutorService listenerExecutor;
+    private ExecutorService signalExecutor;
+
+    public PostgreSQLWakeupTransport(final IDBI dbi, final String channel) {
+        this.dbi = dbi;
+        this.channel = normalizeChannel(channel);
+        this.isSignalPending = new AtomicBoolean(false);
+        this.isRunning = false;
+    }
+
+    @Override
+    public void start(final WakeupListener listener) {
+        isRunning = true;
+        signalExecutor = Executors.newSingleThreadExecutor("wakeup-notify-" + channel);
+        listenerExecutor = Executors.newSingleThreadExecutor("wakeup-listen-" + channel);
+        listenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (isRunning) {
+                    try {
+                        listen(listener);
+                    } catch (final SQLException e) {
+                        reconnectAfterFailure(e);
+                    } catch (final DBIException e) {
+                        reconnectAfterFailure(e);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void signal() {
+        if (!isRunning || !isSignalPending.compareAndSet(false, true)) {
+            return;
+        }
+        signalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Reset first, so that a commit happening while we notify triggers another notification
+                isSignalPending.set(false);
+                Handle handle = null;
+                try {
+                    handle = dbi.open();
+                    handle.select("select pg_notify(?, '')", channel);
+                } catch (final DBIException e) {
+                    log.warn("Failed to notify channel {}", channel, e);
+                } finally {
+                    if (handle != null) {
+                        handle.close();
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        isRunning = false;
+        if (listenerExecutor != null) {
+            listenerExecutor.shutdown();
+            signalExecutor.shutdown();
+            try {
+                listenerExecutor.awaitTermination(2 * LISTEN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                signalExecutor.awaitTermination(LISTEN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                log.info("Stop sequence of the wakeup transport for channel {} has been interrupted", channel);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void listen(final WakeupListener listener) throws SQLException {
+        final Handle handle = dbi.open();
+        try {
+            handle.execute("LISTEN " + channel);
+            final PGConnection pgConnection = handle.getConnection().unwrap(PGConnection.class);
+
+            // Catch up with what was committed while we were not listening
+            listener.onWakeup();
+            while (isRunning) {
+                final PGNotification[] notifications = pgConnection.getNotifications(LISTEN_TIMEOUT_MS);
+                if (notifications != null && notifications.length > 0) {
+                    listener.onWakeup();
+                }
+            }
+        } finally {
+            handle.close();
+        }
+    }
+
+    // LISTEN folds unquoted identifiers to lower case while pg_notify uses the name as is: use a lower-case name, restricted
+    // to characters which don't need quoting, for both (e.g. a schema-qualified table name accounts.bus_events becomes accounts_bus_events)
+    static String normalizeChannel(final String channel) {
+        final String normalized = channel.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9_]", "_");
+        return Character.isDigit(normalized.charAt(0)) ? "_" + normalized : normalized;
+    }
+
+    private void reconnectAfterFailure(final Exception e) {
+        if (!isRunning) {
+            return;
+        }
+        log.warn("Failed to listen on channel {}, reconnecting in {} ms", channel, RECONNECT_DELAY_MS, e);
+        try {
+            Thread.sleep(RECONNECT_DELAY_MS);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            isRunning = false;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.wakeup;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.queue.api.WakeupTransport;
+import org.killbill.queue.dao.QueueSqlDao;
+import org.skife.jdbi.v2.exceptions.DBIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//
+// For databases without a notification mechanism (MySQL, H2): watch the max record_id of the table (a cheap index lookup)
+// and wake up the listener whenever it moves. Commits are visible to all nodes, so signal() is a no-op.
+//
+public class WatermarkWakeupTransport implements WakeupTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(WatermarkWakeupTransport.class);
+
+    private final QueueSqlDao<?> sqlDao;
+    private final String tableName;
+    private final long sleepTimeMs;
+
+    private volatile long lastMaxRecordId;
+    private ScheduledExecutorService scheduler;
+
+    public WatermarkWakeupTransport(final QueueSqlDao<?> sqlDao, final String tableName, final long sleepTimeMs) {
+        this.sqlDao = sqlDao;
+        this.tableName = tableName;
+        this.sleepTimeMs = sleepTimeMs;
+        this.lastMaxRecordId = -1;
+    }
+
+    @Override
+    public void start(final WakeupListener listener) {
+        scheduler = Executors.newSingleThreadScheduledExecutor("wakeup-watermark-" + tableName);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Long maxRecordId = sqlDao.getMaxRecordId(tableName);
+                    if (maxRecordId != null && maxRecordId != lastMaxRecordId) {
+                        lastMaxRecordId = maxRecordId;
+                        listener.onWakeup();
+                    }
+                } catch (final DBIException e) {
+                    log.warn("Failed to retrieve the max record_id of {}", tableName, e);
+                }
+            }
+        }, 0, sleepTimeMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void signal() {
+    }
+
+    @Override
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                log.info("Stop sequence of the wakeup transport for {} has been interrupted", tableName);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
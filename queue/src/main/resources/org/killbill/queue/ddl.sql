@@ -63,6 +63,8 @@ CREATE TABLE notifications_history (
     PRIMARY KEY(record_id)
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
 CREATE INDEX notifications_history_search_keys ON notifications_history(search_key2, search_key1);
+CREATE INDEX notifications_history_search_key2_queue_name_record_id ON notifications_history(search_key2, queue_name, record_id, effective_date);
+CREATE INDEX notifications_history_created_date ON notifications_history(created_date);
 
 DROP TABLE IF EXISTS bus_events;
 CREATE TABLE bus_events (
@@ -100,3 +102,5 @@ CREATE TABLE bus_events_history (
     PRIMARY KEY(record_id)
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
 CREATE INDEX bus_events_history_tenant_account_record_id ON bus_events_history(search_key2, search_key1);
+CREATE INDEX bus_events_history_search_key2_record_id ON bus_events_history(search_key2, record_id);
+CREATE INDEX bus_events_history_created_date ON bus_events_history(created_date);
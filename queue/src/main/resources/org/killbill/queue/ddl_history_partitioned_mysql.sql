@@ -0,0 +1,67 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+-- History tables range partitioned on created_date, for getHistoryPartitioning DAILY or MONTHLY.
+-- Partitioned tables can't have unique keys without the partitioning column, hence the (record_id, created_date)
+-- primary key. The queue splits the new partitions from pmax and drops the expired ones.
+
+DROP TABLE IF EXISTS notifications_history;
+CREATE TABLE notifications_history (
+    record_id bigint unsigned NOT NULL AUTO_INCREMENT,
+    class_name varchar(256) NOT NULL,
+    event_json varchar(2048) NOT NULL,
+    user_token varchar(36),
+    created_date datetime NOT NULL,
+    creating_owner varchar(50) NOT NULL,
+    processing_owner varchar(50) DEFAULT NULL,
+    processing_available_date datetime DEFAULT NULL,
+    processing_state varchar(14) DEFAULT 'AVAILABLE',
+    error_count int unsigned DEFAULT 0,
+    search_key1 bigint unsigned default null,
+    search_key2 bigint unsigned default null,
+    queue_name varchar(64) NOT NULL,
+    effective_date datetime NOT NULL,
+    future_user_token varchar(36),
+    PRIMARY KEY(record_id, created_date)
+) ENGINE=INNODB CHARACTER SET utf8 COLLATE utf8_bin
+PARTITION BY RANGE COLUMNS(created_date) (PARTITION pmax VALUES LESS THAN (MAXVALUE));
+CREATE INDEX notifications_history_search_keys ON notifications_history(search_key2, search_key1);
+CREATE INDEX notifications_history_search_key2_queue_name_record_id ON notifications_history(search_key2, queue_name, record_id, effective_date);
+CREATE INDEX notifications_history_created_date ON notifications_history(created_date);
+
+DROP TABLE IF EXISTS bus_events_history;
+CREATE TABLE bus_events_history (
+    record_id bigint unsigned NOT NULL AUTO_INCREMENT,
+    class_name varchar(128) NOT NULL,
+    event_json varchar(2048) NOT NULL,
+    user_token varchar(36),
+    created_date datetime NOT NULL,
+    creating_owner varchar(50) NOT NULL,
+    processing_owner varchar(50) DEFAULT NULL,
+    processing_available_date datetime DEFAULT NULL,
+    processing_state varchar(14) DEFAULT 'AVAILABLE',
+    error_count int unsigned DEFAULT 0,
+    search_key1 bigint unsigned default null,
+    search_key2 bigint unsigned default null,
+    PRIMARY KEY(record_id, created_date)
+) ENGINE=INNODB CHARACTER SET utf8 COLLATE utf8_bin
+PARTITION BY RANGE COLUMNS(created_date) (PARTITION pmax VALUES LESS THAN (MAXVALUE));
+CREATE INDEX bus_events_history_tenant_account_record_id ON bus_events_history(search_key2, search_key1);
+CREATE INDEX bus_events_history_search_key2_record_id ON bus_events_history(search_key2, record_id);
+CREATE INDEX bus_events_history_created_date ON bus_events_history(created_date);
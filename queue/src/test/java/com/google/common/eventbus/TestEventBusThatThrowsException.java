@@ -20,6 +20,8 @@
 package com.google.common.eventbus;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.UUID;
 
 import org.testng.Assert;
@@ -90,4 +92,62 @@ public class TestEventBusThatThrowsException extends TestSetupEventBusThatThrows
         checkEventsSeen(subscriberA);
         checkEventsSeen(subscriberB);
     }
+
+    @Test(groups = "fast")
+    public void testUnregisterSubscriber() throws Exception {
+        eventBus.unregister(subscriberA);
+
+        final MyEvent event = new MyEvent(UUID.randomUUID(), "A");
+        eventBus.postWithException(event);
+
+        checkEventsSeen(subscriberA);
+        checkEventsSeen(subscriberB, event);
+
+        try {
+            eventBus.unregister(subscriberA);
+            Assert.fail();
+        } catch (final IllegalArgumentException ignored) {
+        }
+
+        // Registering twice is a no-op
+        eventBus.register(subscriberA);
+        eventBus.register(subscriberA);
+
+        final MyEvent secondEvent = new MyEvent(UUID.randomUUID());
+        eventBus.postWithException(secondEvent);
+
+        checkEventsSeen(subscriberA, secondEvent);
+        checkEventsSeen(subscriberB, secondEvent);
+    }
+
+    @Test(groups = "fast")
+    public void testSupertypeAndDeadEventSubscribers() throws Exception {
+        final List<Object> allEvents = new LinkedList<Object>();
+        final List<DeadEvent> deadEvents = new LinkedList<DeadEvent>();
+        eventBus.register(new Object() {
+            @Subscribe
+            public void onEvent(final Object event) {
+                allEvents.add(event);
+            }
+
+            @Subscribe
+            public void onDeadEvent(final DeadEvent event) {
+                deadEvents.add(event);
+            }
+        });
+
+        final MyEvent event = new MyEvent(UUID.randomUUID());
+        eventBus.postWithException(event);
+
+        checkEventsSeen(subscriberA, event);
+        checkEventsSeen(subscriberB, event);
+        Assert.assertEquals(allEvents.size(), 1);
+        Assert.assertTrue(allEvents.get(0) == event);
+        Assert.assertEquals(deadEvents.size(), 0);
+
+        // Only the Object subscriber is interested: not a dead event
+        eventBus.postWithException("String event");
+        Assert.assertEquals(allEvents.size(), 2);
+        Assert.assertEquals(deadEvents.size(), 0);
+    }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.bus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.joda.time.DateTime;
+import org.killbill.bus.api.PersistentBus.EventBusException;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+
+public class TestBusGroupCommitWriter {
+
+    @Test(groups = "fast")
+    public void testPostsAreGroupedInOneTransaction() throws Exception {
+        final BlockingBatchWriter batchWriter = new BlockingBatchWriter();
+        final BusGroupCommitWriter writer = new BusGroupCommitWriter("testGroupCommit", batchWriter, 100, 10, new MetricRegistry());
+        writer.start();
+        try {
+            // The first post is written on its own, while the others pile up
+            final CompletableFuture<Void> first = writer.stage(createEntries(1));
+            Assert.assertTrue(batchWriter.writing.await(5, TimeUnit.SECONDS));
+
+            final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(writer.stage(createEntries(2)));
+            }
+            Assert.assertFalse(first.isDone());
+            batchWriter.canWrite.countDown();
+
+            first.get(5, TimeUnit.SECONDS);
+            for (final CompletableFuture<Void> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+            // 12 staged events, split in batches of at most 10 without splitting a post
+            Assert.assertEquals(batchWriter.batchSizes, ImmutableList.<Integer>of(1, 10, 2));
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFailWhenBufferIsFull() throws Exception {
+        final BlockingBatchWriter batchWriter = new BlockingBatchWriter();
+        final BusGroupCommitWriter writer = new BusGroupCommitWriter("testBufferFull", batchWriter, 3, 10, new MetricRegistry());
+        writer.start();
+        try {
+            // Events being written still count
+            final CompletableFuture<Void> first = writer.stage(createEntries(1));
+            Assert.assertTrue(batchWriter.writing.await(5, TimeUnit.SECONDS));
+            final CompletableFuture<Void> second = writer.stage(createEntries(2));
+
+            final CompletableFuture<Void> rejected = writer.stage(createEntries(1));
+            Assert.assertTrue(rejected.isCompletedExceptionally());
+            assertFailure(rejected);
+
+            batchWriter.canWrite.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testWriteFailure() throws Exception {
+        final BusGroupCommitWriter writer = new BusGroupCommitWriter("testWriteFailure", new BusGroupCommitWriter.BatchWriter() {
+            @Override
+            public void write(final List<BusEventModelDao> entries) {
+                throw new IllegalStateException("Database is down");
+            }
+        }, 100, 10, new MetricRegistry());
+        writer.start();
+        try {
+            assertFailure(writer.stage(createEntries(3)));
+        } finally {
+            writer.stop();
+        }
+
+        // Stopped
+        assertFailure(writer.stage(createEntries(1)));
+    }
+
+    @Test(groups = "fast")
+    public void testStageRacingWithStop() throws Exception {
+        final BusGroupCommitWriter writer = new BusGroupCommitWriter("testStageRacingWithStop", new BusGroupCommitWriter.BatchWriter() {
+            @Override
+            public void write(final List<BusEventModelDao> entries) {
+            }
+        }, 100000, 10, new MetricRegistry());
+        writer.start();
+
+        final int nbThreads = 4;
+        final List<CompletableFuture<Void>> futures = new CopyOnWriteArrayList<CompletableFuture<Void>>();
+        final AtomicBoolean isStopped = new AtomicBoolean(false);
+        final CountDownLatch staging = new CountDownLatch(nbThreads);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < nbThreads; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    staging.countDown();
+                    // Keep staging for a little while after the stop
+                    int nbPostsAfterStop = 0;
+                    while (nbPostsAfterStop < 100) {
+                        futures.add(writer.stage(createEntries(1)));
+                        if (isStopped.get()) {
+                            nbPostsAfterStop++;
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        Assert.assertTrue(staging.await(5, TimeUnit.SECONDS));
+        writer.stop();
+        isStopped.set(true);
+        for (final Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+
+        // Every post was either written, or failed: none is left hanging
+        for (final CompletableFuture<Void> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof EventBusException);
+            }
+        }
+    }
+
+    private void assertFailure(final CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Post should have failed");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof EventBusException);
+        }
+    }
+
+    private List<BusEventModelDao> createEntries(final int nbEntries) {
+        final List<BusEventModelDao> entries = new ArrayList<BusEventModelDao>(nbEntries);
+        for (int i = 0; i < nbEntries; i++) {
+            entries.add(new BusEventModelDao("owner", new DateTime(), String.class.getName(), "{}", UUID.randomUUID(), 1L, 2L));
+        }
+        return entries;
+    }
+
+    private static final class BlockingBatchWriter implements BusGroupCommitWriter.BatchWriter {
+
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch canWrite = new CountDownLatch(1);
+        private final List<Integer> batchSizes = new ArrayList<Integer>();
+
+        @Override
+        public void write(final List<BusEventModelDao> entries) throws Exception {
+            writing.countDown();
+            canWrite.await();
+            synchronized (batchSizes) {
+                batchSizes.add(entries.size());
+            }
+        }
+    }
+}
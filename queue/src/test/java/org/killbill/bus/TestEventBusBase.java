@@ -19,7 +19,11 @@
 
 package org.killbill.bus;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.eventbus.AllowConcurrentEvents;
 import org.slf4j.Logger;
@@ -250,6 +254,33 @@ public class TestEventBusBase {
         }
     }
 
+    public void testPostAsync() {
+        try {
+            final int nbEvents = 20;
+            final MyEventHandler handler = new MyEventHandler(nbEvents, 0);
+            eventBus.register(handler);
+
+            final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < nbEvents / 2; i++) {
+                futures.add(eventBus.postAsync(new MyEvent("my-event", (long) i, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID())));
+            }
+            final List<MyEvent> batch = new ArrayList<MyEvent>();
+            for (int i = nbEvents / 2; i < nbEvents; i++) {
+                batch.add(new MyEvent("my-event", (long) i, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+            }
+            futures.add(eventBus.postAsync(batch));
+
+            // Durable once the futures complete
+            for (final CompletableFuture<Void> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            final boolean completed = handler.waitForCompletion(10000);
+            Assert.assertEquals(completed, true);
+        } catch (final Exception e) {
+            Assert.fail("", e);
+        }
+    }
+
     public void testDifferentType() {
         try {
             final MyEventHandler handler = new MyEventHandler(1, 0);
@@ -132,6 +132,10 @@ public class TestInMemoryEventBus {
         busService.stopQueue();
     }
 
+    @Test(groups = "fast")
+    public void testPostAsync() {
+        testEventBusBase.testPostAsync();
+    }
 
     @Test(groups = "fast")
     public void testSimple() {
@@ -19,6 +19,8 @@
 
 package org.killbill.bus;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.Callable;
@@ -103,6 +105,70 @@ public class TestLoadDefaultPersistentBus extends TestSetup {
         }
     }
 
+    @Test(groups = "load")
+    public void testBatchPostFromTransaction() throws Exception {
+        final CountingHandler consumer = new CountingHandler();
+        eventBus.register(consumer);
+
+        final int nbEvents = 10000;
+        final List<BusEvent> events = new ArrayList<BusEvent>(nbEvents);
+        for (int i = 0; i < nbEvents; i++) {
+            events.add(new LoadBusEvent());
+        }
+
+        // One row at a time
+        final long singleStart = System.nanoTime();
+        dbi.inTransaction(new TransactionCallback<Void>() {
+            @Override
+            public Void inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                for (final BusEvent event : events) {
+                    eventBus.postFromTransaction(event, conn.getConnection());
+                }
+                return null;
+            }
+        });
+        final long singleNanos = System.nanoTime() - singleStart;
+
+        // Single batch (parallel serialization and JDBC batch insert)
+        final long batchStart = System.nanoTime();
+        dbi.inTransaction(new TransactionCallback<Void>() {
+            @Override
+            public Void inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                eventBus.postFromTransaction(events, conn.getConnection());
+                return null;
+            }
+        });
+        final long batchNanos = System.nanoTime() - batchStart;
+
+        log.info("Posted {} events: {}ms one row at a time, {}ms in batch (x{} speedup)",
+                 nbEvents, TimeUnit.NANOSECONDS.toMillis(singleNanos), TimeUnit.NANOSECONDS.toMillis(batchNanos), String.format("%.1f", (double) singleNanos / batchNanos));
+
+        // The recordIds of the batch inserted entries are dispatched as well
+        consumer.waitForCompletion(2L * nbEvents, 60000);
+    }
+
+    public static final class CountingHandler {
+
+        private final AtomicLong nbEvents = new AtomicLong(0);
+
+        @AllowConcurrentEvents
+        @Subscribe
+        public void processEvent(final LoadBusEvent event) {
+            nbEvents.incrementAndGet();
+        }
+
+        public void waitForCompletion(final Long expectedEvents, final long timeoutMs) {
+            Awaitility.await()
+                      .atMost(timeoutMs, TimeUnit.MILLISECONDS)
+                      .until(new Callable<Boolean>() {
+                          @Override
+                          public Boolean call() throws Exception {
+                              return nbEvents.get() == expectedEvents;
+                          }
+                      });
+        }
+    }
+
     public static final class LoadHandler {
 
         private final AtomicLong nbEvents = new AtomicLong(0);
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.bus;
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.TestSetup;
+import org.killbill.bus.TestEventBusBase.MyEvent;
+import org.killbill.bus.TestEventBusBase.MyEventHandler;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.config.SimplePropertyConfigSource;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Resources;
+
+import static org.awaitility.Awaitility.await;
+
+public class TestPartitionedPersistentEventBus extends TestSetup {
+
+    private PersistentBusConfig partitionedConfig;
+    private DefaultPersistentBus busService;
+
+    @Override
+    @BeforeClass(groups = "slow")
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        final String ddl = toString(Resources.getResource("org/killbill/bus/ddl_partitions_test.sql").openStream());
+        embeddedDB.executeScript(ddl);
+        embeddedDB.refreshTableNames();
+
+        final Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        properties.setProperty("org.killbill.persistent.bus.main.nbPartitions", "2");
+        partitionedConfig = new ConfigurationObjectFactory(new SimplePropertyConfigSource(properties)).buildWithReplacements(PersistentBusConfig.class,
+                                                                                                                             ImmutableMap.<String, String>of("instanceName", "main"));
+    }
+
+    @Override
+    @BeforeMethod(groups = "slow")
+    public void beforeMethod() throws Exception {
+        super.beforeMethod();
+        busService = new DefaultPersistentBus(getDBI(), clock, partitionedConfig, metricRegistry, databaseTransactionNotificationApi);
+    }
+
+    @AfterMethod(groups = "slow")
+    public void afterMethod() throws Exception {
+        busService.stopQueue();
+    }
+
+    @Test(groups = "slow")
+    public void testEventsAreRoutedBySearchKey2() throws Exception {
+        // Initialize without starting the dispatcher threads, so the entries stay in their partition
+        busService.initQueue();
+
+        busService.post(new MyEvent("my-event", 1L, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+        busService.post(new MyEvent("my-event", 2L, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+        busService.post(new MyEvent("my-event", 3L, "MY_EVENT_TYPE", 1L, 3L, UUID.randomUUID()));
+
+        Assert.assertEquals(countEntries("bus_events_0"), 2);
+        Assert.assertEquals(countEntries("bus_events_1"), 1);
+        Assert.assertEquals(Iterables.size(busService.<MyEvent>getAvailableBusEventsForSearchKeys(1L, 2L)), 2);
+        Assert.assertEquals(Iterables.size(busService.<MyEvent>getAvailableBusEventsForSearchKeys(1L, 3L)), 1);
+        Assert.assertEquals(busService.getNbReadyEntries(clock.getUTCNow()), 3);
+
+        final MyEventHandler handler = new MyEventHandler(3, 0);
+        busService.register(handler);
+        busService.startQueue();
+        Assert.assertTrue(handler.waitForCompletion(10000));
+
+        // Completed entries are moved asynchronously from their partition into the shared history table
+        await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return countEntries("bus_events_0") == 0 && countEntries("bus_events_1") == 0;
+            }
+        });
+        Assert.assertEquals(Iterables.size(busService.<MyEvent>getHistoricalBusEventsForSearchKeys(1L, 2L)), 2);
+        Assert.assertEquals(Iterables.size(busService.<MyEvent>getHistoricalBusEventsForSearchKeys(1L, 3L)), 1);
+        Assert.assertEquals(Iterables.size(busService.getInProcessingBusEvents()), 0);
+        Assert.assertEquals(busService.getNbReadyEntries(clock.getUTCNow()), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testSimple() {
+        busService.startQueue();
+        new TestEventBusBase(busService).testSimple();
+    }
+
+    private int countEntries(final String tableName) {
+        final Handle handle = getDBI().open();
+        try {
+            return handle.createQuery("select count(*) from " + tableName).mapTo(Integer.class).first();
+        } finally {
+            handle.close();
+        }
+    }
+}
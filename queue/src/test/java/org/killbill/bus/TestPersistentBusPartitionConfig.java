@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.bus;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import org.killbill.bus.api.PersistentBusConfig;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.fail;
+
+public class TestPersistentBusPartitionConfig {
+
+    // Settings which are not forwarded silently fall back to their defaults in the partitions and subscription groups
+    @Test(groups = "fast")
+    public void testAllSettingsAreDelegated() {
+        for (final Method method : PersistentBusConfig.class.getMethods()) {
+            if (method.getDeclaringClass() == Object.class || Modifier.isStatic(method.getModifiers())) {
+                continue;
+            }
+            try {
+                PersistentBusPartitionConfig.class.getDeclaredMethod(method.getName(), method.getParameterTypes());
+            } catch (final NoSuchMethodException e) {
+                fail(method.getName() + " is not delegated");
+            }
+        }
+    }
+}
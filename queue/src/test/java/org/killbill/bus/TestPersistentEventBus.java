@@ -56,6 +56,13 @@ public class TestPersistentEventBus extends TestSetup {
         busService.stopQueue();
     }
 
+    @Test(groups = "slow")
+    public void testPostAsync() {
+        assertNoInProcessingEvent();
+        testEventBusBase.testPostAsync();
+        assertNoInProcessingEvent();
+    }
+
     @Test(groups = "slow")
     public void testSimple() {
         assertNoInProcessingEvent();
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.bus;
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.TestSetup;
+import org.killbill.bus.TestEventBusBase.MyEvent;
+import org.killbill.bus.TestEventBusBase.MyEventHandler;
+import org.killbill.bus.api.PersistentBus.EventBusException;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.config.SimplePropertyConfigSource;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+
+import static org.awaitility.Awaitility.await;
+
+public class TestSubscriptionGroupsPersistentEventBus extends TestSetup {
+
+    private PersistentBusConfig subscriptionGroupsConfig;
+    private DefaultPersistentBus busService;
+
+    @Override
+    @BeforeClass(groups = "slow")
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        final String ddl = toString(Resources.getResource("org/killbill/bus/ddl_subscription_groups_test.sql").openStream());
+        embeddedDB.executeScript(ddl);
+        embeddedDB.refreshTableNames();
+
+        final Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        properties.setProperty("org.killbill.persistent.bus.main.subscriptionGroups", "audit");
+        subscriptionGroupsConfig = new ConfigurationObjectFactory(new SimplePropertyConfigSource(properties)).buildWithReplacements(PersistentBusConfig.class,
+                                                                                                                                   ImmutableMap.<String, String>of("instanceName", "main"));
+    }
+
+    @Override
+    @BeforeMethod(groups = "slow")
+    public void beforeMethod() throws Exception {
+        super.beforeMethod();
+        busService = new DefaultPersistentBus(getDBI(), clock, subscriptionGroupsConfig, metricRegistry, databaseTransactionNotificationApi);
+    }
+
+    @AfterMethod(groups = "slow")
+    public void afterMethod() throws Exception {
+        busService.stopQueue();
+    }
+
+    @Test(groups = "slow")
+    public void testEventsAreCopiedToEachGroup() throws Exception {
+        // Initialize without starting the dispatcher threads, so the entries stay in their tables
+        busService.initQueue();
+
+        busService.post(new MyEvent("my-event", 1L, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+        busService.post(new MyEvent("my-event", 2L, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+
+        Assert.assertEquals(countEntries("bus_events"), 2);
+        Assert.assertEquals(countEntries("bus_events_audit"), 2);
+        Assert.assertEquals(busService.getNbReadyEntries(clock.getUTCNow()), 4);
+
+        final MyEventHandler handler = new MyEventHandler(2, 0);
+        busService.register(handler);
+        final MyEventHandler auditHandler = new MyEventHandler(2, 0);
+        busService.register(auditHandler, "audit");
+        busService.startQueue();
+        Assert.assertTrue(handler.waitForCompletion(10000));
+        Assert.assertTrue(auditHandler.waitForCompletion(10000));
+
+        await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return countEntries("bus_events") == 0 && countEntries("bus_events_audit") == 0;
+            }
+        });
+        Assert.assertEquals(busService.getNbReadyEntries(clock.getUTCNow()), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testFailuresAreRetriedPerGroup() throws Exception {
+        busService.startQueue();
+
+        final MyEventHandler handler = new MyEventHandler(1, 0);
+        busService.register(handler);
+        // Fails twice, i.e. two retries of the audit copy of the event
+        final MyEventHandler auditHandler = new MyEventHandler(1, 2);
+        busService.register(auditHandler, "audit");
+
+        busService.post(new MyEvent("my-event", 1L, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+        Assert.assertTrue(handler.waitForCompletion(10000));
+        Assert.assertTrue(auditHandler.waitForCompletion(10000));
+
+        await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return countEntries("bus_events") == 0 && countEntries("bus_events_audit") == 0;
+            }
+        });
+        // The default handler didn't see the retries
+        Assert.assertEquals(handler.getEvents(), 1);
+    }
+
+    @Test(groups = "slow")
+    public void testOneHistoryEntryPerEvent() throws Exception {
+        busService.startQueue();
+
+        final MyEventHandler handler = new MyEventHandler(1, 0);
+        busService.register(handler);
+        final MyEventHandler auditHandler = new MyEventHandler(1, 0);
+        busService.register(auditHandler, "audit");
+
+        busService.post(new MyEvent("my-event", 1L, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+        Assert.assertTrue(handler.waitForCompletion(10000));
+        Assert.assertTrue(auditHandler.waitForCompletion(10000));
+
+        await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return countEntries("bus_events") == 0 && countEntries("bus_events_audit") == 0;
+            }
+        });
+        // The audit copy is not moved to the shared history table
+        Assert.assertEquals(countEntries("bus_events_history"), 1);
+    }
+
+    @Test(groups = "slow", expectedExceptions = EventBusException.class)
+    public void testUnknownGroup() throws Exception {
+        busService.startQueue();
+        busService.register(new MyEventHandler(1, 0), "unknown");
+    }
+
+    private int countEntries(final String tableName) {
+        final Handle handle = getDBI().open();
+        try {
+            return handle.createQuery("select count(*) from " + tableName).mapTo(Integer.class).first();
+        } finally {
+            handle.close();
+        }
+    }
+}
@@ -23,11 +23,14 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
+import org.joda.time.DateTime;
 import org.killbill.TestSetup;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 public class TestBusSqlDao extends TestSetup {
 
@@ -84,4 +87,36 @@ public class TestBusSqlDao extends TestSetup {
         assertEquals(totalEntries, TOTAL_ENTRIES);
     }
 
+    @Test(groups = "slow")
+    public void testGetHistoricalQueueEntriesForSearchKey2Page() {
+        final DateTime now = clock.getUTCNow();
+        final List<BusEventModelDao> entries = new ArrayList<BusEventModelDao>();
+        for (int i = 0; i < 5; i++) {
+            entries.add(createHistoryEntry(SEARCH_KEY_2, now));
+        }
+        // Filtered out by the minCreatedDate and the searchKey2
+        entries.add(createHistoryEntry(SEARCH_KEY_2, now.minusDays(2)));
+        entries.add(createHistoryEntry(SEARCH_KEY_2 + 1, now));
+        dao.insertEntries(entries, persistentBusConfig.getHistoryTableName());
+
+        // Page boundaries: 2 + 2 + 1, and nothing after the last entry
+        final List<BusEventModelDao> firstPage = dao.getHistoricalQueueEntriesForSearchKey2Page(now.minusDays(1), SEARCH_KEY_2, 0L, 2, persistentBusConfig.getHistoryTableName());
+        assertEquals(firstPage.size(), 2);
+        final List<BusEventModelDao> secondPage = dao.getHistoricalQueueEntriesForSearchKey2Page(now.minusDays(1), SEARCH_KEY_2, firstPage.get(1).getRecordId(), 2, persistentBusConfig.getHistoryTableName());
+        assertEquals(secondPage.size(), 2);
+        assertTrue(secondPage.get(0).getRecordId() > firstPage.get(1).getRecordId());
+        final List<BusEventModelDao> lastPage = dao.getHistoricalQueueEntriesForSearchKey2Page(now.minusDays(1), SEARCH_KEY_2, secondPage.get(1).getRecordId(), 2, persistentBusConfig.getHistoryTableName());
+        assertEquals(lastPage.size(), 1);
+        assertTrue(dao.getHistoricalQueueEntriesForSearchKey2Page(now.minusDays(1), SEARCH_KEY_2, lastPage.get(0).getRecordId(), 2, persistentBusConfig.getHistoryTableName()).isEmpty());
+
+        // Without minCreatedDate, the old entry is returned too
+        assertEquals(dao.getHistoricalQueueEntriesForSearchKey2Page(null, SEARCH_KEY_2, 0L, 10, persistentBusConfig.getHistoryTableName()).size(), 6);
+    }
+
+    private BusEventModelDao createHistoryEntry(final long searchKey2, final DateTime createdDate) {
+        final String eventJson = UUID.randomUUID().toString();
+        final BusEventModelDao entry = new BusEventModelDao(hostname, createdDate, eventJson.getClass().toString(), eventJson, UUID.randomUUID(), 1L, searchKey2);
+        entry.setProcessingState(PersistentQueueEntryLifecycleState.PROCESSED);
+        return entry;
+    }
 }
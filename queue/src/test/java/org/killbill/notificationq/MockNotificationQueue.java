@@ -31,6 +31,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import org.joda.time.DateTime;
 import org.killbill.CreatorName;
 import org.killbill.clock.Clock;
+import org.killbill.notificationq.api.FutureNotification;
 import org.killbill.notificationq.api.NotificationEvent;
 import org.killbill.notificationq.api.NotificationEventWithMetadata;
 import org.killbill.notificationq.api.NotificationQueue;
@@ -101,6 +102,18 @@ public class MockNotificationQueue implements NotificationQueue {
         recordFutureNotification(futureNotificationTime, eventJson, userToken, searchKey1, searchKey2);
     }
 
+    @Override
+    public void recordFutureNotifications(final Iterable<FutureNotification> futureNotifications) throws IOException {
+        for (final FutureNotification futureNotification : futureNotifications) {
+            recordFutureNotification(futureNotification.getFutureNotificationTime(), futureNotification.getEvent(), futureNotification.getUserToken(), futureNotification.getSearchKey1(), futureNotification.getSearchKey2());
+        }
+    }
+
+    @Override
+    public void recordFutureNotificationsFromTransaction(final Connection connection, final Iterable<FutureNotification> futureNotifications) throws IOException {
+        recordFutureNotifications(futureNotifications);
+    }
+
     @Override
     public void updateFutureNotification(final Long recordId, final NotificationEvent eventJson, final Long searchKey1, final Long searchKey2) throws IOException {
         return;
@@ -166,6 +179,11 @@ public class MockNotificationQueue implements NotificationQueue {
         return null;
     }
 
+    @Override
+    public <T extends NotificationEvent> List<NotificationEventWithMetadata<T>> getHistoricalNotificationForSearchKey2(final DateTime minEffectiveDate, final Long searchKey2, final int pageSize) {
+        return null;
+    }
+
     private <T extends NotificationEvent> List<NotificationEventWithMetadata<T>> getFutureNotificationsInternal(final Class<T> type, final Long searchKey1, final Connection connection) {
         final List<NotificationEventWithMetadata<T>> result = new ArrayList<NotificationEventWithMetadata<T>>();
         synchronized (notifications) {
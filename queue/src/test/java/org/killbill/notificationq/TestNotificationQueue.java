@@ -19,12 +19,15 @@
 
 package org.killbill.notificationq;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
@@ -32,16 +35,21 @@ import org.joda.time.Period;
 import org.killbill.TestSetup;
 import org.killbill.billing.util.queue.QueueRetryException;
 import org.killbill.clock.DefaultClock;
+import org.killbill.notificationq.api.FutureNotification;
 import org.killbill.notificationq.api.NotificationEvent;
 import org.killbill.notificationq.api.NotificationEventWithMetadata;
 import org.killbill.notificationq.api.NotificationQueue;
+import org.killbill.notificationq.api.NotificationQueueConfig;
 import org.killbill.notificationq.api.NotificationQueueService;
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
 import org.killbill.notificationq.dao.NotificationEventModelDao;
 import org.killbill.notificationq.dao.NotificationSqlDao;
+import org.killbill.queue.DefaultQueueLifecycle;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.retry.RetryableHandler;
 import org.killbill.queue.retry.RetryableService;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.config.SimplePropertyConfigSource;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.TransactionCallback;
@@ -54,11 +62,13 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 
@@ -659,4 +669,140 @@ public class TestNotificationQueue extends TestSetup {
             retryableQueueService.stop();
         }
     }
+
+    @Test(groups = "slow")
+    public void testRecordFutureNotificationsInBatch() throws Exception {
+        final List<DateTime> receivedEffectiveDates = new CopyOnWriteArrayList<DateTime>();
+        final NotificationQueue queue = queueService.createNotificationQueue("test-svc",
+                                                                             "batch",
+                                                                             new NotificationQueueHandler() {
+                                                                                 @Override
+                                                                                 public void handleReadyNotification(final NotificationEvent eventJson, final DateTime eventDateTime, final UUID userToken, final Long searchKey1, final Long searchKey2) {
+                                                                                     receivedEffectiveDates.add(eventDateTime);
+                                                                                 }
+                                                                             });
+        queue.startQueue();
+        try {
+            // ms will be truncated in the database
+            final DateTime readyTime = DefaultClock.truncateMs(clock.getUTCNow()).plusHours(1);
+            final List<FutureNotification> futureNotifications = new ArrayList<FutureNotification>();
+            for (int i = 0; i < 10; i++) {
+                futureNotifications.add(new FutureNotification(readyTime.plusSeconds(i), new TestNotificationKey(String.valueOf(i)), TOKEN_ID, SEARCH_KEY_1, SEARCH_KEY_2));
+            }
+
+            getDBI().inTransaction(new TransactionCallback<Object>() {
+                @Override
+                public Object inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                    queue.recordFutureNotificationsFromTransaction(conn.getConnection(), futureNotifications);
+                    return null;
+                }
+            });
+            Assert.assertEquals(Iterables.size(queue.getFutureNotificationForSearchKeys(SEARCH_KEY_1, SEARCH_KEY_2)), 10);
+
+            clock.addDeltaFromReality(2 * 3600 * 1000);
+            await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return receivedEffectiveDates.size() == 10;
+                }
+            });
+        } finally {
+            queue.stopQueue();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testLookAheadNotification() throws Exception {
+        // Polling would only pick up the notification in an hour: it can only be dispatched on time through the timing wheel
+        final Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        properties.setProperty("org.killbill.notificationq.main.sleep", "3600000");
+        properties.setProperty("org.killbill.notificationq.main.lookAhead", "5m");
+        properties.setProperty("org.killbill.notificationq.main.lookAhead.refresh", "1h");
+        final NotificationQueueConfig lookAheadConfig = new ConfigurationObjectFactory(new SimplePropertyConfigSource(properties)).buildWithReplacements(NotificationQueueConfig.class,
+                                                                                                                                                          ImmutableMap.<String, String>of("instanceName", "main"));
+        final NotificationQueueService lookAheadQueueService = new DefaultNotificationQueueService(getDBI(), clock, lookAheadConfig, new MetricRegistry());
+
+        final List<DateTime> receivedEffectiveDates = new CopyOnWriteArrayList<DateTime>();
+        final NotificationQueue queue = lookAheadQueueService.createNotificationQueue("test-svc",
+                                                                                      "lookAhead",
+                                                                                      new NotificationQueueHandler() {
+                                                                                          @Override
+                                                                                          public void handleReadyNotification(final NotificationEvent eventJson, final DateTime eventDateTime, final UUID userToken, final Long searchKey1, final Long searchKey2) {
+                                                                                              receivedEffectiveDates.add(eventDateTime);
+                                                                                          }
+                                                                                      });
+        queue.startQueue();
+        try {
+            // ms will be truncated in the database
+            final DateTime readyTime = DefaultClock.truncateMs(clock.getUTCNow()).plusSeconds(2);
+            queue.recordFutureNotification(readyTime, new TestNotificationKey("lookAhead"), TOKEN_ID, SEARCH_KEY_1, SEARCH_KEY_2);
+
+            await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return receivedEffectiveDates.size() == 1;
+                }
+            });
+            Assert.assertFalse(clock.getUTCNow().isBefore(readyTime));
+        } finally {
+            queue.stopQueue();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testLookAheadStopsPolling() throws Exception {
+        // Polling would run the dispatch loop every 50ms: with the timing wheel armed, it should sleep until the next deadline instead
+        final Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        properties.setProperty("org.killbill.notificationq.main.sleep", "50");
+        properties.setProperty("org.killbill.notificationq.main.lookAhead", "5m");
+        properties.setProperty("org.killbill.notificationq.main.lookAhead.refresh", "1h");
+        final NotificationQueueConfig lookAheadConfig = new ConfigurationObjectFactory(new SimplePropertyConfigSource(properties)).buildWithReplacements(NotificationQueueConfig.class,
+                                                                                                                                                          ImmutableMap.<String, String>of("instanceName", "main"));
+        final MetricRegistry lookAheadMetricRegistry = new MetricRegistry();
+        final NotificationQueueService lookAheadQueueService = new DefaultNotificationQueueService(getDBI(), clock, lookAheadConfig, lookAheadMetricRegistry, databaseTransactionNotificationApi);
+        // Updated once per dispatch loop
+        final String dispatchedEntriesName = MetricRegistry.name(DefaultQueueLifecycle.class, lookAheadConfig.getTableName(), "dispatchedEntries");
+
+        final List<DateTime> receivedEffectiveDates = new CopyOnWriteArrayList<DateTime>();
+        final NotificationQueue queue = lookAheadQueueService.createNotificationQueue("test-svc",
+                                                                                      "lookAheadPolling",
+                                                                                      new NotificationQueueHandler() {
+                                                                                          @Override
+                                                                                          public void handleReadyNotification(final NotificationEvent eventJson, final DateTime eventDateTime, final UUID userToken, final Long searchKey1, final Long searchKey2) {
+                                                                                              receivedEffectiveDates.add(eventDateTime);
+                                                                                          }
+                                                                                      });
+        queue.startQueue();
+        try {
+            // Let the first loop load the (empty) look-ahead window
+            Thread.sleep(500);
+            final long nbLoops = lookAheadMetricRegistry.histogram(dispatchedEntriesName).getCount();
+            Thread.sleep(1000);
+            Assert.assertEquals(lookAheadMetricRegistry.histogram(dispatchedEntriesName).getCount(), nbLoops);
+
+            // Recorded from a transaction: added to the timing wheel once committed, and dispatched on time without polling
+            final DateTime readyTime = DefaultClock.truncateMs(clock.getUTCNow()).plusSeconds(2);
+            getDBI().inTransaction(new TransactionCallback<Object>() {
+                @Override
+                public Object inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                    queue.recordFutureNotificationFromTransaction(conn.getConnection(), readyTime, new TestNotificationKey("lookAheadPolling"), TOKEN_ID, SEARCH_KEY_1, SEARCH_KEY_2);
+                    return null;
+                }
+            });
+
+            await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return receivedEffectiveDates.size() == 1;
+                }
+            });
+            Assert.assertFalse(clock.getUTCNow().isBefore(readyTime));
+            // Only a handful of loops (dispatch and wake-ups around the deadline), not one every 50ms
+            Assert.assertTrue(lookAheadMetricRegistry.histogram(dispatchedEntriesName).getCount() - nbLoops < 10);
+        } finally {
+            queue.stopQueue();
+        }
+    }
 }
@@ -255,6 +255,43 @@ public class TestNotificationSqlDao extends TestSetup {
 
     }
 
+    @Test(groups = "slow")
+    public void testGetHistoricalQueueEntriesForSearchKey2Page() {
+        final String queueName = "testHistoryPage";
+        final DateTime now = DefaultClock.truncateMs(clock.getUTCNow());
+        final List<NotificationEventModelDao> entries = new ArrayList<NotificationEventModelDao>();
+        for (int i = 0; i < 5; i++) {
+            entries.add(createHistoryEntry(queueName, SEARCH_KEY_2, now.plusMinutes(i)));
+        }
+        // Filtered out by the minEffectiveDate, the queue name and the searchKey2
+        entries.add(createHistoryEntry(queueName, SEARCH_KEY_2, now.minusDays(2)));
+        entries.add(createHistoryEntry("otherQueue", SEARCH_KEY_2, now));
+        entries.add(createHistoryEntry(queueName, SEARCH_KEY_2 + 1, now));
+        dao.insertEntries(entries, notificationQueueConfig.getHistoryTableName());
+
+        // Page boundaries: 2 + 2 + 1, and nothing after the last entry
+        final List<NotificationEventModelDao> firstPage = dao.getHistoricalQueueEntriesForSearchKey2Page(queueName, now.minusDays(1), SEARCH_KEY_2, 0L, 2, notificationQueueConfig.getHistoryTableName());
+        assertEquals(firstPage.size(), 2);
+        final List<NotificationEventModelDao> secondPage = dao.getHistoricalQueueEntriesForSearchKey2Page(queueName, now.minusDays(1), SEARCH_KEY_2, firstPage.get(1).getRecordId(), 2, notificationQueueConfig.getHistoryTableName());
+        assertEquals(secondPage.size(), 2);
+        assertTrue(secondPage.get(0).getRecordId() > firstPage.get(1).getRecordId());
+        final List<NotificationEventModelDao> lastPage = dao.getHistoricalQueueEntriesForSearchKey2Page(queueName, now.minusDays(1), SEARCH_KEY_2, secondPage.get(1).getRecordId(), 2, notificationQueueConfig.getHistoryTableName());
+        assertEquals(lastPage.size(), 1);
+        validateDate(lastPage.get(0).getEffectiveDate(), now.plusMinutes(4));
+        assertTrue(dao.getHistoricalQueueEntriesForSearchKey2Page(queueName, now.minusDays(1), SEARCH_KEY_2, lastPage.get(0).getRecordId(), 2, notificationQueueConfig.getHistoryTableName()).isEmpty());
+
+        // Without minEffectiveDate, the old entry is returned too
+        assertEquals(dao.getHistoricalQueueEntriesForSearchKey2Page(queueName, null, SEARCH_KEY_2, 0L, 10, notificationQueueConfig.getHistoryTableName()).size(), 6);
+    }
+
+    private NotificationEventModelDao createHistoryEntry(final String queueName, final long searchKey2, final DateTime effectiveDate) {
+        final String eventJson = UUID.randomUUID().toString();
+        final NotificationEventModelDao entry = new NotificationEventModelDao(hostname, clock.getUTCNow(), eventJson.getClass().getName(), eventJson, UUID.randomUUID(), 1L, searchKey2,
+                                                                              UUID.randomUUID(), effectiveDate, queueName);
+        entry.setProcessingState(PersistentQueueEntryLifecycleState.PROCESSED);
+        return entry;
+    }
+
     private NotificationEventModelDao insertEntry(final NotificationEventModelDao input, final String tableName) {
         return dao.inTransaction(new Transaction<NotificationEventModelDao, QueueSqlDao<NotificationEventModelDao>>() {
             @Override
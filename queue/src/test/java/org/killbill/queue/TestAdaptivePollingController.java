@@ -0,0 +1,97 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.queue;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestAdaptivePollingController {
+
+    @Test(groups = "fast")
+    public void testFullBatches() {
+        final AdaptivePollingController controller = new AdaptivePollingController(100, 1000, 10);
+
+        // Backlog: loop right away
+        assertEquals(controller.nextSleepTimeMs(10, 0), 0);
+        assertEquals(controller.nextSleepTimeMs(10, 9), 0);
+        // ...unless the Dispatcher has at least a batch waiting already
+        assertEquals(controller.nextSleepTimeMs(10, 10), 100);
+        // Backlog drained
+        assertEquals(controller.nextSleepTimeMs(3, 0), 100);
+    }
+
+    @Test(groups = "fast")
+    public void testBackOffWhenEmpty() {
+        final AdaptivePollingController controller = new AdaptivePollingController(100, 1000, 10);
+
+        assertEquals(controller.nextSleepTimeMs(0, 0), 100);
+        assertEquals(controller.nextSleepTimeMs(0, 0), 200);
+        assertEquals(controller.nextSleepTimeMs(0, 0), 400);
+        assertEquals(controller.nextSleepTimeMs(0, 0), 800);
+        assertEquals(controller.nextSleepTimeMs(0, 0), 1000);
+        assertEquals(controller.getNbEmptyLoops(), 4);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(controller.nextSleepTimeMs(0, 0), 1000);
+        }
+        assertEquals(controller.getSleepTimeMs(), 1000);
+
+        // Any entry resets the back off
+        assertEquals(controller.nextSleepTimeMs(1, 0), 100);
+        assertEquals(controller.getNbEmptyLoops(), 0);
+        assertEquals(controller.nextSleepTimeMs(0, 0), 100);
+        assertEquals(controller.nextSleepTimeMs(0, 0), 200);
+
+        // So does a wake up
+        controller.reset();
+        assertEquals(controller.getSleepTimeMs(), 100);
+        assertEquals(controller.nextSleepTimeMs(0, 0), 100);
+    }
+
+    @Test(groups = "fast")
+    public void testNoCreditsIsNotAnEmptyLoop() {
+        final AdaptivePollingController controller = new AdaptivePollingController(100, 1000, 10);
+
+        assertEquals(controller.nextSleepTimeMs(0, 0), 100);
+        assertEquals(controller.nextSleepTimeMs(0, 0), 200);
+        assertEquals(controller.getNbEmptyLoops(), 2);
+
+        // The Dispatcher is busy: sleep the base time, without backing off any further
+        assertEquals(controller.nextSleepTimeMsWithoutCredits(), 100);
+        assertEquals(controller.nextSleepTimeMsWithoutCredits(), 100);
+        assertEquals(controller.getNbEmptyLoops(), 2);
+        assertEquals(controller.nextSleepTimeMs(0, 0), 400);
+    }
+
+    @Test(groups = "fast")
+    public void testMinBaseSleepTime() {
+        final AdaptivePollingController controller = new AdaptivePollingController(0, 1000, 10);
+
+        // Backlog: still loop right away
+        assertEquals(controller.nextSleepTimeMs(10, 0), 0);
+        // Otherwise, never spin
+        assertEquals(controller.nextSleepTimeMs(3, 0), 10);
+        assertEquals(controller.nextSleepTimeMs(0, 0), 10);
+        assertEquals(controller.nextSleepTimeMs(0, 0), 20);
+        for (int i = 0; i < 100; i++) {
+            controller.nextSleepTimeMs(0, 0);
+        }
+        assertEquals(controller.getSleepTimeMs(), 1000);
+    }
+}
@@ -21,18 +21,23 @@ package org.killbill.queue;
 
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.killbill.CreatorName;
 import org.killbill.TestSetup;
 import org.killbill.bus.api.PersistentBusConfig;
 import org.killbill.bus.dao.BusEventModelDao;
 import org.killbill.bus.dao.PersistentBusSqlDao;
+import org.killbill.queue.api.PersistentQueueConfig.WakeupTransportType;
+import org.killbill.queue.api.WakeupTransport;
 import org.skife.config.TimeSpan;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import static org.awaitility.Awaitility.await;
 import static org.testng.Assert.assertEquals;
 
 public class TestDBBackedQueueWithInflightQ extends TestSetup {
@@ -75,6 +80,118 @@ public class TestDBBackedQueueWithInflightQ extends TestSetup {
 
     }
 
+    @Test(groups = "slow")
+    public void testInflightQWithWatermarkWakeup() throws InterruptedException {
+        final PersistentBusConfig config = createConfig(WakeupTransportType.WATERMARK);
+        queue = new DBBackedQueueWithInflightQueue<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, "testInflightQWithWatermarkWakeup", metricRegistry, databaseTransactionNotificationApi);
+        queue.initialize();
+        try {
+            // Entries committed outside of this queue (e.g. by another JVM), for this node
+            for (int i = 0; i < 3; i++) {
+                sqlDao.insertEntry(createEntry(new Long(i + 5)), config.getTableName());
+            }
+            // ...and for another node, which should be ignored
+            sqlDao.insertEntry(createEntry(8L, "otherNode"), config.getTableName());
+
+            await().atMost(5, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return queue.getInflightQSize() == 3;
+                }
+            });
+
+            // Local entries are only added once, by the transaction hook
+            queue.insertEntry(createEntry(9L));
+            await().atMost(5, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return queue.getInflightQSize() == 4;
+                }
+            });
+            Thread.sleep(10 * config.getWakeupWatermarkSleepTimeMs());
+            assertEquals(queue.getInflightQSize(), 4);
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testPullCommittedEntries() {
+        final PersistentBusConfig config = createConfig();
+        final ManualWakeupTransport wakeupTransport = new ManualWakeupTransport();
+        queue = new DBBackedQueueWithInflightQueue<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, "testPullCommittedEntries", metricRegistry, databaseTransactionNotificationApi, wakeupTransport);
+
+        // Loaded by the initialization, and not pulled again afterwards
+        sqlDao.insertEntry(createEntry(5L), config.getTableName());
+        queue.initialize();
+        try {
+            assertEquals(queue.getInflightQSize(), 1);
+            wakeupTransport.wakeup();
+            assertEquals(queue.getInflightQSize(), 1);
+
+            // Entries committed outside of this queue, for this node and for another node
+            for (int i = 0; i < 3; i++) {
+                sqlDao.insertEntry(createEntry(new Long(i + 6)), config.getTableName());
+            }
+            sqlDao.insertEntry(createEntry(9L, "otherNode"), config.getTableName());
+            wakeupTransport.wakeup();
+            assertEquals(queue.getInflightQSize(), 4);
+
+            // Already pulled
+            wakeupTransport.wakeup();
+            assertEquals(queue.getInflightQSize(), 4);
+
+            // Local entries are only added once, by the transaction hook
+            queue.insertEntry(createEntry(10L));
+            await().atMost(5, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return queue.getInflightQSize() == 5;
+                }
+            });
+            assertEquals(wakeupTransport.getNbSignals(), 1);
+            wakeupTransport.wakeup();
+            assertEquals(queue.getInflightQSize(), 5);
+
+            // Foreign entries committed after a local one are still pulled
+            sqlDao.insertEntry(createEntry(11L), config.getTableName());
+            wakeupTransport.wakeup();
+            assertEquals(queue.getInflightQSize(), 6);
+        } finally {
+            queue.close();
+        }
+    }
+
+    private static final class ManualWakeupTransport implements WakeupTransport {
+
+        private final AtomicInteger nbSignals = new AtomicInteger();
+
+        private volatile WakeupListener listener;
+
+        @Override
+        public void start(final WakeupListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void signal() {
+            nbSignals.incrementAndGet();
+        }
+
+        @Override
+        public void stop() {
+            listener = null;
+        }
+
+        public void wakeup() {
+            listener.onWakeup();
+        }
+
+        public int getNbSignals() {
+            return nbSignals.get();
+        }
+    }
+
     private BusEventModelDao createEntry(final Long searchKey1, final String owner) {
         final String json = "json";
         return new BusEventModelDao(owner, clock.getUTCNow(), String.class.getName(), json, UUID.randomUUID(), searchKey1, 1L);
@@ -85,6 +202,10 @@ public class TestDBBackedQueueWithInflightQ extends TestSetup {
     }
 
     private PersistentBusConfig createConfig() {
+        return createConfig(WakeupTransportType.NONE);
+    }
+
+    private PersistentBusConfig createConfig(final WakeupTransportType wakeupTransportType) {
         return new PersistentBusConfig() {
             @Override
             public boolean isInMemory() {
@@ -158,6 +279,11 @@ public class TestDBBackedQueueWithInflightQ extends TestSetup {
                 return 10;
             }
 
+            @Override
+            public WakeupTransportType getWakeupTransport() {
+                return wakeupTransportType;
+            }
+
             @Override
             public TimeSpan getReapSchedule() {
                 return new TimeSpan(3, TimeUnit.MINUTES);
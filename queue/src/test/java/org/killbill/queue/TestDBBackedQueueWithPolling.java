@@ -0,0 +1,44 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.queue;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestDBBackedQueueWithPolling {
+
+    @Test(groups = "fast")
+    public void testIsSkipLockedSupported() {
+        assertTrue(DBBackedQueueWithPolling.isSkipLockedSupported("MySQL", 8, 0));
+        assertFalse(DBBackedQueueWithPolling.isSkipLockedSupported("MySQL", 5, 7));
+
+        assertTrue(DBBackedQueueWithPolling.isSkipLockedSupported("MariaDB", 10, 6));
+        assertTrue(DBBackedQueueWithPolling.isSkipLockedSupported("MariaDB", 11, 0));
+        assertFalse(DBBackedQueueWithPolling.isSkipLockedSupported("MariaDB", 10, 5));
+
+        assertTrue(DBBackedQueueWithPolling.isSkipLockedSupported("PostgreSQL", 9, 5));
+        assertTrue(DBBackedQueueWithPolling.isSkipLockedSupported("PostgreSQL", 12, 0));
+        assertFalse(DBBackedQueueWithPolling.isSkipLockedSupported("PostgreSQL", 9, 4));
+
+        assertFalse(DBBackedQueueWithPolling.isSkipLockedSupported("H2", 1, 4));
+        assertFalse(DBBackedQueueWithPolling.isSkipLockedSupported(null, 8, 0));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestHierarchicalTimingWheel {
+
+    @Test(groups = "fast")
+    public void testExpireInOrder() {
+        final HierarchicalTimingWheel timingWheel = new HierarchicalTimingWheel(10, 8, 1000, 100);
+
+        // Lowest level (80ms span), second level (640ms span) and third level
+        assertTrue(timingWheel.add(1, 1055));
+        assertTrue(timingWheel.add(2, 1500));
+        assertTrue(timingWheel.add(3, 5003));
+        assertEquals(timingWheel.size(), 3);
+
+        // Duplicates and expired entries are ignored
+        assertFalse(timingWheel.add(1, 1055));
+        assertFalse(timingWheel.add(4, 1005));
+
+        assertEquals(timingWheel.getNextExpirationMs(), 1050);
+        assertEquals(timingWheel.expire(1049), HierarchicalTimingWheel.NO_DEADLINE);
+        assertEquals(timingWheel.expire(1050), 1055);
+        assertEquals(timingWheel.size(), 2);
+
+        // Entries cascade down to the lowest level as time advances, without expiring early
+        long nextExpirationMs = timingWheel.getNextExpirationMs();
+        while (nextExpirationMs < 1500) {
+            assertEquals(timingWheel.expire(nextExpirationMs), HierarchicalTimingWheel.NO_DEADLINE);
+            nextExpirationMs = timingWheel.getNextExpirationMs();
+        }
+        assertEquals(nextExpirationMs, 1500);
+        assertEquals(timingWheel.expire(1500), 1500);
+
+        // A single late call expires everything which is due
+        assertEquals(timingWheel.expire(10000), 5003);
+        assertEquals(timingWheel.size(), 0);
+        assertEquals(timingWheel.getNextExpirationMs(), Long.MAX_VALUE);
+    }
+
+    @Test(groups = "fast")
+    public void testMaxEntries() {
+        final HierarchicalTimingWheel timingWheel = new HierarchicalTimingWheel(10, 8, 0, 2);
+        assertTrue(timingWheel.add(1, 100));
+        assertTrue(timingWheel.add(2, 200));
+        assertFalse(timingWheel.add(3, 300));
+
+        timingWheel.clear();
+        assertEquals(timingWheel.size(), 0);
+        assertTrue(timingWheel.add(3, 300));
+        assertEquals(timingWheel.expire(300), 300);
+    }
+}
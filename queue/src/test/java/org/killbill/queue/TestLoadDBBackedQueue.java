@@ -21,9 +21,12 @@ package org.killbill.queue;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
@@ -39,6 +42,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import com.google.common.base.Function;
@@ -46,6 +50,8 @@ import com.google.common.collect.Iterables;
 
 import static org.killbill.queue.api.PersistentQueueConfig.PersistentQueueMode;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class TestLoadDBBackedQueue extends TestSetup {
 
@@ -69,7 +75,6 @@ public class TestLoadDBBackedQueue extends TestSetup {
         assertEquals(ready.size(), 0);
     }
 
-
     @Test(groups = "load")
     public void testPollingLoad() {
 
@@ -80,7 +85,6 @@ public class TestLoadDBBackedQueue extends TestSetup {
         queue = new DBBackedQueueWithPolling<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, "perf-bus_event", metricRegistry);
         queue.initialize();
 
-
         for (int i = 0; i < NB_EVENTS; i++) {
             final BusEventModelDao input = createEntry(new Long(i));
             queue.insertEntry(input);
@@ -117,7 +121,6 @@ public class TestLoadDBBackedQueue extends TestSetup {
                 (cumlGetReadyEntries / 1000000) + " ms, moveEntriesToHistory = " + (cumlMoveEntriesToHistory / 1000000));
     }
 
-
     @Test(groups = "load")
     public void testInflightQLoad() throws InterruptedException {
 
@@ -130,7 +133,6 @@ public class TestLoadDBBackedQueue extends TestSetup {
             queue.insertEntry(input);
         }
 
-
         final int maxThreads = 3;
         final Thread[] readers = new Thread[maxThreads];
         final AtomicLong consumed = new AtomicLong(0);
@@ -158,12 +160,94 @@ public class TestLoadDBBackedQueue extends TestSetup {
         log.info(String.format("Processed %s events in %s msec => rate = %s", nbEntries, elapsed,
                 ((double) (nbEntries) / (double) elapsed) * 1000));
 
-
         final List<BusEventModelDao> ready = sqlDao.getReadyEntries(clock.getUTCNow().toDate(), 1000, OWNER, "bus_events");
         assertEquals(ready.size(), 0);
 
     }
 
+    @DataProvider(name = "nonStickyModes")
+    public Object[][] nonStickyModes() {
+        return new Object[][]{{PersistentQueueMode.POLLING}, {PersistentQueueMode.POLLING_SKIP_LOCKED}};
+    }
+
+    // Simulate several nodes (each with its own queue instance) competing for the same entries
+    @Test(groups = "load", dataProvider = "nonStickyModes")
+    public void testMultiNodePollingContention(final PersistentQueueMode mode) throws InterruptedException {
+
+        final int nbEntries = 5000;
+        final int nbNodes = 4;
+        final int claimed = 10;
+
+        final PersistentBusConfig config = createConfig(claimed, -1, mode);
+        for (int i = 0; i < nbEntries; i++) {
+            final BusEventModelDao input = createEntry((long) i);
+            sqlDao.insertEntry(input, config.getTableName());
+        }
+
+        // A failing node stops all of them, and fails the test
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Set<Long> processedRecordIds = ConcurrentHashMap.<Long>newKeySet();
+        final AtomicLong consumed = new AtomicLong(0);
+        final AtomicLong duplicates = new AtomicLong(0);
+        final Thread[] nodes = new Thread[nbNodes];
+        for (int i = 0; i < nbNodes; i++) {
+            final DBBackedQueue<BusEventModelDao> nodeQueue = new DBBackedQueueWithPolling<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, "contention-" + mode + "-" + i, metricRegistry);
+            nodeQueue.initialize();
+            nodes[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        consumeEntries();
+                    } catch (final Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+
+                private void consumeEntries() {
+                    while (consumed.get() < nbEntries && failure.get() == null) {
+                        final List<BusEventModelDao> entries = nodeQueue.getReadyEntries().getEntries();
+                        for (final BusEventModelDao cur : entries) {
+                            if (!processedRecordIds.add(cur.getRecordId())) {
+                                duplicates.incrementAndGet();
+                            }
+                        }
+                        if (!entries.isEmpty()) {
+                            nodeQueue.moveEntriesToHistory(Iterables.transform(entries, new Function<BusEventModelDao, BusEventModelDao>() {
+                                @Override
+                                public BusEventModelDao apply(final BusEventModelDao input) {
+                                    return new BusEventModelDao(input, OWNER, clock.getUTCNow(), PersistentQueueEntryLifecycleState.PROCESSED);
+                                }
+                            }));
+                            consumed.addAndGet(entries.size());
+                        }
+                    }
+                }
+            });
+        }
+
+        final long ini = System.currentTimeMillis();
+        for (int i = 0; i < nbNodes; i++) {
+            nodes[i].start();
+        }
+        for (int i = 0; i < nbNodes; i++) {
+            nodes[i].join(TimeUnit.MINUTES.toMillis(5));
+            if (nodes[i].isAlive()) {
+                failure.compareAndSet(null, new IllegalStateException("Node " + i + " did not complete"));
+                nodes[i].interrupt();
+            }
+        }
+        if (failure.get() != null) {
+            fail("Node failed", failure.get());
+        }
+        final long elapsed = System.currentTimeMillis() - ini;
+
+        log.info(String.format("Mode %s: %s nodes processed %s events in %s msec => rate = %s", mode, nbNodes, nbEntries, elapsed,
+                               ((double) (nbEntries) / (double) elapsed) * 1000));
+
+        assertEquals(duplicates.get(), 0);
+        assertEquals(processedRecordIds.size(), nbEntries);
+        assertTrue(sqlDao.getReadyEntries(clock.getUTCNow().toDate(), 1000, null, config.getTableName()).isEmpty());
+    }
 
     public class ReaderRunnable implements Runnable {
 
@@ -201,7 +285,6 @@ public class TestLoadDBBackedQueue extends TestSetup {
         }
     }
 
-
     private BusEventModelDao createEntry(final Long searchKey1, final String owner) {
         final String json = "json";
         return new BusEventModelDao(owner, clock.getUTCNow(), String.class.getName(), json, UUID.randomUUID(), searchKey1, 1L);
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestLongRingBuffer {
+
+    @Test(groups = "fast")
+    public void testGrowAndWrapAround() {
+        final LongRingBuffer ringBuffer = new LongRingBuffer(4);
+        final long[] result = new long[16];
+
+        // Move the head so that the next offers wrap around
+        for (long i = 0; i < 3; i++) {
+            assertTrue(ringBuffer.offer(i));
+        }
+        assertEquals(ringBuffer.drainTo(result, 0, 2), 2);
+        assertEquals(result[0], 0L);
+        assertEquals(result[1], 1L);
+
+        // Force the buffer to grow while wrapped
+        assertEquals(ringBuffer.offerAll(new long[]{3, 4, 5, 6, 7, 8}, 6), 6);
+        assertEquals(ringBuffer.size(), 7);
+
+        assertEquals(ringBuffer.drainTo(result, 0, result.length), 7);
+        for (int i = 0; i < 7; i++) {
+            assertEquals(result[i], i + 2L);
+        }
+        assertEquals(ringBuffer.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testMaxCapacity() {
+        final LongRingBuffer ringBuffer = new LongRingBuffer(2, 3);
+        assertEquals(ringBuffer.offerAll(new long[]{1, 2, 3, 4}, 4), 3);
+        assertFalse(ringBuffer.offer(5));
+        assertEquals(ringBuffer.size(), 3);
+
+        ringBuffer.clear();
+        assertEquals(ringBuffer.size(), 0);
+        assertTrue(ringBuffer.offer(5));
+    }
+
+    @Test(groups = "fast")
+    public void testPoll() throws InterruptedException {
+        final LongRingBuffer ringBuffer = new LongRingBuffer(2);
+        final long[] result = new long[2];
+
+        assertEquals(ringBuffer.poll(result, 0, 1, 10, TimeUnit.MILLISECONDS), 0);
+
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                ringBuffer.offer(42L);
+            }
+        });
+        producer.start();
+
+        assertEquals(ringBuffer.poll(result, 1, 1, 10, TimeUnit.SECONDS), 1);
+        assertEquals(result[1], 42L);
+        producer.join();
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentProducers() throws Exception {
+        // Small ring, to go through the overflow as well
+        final LongRingBuffer ringBuffer = new LongRingBuffer(64);
+        final int nbProducers = 8;
+        final int nbValuesPerProducer = 100000;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(nbProducers);
+        try {
+            for (int i = 0; i < nbProducers; i++) {
+                final long producerId = i;
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (long j = 0; j < nbValuesPerProducer; j++) {
+                            assertTrue(ringBuffer.offer(producerId * nbValuesPerProducer + j));
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            final boolean[] seen = new boolean[nbProducers * nbValuesPerProducer];
+            final long[] result = new long[128];
+            int nbSeen = 0;
+            while (nbSeen < seen.length) {
+                final int nbPolled = ringBuffer.poll(result, 0, result.length, 10, TimeUnit.SECONDS);
+                assertTrue(nbPolled > 0);
+                for (int i = 0; i < nbPolled; i++) {
+                    assertFalse(seen[(int) result[i]]);
+                    seen[(int) result[i]] = true;
+                }
+                nbSeen += nbPolled;
+            }
+            assertEquals(ringBuffer.size(), 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -35,6 +35,7 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableList;
 
 import static org.testng.Assert.assertEquals;
@@ -125,6 +126,55 @@ public class TestReaper extends TestSetup {
         assertEquals(historicalQueueEntries.get(0).getUserToken(), readyOrInProcessingAfterReaping.get(5).getUserToken());
     }
 
+    @Test(groups = "slow")
+    public void testReapEntriesInChunks() {
+        final PersistentBusConfig config = createConfig();
+        queue = new DBBackedQueueWithPolling<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, "testReapEntriesInChunks", metricRegistry);
+        final DateTime now = clock.getUTCNow();
+
+        // More than 2 chunks of reapable entries from another node
+        final int nbEntries = 2 * config.getMaxReDispatchCount() + 3;
+        for (int i = 0; i < nbEntries; i++) {
+            sqlDao.insertEntry(createEntryForReaping(i + 1, "thatOtherNode", "thatOtherNode", now, config.getReapThreshold().getMillis(), PersistentQueueEntryLifecycleState.IN_PROCESSING), config.getTableName());
+        }
+        // Stuck entry on this node
+        sqlDao.insertEntry(createEntryForReaping(nbEntries + 1, CreatorName.get(), CreatorName.get(), now, config.getReapThreshold().getMillis(), PersistentQueueEntryLifecycleState.IN_PROCESSING), config.getTableName());
+
+        queue.reapEntries(now.minus(config.getReapThreshold().getMillis()).toDate());
+
+        // All entries were reaped in a single run, but the re-inserted ones weren't looked at again
+        final List<BusEventModelDao> historicalQueueEntries = ImmutableList.<BusEventModelDao>copyOf(sqlDao.getHistoricalQueueEntriesForSearchKeys(SEARCH_KEY_1, SEARCH_KEY_2, config.getHistoryTableName()));
+        assertEquals(historicalQueueEntries.size(), nbEntries);
+        final List<BusEventModelDao> readyEntriesAfterReaping = sqlDao.getReadyEntries(now.toDate(), 100, CreatorName.get(), config.getTableName());
+        assertEquals(readyEntriesAfterReaping.size(), nbEntries);
+
+        assertEquals(metricRegistry.counter(MetricRegistry.name(DBBackedQueue.class, "testReapEntriesInChunks", "reapedEntries")).getCount(), nbEntries);
+        assertEquals(metricRegistry.counter(MetricRegistry.name(DBBackedQueue.class, "testReapEntriesInChunks", "stuckEntries")).getCount(), 1);
+        assertEquals(metricRegistry.counter(MetricRegistry.name(DBBackedQueue.class, "testReapEntriesInChunks", "lateEntries")).getCount(), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testReapEntriesInShards() {
+        final PersistentBusConfig config = createConfig(3);
+        queue = new DBBackedQueueWithPolling<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, "testReapEntriesInShards", metricRegistry);
+        final DateTime now = clock.getUTCNow();
+
+        // Not a multiple of the number of shards, to check the range bounds
+        final int nbEntries = 3 * config.getMaxReDispatchCount() + 1;
+        for (int i = 0; i < nbEntries; i++) {
+            sqlDao.insertEntry(createEntryForReaping(i + 1, "thatOtherNode", "thatOtherNode", now, config.getReapThreshold().getMillis(), PersistentQueueEntryLifecycleState.IN_PROCESSING), config.getTableName());
+        }
+
+        // No shard lock on H2: all the shards are reaped by this node, each entry exactly once
+        queue.reapEntries(now.minus(config.getReapThreshold().getMillis()).toDate());
+
+        final List<BusEventModelDao> historicalQueueEntries = ImmutableList.<BusEventModelDao>copyOf(sqlDao.getHistoricalQueueEntriesForSearchKeys(SEARCH_KEY_1, SEARCH_KEY_2, config.getHistoryTableName()));
+        assertEquals(historicalQueueEntries.size(), nbEntries);
+        final List<BusEventModelDao> readyEntriesAfterReaping = sqlDao.getReadyEntries(now.toDate(), 100, CreatorName.get(), config.getTableName());
+        assertEquals(readyEntriesAfterReaping.size(), nbEntries);
+        assertEquals(metricRegistry.counter(MetricRegistry.name(DBBackedQueue.class, "testReapEntriesInShards", "reapedEntries")).getCount(), nbEntries);
+    }
+
     private BusEventModelDao createEntry(final long recordId,
                                          final String creatingOwner,
                                          final String processingOwner,
@@ -166,7 +216,16 @@ public class TestReaper extends TestSetup {
     }
 
     private PersistentBusConfig createConfig() {
+        return createConfig(1);
+    }
+
+    private PersistentBusConfig createConfig(final int nbReapShards) {
         return new PersistentBusConfig() {
+            @Override
+            public int getNbReapShards() {
+                return nbReapShards;
+            }
+
             @Override
             public boolean isInMemory() {
                 return false;
@@ -169,7 +169,6 @@ public class TestReaperIntegration extends TestSetup {
         handler.assertSeenEvents(2);
     }
 
-
     @Test(groups = "slow")
     public void testWithLateBusOnThisNode() throws EventBusException, JsonProcessingException, InterruptedException {
         final DateTime now = clock.getUTCNow();
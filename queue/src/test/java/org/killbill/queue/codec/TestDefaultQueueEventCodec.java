@@ -0,0 +1,249 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.codec;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.queue.QueueObjectMapper;
+import org.killbill.queue.api.PersistentQueueConfig;
+import org.killbill.queue.api.PersistentQueueConfig.QueueEventFormat;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.config.SimplePropertyConfigSource;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestDefaultQueueEventCodec {
+
+    @Test(groups = "fast")
+    public void testJsonRoundTrip() throws Exception {
+        final QueueEventCodec codec = QueueObjectMapper.getCodec(QueueEventFormat.JSON);
+        final TestCodecEvent event = new TestCodecEvent("json", 12L, new DateTime(2020, 5, 1, 10, 0, DateTimeZone.UTC));
+
+        final String payload = codec.encode(event);
+        assertFalse(payload.startsWith(DefaultQueueEventCodec.SMILE_PREFIX));
+        // Still plain JSON, readable by the ObjectMapper
+        assertEquals(QueueObjectMapper.get().readValue(payload, TestCodecEvent.class), event);
+        assertEquals(codec.decode(TestCodecEvent.class.getName(), payload), event);
+    }
+
+    @Test(groups = "fast")
+    public void testSmileRoundTrip() throws Exception {
+        final QueueEventCodec codec = QueueObjectMapper.getCodec(QueueEventFormat.SMILE);
+        final TestCodecEvent event = new TestCodecEvent("smile", 13L, new DateTime(2020, 5, 1, 10, 0, DateTimeZone.UTC));
+
+        final String payload = codec.encode(event);
+        assertTrue(payload.startsWith(DefaultQueueEventCodec.SMILE_PREFIX));
+        assertEquals(codec.decode(TestCodecEvent.class.getName(), payload), event);
+    }
+
+    @Test(groups = "fast")
+    public void testReadMixedFormats() throws Exception {
+        final QueueEventCodec jsonCodec = QueueObjectMapper.getCodec(QueueEventFormat.JSON);
+        final QueueEventCodec smileCodec = QueueObjectMapper.getCodec(QueueEventFormat.SMILE);
+        final TestCodecEvent event = new TestCodecEvent(UUID.randomUUID().toString(), 14L, new DateTime(2020, 5, 1, 10, 0, DateTimeZone.UTC));
+
+        // Rows written before or after a format change must remain readable
+        assertEquals(jsonCodec.decode(TestCodecEvent.class.getName(), smileCodec.encode(event)), event);
+        assertEquals(smileCodec.decode(TestCodecEvent.class.getName(), jsonCodec.encode(event)), event);
+    }
+
+    @Test(groups = "fast")
+    public void testCompression() throws Exception {
+        final DefaultQueueEventCodec codec = new DefaultQueueEventCodec(QueueObjectMapper.get(), QueueObjectMapper.getSmile(), QueueEventFormat.JSON, 200);
+
+        // Below the threshold, the payload is left as is
+        final TestCodecEvent smallEvent = new TestCodecEvent("small", 15L, new DateTime(2020, 5, 1, 10, 0, DateTimeZone.UTC));
+        final String smallPayload = codec.encode(smallEvent);
+        assertEquals(smallPayload, QueueObjectMapper.get().writeValueAsString(smallEvent));
+        assertEquals(codec.getBytesSaved(), 0L);
+
+        final TestCodecEvent largeEvent = new TestCodecEvent(Strings.repeat("large-", 500), 16L, new DateTime(2020, 5, 1, 10, 0, DateTimeZone.UTC));
+        final String largePayload = codec.encode(largeEvent);
+        assertTrue(largePayload.startsWith(DefaultQueueEventCodec.DEFLATE_PREFIX));
+        assertEquals(codec.decode(TestCodecEvent.class.getName(), largePayload), largeEvent);
+        assertEquals(codec.getBytesSaved(), (long) (QueueObjectMapper.get().writeValueAsString(largeEvent).length() - largePayload.length()));
+        assertTrue(codec.getCompressionRatio() < 0.1);
+
+        // Compressed payloads can be read by any codec
+        assertEquals(QueueObjectMapper.getCodec(QueueEventFormat.SMILE).decode(TestCodecEvent.class.getName(), largePayload), largeEvent);
+
+        final DefaultQueueEventCodec smileCodec = new DefaultQueueEventCodec(QueueObjectMapper.get(), QueueObjectMapper.getSmile(), QueueEventFormat.SMILE, 200);
+        final String largeSmilePayload = smileCodec.encode(largeEvent);
+        assertTrue(largeSmilePayload.startsWith(DefaultQueueEventCodec.DEFLATE_PREFIX));
+        assertEquals(codec.decode(TestCodecEvent.class.getName(), largeSmilePayload), largeEvent);
+    }
+
+    @Test(groups = "fast")
+    public void testSmileLargerThanJson() throws Exception {
+        final QueueEventCodec codec = QueueObjectMapper.getCodec(QueueEventFormat.SMILE);
+
+        // Base64 Smile would not fit in the column and be larger than the JSON: the JSON is stored instead
+        final StringBuilder name = new StringBuilder();
+        while (name.length() < DefaultQueueEventCodec.MAX_PAYLOAD_LENGTH - 200) {
+            name.append(UUID.randomUUID());
+        }
+        final TestCodecEvent largeEvent = new TestCodecEvent(name.toString(), 18L, new DateTime(2020, 5, 1, 10, 0, DateTimeZone.UTC));
+        final String largePayload = codec.encode(largeEvent);
+        assertEquals(largePayload, QueueObjectMapper.get().writeValueAsString(largeEvent));
+        assertTrue(largePayload.length() <= DefaultQueueEventCodec.MAX_PAYLOAD_LENGTH);
+        assertEquals(codec.decode(TestCodecEvent.class.getName(), largePayload), largeEvent);
+
+        // Smaller payloads which fit in the column are left in Smile
+        final TestCodecEvent event = new TestCodecEvent(name.substring(0, 1000), 19L, new DateTime(2020, 5, 1, 10, 0, DateTimeZone.UTC));
+        assertTrue(codec.encode(event).startsWith(DefaultQueueEventCodec.SMILE_PREFIX));
+    }
+
+    @Test(groups = "fast")
+    public void testCustomCodec() throws Exception {
+        final QueueEventCodec defaultCodec = QueueObjectMapper.newCodec(QueueObjectMapper.get(), createConfig("SMILE", ""));
+        assertTrue(defaultCodec instanceof DefaultQueueEventCodec);
+        assertEquals(((DefaultQueueEventCodec) defaultCodec).getFormat(), QueueEventFormat.SMILE);
+
+        final QueueEventCodec customCodec = QueueObjectMapper.newCodec(QueueObjectMapper.get(), createConfig("SMILE", TestCustomCodec.class.getName()));
+        assertTrue(customCodec instanceof TestCustomCodec);
+        assertEquals(((TestCustomCodec) customCodec).getConfig().getEventFormat(), QueueEventFormat.SMILE);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidCustomCodec() {
+        QueueObjectMapper.newCodec(QueueObjectMapper.get(), createConfig("JSON", TestCodecEvent.class.getName()));
+    }
+
+    @Test(groups = "fast")
+    public void testCustomObjectMapper() throws Exception {
+        final ObjectMapper customMapper = QueueObjectMapper.get().copy();
+        final TestCodecEvent event = new TestCodecEvent("custom", 20L, new DateTime(2020, 5, 1, 10, 0, DateTimeZone.UTC));
+        final QueueEventCodec codec = QueueObjectMapper.newCodec(customMapper, QueueEventFormat.JSON);
+        assertEquals(codec.decode(TestCodecEvent.class.getName(), codec.encode(event)), event);
+
+        // The Smile mapper would not have the configuration of the custom mapper
+        try {
+            QueueObjectMapper.newCodec(customMapper, QueueEventFormat.SMILE);
+            fail("SMILE should be rejected with a custom ObjectMapper");
+        } catch (final IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("SMILE"));
+        }
+    }
+
+    private PersistentBusConfig createConfig(final String format, final String codecClass) {
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.persistent.bus.main.event.format", format);
+        properties.setProperty("org.killbill.persistent.bus.main.event.codec", codecClass);
+        return new ConfigurationObjectFactory(new SimplePropertyConfigSource(properties)).buildWithReplacements(PersistentBusConfig.class,
+                                                                                                               ImmutableMap.<String, String>of("instanceName", "main"));
+    }
+
+    public static final class TestCustomCodec implements QueueEventCodec {
+
+        private final PersistentQueueConfig config;
+
+        public TestCustomCodec(final PersistentQueueConfig config) {
+            this.config = config;
+        }
+
+        public PersistentQueueConfig getConfig() {
+            return config;
+        }
+
+        @Override
+        public String encode(final Object event) throws IOException {
+            return QueueObjectMapper.get().writeValueAsString(event);
+        }
+
+        @Override
+        public Object decode(final String className, final String payload) throws IOException, ClassNotFoundException {
+            return QueueObjectMapper.get().readValue(payload, Class.forName(className));
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testTruncatedCompressedPayload() throws Exception {
+        final DefaultQueueEventCodec codec = new DefaultQueueEventCodec(QueueObjectMapper.get(), QueueObjectMapper.getSmile(), QueueEventFormat.JSON, 200);
+        final String payload = codec.encode(new TestCodecEvent(Strings.repeat("large-", 500), 17L, new DateTime(2020, 5, 1, 10, 0, DateTimeZone.UTC)));
+        final byte[] compressed = BaseEncoding.base64().decode(payload.substring(DefaultQueueEventCodec.DEFLATE_PREFIX.length()));
+        codec.decode(TestCodecEvent.class.getName(), DefaultQueueEventCodec.DEFLATE_PREFIX + BaseEncoding.base64().encode(compressed, 0, compressed.length / 2));
+    }
+
+    @Test(groups = "fast", expectedExceptions = ClassNotFoundException.class)
+    public void testUnknownClass() throws IOException, ClassNotFoundException {
+        QueueObjectMapper.getCodec(QueueEventFormat.JSON).decode("org.killbill.queue.codec.DoesNotExist", "{}");
+    }
+
+    public static final class TestCodecEvent {
+
+        private final String name;
+        private final Long searchKey;
+        private final DateTime effectiveDate;
+
+        @JsonCreator
+        public TestCodecEvent(@JsonProperty("name") final String name,
+                              @JsonProperty("searchKey") final Long searchKey,
+                              @JsonProperty("effectiveDate") final DateTime effectiveDate) {
+            this.name = name;
+            this.searchKey = searchKey;
+            this.effectiveDate = effectiveDate;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Long getSearchKey() {
+            return searchKey;
+        }
+
+        public DateTime getEffectiveDate() {
+            return effectiveDate;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TestCodecEvent)) {
+                return false;
+            }
+            final TestCodecEvent that = (TestCodecEvent) o;
+            return name.equals(that.name) && searchKey.equals(that.searchKey) && effectiveDate.isEqual(that.effectiveDate);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.queue.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.killbill.bus.dao.BusEventModelDao;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestRecordIdPaginatedIterable {
+
+    @Test(groups = "fast")
+    public void testPagination() {
+        // Gaps in the record ids, as with entries for other search keys
+        final List<BusEventModelDao> entries = new ArrayList<BusEventModelDao>();
+        for (long recordId = 1; recordId <= 30; recordId += 3) {
+            final BusEventModelDao entry = new BusEventModelDao();
+            entry.setRecordId(recordId);
+            entries.add(entry);
+        }
+
+        for (final int pageSize : new int[]{1, 3, 5, 10, 11, 100}) {
+            final List<Long> fromRecordIds = new ArrayList<Long>();
+            final Iterable<BusEventModelDao> iterable = new RecordIdPaginatedIterable<BusEventModelDao>(pageSize) {
+                @Override
+                protected List<BusEventModelDao> fetchPage(final long fromRecordId, final int pageSize) {
+                    fromRecordIds.add(fromRecordId);
+                    final List<BusEventModelDao> page = new ArrayList<BusEventModelDao>();
+                    for (final BusEventModelDao entry : entries) {
+                        if (entry.getRecordId() > fromRecordId && page.size() < pageSize) {
+                            page.add(entry);
+                        }
+                    }
+                    return page;
+                }
+            };
+
+            assertEquals(ImmutableList.<BusEventModelDao>copyOf(iterable), entries);
+            // A full last page requires one more (empty) query
+            final int expectedNbQueries = entries.size() / pageSize + 1;
+            assertEquals(fromRecordIds.size(), expectedNbQueries, "pageSize=" + pageSize);
+            assertEquals((long) fromRecordIds.get(0), -1L);
+            if (expectedNbQueries > 1) {
+                assertEquals((long) fromRecordIds.get(1), (long) entries.get(pageSize - 1).getRecordId());
+            }
+
+            // Each iterator starts over
+            assertEquals(ImmutableList.<BusEventModelDao>copyOf(iterable).size(), entries.size());
+        }
+    }
+}
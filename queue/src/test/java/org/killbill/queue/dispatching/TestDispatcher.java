@@ -31,6 +31,7 @@ import org.killbill.queue.api.QueueEvent;
 import org.skife.config.TimeSpan;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
@@ -38,10 +39,14 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestDispatcher {
 
@@ -84,6 +89,89 @@ public class TestDispatcher {
         });
     }
 
+    @Test(groups = "fast")
+    public void testCredits() {
+        final int nbCredits = QUEUE_SIZE + 1;
+        awaitAvailableCredits(nbCredits);
+
+        callback.block();
+        Assert.assertEquals(dispatcher.reserveCredits(100), nbCredits);
+        Assert.assertEquals(dispatcher.reserveCredits(1), 0);
+        // One entry on the handler thread, the others in the work queue: nothing should block
+        for (int i = 0; i < nbCredits; i++) {
+            dispatch(i);
+        }
+        dispatcher.releaseCredits(nbCredits);
+        Assert.assertEquals(dispatcher.getAvailableCredits(), 0);
+        Assert.assertEquals(dispatcher.reserveCredits(1), 0);
+
+        callback.unblock();
+        awaitAvailableCredits(nbCredits);
+        Assert.assertEquals(dispatcher.reserveCredits(2), 2);
+        dispatcher.releaseCredits(2);
+        Assert.assertEquals(dispatcher.getAvailableCredits(), nbCredits);
+
+        callback.getProcessed().clear();
+    }
+
+    @Test(groups = "fast")
+    public void testLanesNeverBlockDispatch() throws Exception {
+        final int nbLanes = 2;
+        final TestCallableCallback laneCallback = new TestCallableCallback();
+        final AtomicInteger nbRejections = new AtomicInteger();
+        final Dispatcher<BusEvent, BusEventModelDao> laneDispatcher = new Dispatcher<>(1, createConfig(nbLanes), 5, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(QUEUE_SIZE), Executors.defaultThreadFactory(),
+                                                                                      new BlockingRejectionExecutionHandler() {
+                                                                                          @Override
+                                                                                          public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+                                                                                              nbRejections.incrementAndGet();
+                                                                                              super.rejectedExecution(r, executor);
+                                                                                          }
+                                                                                      },
+                                                                                      null, laneCallback, null);
+        laneDispatcher.start();
+        final ExecutorService dispatchThread = Executors.newSingleThreadExecutor();
+        try {
+            // The handler thread is busy: every entry claimed with a credit must still be dispatched right away, more than nbLanes of them on distinct keys
+            laneCallback.block();
+            final int nbCredits = laneDispatcher.reserveCredits(100);
+            Assert.assertEquals(nbCredits, QUEUE_SIZE + 1);
+            Assert.assertTrue(nbCredits > nbLanes);
+            final Future<?> dispatched = dispatchThread.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < nbCredits; i++) {
+                        laneDispatcher.dispatch(new BusEventModelDao("owner", new DateTime(), String.class.getName(), "lane-" + i, UUID.randomUUID(), (long) i, 1L));
+                    }
+                }
+            });
+            dispatched.get(5, TimeUnit.SECONDS);
+            laneDispatcher.releaseCredits(nbCredits);
+            Assert.assertEquals(nbRejections.get(), 0);
+            Assert.assertEquals(laneDispatcher.reserveCredits(1), 0);
+
+            laneCallback.unblock();
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return laneCallback.getProcessed().size() == nbCredits && laneDispatcher.getAvailableCredits() == nbCredits;
+                }
+            });
+        } finally {
+            laneCallback.unblock();
+            dispatchThread.shutdownNow();
+            laneDispatcher.stop();
+        }
+    }
+
+    private void awaitAvailableCredits(final int nbCredits) {
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return dispatcher.getAvailableCredits() == nbCredits;
+            }
+        });
+    }
+
     private void dispatch(final int i) {
         final BusEventModelDao e1 = new BusEventModelDao("owner", new DateTime(), String.class.getName(), "e-" + i, UUID.randomUUID(), 1L, 1L);
         dispatcher.dispatch(e1);
@@ -168,6 +256,11 @@ public class TestDispatcher {
 
         }
 
+        @Override
+        public void moveCompletedOrFailedAndUpdateRetriedEvents(final Iterable<BusEventModelDao> completedOrFailed, final Iterable<BusEventModelDao> retried) {
+
+        }
+
     }
 
     public static class TestEvent implements BusEvent {
@@ -209,6 +302,10 @@ public class TestDispatcher {
     }
 
     private PersistentBusConfig createConfig() {
+        return createConfig(0);
+    }
+
+    private PersistentBusConfig createConfig(final int nbDispatchLanes) {
         return new PersistentBusConfig() {
             @Override
             public boolean isInMemory() {
@@ -260,6 +357,11 @@ public class TestDispatcher {
                 return 1;
             }
 
+            @Override
+            public int getNbDispatchLanes() {
+                return nbDispatchLanes;
+            }
+
             @Override
             public int geNbLifecycleDispatchThreads() {
                 return 1;
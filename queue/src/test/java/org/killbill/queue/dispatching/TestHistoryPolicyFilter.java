@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.queue.dispatching;
+
+import org.killbill.queue.api.PersistentQueueConfig.HistoryPolicy;
+import org.testng.annotations.Test;
+
+import static org.killbill.queue.api.PersistentQueueEntryLifecycleState.FAILED;
+import static org.killbill.queue.api.PersistentQueueEntryLifecycleState.PROCESSED;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestHistoryPolicyFilter {
+
+    @Test(groups = "fast")
+    public void testDefaultPolicies() {
+        final HistoryPolicyFilter full = new HistoryPolicyFilter(HistoryPolicy.FULL, 1, "");
+        assertTrue(full.isFull());
+        assertTrue(full.isKeptInHistory("foo", PROCESSED, 1L));
+
+        final HistoryPolicyFilter errorsOnly = new HistoryPolicyFilter(HistoryPolicy.ERRORS_ONLY, 1, "");
+        assertFalse(errorsOnly.isFull());
+        assertFalse(errorsOnly.isKeptInHistory("foo", PROCESSED, 1L));
+        assertTrue(errorsOnly.isKeptInHistory("foo", FAILED, 1L));
+
+        final HistoryPolicyFilter none = new HistoryPolicyFilter(HistoryPolicy.NONE, 1, "");
+        assertFalse(none.isKeptInHistory("foo", PROCESSED, 1L));
+        assertFalse(none.isKeptInHistory("foo", FAILED, 1L));
+    }
+
+    @Test(groups = "fast")
+    public void testSampling() {
+        final HistoryPolicyFilter sampled = new HistoryPolicyFilter(HistoryPolicy.SAMPLED, 5, "");
+
+        int nbKept = 0;
+        for (long recordId = 1; recordId <= 1000; recordId++) {
+            if (sampled.isKeptInHistory("foo", PROCESSED, recordId)) {
+                nbKept++;
+            }
+            // Failures are always kept
+            assertTrue(sampled.isKeptInHistory("foo", FAILED, recordId));
+        }
+        assertEquals(nbKept, 50);
+    }
+
+    @Test(groups = "fast")
+    public void testOverrides() {
+        final HistoryPolicyFilter filter = new HistoryPolicyFilter(HistoryPolicy.FULL, 1, " com.acme.FooEvent:NONE, com.acme.BarEvent : ERRORS_ONLY ");
+        assertFalse(filter.isFull());
+        assertFalse(filter.isKeptInHistory("com.acme.FooEvent", FAILED, 1L));
+        assertFalse(filter.isKeptInHistory("com.acme.BarEvent", PROCESSED, 1L));
+        assertTrue(filter.isKeptInHistory("com.acme.BarEvent", FAILED, 1L));
+        assertTrue(filter.isKeptInHistory("com.acme.OtherEvent", PROCESSED, 1L));
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidConfiguration() {
+        for (final int samplingPercentage : new int[]{-1, 101}) {
+            try {
+                new HistoryPolicyFilter(HistoryPolicy.SAMPLED, samplingPercentage, "");
+                fail("samplingPercentage " + samplingPercentage + " should be rejected");
+            } catch (final IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("samplingPercentage"));
+            }
+        }
+
+        try {
+            new HistoryPolicyFilter(HistoryPolicy.FULL, 1, "com.acme.FooEvent:SOMETIMES");
+            fail("Unknown policy should be rejected");
+        } catch (final IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("com.acme.FooEvent"));
+        }
+
+        try {
+            new HistoryPolicyFilter(HistoryPolicy.FULL, 1, "com.acme.FooEvent");
+            fail("Override without a policy should be rejected");
+        } catch (final IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("com.acme.FooEvent"));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.dispatching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import static org.awaitility.Awaitility.await;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestKeyAffineExecutor {
+
+    private static final int NB_KEYS = 8;
+    private static final int NB_EVENTS_PER_KEY = 500;
+
+    @Test(groups = "fast")
+    public void testOrderingPerKey() throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final KeyAffineExecutor keyAffineExecutor = new KeyAffineExecutor(executor, 4, 100);
+
+            final List<List<Integer>> processed = new ArrayList<List<Integer>>();
+            for (int key = 0; key < NB_KEYS; key++) {
+                processed.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            }
+            final CountDownLatch done = new CountDownLatch(NB_KEYS * NB_EVENTS_PER_KEY);
+
+            for (int i = 0; i < NB_EVENTS_PER_KEY; i++) {
+                for (int key = 0; key < NB_KEYS; key++) {
+                    final List<Integer> processedForKey = processed.get(key);
+                    final int seq = i;
+                    keyAffineExecutor.execute((long) key, new Runnable() {
+                        @Override
+                        public void run() {
+                            processedForKey.add(seq);
+                            done.countDown();
+                        }
+                    });
+                }
+            }
+
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            for (int key = 0; key < NB_KEYS; key++) {
+                final List<Integer> processedForKey = processed.get(key);
+                assertEquals(processedForKey.size(), NB_EVENTS_PER_KEY);
+                for (int i = 0; i < NB_EVENTS_PER_KEY; i++) {
+                    assertEquals((int) processedForKey.get(i), i);
+                }
+            }
+            assertEquals(keyAffineExecutor.getDepth(), 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testLaneMetrics() throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final KeyAffineExecutor keyAffineExecutor = new KeyAffineExecutor(executor, 4, 100);
+            final CountDownLatch blocker = new CountDownLatch(1);
+            final Runnable blockingTask = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        blocker.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+
+            // All the entries land in the same lane
+            for (int i = 0; i < 10; i++) {
+                keyAffineExecutor.execute(42L, blockingTask);
+            }
+            assertEquals(keyAffineExecutor.getDepth(), 10);
+            assertEquals(keyAffineExecutor.getMaxLaneDepth(), 10);
+            assertEquals(keyAffineExecutor.getSkew(), 4.0);
+
+            blocker.countDown();
+            await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return keyAffineExecutor.getDepth() == 0;
+                }
+            });
+            assertEquals(keyAffineExecutor.getSkew(), 0.0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testWorkersNeverBlockOnFullWorkQueue() throws InterruptedException {
+        // A single thread and a tiny work queue: a worker blocking to resubmit its lane would never be drained
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1), new BlockingRejectionExecutionHandler());
+        try {
+            final KeyAffineExecutor keyAffineExecutor = new KeyAffineExecutor(executor, 4, 1000);
+            final CountDownLatch done = new CountDownLatch(NB_KEYS * NB_EVENTS_PER_KEY);
+            for (int i = 0; i < NB_EVENTS_PER_KEY; i++) {
+                for (int key = 0; key < NB_KEYS; key++) {
+                    keyAffineExecutor.execute((long) key, new Runnable() {
+                        @Override
+                        public void run() {
+                            done.countDown();
+                        }
+                    });
+                }
+            }
+
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertEquals(keyAffineExecutor.getDepth(), 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRejectedTaskIsRolledBack() {
+        final Executor rejectingExecutor = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                throw new RejectedExecutionException("Shutting down");
+            }
+        };
+        final KeyAffineExecutor keyAffineExecutor = new KeyAffineExecutor(rejectingExecutor, 2, 1);
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                fail("Rejected task should not run");
+            }
+        };
+
+        // The capacity is released on rejection: the second attempt would block otherwise
+        for (int i = 0; i < 2; i++) {
+            try {
+                keyAffineExecutor.execute(42L, task);
+                fail("Task should have been rejected");
+            } catch (final RejectedExecutionException expected) {
+                assertEquals(keyAffineExecutor.getDepth(), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.history;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.TestSetup;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.PersistentBusSqlDao;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.config.SimplePropertyConfigSource;
+import org.skife.jdbi.v2.Handle;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+
+import static org.awaitility.Awaitility.await;
+import static org.testng.Assert.assertEquals;
+
+public class TestHistoryArchiver extends TestSetup {
+
+    private static final String ARCHIVE_TABLE_NAME = "bus_events_history_archive";
+
+    private PersistentBusSqlDao sqlDao;
+    private HistoryArchiver<BusEventModelDao> archiver;
+
+    @Override
+    @BeforeClass(groups = "slow")
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        final String ddl = toString(Resources.getResource("org/killbill/queue/history/ddl_history_archive_test.sql").openStream());
+        embeddedDB.executeScript(ddl);
+        embeddedDB.refreshTableNames();
+
+        sqlDao = getDBI().onDemand(PersistentBusSqlDao.class);
+    }
+
+    @AfterMethod(groups = "slow")
+    public void afterMethod() throws Exception {
+        if (archiver != null) {
+            archiver.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testArchiveEntries() throws Exception {
+        // Several batches, plus a partial one
+        final PersistentBusConfig config = createConfig(ARCHIVE_TABLE_NAME, 3);
+        insertHistoryEntries(7, clock.getUTCNow().minusDays(31));
+        insertHistoryEntries(2, clock.getUTCNow().minusDays(29));
+
+        archiver = new HistoryArchiver<BusEventModelDao>(getDBI(), sqlDao, config, clock, "testArchiveEntries", metricRegistry);
+        archiver.start();
+        waitForHistoryEntries(config, 2);
+
+        assertEquals(countEntries(ARCHIVE_TABLE_NAME), 7);
+        assertEquals(metricRegistry.counter(MetricRegistry.name(HistoryArchiver.class, config.getHistoryTableName(), "archivedEntries")).getCount(), 7);
+    }
+
+    @Test(groups = "slow")
+    public void testDeleteEntriesWithoutArchiveTable() throws Exception {
+        final PersistentBusConfig config = createConfig("", 1000);
+        insertHistoryEntries(5, clock.getUTCNow().minusDays(31));
+        insertHistoryEntries(1, clock.getUTCNow());
+
+        archiver = new HistoryArchiver<BusEventModelDao>(getDBI(), sqlDao, config, clock, "testDeleteEntriesWithoutArchiveTable", metricRegistry);
+        archiver.start();
+        waitForHistoryEntries(config, 1);
+
+        assertEquals(countEntries(ARCHIVE_TABLE_NAME), 0);
+    }
+
+    private PersistentBusConfig createConfig(final String archiveTableName, final int batchSize) {
+        final Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        properties.setProperty("org.killbill.persistent.bus.main.history.retention", "30d");
+        properties.setProperty("org.killbill.persistent.bus.main.history.archiveTableName", archiveTableName);
+        properties.setProperty("org.killbill.persistent.bus.main.history.archive.batchSize", String.valueOf(batchSize));
+        properties.setProperty("org.killbill.persistent.bus.main.history.archive.sleep", "0");
+        return new ConfigurationObjectFactory(new SimplePropertyConfigSource(properties)).buildWithReplacements(PersistentBusConfig.class,
+                                                                                                               ImmutableMap.<String, String>of("instanceName", "main"));
+    }
+
+    private void insertHistoryEntries(final int nbEntries, final DateTime createdDate) {
+        final List<BusEventModelDao> entries = new ArrayList<BusEventModelDao>(nbEntries);
+        for (int i = 0; i < nbEntries; i++) {
+            entries.add(new BusEventModelDao("Hip", createdDate, String.class.getName(), String.valueOf(i), UUID.randomUUID(), 1L, 2L));
+        }
+        sqlDao.insertEntries(entries, persistentBusConfig.getHistoryTableName());
+    }
+
+    private void waitForHistoryEntries(final PersistentBusConfig config, final int nbEntries) {
+        await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return countEntries(config.getHistoryTableName()) == nbEntries;
+            }
+        });
+    }
+
+    private int countEntries(final String tableName) {
+        final Handle handle = getDBI().open();
+        try {
+            return handle.createQuery("select count(*) from " + tableName).mapTo(Integer.class).first();
+        } finally {
+            handle.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.queue.history;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.queue.api.PersistentQueueConfig.HistoryPartitioning;
+import org.skife.jdbi.v2.Handle;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class TestHistoryPartitionManager {
+
+    @Test(groups = "fast")
+    public void testDailyPartitions() {
+        final InMemoryPartitionManager manager = new InMemoryPartitionManager(HistoryPartitioning.DAILY);
+        final DateTime now = new DateTime(2020, 2, 28, 23, 15, DateTimeZone.UTC);
+
+        manager.ensurePartitions(null, now, 2);
+        assertEquals(manager.partitions, ImmutableList.<String>of("bus_events_history_p20200228", "bus_events_history_p20200229", "bus_events_history_p20200301"));
+        assertEquals(manager.bounds, ImmutableList.<String>of("2020-02-28/2020-02-29", "2020-02-29/2020-03-01", "2020-03-01/2020-03-02"));
+
+        // Idempotent
+        manager.ensurePartitions(null, now, 2);
+        assertEquals(manager.partitions.size(), 3);
+
+        // Only partitions entirely before the cutoff are dropped
+        assertEquals(manager.dropPartitionsBefore(null, new DateTime(2020, 2, 29, 12, 0, DateTimeZone.UTC)), ImmutableList.<String>of("bus_events_history_p20200228"));
+        assertEquals(manager.dropPartitionsBefore(null, new DateTime(2020, 3, 1, 0, 0, DateTimeZone.UTC)), ImmutableList.<String>of("bus_events_history_p20200229"));
+        assertEquals(manager.partitions, ImmutableList.<String>of("bus_events_history_p20200301"));
+    }
+
+    @Test(groups = "fast")
+    public void testMonthlyPartitions() {
+        final InMemoryPartitionManager manager = new InMemoryPartitionManager(HistoryPartitioning.MONTHLY);
+        final DateTime now = new DateTime(2019, 12, 31, 10, 0, DateTimeZone.UTC);
+
+        manager.ensurePartitions(null, now, 1);
+        assertEquals(manager.partitions, ImmutableList.<String>of("bus_events_history_p201912", "bus_events_history_p202001"));
+        assertEquals(manager.bounds, ImmutableList.<String>of("2019-12-01/2020-01-01", "2020-01-01/2020-02-01"));
+
+        // Partitions we don't manage are left alone
+        manager.partitions.add("pmax");
+        manager.partitions.add("bus_events_history_old");
+        assertEquals(manager.dropPartitionsBefore(null, new DateTime(2020, 3, 1, 0, 0, DateTimeZone.UTC)), ImmutableList.<String>of("bus_events_history_p201912", "bus_events_history_p202001"));
+        assertEquals(manager.partitions, ImmutableList.<String>of("pmax", "bus_events_history_old"));
+    }
+
+    @Test(groups = "fast")
+    public void testPartitionsAreRolledByOneNodeAtATime() {
+        final InMemoryPartitionManager manager = new InMemoryPartitionManager(HistoryPartitioning.DAILY);
+        final DateTime now = new DateTime(2020, 2, 28, 23, 15, DateTimeZone.UTC);
+        manager.ensurePartitions(null, now, 0);
+
+        // Another node is rolling the partitions
+        manager.isLocked = true;
+        assertEquals(manager.rollPartitions(null, now.plusDays(2), 1, now.plusDays(1)), ImmutableList.<String>of());
+        assertEquals(manager.partitions, ImmutableList.<String>of("bus_events_history_p20200228"));
+
+        manager.isLocked = false;
+        assertEquals(manager.rollPartitions(null, now.plusDays(2), 1, now.plusDays(1)), ImmutableList.<String>of("bus_events_history_p20200228"));
+        assertEquals(manager.partitions, ImmutableList.<String>of("bus_events_history_p20200301", "bus_events_history_p20200302"));
+        assertFalse(manager.isLocked);
+    }
+
+    private static final class InMemoryPartitionManager extends HistoryPartitionManager {
+
+        private final List<String> partitions = new ArrayList<String>();
+        private final List<String> bounds = new ArrayList<String>();
+        private boolean isLocked;
+
+        private InMemoryPartitionManager(final HistoryPartitioning partitioning) {
+            super(null, "bus_events_history", partitioning);
+        }
+
+        @Override
+        protected boolean tryLock(final Handle handle) {
+            if (isLocked) {
+                return false;
+            }
+            isLocked = true;
+            return true;
+        }
+
+        @Override
+        protected void releaseLock(final Handle handle) {
+            isLocked = false;
+        }
+
+        @Override
+        protected List<String> getPartitionNames(final Handle handle) {
+            return ImmutableList.<String>copyOf(partitions);
+        }
+
+        @Override
+        protected void createPartition(final Handle handle, final String partitionName, final LocalDate from, final LocalDate to) {
+            partitions.add(partitionName);
+            bounds.add(getBound(from) + "/" + getBound(to));
+        }
+
+        @Override
+        protected void dropPartition(final Handle handle, final String partitionName) {
+            partitions.remove(partitionName);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.wakeup;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestPostgreSQLWakeupTransport {
+
+    @Test(groups = "fast")
+    public void testNormalizeChannel() {
+        assertEquals(PostgreSQLWakeupTransport.normalizeChannel("bus_events"), "bus_events");
+        // Same channel for LISTEN (folded to lower case) and pg_notify (used as is)
+        assertEquals(PostgreSQLWakeupTransport.normalizeChannel("Bus_Events"), "bus_events");
+        assertEquals(PostgreSQLWakeupTransport.normalizeChannel("accounts.bus_events"), "accounts_bus_events");
+        assertEquals(PostgreSQLWakeupTransport.normalizeChannel("2bus-events"), "_2bus_events");
+    }
+}
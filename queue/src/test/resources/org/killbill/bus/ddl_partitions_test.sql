@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2020 Equinix, Inc
+ * Copyright 2014-2020 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*! SET default_storage_engine=INNODB */;
+
+DROP TABLE IF EXISTS bus_events_0;
+CREATE TABLE bus_events_0 (
+    record_id serial unique,
+    class_name varchar(128) NOT NULL,
+    event_json varchar(2048) NOT NULL,
+    user_token varchar(36),
+    created_date datetime NOT NULL,
+    creating_owner varchar(50) NOT NULL,
+    processing_owner varchar(50) DEFAULT NULL,
+    processing_available_date datetime DEFAULT NULL,
+    processing_state varchar(14) DEFAULT 'AVAILABLE',
+    error_count int /*! unsigned */ DEFAULT 0,
+    search_key1 bigint /*! unsigned */ default null,
+    search_key2 bigint /*! unsigned */ default null,
+    PRIMARY KEY(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+CREATE INDEX idx_bus_where_0 ON bus_events_0(processing_state, processing_owner, processing_available_date);
+CREATE INDEX bus_events_0_tenant_account_record_id ON bus_events_0(search_key2, search_key1);
+
+DROP TABLE IF EXISTS bus_events_1;
+CREATE TABLE bus_events_1 (
+    record_id serial unique,
+    class_name varchar(128) NOT NULL,
+    event_json varchar(2048) NOT NULL,
+    user_token varchar(36),
+    created_date datetime NOT NULL,
+    creating_owner varchar(50) NOT NULL,
+    processing_owner varchar(50) DEFAULT NULL,
+    processing_available_date datetime DEFAULT NULL,
+    processing_state varchar(14) DEFAULT 'AVAILABLE',
+    error_count int /*! unsigned */ DEFAULT 0,
+    search_key1 bigint /*! unsigned */ default null,
+    search_key2 bigint /*! unsigned */ default null,
+    PRIMARY KEY(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+CREATE INDEX idx_bus_where_1 ON bus_events_1(processing_state, processing_owner, processing_available_date);
+CREATE INDEX bus_events_1_tenant_account_record_id ON bus_events_1(search_key2, search_key1);